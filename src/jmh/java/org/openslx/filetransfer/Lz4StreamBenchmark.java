@@ -0,0 +1,141 @@
+package org.openslx.filetransfer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compresses/decompresses 16 MiB of data with the same framing the uploader
+ * and downloader use on the wire, without any networking involved.
+ * compressAdaptive shows the effect of skipping incompressible frames.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class Lz4StreamBenchmark
+{
+
+	private static final int DATA_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * Size of frames as sent by {@link Uploader}
+	 */
+	private static final int FRAME_SIZE = 500000;
+
+	/**
+	 * random: incompressible, text: compresses well, zero: sparse image
+	 */
+	@Param( { "random", "text", "zero" } )
+	public String content;
+
+	private byte[] data;
+
+	private byte[] compressed;
+
+	private ByteArrayOutputStream outBuffer;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		data = new byte[ DATA_SIZE ];
+		Random rnd = new Random( 1234 );
+		if ( content.equals( "random" ) ) {
+			rnd.nextBytes( data );
+		} else if ( content.equals( "text" ) ) {
+			String[] words = { "image ", "virtual ", "machine ", "lecture ", "satellite ", "server ", "\n" };
+			int pos = 0;
+			while ( pos < data.length ) {
+				byte[] w = words[rnd.nextInt( words.length )].getBytes();
+				int len = Math.min( w.length, data.length - pos );
+				System.arraycopy( w, 0, data, pos, len );
+				pos += len;
+			}
+		}
+		outBuffer = new ByteArrayOutputStream( DATA_SIZE + DATA_SIZE / 8 );
+		compress();
+		compressed = outBuffer.toByteArray();
+	}
+
+	/**
+	 * Size of the caller's buffer, smaller than a frame or large enough to hold one
+	 */
+	@State( Scope.Thread )
+	public static class ReadBuffer
+	{
+		@Param( { "65536", "524288" } )
+		public int readSize;
+
+		private byte[] buffer;
+
+		@Setup
+		public void setup()
+		{
+			buffer = new byte[ readSize ];
+		}
+	}
+
+	/**
+	 * Compress every frame, like before {@link CompressionAdvisor} existed
+	 */
+	@Benchmark
+	public int compress() throws IOException
+	{
+		return compress( null );
+	}
+
+	/**
+	 * Let a fresh {@link CompressionAdvisor} decide per frame, as for a new
+	 * upload
+	 */
+	@Benchmark
+	public int compressAdaptive() throws IOException
+	{
+		return compress( new CompressionAdvisor() );
+	}
+
+	private int compress( CompressionAdvisor advisor ) throws IOException
+	{
+		outBuffer.reset();
+		DataOutputStream out = new DataOutputStream( outBuffer );
+		Uploader.Lz4OutStream lz4 = new Uploader.Lz4OutStream( out, advisor );
+		for ( int off = 0; off < data.length; off += FRAME_SIZE ) {
+			lz4.write( off, data, off, Math.min( FRAME_SIZE, data.length - off ) );
+		}
+		return outBuffer.size();
+	}
+
+	@Benchmark
+	public long decompress( ReadBuffer readBuffer ) throws IOException
+	{
+		DataInputStream in = new DataInputStream( new ByteArrayInputStream( compressed ) );
+		Downloader.Lz4InStream lz4 = new Downloader.Lz4InStream( in );
+		long total = 0;
+		while ( total < DATA_SIZE ) {
+			int ret = lz4.read( readBuffer.buffer, 0, (int)Math.min( readBuffer.buffer.length, DATA_SIZE - total ) );
+			if ( ret == -1 )
+				break;
+			total += ret;
+		}
+		return total;
+	}
+
+}
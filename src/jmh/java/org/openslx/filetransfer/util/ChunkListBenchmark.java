@@ -0,0 +1,77 @@
+package org.openslx.filetransfer.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs a full transfer's worth of state transitions through a {@link ChunkList}:
+ * missing -> pending -> complete (unhashed) -> hashing -> complete.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class ChunkListBenchmark
+{
+
+	/**
+	 * Number of chunks; 32768 chunks equals a 512 GiB image
+	 */
+	@Param( { "1024", "32768" } )
+	public int chunkCount;
+
+	private List<byte[]> hashes;
+
+	@Setup
+	public void setup()
+	{
+		hashes = new ArrayList<>( chunkCount );
+		for ( int i = 0; i < chunkCount; ++i ) {
+			byte[] sha1 = new byte[ FileChunk.SHA1_LENGTH ];
+			sha1[0] = (byte)i;
+			sha1[1] = (byte) ( i >> 8 );
+			sha1[2] = (byte) ( i >> 16 );
+			sha1[3] = 1;
+			hashes.add( sha1 );
+		}
+	}
+
+	@Benchmark
+	public ChunkList transitions() throws InterruptedException
+	{
+		ChunkList list = new ChunkList( (long)chunkCount * FileChunk.CHUNK_SIZE, hashes );
+		FileChunk chunk;
+		while ( ( chunk = list.getMissing( false ) ) != null ) {
+			list.markCompleted( chunk, false );
+			list.isComplete();
+		}
+		while ( ( chunk = list.getUnhashedComplete() ) != null ) {
+			list.markCompleted( chunk, true );
+			list.isComplete();
+		}
+		return list;
+	}
+
+	@Benchmark
+	public Object statusArray()
+	{
+		ChunkList list = new ChunkList( (long)chunkCount * FileChunk.CHUNK_SIZE, hashes );
+		return list.getStatusArray();
+	}
+
+}
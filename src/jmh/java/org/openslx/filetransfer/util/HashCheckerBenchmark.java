@@ -0,0 +1,87 @@
+package org.openslx.filetransfer.util;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openslx.filetransfer.util.HashChecker.HashCheckCallback;
+import org.openslx.filetransfer.util.HashChecker.HashResult;
+
+/**
+ * Hashes one full 16 MiB chunk per invocation, round-tripping through the
+ * {@link HashChecker}'s worker threads like a real transfer does.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class HashCheckerBenchmark
+{
+
+	@Param( { "CHECK_SHA1", "CHECK_SHA1_CRC32" } )
+	public String mode;
+
+	private HashChecker hashChecker;
+
+	private byte[] data;
+
+	private FileChunk chunk;
+
+	private int flags;
+
+	private final Object lock = new Object();
+
+	private HashResult result;
+
+	private final HashCheckCallback callback = new HashCheckCallback() {
+		@Override
+		public void hashCheckDone( HashResult res, byte[] data, FileChunk chunk )
+		{
+			synchronized ( lock ) {
+				result = res;
+				lock.notifyAll();
+			}
+		}
+	};
+
+	@Setup
+	public void setup() throws NoSuchAlgorithmException
+	{
+		hashChecker = new HashChecker( "SHA-1" );
+		data = new byte[ FileChunk.CHUNK_SIZE ];
+		new Random( 42 ).nextBytes( data );
+		byte[] sha1 = new byte[ FileChunk.SHA1_LENGTH ];
+		chunk = new FileChunk( 0, data.length, sha1 );
+		flags = HashChecker.BLOCKING | HashChecker.CHECK_SHA1 | HashChecker.NO_SLOW_WARN;
+		if ( mode.endsWith( "CRC32" ) ) {
+			flags |= HashChecker.CALC_CRC32;
+		}
+	}
+
+	@Benchmark
+	public HashResult hashChunk() throws InterruptedException
+	{
+		synchronized ( lock ) {
+			result = null;
+			hashChecker.queue( chunk, data, callback, flags );
+			while ( result == null ) {
+				lock.wait();
+			}
+			return result;
+		}
+	}
+
+}
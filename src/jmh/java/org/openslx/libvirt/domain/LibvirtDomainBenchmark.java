@@ -0,0 +1,76 @@
+package org.openslx.libvirt.domain;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openslx.libvirt.xml.LibvirtXmlDocumentException;
+import org.openslx.libvirt.xml.LibvirtXmlSerializationException;
+import org.openslx.libvirt.xml.LibvirtXmlTestResources;
+import org.openslx.libvirt.xml.LibvirtXmlValidationException;
+
+/**
+ * Parsing of a typical libvirt domain XML, and the RelaxNG validation on its own.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class LibvirtDomainBenchmark
+{
+
+	private String xml;
+
+	private Domain domain;
+
+	@Setup
+	public void setup() throws IOException, LibvirtXmlDocumentException, LibvirtXmlSerializationException,
+			LibvirtXmlValidationException
+	{
+		try ( InputStream is = LibvirtXmlTestResources.getLibvirtXmlStream( "qemu-kvm_default-ubuntu-20-04-vm.xml" ) ) {
+			xml = IOUtils.toString( is, StandardCharsets.UTF_8 );
+		}
+		domain = new Domain( xml );
+	}
+
+	@Benchmark
+	public Domain parseDomain() throws LibvirtXmlDocumentException, LibvirtXmlSerializationException,
+			LibvirtXmlValidationException
+	{
+		return new Domain( xml );
+	}
+
+	@Benchmark
+	public Domain validateDomain() throws LibvirtXmlValidationException
+	{
+		domain.validateXml();
+		return domain;
+	}
+
+	@Benchmark
+	public int queryDisks()
+	{
+		return domain.getDiskStorageDevices().size();
+	}
+
+	@Benchmark
+	public String serializeDomain() throws LibvirtXmlSerializationException
+	{
+		return domain.toXml();
+	}
+
+}
@@ -0,0 +1,127 @@
+package org.openslx.thrifthelper;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TByteArrayOutputStream;
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TIOStreamTransport;
+import org.apache.thrift.transport.TMemoryInputTransport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openslx.bwlp.thrift.iface.ImageDetailsRead;
+import org.openslx.bwlp.thrift.iface.ImagePermissions;
+import org.openslx.bwlp.thrift.iface.ImageVersionDetails;
+import org.openslx.bwlp.thrift.iface.ShareMode;
+import org.openslx.bwlp.thrift.iface.TransferInformation;
+
+/**
+ * (De)serialization of the largest structs we regularly send, through
+ * {@link TBinaryProtocolSafe} and in-memory transports.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class ThriftSerializationBenchmark
+{
+
+	/**
+	 * Number of versions in {@link ImageDetailsRead}, block hashes in
+	 * {@link TransferInformation} are 64 times that, so 32768 for 512 GiB
+	 */
+	@Param( { "8", "512" } )
+	public int size;
+
+	private ImageDetailsRead imageDetails;
+
+	private TransferInformation transferInfo;
+
+	private byte[] imageDetailsBytes;
+
+	private byte[] transferInfoBytes;
+
+	private final TByteArrayOutputStream outBuffer = new TByteArrayOutputStream( 1024 * 1024 );
+
+	@Setup
+	public void setup() throws TException
+	{
+		Random rnd = new Random( 1 );
+		List<ImageVersionDetails> versions = new ArrayList<>( size );
+		for ( int i = 0; i < size; ++i ) {
+			versions.add( new ImageVersionDetails( "version-" + i + "-e5b2e2f6-6bd6-4c22-a5b8", 1600000000l + i,
+					1700000000l + i, 20l * 1024 * 1024 * 1024 + i, "uploader-" + ( i % 10 ), false, true, true,
+					Arrays.asList( "Firefox", "LibreOffice", "Matlab R2020b" ) ) );
+		}
+		imageDetails = new ImageDetailsRead( "e5b2e2f6-6bd6-4c22-a5b8-5c1f2b6c8d5e", "version-0", versions,
+				"Ubuntu 20.04 Lecture Image", new String( new char[ 2000 ] ).replace( '\0', 'x' ),
+				Arrays.asList( "linux", "ubuntu", "lecture" ), 42, "qemukvm", 1600000000l, 1700000000l, "owner",
+				"updater", ShareMode.LOCAL, false, new ImagePermissions( true, true, false, false ) );
+		List<ByteBuffer> hashes = new ArrayList<>( size * 64 );
+		for ( int i = 0; i < size * 64; ++i ) {
+			byte[] sha1 = new byte[ 20 ];
+			rnd.nextBytes( sha1 );
+			hashes.add( ByteBuffer.wrap( sha1 ) );
+		}
+		transferInfo = new TransferInformation( "token", 9091, 9092 );
+		transferInfo.setBlockHashes( hashes );
+		imageDetailsBytes = serialize( imageDetails );
+		transferInfoBytes = serialize( transferInfo );
+	}
+
+	private byte[] serialize( TBase<?, ?> struct ) throws TException
+	{
+		outBuffer.reset();
+		struct.write( new TBinaryProtocolSafe( new TIOStreamTransport( outBuffer ) ) );
+		return Arrays.copyOf( outBuffer.get(), outBuffer.len() );
+	}
+
+	@Benchmark
+	public int writeImageDetails() throws TException
+	{
+		outBuffer.reset();
+		imageDetails.write( new TBinaryProtocolSafe( new TIOStreamTransport( outBuffer ) ) );
+		return outBuffer.len();
+	}
+
+	@Benchmark
+	public ImageDetailsRead readImageDetails() throws TException
+	{
+		ImageDetailsRead struct = new ImageDetailsRead();
+		struct.read( new TBinaryProtocolSafe( new TMemoryInputTransport( imageDetailsBytes ) ) );
+		return struct;
+	}
+
+	@Benchmark
+	public int writeBlockHashes() throws TException
+	{
+		outBuffer.reset();
+		transferInfo.write( new TBinaryProtocolSafe( new TIOStreamTransport( outBuffer ) ) );
+		return outBuffer.len();
+	}
+
+	@Benchmark
+	public TransferInformation readBlockHashes() throws TException
+	{
+		TransferInformation struct = new TransferInformation();
+		struct.read( new TBinaryProtocolSafe( new TMemoryInputTransport( transferInfoBytes ) ) );
+		return struct;
+	}
+
+}
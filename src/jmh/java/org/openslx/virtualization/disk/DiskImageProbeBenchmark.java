@@ -0,0 +1,51 @@
+package org.openslx.virtualization.disk;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Format detection of disk images via {@link DiskImage#newInstance(File)}. VMDK is
+ * probed last, so it goes through all the other probes first.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class DiskImageProbeBenchmark
+{
+
+	@Param( { "image-default.qcow2", "image-default.vdi", "image-default.vmdk" } )
+	public String fileName;
+
+	private File file;
+
+	@Setup
+	public void setup()
+	{
+		file = DiskImageTestResources.getDiskFile( fileName );
+	}
+
+	@Benchmark
+	public DiskImage.ImageFormat probe() throws IOException, DiskImageException
+	{
+		try ( DiskImage image = DiskImage.newInstance( file ) ) {
+			return image.getFormat();
+		}
+	}
+
+}
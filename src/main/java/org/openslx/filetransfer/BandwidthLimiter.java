@@ -0,0 +1,303 @@
+package org.openslx.filetransfer;
+
+import java.io.InterruptedIOException;
+import java.lang.ref.WeakReference;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token bucket for limiting the bandwidth used by file transfers. Each
+ * {@link Transfer} is subject to the global limiter, the limiter of the
+ * remote peer it is connected to, and optionally any number of additional
+ * limiters, usually one per transfer (see
+ * {@link Transfer#addBandwidthLimiter(BandwidthLimiter)}).
+ * Data is sent and received in slices of a few milliseconds' worth of bytes,
+ * so throttled connections never sleep for long, and a rate of 0 means
+ * unlimited. All rates can be changed at any time and affect running
+ * transfers right away.
+ */
+public class BandwidthLimiter
+{
+
+	/*
+	 * Overridable constants
+	 */
+
+	/**
+	 * How many milliseconds worth of data to send or receive at once
+	 */
+	protected static int SLICE_MS = 10;
+
+	/**
+	 * How many milliseconds worth of unused bandwidth can be saved up
+	 */
+	protected static int BURST_MS = 100;
+
+	/**
+	 * Smallest and largest slice size, in bytes
+	 */
+	protected static int MIN_SLICE = 4096, MAX_SLICE = 1024 * 1024;
+
+	private static final BandwidthLimiter GLOBAL = new BandwidthLimiter( 0 );
+
+	/**
+	 * Limiters of peers we're currently connected to. These are held by the
+	 * {@link Transfer} instances, so they vanish once they aren't used anymore.
+	 */
+	private static final Map<InetAddress, WeakReference<BandwidthLimiter>> peerLimiters = new HashMap<>();
+
+	/**
+	 * Rates explicitly set for specific peers
+	 */
+	private static final Map<InetAddress, Long> peerRates = new HashMap<>();
+
+	/**
+	 * Rate for peers that don't have one set explicitly
+	 */
+	private static long defaultPeerRate = 0;
+
+	/**
+	 * Bytes per second, 0 for unlimited
+	 */
+	private volatile long rate;
+
+	/**
+	 * Bytes we may transfer right now. Might become negative, as we hand out
+	 * whole slices once it is positive.
+	 */
+	private double tokens;
+
+	private long lastRefill = System.nanoTime();
+
+	/**
+	 * Statistics
+	 */
+	private final LongAdder bytesTotal = new LongAdder();
+
+	private long waitNanos;
+
+	/**
+	 * Create a new limiter with given rate.
+	 *
+	 * @param bytesPerSecond rate in bytes per second, 0 for unlimited
+	 */
+	public BandwidthLimiter( long bytesPerSecond )
+	{
+		this.rate = Math.max( 0, bytesPerSecond );
+		this.tokens = getBurstSize( rate );
+	}
+
+	/**
+	 * Set new rate. Takes effect immediately, including connections currently
+	 * waiting.
+	 *
+	 * @param bytesPerSecond rate in bytes per second, 0 for unlimited
+	 */
+	public synchronized void setRate( long bytesPerSecond )
+	{
+		long old = rate;
+		if ( old > 0 ) {
+			refill( System.nanoTime(), old );
+		} else {
+			lastRefill = System.nanoTime();
+		}
+		rate = Math.max( 0, bytesPerSecond );
+		if ( old <= 0 || tokens > getBurstSize( rate ) ) {
+			tokens = getBurstSize( rate );
+		}
+		this.notifyAll();
+	}
+
+	/**
+	 * @return current rate in bytes per second, 0 if unlimited
+	 */
+	public long getRate()
+	{
+		return rate;
+	}
+
+	/**
+	 * Number of bytes that should be sent or received at once, so waiting
+	 * for the next slice doesn't take longer than a few milliseconds.
+	 *
+	 * @return slice size in bytes, {@link Integer#MAX_VALUE} if unlimited
+	 */
+	public int getSliceSize()
+	{
+		long r = rate;
+		if ( r <= 0 )
+			return Integer.MAX_VALUE;
+		return (int)Math.max( MIN_SLICE, Math.min( MAX_SLICE, r * SLICE_MS / 1000 ) );
+	}
+
+	/**
+	 * Account for given number of bytes, waiting until the rate limit allows
+	 * us to transfer them. Callers should not pass more than
+	 * {@link #getSliceSize()} bytes at once.
+	 *
+	 * @param bytes number of bytes about to be or just transferred
+	 * @throws InterruptedIOException if the thread was interrupted while waiting
+	 */
+	public void acquire( int bytes ) throws InterruptedIOException
+	{
+		bytesTotal.add( bytes );
+		if ( rate <= 0 )
+			return;
+		synchronized ( this ) {
+			long start = 0;
+			try {
+				for ( ;; ) {
+					long r = rate;
+					if ( r <= 0 )
+						return;
+					long now = System.nanoTime();
+					refill( now, r );
+					if ( tokens >= 0 ) {
+						tokens -= bytes;
+						return;
+					}
+					if ( start == 0 ) {
+						start = now;
+					}
+					this.wait( Math.max( 1, (long)Math.ceil( -tokens * 1000 / r ) ) );
+				}
+			} catch ( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException( "Interrupted while waiting for bandwidth" );
+			} finally {
+				if ( start != 0 ) {
+					waitNanos += System.nanoTime() - start;
+				}
+			}
+		}
+	}
+
+	private void refill( long now, long r )
+	{
+		tokens = Math.min( getBurstSize( r ), tokens + ( now - lastRefill ) * r / 1e9 );
+		lastRefill = now;
+	}
+
+	private static long getBurstSize( long r )
+	{
+		return Math.max( MIN_SLICE, r * BURST_MS / 1000 );
+	}
+
+	/**
+	 * @return total number of bytes accounted for by this limiter
+	 */
+	public long getBytesTotal()
+	{
+		return bytesTotal.sum();
+	}
+
+	/**
+	 * @return total time connections spent waiting for this limiter, in milliseconds
+	 */
+	public synchronized long getWaitTimeMs()
+	{
+		return waitNanos / 1000000;
+	}
+
+	@Override
+	public String toString()
+	{
+		long r = rate;
+		return "Rate: " + ( r == 0 ? "unlimited" : ( r + "B/s" ) ) + ", total: " + getBytesTotal() + " bytes, waited: "
+				+ getWaitTimeMs() + "ms";
+	}
+
+	/*
+	 * Global and per-peer limiters
+	 */
+
+	/**
+	 * Get the limiter applying to all transfers.
+	 */
+	public static BandwidthLimiter getGlobal()
+	{
+		return GLOBAL;
+	}
+
+	/**
+	 * Set rate limit for all transfers combined.
+	 *
+	 * @param bytesPerSecond rate in bytes per second, 0 for unlimited
+	 */
+	public static void setGlobalRate( long bytesPerSecond )
+	{
+		GLOBAL.setRate( bytesPerSecond );
+	}
+
+	/**
+	 * Get limiter for given remote peer. All connections to the same peer
+	 * share one limiter.
+	 *
+	 * @param address address of remote peer
+	 * @return limiter for this peer, null if address is null
+	 */
+	public static synchronized BandwidthLimiter getForPeer( InetAddress address )
+	{
+		if ( address == null )
+			return null;
+		WeakReference<BandwidthLimiter> ref = peerLimiters.get( address );
+		BandwidthLimiter limiter = ref == null ? null : ref.get();
+		if ( limiter != null )
+			return limiter;
+		// Get rid of limiters of peers we're not connected to anymore
+		for ( Iterator<WeakReference<BandwidthLimiter>> it = peerLimiters.values().iterator(); it.hasNext(); ) {
+			if ( it.next().get() == null ) {
+				it.remove();
+			}
+		}
+		Long r = peerRates.get( address );
+		limiter = new BandwidthLimiter( r == null ? defaultPeerRate : r );
+		peerLimiters.put( address, new WeakReference<>( limiter ) );
+		return limiter;
+	}
+
+	/**
+	 * Set rate limit for all connections to given peer combined.
+	 *
+	 * @param address address of remote peer
+	 * @param bytesPerSecond rate in bytes per second, 0 for unlimited, or
+	 *           negative to use the default rate for peers again
+	 */
+	public static synchronized void setPeerRate( InetAddress address, long bytesPerSecond )
+	{
+		long r;
+		if ( bytesPerSecond < 0 ) {
+			peerRates.remove( address );
+			r = defaultPeerRate;
+		} else {
+			peerRates.put( address, bytesPerSecond );
+			r = bytesPerSecond;
+		}
+		WeakReference<BandwidthLimiter> ref = peerLimiters.get( address );
+		BandwidthLimiter limiter = ref == null ? null : ref.get();
+		if ( limiter != null ) {
+			limiter.setRate( r );
+		}
+	}
+
+	/**
+	 * Set rate limit for peers that don't have a rate set explicitly via
+	 * {@link #setPeerRate(InetAddress, long)}.
+	 *
+	 * @param bytesPerSecond rate in bytes per second, 0 for unlimited
+	 */
+	public static synchronized void setDefaultPeerRate( long bytesPerSecond )
+	{
+		defaultPeerRate = Math.max( 0, bytesPerSecond );
+		for ( Map.Entry<InetAddress, WeakReference<BandwidthLimiter>> it : peerLimiters.entrySet() ) {
+			BandwidthLimiter limiter = it.getValue().get();
+			if ( limiter != null && !peerRates.containsKey( it.getKey() ) ) {
+				limiter.setRate( defaultPeerRate );
+			}
+		}
+	}
+
+}
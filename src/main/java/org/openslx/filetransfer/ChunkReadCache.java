@@ -0,0 +1,417 @@
+package org.openslx.filetransfer;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Cache for file ranges being sent to multiple peers at the same time, i.e.
+ * when lots of clients download a freshly published image. A range is only
+ * cached once another {@link Uploader} asks for a range that was read
+ * recently, so a single download doesn't fill up the cache. Entries are
+ * reference counted; entries in use are never evicted, and the total size of
+ * all entries is kept below the memory budget. Optionally, the LZ4 compressed
+ * form of a range is cached too, so each range is read and compressed only
+ * once.
+ * Entries are keyed by the file's identity, which includes device, inode,
+ * size and modification time, so replacing or modifying a file makes entries
+ * of the old version unreachable.
+ */
+public class ChunkReadCache
+{
+
+	private static final Logger LOGGER = LogManager.getLogger( ChunkReadCache.class );
+
+	/**
+	 * Size of compressed frames; same as the buffer size of
+	 * {@link Uploader#upload(String, UploadStatusCallback)}, for backwards compat.
+	 */
+	static final int FRAME_SIZE = 500000;
+
+	/**
+	 * How long to remember a range was read, for deciding whether it's hot
+	 */
+	private static final long HOT_WINDOW_MS = 60000;
+
+	/**
+	 * Maximum number of recently read ranges to remember
+	 */
+	private static final int MAX_RECENT = 4096;
+
+	private static final ChunkReadCache SHARED = new ChunkReadCache( 0 );
+
+	/**
+	 * Identity of a specific version of a file.
+	 */
+	public static final class FileIdentity
+	{
+		private final String path;
+		private final Object fileKey;
+		private final long size;
+		private final long modified;
+
+		private FileIdentity( String path, BasicFileAttributes attrs )
+		{
+			this.path = path;
+			this.fileKey = attrs.fileKey();
+			this.size = attrs.size();
+			this.modified = attrs.lastModifiedTime().toMillis();
+		}
+
+		/**
+		 * Get identity of given file in its current state.
+		 */
+		public static FileIdentity of( File file ) throws IOException
+		{
+			return new FileIdentity( file.getAbsolutePath(),
+					Files.readAttributes( file.toPath(), BasicFileAttributes.class ) );
+		}
+
+		@Override
+		public boolean equals( Object obj )
+		{
+			if ( !( obj instanceof FileIdentity ) )
+				return false;
+			FileIdentity o = (FileIdentity)obj;
+			return size == o.size && modified == o.modified && path.equals( o.path )
+					&& ( fileKey == null ? o.fileKey == null : fileKey.equals( o.fileKey ) );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return path.hashCode() ^ Long.hashCode( size ) ^ Long.hashCode( modified );
+		}
+	}
+
+	private static final class Key
+	{
+		private final FileIdentity file;
+		private final long offset;
+		private final int length;
+
+		public Key( FileIdentity file, long offset, int length )
+		{
+			this.file = file;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public boolean equals( Object obj )
+		{
+			if ( !( obj instanceof Key ) )
+				return false;
+			Key o = (Key)obj;
+			return offset == o.offset && length == o.length && file.equals( o.file );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return file.hashCode() ^ Long.hashCode( offset ) ^ length;
+		}
+	}
+
+	/**
+	 * A cached range. Get via {@link ChunkReadCache#acquire(FileIdentity, FileChannel, FileRange)},
+	 * give back via {@link ChunkReadCache#release(Entry)}.
+	 */
+	public final class Entry
+	{
+		private final Key key;
+		private byte[] data;
+		private List<byte[]> frames;
+		private long size;
+		private int refCount = 1;
+		private boolean loaded = false;
+
+		private Entry( Key key )
+		{
+			this.key = key;
+		}
+
+		/**
+		 * @return the uncompressed data of the range
+		 */
+		public byte[] getData()
+		{
+			return data;
+		}
+
+		/**
+		 * Get the range as LZ4 frames, as written by {@link Uploader.Lz4OutStream}.
+		 * Compressed on first call, if caching compressed data is enabled.
+		 *
+		 * @return list of frames, or null if not available
+		 */
+		public synchronized List<byte[]> getCompressedFrames()
+		{
+			if ( frames != null || !cacheCompressed )
+				return frames;
+			List<byte[]> list = new ArrayList<>();
+			long total = 0;
+			for ( int off = 0; off < data.length; off += FRAME_SIZE ) {
+				byte[] frame = Uploader.Lz4OutStream.compressFrame( data, off, Math.min( FRAME_SIZE, data.length - off ) );
+				list.add( frame );
+				total += frame.length;
+			}
+			if ( grow( this, total ) ) {
+				frames = list;
+			}
+			return list;
+		}
+	}
+
+	/**
+	 * Memory budget in bytes, 0 to disable caching
+	 */
+	private long budget;
+
+	private boolean cacheCompressed = true;
+
+	private long usedBytes = 0;
+
+	/**
+	 * All entries, least recently used first
+	 */
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>( 64, 0.75f, true );
+
+	/**
+	 * Ranges read recently, without being cached
+	 */
+	private final LinkedHashMap<Key, Long> recentReads = new LinkedHashMap<Key, Long>() {
+		private static final long serialVersionUID = 2541329478961012343L;
+
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<Key, Long> eldest )
+		{
+			return size() > MAX_RECENT;
+		}
+	};
+
+	private long hits, misses, loads, evictions, rejected;
+
+	public ChunkReadCache( long budgetBytes )
+	{
+		this.budget = Math.max( 0, budgetBytes );
+	}
+
+	/**
+	 * Get the cache used by all {@link Uploader}s. Disabled by default, see
+	 * {@link #setMemoryBudget(long)}.
+	 */
+	public static ChunkReadCache getShared()
+	{
+		return SHARED;
+	}
+
+	/**
+	 * Set maximum number of bytes the cache may use. Setting 0 disables
+	 * caching; entries currently in use stay around until released.
+	 */
+	public synchronized void setMemoryBudget( long bytes )
+	{
+		budget = Math.max( 0, bytes );
+		makeRoom( 0 );
+		if ( budget == 0 ) {
+			recentReads.clear();
+		}
+	}
+
+	public synchronized long getMemoryBudget()
+	{
+		return budget;
+	}
+
+	/**
+	 * Whether to keep the LZ4 compressed form of ranges in addition to the
+	 * uncompressed data. Enabled by default.
+	 */
+	public synchronized void setCacheCompressed( boolean enabled )
+	{
+		cacheCompressed = enabled;
+	}
+
+	public boolean isEnabled()
+	{
+		return budget > 0;
+	}
+
+	/**
+	 * Get the given range of a file. If the range is in the cache, or it is hot,
+	 * i.e. was read by somebody else recently, the cached entry is returned,
+	 * reading it from the given file first if necessary. If multiple threads
+	 * ask for the same uncached range at once, it's only read once. Otherwise,
+	 * null is returned and the caller should read the range itself.
+	 *
+	 * @param file identity of the file, as determined when opening it
+	 * @param channel channel of the opened file, for loading the range
+	 * @param range range to get
+	 * @return cache entry, to be released via {@link #release(Entry)}, or null
+	 * @throws IOException if loading the range from the file failed
+	 */
+	public Entry acquire( FileIdentity file, FileChannel channel, FileRange range ) throws IOException
+	{
+		Key key = new Key( file, range.startOffset, range.getLength() );
+		Entry entry;
+		synchronized ( this ) {
+			if ( budget <= 0 )
+				return null;
+			entry = entries.get( key );
+			if ( entry != null ) {
+				hits++;
+				entry.refCount++;
+				while ( !entry.loaded ) {
+					try {
+						this.wait();
+					} catch ( InterruptedException e ) {
+						Thread.currentThread().interrupt();
+						entry.refCount--;
+						return null;
+					}
+					if ( entries.get( key ) != entry ) {
+						// Loading failed
+						return null;
+					}
+				}
+				return entry;
+			}
+			misses++;
+			Long lastRead = recentReads.remove( key );
+			long now = System.currentTimeMillis();
+			if ( lastRead == null || now - lastRead > HOT_WINDOW_MS ) {
+				recentReads.put( key, now );
+				return null;
+			}
+			if ( !makeRoom( key.length ) ) {
+				// Still hot, try again next time
+				recentReads.put( key, now );
+				rejected++;
+				return null;
+			}
+			entry = new Entry( key );
+			entry.size = key.length;
+			usedBytes += key.length;
+			entries.put( key, entry );
+		}
+		// Load outside of lock
+		boolean ok = false;
+		try {
+			byte[] data = new byte[ key.length ];
+			ByteBuffer buffer = ByteBuffer.wrap( data );
+			long pos = key.offset;
+			while ( buffer.hasRemaining() ) {
+				int ret = channel.read( buffer, pos );
+				if ( ret == -1 )
+					throw new EOFException( "File shorter than requested range" );
+				pos += ret;
+			}
+			entry.data = data;
+			ok = true;
+		} catch ( OutOfMemoryError e ) {
+			LOGGER.warn( "Cannot allocate " + key.length + " bytes for cache entry" );
+		} finally {
+			synchronized ( this ) {
+				if ( ok ) {
+					loads++;
+					entry.loaded = true;
+				} else {
+					entries.remove( key );
+					usedBytes -= entry.size;
+				}
+				this.notifyAll();
+			}
+		}
+		return ok ? entry : null;
+	}
+
+	/**
+	 * Give back an entry returned by {@link #acquire(FileIdentity, FileChannel, FileRange)}.
+	 */
+	public synchronized void release( Entry entry )
+	{
+		if ( entry == null )
+			return;
+		entry.refCount--;
+		if ( usedBytes > budget ) {
+			// Budget was lowered while entries were in use
+			makeRoom( 0 );
+		}
+	}
+
+	/**
+	 * Account for additional memory used by an entry.
+	 *
+	 * @return false if it doesn't fit into the budget
+	 */
+	private synchronized boolean grow( Entry entry, long bytes )
+	{
+		if ( entries.get( entry.key ) != entry || !makeRoom( bytes ) )
+			return false;
+		entry.size += bytes;
+		usedBytes += bytes;
+		return true;
+	}
+
+	/**
+	 * Evict unused entries until there is room for the given number of bytes.
+	 */
+	private boolean makeRoom( long bytes )
+	{
+		if ( bytes > budget )
+			return false;
+		for ( Iterator<Entry> it = entries.values().iterator(); it.hasNext() && usedBytes + bytes > budget; ) {
+			Entry e = it.next();
+			if ( e.refCount > 0 )
+				continue;
+			it.remove();
+			usedBytes -= e.size;
+			evictions++;
+		}
+		return usedBytes + bytes <= budget;
+	}
+
+	/**
+	 * @return number of bytes used by cached entries
+	 */
+	public synchronized long getUsedBytes()
+	{
+		return usedBytes;
+	}
+
+	public synchronized long getHitCount()
+	{
+		return hits;
+	}
+
+	public synchronized long getMissCount()
+	{
+		return misses;
+	}
+
+	public synchronized long getEvictionCount()
+	{
+		return evictions;
+	}
+
+	public synchronized String getStats()
+	{
+		return "Entries: " + entries.size() + ", used: " + ( usedBytes / ( 1024 * 1024 ) ) + "/"
+				+ ( budget / ( 1024 * 1024 ) ) + "MiB, hits: " + hits + ", misses: " + misses + ", loads: " + loads
+				+ ", evictions: " + evictions + ", rejected: " + rejected;
+	}
+
+}
@@ -0,0 +1,253 @@
+package org.openslx.filetransfer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decides whether a block of an upload is worth compressing, based on how
+ * well previous blocks of the same region of the file compressed. Once a
+ * block of a region turns out incompressible, e.g. in compressed qcow2
+ * clusters or tarballs, the following blocks of that region are sent as they
+ * are, and only every now and then one gets compressed again to see if it
+ * changed. The more often a region fails to compress, the longer the pauses
+ * between these probes get.
+ * Optionally, a block's byte entropy is estimated from a few samples before
+ * trying to compress it, which catches random or already compressed data
+ * before spending any time on it.
+ * Methods are thread safe, as blocks are compressed by the
+ * {@link SendPipeline} in parallel.
+ */
+public class CompressionAdvisor
+{
+
+	/**
+	 * Size of the regions a file is split into for tracking compressibility
+	 */
+	private static final long REGION_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * Maximum number of regions to remember
+	 */
+	private static final int MAX_REGIONS = 1024;
+
+	/**
+	 * Number of blocks to skip after the first failed attempt, and maximum
+	 * number of blocks to skip between two probes
+	 */
+	private static final int MIN_SKIP = 4, MAX_SKIP = 64;
+
+	/**
+	 * Number and size of the samples taken for estimating entropy
+	 */
+	private static final int SAMPLE_COUNT = 4, SAMPLE_SIZE = 1024;
+
+	/**
+	 * Estimated bits per byte above which LZ4 is very unlikely to get below the
+	 * threshold of {@link #isWorthIt(int, int)}
+	 */
+	private static final double ENTROPY_THRESHOLD = 7.5;
+
+	private static class Region
+	{
+		/**
+		 * Number of failed attempts in a row
+		 */
+		int failures;
+		/**
+		 * Number of blocks to skip before probing again
+		 */
+		int skipsLeft;
+	}
+
+	/**
+	 * Regions with failed attempts, least recently used first
+	 */
+	private final Map<Long, Region> regions = new LinkedHashMap<Long, Region>( 64, 0.75f, true ) {
+		private static final long serialVersionUID = -5710374069124592307L;
+
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<Long, Region> eldest )
+		{
+			return size() > MAX_REGIONS;
+		}
+	};
+
+	private boolean enabled = true;
+
+	private boolean entropyCheck = false;
+
+	private long attempts, successes, probes, skippedByHistory, skippedBySample;
+
+	private long bytesAttempted, bytesSkipped, compressNanos;
+
+	/**
+	 * Whether the compressed size of a block is small enough to be worth
+	 * sending compressed; otherwise it's sent as it is.
+	 */
+	static boolean isWorthIt( int compressedLength, int decompressedLength )
+	{
+		// Only send compressed data if we got down to at least ~88% the original size
+		return ( compressedLength * 9 / 8 ) < decompressedLength;
+	}
+
+	/**
+	 * Enable or disable skipping compression. If disabled, every block is
+	 * compressed, as before. Enabled by default.
+	 */
+	public synchronized void setEnabled( boolean enabled )
+	{
+		this.enabled = enabled;
+		if ( !enabled ) {
+			regions.clear();
+		}
+	}
+
+	/**
+	 * Enable or disable estimating entropy of blocks before compressing them.
+	 * Disabled by default.
+	 */
+	public synchronized void setEntropyCheck( boolean enabled )
+	{
+		this.entropyCheck = enabled;
+	}
+
+	/**
+	 * Check whether the given block should be compressed. If this returns
+	 * true, report the outcome via {@link #compressed(long, int, int, long)}.
+	 *
+	 * @param fileOffset offset of the block in the file
+	 */
+	synchronized boolean shouldCompress( long fileOffset, byte[] data, int off, int len )
+	{
+		if ( !enabled )
+			return true;
+		Long key = Long.valueOf( fileOffset / REGION_SIZE );
+		Region region = regions.get( key );
+		if ( region != null ) {
+			if ( region.skipsLeft > 0 ) {
+				region.skipsLeft--;
+				skippedByHistory++;
+				bytesSkipped += len;
+				return false;
+			}
+			probes++;
+		}
+		if ( entropyCheck && estimateEntropy( data, off, len ) > ENTROPY_THRESHOLD ) {
+			skippedBySample++;
+			bytesSkipped += len;
+			failed( key, region );
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Report the result of compressing a block.
+	 *
+	 * @param fileOffset offset of the block in the file
+	 * @param decompressedLength size of the block
+	 * @param compressedLength size of the block after compression
+	 * @param nanos time spent compressing
+	 */
+	synchronized void compressed( long fileOffset, int decompressedLength, int compressedLength, long nanos )
+	{
+		attempts++;
+		bytesAttempted += decompressedLength;
+		compressNanos += nanos;
+		if ( !enabled )
+			return;
+		Long key = Long.valueOf( fileOffset / REGION_SIZE );
+		if ( isWorthIt( compressedLength, decompressedLength ) ) {
+			successes++;
+			regions.remove( key );
+		} else {
+			failed( key, regions.get( key ) );
+		}
+	}
+
+	private void failed( Long key, Region region )
+	{
+		if ( region == null ) {
+			region = new Region();
+			regions.put( key, region );
+		}
+		region.failures++;
+		region.skipsLeft = Math.min( MAX_SKIP, MIN_SKIP << Math.min( region.failures - 1, 4 ) );
+	}
+
+	/**
+	 * Estimate the Shannon entropy of a block in bits per byte, from a few
+	 * samples spread over the block.
+	 */
+	static double estimateEntropy( byte[] data, int off, int len )
+	{
+		int[] counts = new int[ 256 ];
+		int total = 0;
+		int sampleSize = Math.min( SAMPLE_SIZE, len );
+		int step = SAMPLE_COUNT > 1 ? ( len - sampleSize ) / ( SAMPLE_COUNT - 1 ) : 0;
+		for ( int s = 0; s < SAMPLE_COUNT; ++s ) {
+			int start = off + s * step;
+			for ( int i = start; i < start + sampleSize; ++i ) {
+				counts[data[i] & 0xff]++;
+			}
+			total += sampleSize;
+			if ( step == 0 )
+				break;
+		}
+		if ( total == 0 )
+			return 0;
+		double entropy = 0;
+		for ( int c : counts ) {
+			if ( c == 0 )
+				continue;
+			double p = (double)c / total;
+			entropy -= p * Math.log( p );
+		}
+		return entropy / Math.log( 2 );
+	}
+
+	/**
+	 * @return number of blocks compression was tried for
+	 */
+	public synchronized long getAttemptCount()
+	{
+		return attempts;
+	}
+
+	/**
+	 * @return number of blocks not compressed, because their region didn't
+	 *         compress recently, or their estimated entropy was too high
+	 */
+	public synchronized long getSkipCount()
+	{
+		return skippedByHistory + skippedBySample;
+	}
+
+	/**
+	 * @return number of bytes not compressed because of
+	 *         {@link #shouldCompress(long, byte[], int, int)}
+	 */
+	public synchronized long getBytesSkipped()
+	{
+		return bytesSkipped;
+	}
+
+	/**
+	 * @return estimated CPU time in nanoseconds saved by not compressing
+	 *         skipped blocks, based on the average compression speed so far
+	 */
+	public synchronized long getSavedNanos()
+	{
+		if ( bytesAttempted == 0 )
+			return 0;
+		return (long) ( (double)compressNanos / bytesAttempted * bytesSkipped );
+	}
+
+	public synchronized String getStats()
+	{
+		return "Compression attempts: " + attempts + " (" + successes + " worth it, " + probes + " probes), skipped: "
+				+ skippedByHistory + " by history, " + skippedBySample + " by entropy, bytes skipped: " + bytesSkipped
+				+ ", est. CPU time saved: " + ( getSavedNanos() / 1000000 ) + "ms";
+	}
+
+}
@@ -0,0 +1,162 @@
+package org.openslx.filetransfer;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+import org.openslx.util.PrioThreadFactory;
+
+/**
+ * Decompression stage of a {@link Downloader} in staged receive mode. The
+ * thread reading from the socket only reads compressed frames into buffers
+ * of this stage, and hands them over for decompression right into their
+ * final place, which happens on a small pool shared by all downloads. As
+ * there are only a few frame buffers per connection, the reading thread
+ * blocks if decompression cannot keep up, which in turn stops reading from
+ * the socket.
+ */
+class DecompressStage
+{
+
+	/**
+	 * Number of frames per connection that may be waiting for or being
+	 * decompressed
+	 */
+	private static final int MAX_FRAMES_IN_FLIGHT = 4;
+
+	private static final ThreadPoolExecutor pool;
+
+	static {
+		int threads = Math.max( 2, Math.min( 8, Runtime.getRuntime().availableProcessors() ) );
+		pool = new ThreadPoolExecutor( threads, threads, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(),
+				new PrioThreadFactory( "BFTP-Decompress" ) );
+		pool.allowCoreThreadTimeOut( true );
+	}
+
+	private final LZ4FastDecompressor decompressor;
+
+	private final Deque<byte[]> freeBuffers = new ArrayDeque<>();
+
+	private int inFlight = 0;
+
+	private Throwable error = null;
+
+	private long compressed, uncompressed;
+
+	DecompressStage( LZ4FastDecompressor decompressor )
+	{
+		this.decompressor = decompressor;
+	}
+
+	/**
+	 * Get a buffer for reading a compressed frame into. Blocks while too many
+	 * frames are in flight. Pass it to {@link #submit(byte[], int, byte[], int, int)}
+	 * or {@link #cancel(byte[])} afterwards.
+	 */
+	synchronized byte[] acquire( int size ) throws InterruptedException
+	{
+		while ( inFlight >= MAX_FRAMES_IN_FLIGHT ) {
+			this.wait();
+		}
+		inFlight++;
+		byte[] buffer = freeBuffers.pollFirst();
+		if ( buffer == null || buffer.length < size ) {
+			buffer = new byte[ size ];
+		}
+		return buffer;
+	}
+
+	/**
+	 * Give back a buffer without submitting it.
+	 */
+	synchronized void cancel( byte[] frame )
+	{
+		done( frame );
+	}
+
+	/**
+	 * Decompress given frame into the destination buffer in the background.
+	 */
+	void submit( final byte[] frame, final int compressedLength, final byte[] dest, final int destOff,
+			final int decompressedLength )
+	{
+		synchronized ( this ) {
+			compressed += compressedLength;
+			uncompressed += decompressedLength;
+		}
+		pool.execute( new Runnable() {
+			@Override
+			public void run()
+			{
+				Throwable t = null;
+				try {
+					int read = decompressor.decompress( frame, 0, dest, destOff, decompressedLength );
+					if ( read != compressedLength ) {
+						t = new IOException( "Frame size mismatch: " + read + " != " + compressedLength );
+					}
+				} catch ( Throwable e ) {
+					t = e;
+				}
+				synchronized ( DecompressStage.this ) {
+					if ( t != null && error == null ) {
+						error = t;
+					}
+					done( frame );
+				}
+			}
+		} );
+	}
+
+	private void done( byte[] frame )
+	{
+		inFlight--;
+		if ( freeBuffers.size() < MAX_FRAMES_IN_FLIGHT ) {
+			freeBuffers.addFirst( frame );
+		}
+		this.notifyAll();
+	}
+
+	/**
+	 * Wait until all submitted frames are decompressed.
+	 *
+	 * @throws IOException if decompressing any of them failed
+	 */
+	synchronized void await() throws IOException
+	{
+		boolean interrupted = false;
+		// Must not return early, the destination buffers might get reused
+		while ( inFlight > 0 ) {
+			try {
+				this.wait();
+			} catch ( InterruptedException e ) {
+				interrupted = true;
+			}
+		}
+		if ( interrupted ) {
+			Thread.currentThread().interrupt();
+		}
+		if ( error != null ) {
+			Throwable t = error;
+			error = null;
+			if ( t instanceof IOException )
+				throw (IOException)t;
+			throw new IOException( "Decompression failed", t );
+		}
+	}
+
+	synchronized long getCompressedBytes()
+	{
+		return compressed;
+	}
+
+	synchronized long getUncompressedBytes()
+	{
+		return uncompressed;
+	}
+
+}
@@ -0,0 +1,34 @@
+package org.openslx.filetransfer;
+
+/**
+ * Extended data callback for downloads that provide the buffer each range
+ * should end up in. If staged receiving is enabled on the {@link Downloader}
+ * (see {@link Downloader#setStagedReceive(boolean)}) and the data callback
+ * implements this interface, the payload of a range is received, or
+ * decompressed, right into that buffer, and
+ * {@link #rangeDataReceived(FileRange)} is called instead of
+ * {@link #dataReceived(long, int, byte[])} once it is complete.
+ */
+public interface DirectDataCallback extends DataReceivedCallback
+{
+
+	/**
+	 * Get the buffer the payload of the given range should be put into.
+	 *
+	 * @param range the range about to be received
+	 * @return buffer of at least the range's length, data will start at
+	 *         index 0; null to receive this range via
+	 *         {@link #dataReceived(long, int, byte[])}
+	 */
+	public byte[] getReceiveBuffer( FileRange range );
+
+	/**
+	 * Called once the payload of the given range is completely in the buffer
+	 * returned by {@link #getReceiveBuffer(FileRange)}.
+	 *
+	 * @param range the range received
+	 * @return true to continue the download, false to abort
+	 */
+	public boolean rangeDataReceived( FileRange range );
+
+}
@@ -1,12 +1,16 @@
 package org.openslx.filetransfer;
 
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 import javax.net.ssl.SSLContext;
 
@@ -20,10 +24,45 @@ public class Downloader extends Transfer
 
 	private static final Logger log = LogManager.getLogger( Downloader.class );
 	
-	private final LZ4FastDecompressor decompressor = lz4factory.fastDecompressor();
-	
 	private final Lz4InStream compressedIn;
 	
+	/**
+	 * How many range requests to keep in flight, if the remote peer supports it.
+	 */
+	private int pipelineDepth = 1;
+
+	/**
+	 * Smallest and largest buffer size accepted by {@link #setReceiveBufferSize(int)}
+	 */
+	private static final int MIN_RECEIVE_BUFFER_SIZE = 16 * 1024, MAX_RECEIVE_BUFFER_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * Size of the buffer payload is received into, and handed to the {@link DataReceivedCallback}.
+	 */
+	private int receiveBufferSize = 512 * 1024;
+
+	/**
+	 * Whether the data callback of the current download can handle zero ranges,
+	 * see {@link SparseDataCallback}.
+	 */
+	private boolean sparse = false;
+
+	/**
+	 * Whether to receive ranges straight into the buffer provided by a
+	 * {@link DirectDataCallback}, see {@link #setStagedReceive(boolean)}.
+	 */
+	private boolean stagedReceive = false;
+
+	/**
+	 * Decompresses frames in staged receive mode; created on first use
+	 */
+	private DecompressStage decompressStage = null;
+
+	/**
+	 * Zeros for filling the parts of a file that cannot be left as a hole
+	 */
+	private static final byte[] ZERO_BUFFER = new byte[ 64 * 1024 ];
+
 	/***********************************************************************/
 	/**
 	 * Actively initiate a connection to a remote peer for downloading.
@@ -74,7 +113,8 @@ public class Downloader extends Transfer
 				return false;
 			}
 			final RandomAccessFile f = file;
-			DataReceivedCallback cb = new DataReceivedCallback() {
+			final long[] sparseEnd = new long[ 1 ];
+			SparseDataCallback cb = new SparseDataCallback() {
 				public boolean dataReceived( final long fileOffset, final int dataLength, final byte[] data )
 				{
 					try {
@@ -86,20 +126,83 @@ public class Downloader extends Transfer
 					}
 					return true;
 				}
+
+				public boolean zeroDataReceived( final long fileOffset, final int dataLength )
+				{
+					try {
+						long end = fileOffset + dataLength;
+						if ( fileOffset >= f.length() ) {
+							// Past the current end of file, leave a hole
+							sparseEnd[0] = Math.max( sparseEnd[0], end );
+							return true;
+						}
+						// Might overwrite existing data, write zeros explicitly
+						f.seek( fileOffset );
+						for ( long pos = fileOffset; pos < end; pos += ZERO_BUFFER.length ) {
+							f.write( ZERO_BUFFER, 0, (int)Math.min( ZERO_BUFFER.length, end - pos ) );
+						}
+					} catch ( Exception e ) {
+						log.error( "Could not write to file " + destinationFile + " at offset " + fileOffset, e );
+						return false;
+					}
+					return true;
+				}
 			};
-			return download( cb, callback );
+			if ( !download( cb, callback ) )
+				return false;
+			// Extend file if the last range(s) were left as a hole
+			try {
+				if ( f.length() < sparseEnd[0] ) {
+					f.setLength( sparseEnd[0] );
+				}
+			} catch ( IOException e ) {
+				log.error( "Could not extend " + destinationFile + " to " + sparseEnd[0] + " bytes", e );
+				return false;
+			}
+			return true;
 		} finally {
 			Transfer.safeClose( file );
 		}
 	}
 	
-	private class Lz4InStream extends InputStream
+	/**
+	 * Decompressing input stream for the payload of a compressed range. The uploader
+	 * sends a sequence of frames, each consisting of the decompressed length, the
+	 * compressed length, and the payload. If both lengths are equal, the payload is
+	 * uncompressed.
+	 * If the caller's buffer can hold a whole frame, it's decompressed right into
+	 * that buffer. Otherwise the frame is decompressed into an internal buffer, and
+	 * subsequent reads are served from there until it's drained. All buffers are
+	 * reused across frames.
+	 */
+	static class Lz4InStream extends InputStream
 	{
+		/**
+		 * Upper bound for the size of a single frame we accept, so a broken or
+		 * malicious peer cannot make us allocate arbitrary amounts of memory.
+		 */
+		static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+		private final LZ4FastDecompressor decompressor = lz4factory.fastDecompressor();
+
 		private final DataInputStream parentStream;
 		
 		private long compressed, uncompressed;
 		
-		private byte[] buffer;
+		/**
+		 * Holds compressed data of current frame
+		 */
+		private byte[] compressedBuffer;
+
+		/**
+		 * Holds decompressed data of current frame, if it didn't fit the caller's buffer
+		 */
+		private byte[] frameBuffer;
+
+		/**
+		 * Read position and end of valid data in {@link #frameBuffer}
+		 */
+		private int framePos, frameEnd;
 		
 		public Lz4InStream( DataInputStream in )
 		{
@@ -110,26 +213,54 @@ public class Downloader extends Transfer
 		@Override
 		public int read( byte b[], int off, int len ) throws IOException
 		{
+			if ( len == 0 )
+				return 0;
+			if ( framePos < frameEnd ) {
+				// Serve from what's left of last frame
+				int num = Math.min( len, frameEnd - framePos );
+				System.arraycopy( frameBuffer, framePos, b, off, num );
+				framePos += num;
+				return num;
+			}
 			try {
 				int decompressedLength = parentStream.readInt();
 				int compressedLength = parentStream.readInt();
+				if ( decompressedLength <= 0 || decompressedLength > MAX_FRAME_SIZE
+						|| compressedLength <= 0 || compressedLength > decompressedLength )
+					throw new IOException( "Invalid frame header: " + decompressedLength + "/" + compressedLength );
 				compressed += compressedLength;
 				uncompressed += decompressedLength;
-				if ( decompressedLength > len ) {
-					// TODO: Partial reads with buffering, if remote payload is larger than our buffer
-					throw new RuntimeException( "This should never happen! ;)" );
+				byte[] dest;
+				int destOff;
+				if ( decompressedLength <= len ) {
+					// Fits, no need to go through the frame buffer
+					dest = b;
+					destOff = off;
+				} else {
+					if ( frameBuffer == null || frameBuffer.length < decompressedLength ) {
+						frameBuffer = new byte[ decompressedLength ];
+					}
+					dest = frameBuffer;
+					destOff = 0;
 				}
 				if ( decompressedLength == compressedLength ) {
-					parentStream.readFully( b, off, decompressedLength );
+					parentStream.readFully( dest, destOff, decompressedLength );
 				} else {
 					// Compressed
-					if ( buffer == null || buffer.length < compressedLength ) {
-						buffer = new byte[ compressedLength ];
+					if ( compressedBuffer == null || compressedBuffer.length < compressedLength ) {
+						compressedBuffer = new byte[ compressedLength ];
 					}
-					parentStream.readFully( buffer, 0, compressedLength );
-					decompressor.decompress( buffer, 0, b, off, decompressedLength );
+					parentStream.readFully( compressedBuffer, 0, compressedLength );
+					decompressor.decompress( compressedBuffer, 0, dest, destOff, decompressedLength );
 				}
-				return decompressedLength;
+				if ( dest == b )
+					return decompressedLength;
+				System.arraycopy( frameBuffer, 0, b, off, len );
+				framePos = len;
+				frameEnd = decompressedLength;
+				return len;
+			} catch ( IOException e ) {
+				throw e;
 			} catch ( Throwable e ) {
 				throw new IOException( e );
 			}
@@ -140,6 +271,15 @@ public class Downloader extends Transfer
 		{
 			throw new UnsupportedOperationException( "Cant do this!" );
 		}
+
+		/**
+		 * Number of decompressed bytes still buffered from the last frame.
+		 */
+		@Override
+		public int available()
+		{
+			return frameEnd - framePos;
+		}
 		
 		public void printStats()
 		{
@@ -150,6 +290,50 @@ public class Downloader extends Transfer
 
 	}
 
+	/**
+	 * Set how many range requests this downloader should keep in flight. This only has
+	 * an effect if the range callback passed to {@link #download(DataReceivedCallback, WantRangeCallback)}
+	 * implements {@link PipelinedRangeCallback}, and the remote peer supports pipelining.
+	 * Otherwise, ranges will be requested one by one as before.
+	 * 
+	 * @param depth number of outstanding range requests; 1 disables pipelining
+	 */
+	public void setPipelineDepth( int depth )
+	{
+		this.pipelineDepth = Math.max( 1, Math.min( depth, MAX_PIPELINE_DEPTH ) );
+	}
+
+	/**
+	 * Set the size of the buffer used for receiving payload. The
+	 * {@link DataReceivedCallback} will never be called with more data than this
+	 * at once. Smaller buffers save memory, larger ones reduce per-call overhead.
+	 * If allocation of the buffer fails at the start of the download, smaller
+	 * sizes will be tried.
+	 * 
+	 * @param bytes buffer size in bytes, clamped to 16KiB - 16MiB
+	 */
+	public void setReceiveBufferSize( int bytes )
+	{
+		this.receiveBufferSize = Math.max( MIN_RECEIVE_BUFFER_SIZE, Math.min( bytes, MAX_RECEIVE_BUFFER_SIZE ) );
+	}
+
+	/**
+	 * Enable staged receiving. If enabled and the data callback implements
+	 * {@link DirectDataCallback}, each range is received straight into the
+	 * buffer provided by the callback. Compressed frames are only read from
+	 * the socket by the downloading thread, and decompressed into that buffer
+	 * on a separate pool, so reading the next frame overlaps with
+	 * decompressing the previous ones. The number of frames waiting for
+	 * decompression is limited, so if decompression cannot keep up, we stop
+	 * reading from the socket.
+	 * 
+	 * @param enabled true to enable staged receiving
+	 */
+	public void setStagedReceive( boolean enabled )
+	{
+		this.stagedReceive = enabled;
+	}
+
 	/**
 	 * Initiate the download. This method does not return until the file transfer finished.
 	 * 
@@ -160,20 +344,17 @@ public class Downloader extends Transfer
 	 *           more parts are needed, which in turn let's this method return true
 	 * @return true on success, false otherwise
 	 */
-	@SuppressWarnings( "resource" )
 	public boolean download( DataReceivedCallback dataCallback, WantRangeCallback rangeCallback )
 	{
 		if ( shouldGetToken() ) {
 			log.error( "You didn't call getToken yet!" );
 			return false;
 		}
-		FileRange requestedRange;
 		try {
-			byte[] incoming = new byte[ 500000 ];
-			/* TODO once the Lz4InputStream can handle small buffer sizes / partial reads
-			for ( int bufsiz = 600; bufsiz >= 100 && incoming == null; bufsiz -= 100 ) {
+			byte[] incoming = null;
+			for ( int bufsiz = receiveBufferSize; bufsiz >= MIN_RECEIVE_BUFFER_SIZE && incoming == null; bufsiz /= 2 ) {
 				try {
-					incoming = new byte[ bufsiz * 1024 ];
+					incoming = new byte[ bufsiz ];
 				} catch ( OutOfMemoryError e ) {
 				}
 			}
@@ -181,72 +362,22 @@ public class Downloader extends Transfer
 				log.error( "Could not allocate buffer for receiving." );
 				return false;
 			}
-			*/
-			while ( ( requestedRange = rangeCallback.get() ) != null ) {
-				if ( requestedRange.startOffset < 0 || requestedRange.startOffset >= requestedRange.endOffset ) {
-					log.error( "Callback supplied bad range (" + requestedRange.startOffset + " to " + requestedRange.endOffset + ")" );
-					return false;
-				}
-				if ( useCompression ) {
-					// Request compressed transfer
-					sendUseCompression();
-				}
-				// Send range request
-				if ( !sendRange( requestedRange.startOffset, requestedRange.endOffset ) || !sendEndOfMeta() ) {
-					log.error( "Could not send next range request, download failed." );
-					return false;
-				}
-				// See if remote peer acknowledges range request
-				MetaData meta = readMetaData();
-				if ( meta == null ) {
-					log.error( "Did not receive meta data from uploading remote peer after requesting range, aborting." );
-					return false;
-				}
-				if ( getRemoteError() != null ) {
-					log.error( "Remote peer sent error: " + getRemoteError() );
-					return false;
-				}
-				FileRange remoteRange = meta.getRange();
-				if ( remoteRange == null ) {
-					log.error( "Remote metadata does not contain range confirmation. " + meta );
-				}
-				if ( !remoteRange.equals( requestedRange ) ) {
-					log.error( "Confirmed range by remote peer (" + remoteRange
-							+ ") does not match requested range (" + requestedRange + "), aborting download." );
-					return false;
-				}
-				// Receive requested range
-				int chunkLength = requestedRange.getLength();
-				// If the uploader sets the COMPRESS field, assume compressed chunk
-				InputStream inStream = meta.peerWantsCompression() ? compressedIn : dataFromServer;
-				int hasRead = 0;
-				while ( hasRead < chunkLength ) {
-					int ret;
-					try {
-						ret = inStream.read( incoming, 0, Math.min( chunkLength - hasRead, incoming.length ) );
-						if ( Thread.currentThread().isInterrupted() ) {
-							log.debug( "Thread interrupted in download loop" );
-							return false;
-						}
-					} catch ( IOException e ) {
-						log.error( "Could not read payload from socket", e );
-						sendErrorCode( "payload read error" );
-						return false;
-					}
-					if ( ret == -1 ) {
-						log.info( "Remote peer unexpectedly closed the connection." );
-						return false;
-					}
-					if ( !dataCallback.dataReceived( requestedRange.startOffset + hasRead, ret, incoming ) ) {
-						this.close( "Aborting due to I/O error..." );
-						return false;
-					}
-					hasRead += ret;
-				}
+			sparse = dataCallback instanceof SparseDataCallback;
+			boolean ok;
+			if ( pipelineDepth > 1 && rangeCallback instanceof PipelinedRangeCallback ) {
+				ok = downloadPipelined( dataCallback, (PipelinedRangeCallback)rangeCallback, incoming );
+			} else {
+				ok = downloadSequential( dataCallback, rangeCallback, incoming );
 			}
+			if ( !ok )
+				return false;
 			sendDone();
 			sendEndOfMeta();
 			compressedIn.printStats();
+			if ( decompressStage != null && decompressStage.getCompressedBytes() != 0 ) {
+				log.info( "Received bytes (staged): " + decompressStage.getCompressedBytes() + ", decompressed bytes: "
+						+ decompressStage.getUncompressedBytes() );
+			}
 			try {
 				transferSocket.shutdownOutput();
 			} catch ( Exception e ) {
@@ -257,4 +388,295 @@ public class Downloader extends Transfer
 		return true;
 	}
 
+	/**
+	 * Classic mode of operation: Request one range, wait for the remote peer to
+	 * confirm and send it, then request the next one.
+	 */
+	private boolean downloadSequential( DataReceivedCallback dataCallback, WantRangeCallback rangeCallback, byte[] incoming )
+	{
+		FileRange requestedRange;
+		while ( ( requestedRange = rangeCallback.get() ) != null ) {
+			long start = System.nanoTime();
+			if ( !requestRange( requestedRange, false ) )
+				return false;
+			MetaData meta = readRangeConfirmation( requestedRange );
+			if ( meta == null )
+				return false;
+			updateRtt( ( System.nanoTime() - start ) / 1000000 );
+			if ( !receiveRange( requestedRange, meta, dataCallback, incoming ) )
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Pipelined mode of operation: Keep up to {@link #pipelineDepth} range requests
+	 * in flight, so we don't waste one round trip per range. Until the remote peer
+	 * confirms it supports pipelining, this behaves exactly like the sequential mode.
+	 */
+	private boolean downloadPipelined( DataReceivedCallback dataCallback, PipelinedRangeCallback rangeCallback, byte[] incoming )
+	{
+		final Deque<FileRange> inFlight = new ArrayDeque<>( pipelineDepth );
+		// Time each range in inFlight was requested
+		final Deque<Long> sentAt = new ArrayDeque<>( pipelineDepth );
+		int depth = 1; // Until the remote peer agrees to pipelining
+		for ( ;; ) {
+			if ( inFlight.isEmpty() ) {
+				FileRange range = rangeCallback.get();
+				if ( range == null )
+					break;
+				sentAt.add( System.nanoTime() );
+				if ( !requestRange( range, true ) )
+					return false;
+				inFlight.add( range );
+			}
+			FileRange requestedRange = inFlight.peekFirst();
+			MetaData meta = readRangeConfirmation( requestedRange );
+			if ( meta == null )
+				return false;
+			long latencyMs = ( System.nanoTime() - sentAt.removeFirst() ) / 1000000;
+			if ( depth == 1 && meta.getPipelineDepth() > 1 ) {
+				depth = Math.min( pipelineDepth, meta.getPipelineDepth() );
+				log.debug( "Remote peer supports pipelining, using depth " + depth );
+			} else {
+				// Once pipelining, this includes the time the remote peer needed for sending the ranges
+				// queued before this one, so it grows with queueing on the way. Don't mix in the
+				// unpipelined first request, it would look like latency tripled right after.
+				updateRtt( latencyMs );
+			}
+			// Top up pipeline before receiving payload, so the next requests are already
+			// queued on the remote side when it's done sending the current range
+			while ( inFlight.size() < depth ) {
+				FileRange range = rangeCallback.get();
+				if ( range == null )
+					break;
+				sentAt.add( System.nanoTime() );
+				if ( !requestRange( range, false ) )
+					return false;
+				inFlight.add( range );
+			}
+			if ( !receiveRange( requestedRange, meta, dataCallback, incoming ) )
+				return false;
+			inFlight.removeFirst();
+			if ( !rangeCallback.rangeComplete( requestedRange ) ) {
+				this.close( "Aborting due to I/O error..." );
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Send a range request to the remote peer.
+	 * 
+	 * @param range range to request
+	 * @param announcePipeline whether to tell the peer we'd like to use pipelining
+	 * @return true on success
+	 */
+	private boolean requestRange( FileRange range, boolean announcePipeline )
+	{
+		if ( range.startOffset < 0 || range.startOffset >= range.endOffset ) {
+			log.error( "Callback supplied bad range (" + range.startOffset + " to " + range.endOffset + ")" );
+			return false;
+		}
+		if ( useCompression ) {
+			// Request compressed transfer
+			sendUseCompression();
+		}
+		if ( announcePipeline ) {
+			sendPipelineDepth( pipelineDepth );
+		}
+		if ( sparse ) {
+			// Remote peer may skip sending ranges full of zeros
+			sendWantSparse();
+		}
+		// Send range request
+		if ( !sendRange( range.startOffset, range.endOffset ) || !sendEndOfMeta() ) {
+			log.error( "Could not send next range request, download failed." );
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Read the meta data the remote peer sends before the payload of a range,
+	 * and make sure it confirms the given range.
+	 * 
+	 * @param requestedRange the range we expect to receive next
+	 * @return meta data sent by remote peer, null on error
+	 */
+	private MetaData readRangeConfirmation( FileRange requestedRange )
+	{
+		// See if remote peer acknowledges range request
+		MetaData meta = readMetaData();
+		if ( meta == null ) {
+			log.error( "Did not receive meta data from uploading remote peer after requesting range, aborting." );
+			return null;
+		}
+		if ( getRemoteError() != null ) {
+			log.error( "Remote peer sent error: " + getRemoteError() );
+			return null;
+		}
+		FileRange remoteRange = meta.getRange();
+		if ( remoteRange == null ) {
+			log.error( "Remote metadata does not contain range confirmation. " + meta );
+			return null;
+		}
+		if ( !remoteRange.equals( requestedRange ) ) {
+			log.error( "Confirmed range by remote peer (" + remoteRange
+					+ ") does not match requested range (" + requestedRange + "), aborting download." );
+			return null;
+		}
+		return meta;
+	}
+
+	/**
+	 * Receive the payload of given range, passing it on to the data callback.
+	 */
+	@SuppressWarnings( "resource" )
+	private boolean receiveRange( FileRange requestedRange, MetaData meta, DataReceivedCallback dataCallback, byte[] incoming )
+	{
+		// Receive requested range
+		int chunkLength = requestedRange.getLength();
+		if ( meta.isZeroRange() ) {
+			// All zeros, no payload follows
+			if ( !sparse ) {
+				log.error( "Remote peer sent zero range without being asked to, aborting." );
+				sendErrorCode( "unexpected zero range" );
+				return false;
+			}
+			if ( !( (SparseDataCallback)dataCallback ).zeroDataReceived( requestedRange.startOffset, chunkLength ) ) {
+				this.close( "Aborting due to I/O error..." );
+				return false;
+			}
+			return true;
+		}
+		if ( stagedReceive && dataCallback instanceof DirectDataCallback ) {
+			DirectDataCallback directCallback = (DirectDataCallback)dataCallback;
+			byte[] target = directCallback.getReceiveBuffer( requestedRange );
+			if ( target != null && target.length >= chunkLength )
+				return receiveRangeStaged( requestedRange, meta.peerWantsCompression(), directCallback, target );
+		}
+		// If the uploader sets the COMPRESS field, assume compressed chunk
+		InputStream inStream = meta.peerWantsCompression() ? compressedIn : dataFromServer;
+		int hasRead = 0;
+		while ( hasRead < chunkLength ) {
+			int ret;
+			try {
+				ret = inStream.read( incoming, 0, Math.min( chunkLength - hasRead, incoming.length ) );
+				if ( Thread.currentThread().isInterrupted() ) {
+					log.debug( "Thread interrupted in download loop" );
+					return false;
+				}
+			} catch ( IOException e ) {
+				log.error( "Could not read payload from socket", e );
+				sendErrorCode( "payload read error" );
+				return false;
+			}
+			if ( ret == -1 ) {
+				log.info( "Remote peer unexpectedly closed the connection." );
+				return false;
+			}
+			if ( !dataCallback.dataReceived( requestedRange.startOffset + hasRead, ret, incoming ) ) {
+				this.close( "Aborting due to I/O error..." );
+				return false;
+			}
+			hasRead += ret;
+		}
+		if ( inStream == compressedIn && compressedIn.available() != 0 ) {
+			log.error( "Remote peer sent compressed frame crossing range boundary, aborting." );
+			sendErrorCode( "frame crosses range boundary" );
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Receive the payload of given range straight into the buffer provided by
+	 * the data callback, see {@link #setStagedReceive(boolean)}.
+	 */
+	private boolean receiveRangeStaged( FileRange requestedRange, boolean compressed, DirectDataCallback dataCallback,
+			byte[] target )
+	{
+		int chunkLength = requestedRange.getLength();
+		try {
+			if ( compressed ) {
+				receiveFramesStaged( target, chunkLength );
+			} else {
+				dataFromServer.readFully( target, 0, chunkLength );
+			}
+		} catch ( EOFException e ) {
+			log.info( "Remote peer unexpectedly closed the connection." );
+			return false;
+		} catch ( IOException e ) {
+			if ( Thread.currentThread().isInterrupted() ) {
+				log.debug( "Thread interrupted in download loop" );
+				return false;
+			}
+			log.error( "Could not read payload from socket", e );
+			sendErrorCode( "payload read error" );
+			return false;
+		}
+		if ( Thread.currentThread().isInterrupted() ) {
+			log.debug( "Thread interrupted in download loop" );
+			return false;
+		}
+		if ( !dataCallback.rangeDataReceived( requestedRange ) ) {
+			this.close( "Aborting due to I/O error..." );
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Read LZ4 frames of a range from the socket, handing compressed ones to
+	 * the decompression stage. Doesn't return before all frames are
+	 * decompressed, as the caller might reuse the target buffer right away.
+	 */
+	private void receiveFramesStaged( byte[] target, int length ) throws IOException
+	{
+		if ( decompressStage == null ) {
+			decompressStage = new DecompressStage( lz4factory.fastDecompressor() );
+		}
+		int pos = 0;
+		try {
+			while ( pos < length ) {
+				int decompressedLength = dataFromServer.readInt();
+				int compressedLength = dataFromServer.readInt();
+				if ( decompressedLength <= 0 || decompressedLength > Lz4InStream.MAX_FRAME_SIZE
+						|| compressedLength <= 0 || compressedLength > decompressedLength )
+					throw new IOException( "Invalid frame header: " + decompressedLength + "/" + compressedLength );
+				if ( decompressedLength > length - pos )
+					throw new IOException( "Frame crosses range boundary" );
+				if ( decompressedLength == compressedLength ) {
+					dataFromServer.readFully( target, pos, decompressedLength );
+				} else {
+					byte[] frame;
+					try {
+						frame = decompressStage.acquire( compressedLength );
+					} catch ( InterruptedException e ) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException();
+					}
+					try {
+						dataFromServer.readFully( frame, 0, compressedLength );
+					} catch ( IOException e ) {
+						decompressStage.cancel( frame );
+						throw e;
+					}
+					decompressStage.submit( frame, compressedLength, target, pos, decompressedLength );
+				}
+				pos += decompressedLength;
+			}
+		} catch ( IOException e ) {
+			try {
+				decompressStage.await();
+			} catch ( IOException e2 ) {
+				// Report the first error
+			}
+			throw e;
+		}
+		decompressStage.await();
+	}
+
 }
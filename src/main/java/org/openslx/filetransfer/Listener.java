@@ -1,19 +1,27 @@
 package org.openslx.filetransfer;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.util.concurrent.ExecutorService;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLException;
-import javax.net.ssl.SSLServerSocketFactory;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -24,16 +32,69 @@ public class Listener
 	private final IncomingEvent incomingEvent;
 	private final SSLContext context;
 	private final int port;
-	private ServerSocket listenSocket = null;
+	private ServerSocketChannel listenChannel = null;
+	private Selector selector = null;
 	private Thread acceptThread = null;
 	private final int readTimeoutMs;
-	private final ExecutorService processingPool = new ThreadPoolExecutor( 0, 8, 5, TimeUnit.MINUTES, new SynchronousQueue<Runnable>(),
-			new PrioThreadFactory( "BFTP-Init" ) );
+	/**
+	 * Runs the {@link IncomingEvent} handlers for connections that completed the handshake
+	 */
+	private final ThreadPoolExecutor processingPool = new ThreadPoolExecutor( 8, 8, 5, TimeUnit.MINUTES,
+			new ArrayBlockingQueue<Runnable>( 64 ), new PrioThreadFactory( "BFTP-Init" ) );
 
 	private static final byte CONNECTING_PEER_WANTS_TO_UPLOAD = 85; // ASCII 'U' = 85.
 	private static final byte CONNECTING_PEER_WANTS_TO_DOWNLOAD = 68; // ASCII 'D' = 68.
 	private static Logger log = LogManager.getLogger( Listener.class );
 
+	/*
+	 * Overridable constants
+	 */
+
+	/**
+	 * Time a client has to complete the TLS handshake and send the init byte
+	 */
+	protected static int HANDSHAKE_TIMEOUT_MS = 5000;
+
+	/**
+	 * Maximum number of connections in handshake state per remote address
+	 */
+	protected static int MAX_PENDING_PER_IP = 16;
+
+	/**
+	 * Maximum number of connections in handshake state in total
+	 */
+	protected static int MAX_PENDING_TOTAL = 1024;
+
+	/**
+	 * Number of new connections per second a remote address may open on average
+	 */
+	protected static int HANDSHAKES_PER_SECOND_PER_IP = 20;
+
+	/**
+	 * Number of new connections a remote address may open in a burst
+	 */
+	protected static int HANDSHAKE_BURST_PER_IP = 64;
+
+	/**
+	 * Connections currently doing the handshake/waiting for the init byte
+	 */
+	private final Map<SelectionKey, PendingConnection> pending = new HashMap<>();
+
+	/**
+	 * Per remote address handshake limits
+	 */
+	private final Map<InetAddress, AddressState> addresses = new HashMap<>();
+
+	/**
+	 * Statistics
+	 */
+	private long accepted, handedOff, rateLimited, timedOut, failed, rejected, latencySumMs, latencyMaxMs;
+
+	{
+		// Make sure the pool threads go away when idle
+		processingPool.allowCoreThreadTimeOut( true );
+	}
+
 	/***********************************************************************/
 	/**
 	 * File transfer listener. This is the active side, opening a port and
@@ -61,22 +122,23 @@ public class Listener
 	 */
 	private synchronized boolean listen()
 	{
-		if ( listenSocket != null )
+		if ( listenChannel != null )
 			return true;
 		try {
-			if ( this.context == null ) {
-				listenSocket = new ServerSocket();
-			} else {
-				SSLServerSocketFactory sslServerSocketFactory = context.getServerSocketFactory();
-				listenSocket = sslServerSocketFactory.createServerSocket();
-			}
-			listenSocket.setSoTimeout( 5000 );
-			listenSocket.setReuseAddress( true );
-			listenSocket.bind( new InetSocketAddress( this.port ) );
-			listenSocket.setSoTimeout( 0 );
+			// Plain connections are channel backed, so they support zero copy transfers.
+			// For encrypted connections, we do the handshake via SSLEngine, so a slow client
+			// doesn't tie up a thread.
+			selector = Selector.open();
+			listenChannel = ServerSocketChannel.open();
+			listenChannel.socket().setReuseAddress( true );
+			listenChannel.bind( new InetSocketAddress( this.port ) );
+			listenChannel.configureBlocking( false );
+			listenChannel.register( selector, SelectionKey.OP_ACCEPT );
 		} catch ( Exception e ) {
 			log.error( "Cannot listen on port " + this.port, e );
-			listenSocket = null;
+			Transfer.safeClose( listenChannel, selector );
+			listenChannel = null;
+			selector = null;
 			return false;
 		}
 		return true;
@@ -92,77 +154,37 @@ public class Listener
 			public void run()
 			{
 				try {
-					// Run accept loop in own thread
+					// Run accept and handshake loop in own thread
 					while ( !isInterrupted() ) {
-						final Socket connection;
 						try {
-							connection = listenSocket.accept();
-						} catch ( SocketTimeoutException e ) {
-							continue;
+							selector.select( 500 );
 						} catch ( Exception e ) {
 							log.warn( "Some exception when accepting! Trying to resume...", e );
-							Transfer.safeClose( listenSocket );
-							listenSocket = null;
-							if ( !listen() ) {
-								log.error( "Could not re-open listening socket" );
-								break;
+							synchronized ( instance ) {
+								closeAll();
+								if ( !listen() ) {
+									log.error( "Could not re-open listening socket" );
+									break;
+								}
 							}
 							continue;
 						}
-						// Handle each accepted connection in a thread pool
-						Runnable handler = new Runnable() {
-							@Override
-							public void run()
-							{
-								try {
-									// Give initial byte signaling mode of operation 5 secs to arrive
-									connection.setSoTimeout( 5000 );
-
-									byte[] b = new byte[ 1 ];
-									int length = connection.getInputStream().read( b );
-									if ( length == -1 ) {
-										Transfer.safeClose( connection );
-										return;
-									}
-									// Byte arrived, now set desired timeout
-									connection.setSoTimeout( readTimeoutMs );
-
-									if ( b[0] == CONNECTING_PEER_WANTS_TO_UPLOAD ) {
-										// --> start Downloader(socket).
-										Downloader d = new Downloader( connection );
-										// Will take care of connection cleanup
-										incomingEvent.incomingUploadRequest( d );
-									} else if ( b[0] == CONNECTING_PEER_WANTS_TO_DOWNLOAD ) {
-										// --> start Uploader(socket).
-										Uploader u = new Uploader( connection );
-										// Will take care of connection cleanup
-										incomingEvent.incomingDownloadRequest( u );
-									} else {
-										log.debug( "Got invalid init-byte ... closing connection" );
-										Transfer.safeClose( connection );
-									}
-								} catch ( SSLException e ) {
-									Transfer.safeClose( connection );
-									log.warn( "SSL error when acceping client " + connection.getInetAddress().getHostAddress() );
-								} catch ( SocketTimeoutException | SocketException e ) {
-									// No reason to log, probably - connection where client did nothing after connecting.
-									Transfer.safeClose( connection );
-								} catch ( Exception e ) {
-									Transfer.safeClose( connection );
-									log.warn( "Error handling client", e );
-								}
+						for ( Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+							SelectionKey key = it.next();
+							it.remove();
+							if ( !key.isValid() )
+								continue;
+							if ( key.isAcceptable() ) {
+								acceptAll();
+							} else {
+								handleIo( key );
 							}
-						};
-						try {
-							processingPool.execute( handler );
-						} catch ( RejectedExecutionException e ) {
-							Transfer.safeClose( connection );
 						}
+						expirePending();
 					}
 				} finally {
 					synchronized ( instance ) {
-						Transfer.safeClose( listenSocket );
-						listenSocket = null;
+						closeAll();
 					}
 				}
 			}
@@ -172,6 +194,237 @@ public class Listener
 		log.info( "Starting to accept " + ( this.context == null ? "UNENCRYPTED" : "encrypted" ) + " connections on port " + this.port );
 	}
 
+	private void closeAll()
+	{
+		for ( PendingConnection pc : pending.values() ) {
+			Transfer.safeClose( pc.channel );
+		}
+		pending.clear();
+		addresses.clear();
+		Transfer.safeClose( listenChannel, selector );
+		listenChannel = null;
+		selector = null;
+	}
+
+	/**
+	 * Accept all pending connections on the listening channel.
+	 */
+	private void acceptAll()
+	{
+		for ( ;; ) {
+			SocketChannel channel;
+			try {
+				channel = listenChannel.accept();
+			} catch ( IOException e ) {
+				log.debug( "Error accepting connection", e );
+				return;
+			}
+			if ( channel == null )
+				return;
+			synchronized ( this ) {
+				accepted++;
+			}
+			InetAddress address = channel.socket().getInetAddress();
+			if ( pending.size() >= MAX_PENDING_TOTAL || !acquireHandshakeSlot( address ) ) {
+				synchronized ( this ) {
+					rateLimited++;
+				}
+				Transfer.safeClose( channel );
+				continue;
+			}
+			PendingConnection pc = null;
+			try {
+				channel.configureBlocking( false );
+				pc = new PendingConnection( channel, address );
+				pc.key = channel.register( selector, SelectionKey.OP_READ );
+				pending.put( pc.key, pc );
+				if ( pc.engine != null ) {
+					pc.engine.beginHandshake();
+					handleIo( pc.key );
+				}
+			} catch ( IOException e ) {
+				log.debug( "Error setting up accepted connection", e );
+				if ( pc != null ) {
+					dropPending( pc );
+				} else {
+					releaseHandshakeSlot( address );
+					Transfer.safeClose( channel );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Continue handshake/reading init byte of given connection.
+	 */
+	private void handleIo( SelectionKey key )
+	{
+		PendingConnection pc = pending.get( key );
+		if ( pc == null ) {
+			key.cancel();
+			return;
+		}
+		try {
+			if ( !pc.process() )
+				return; // Need more data
+		} catch ( SSLException e ) {
+			log.warn( "SSL error when accepting client " + pc.address.getHostAddress() + ": " + e.getMessage() );
+			synchronized ( this ) {
+				failed++;
+			}
+			dropPending( pc );
+			return;
+		} catch ( IOException e ) {
+			// No reason to log, probably - connection where client did nothing after connecting.
+			synchronized ( this ) {
+				failed++;
+			}
+			dropPending( pc );
+			return;
+		}
+		// Handshake done, init byte received
+		pending.remove( key );
+		key.cancel();
+		releaseHandshakeSlot( pc.address );
+		long latencyMs = ( System.nanoTime() - pc.acceptNanos ) / 1000000;
+		synchronized ( this ) {
+			latencySumMs += latencyMs;
+			if ( latencyMs > latencyMaxMs ) {
+				latencyMaxMs = latencyMs;
+			}
+		}
+		handOff( pc );
+	}
+
+	/**
+	 * Switch connection back to blocking mode and pass it on to the
+	 * {@link IncomingEvent} handler in our processing pool.
+	 */
+	private void handOff( final PendingConnection pc )
+	{
+		final Socket connection;
+		try {
+			pc.channel.configureBlocking( true );
+			if ( pc.engine == null ) {
+				connection = pc.channel.socket();
+			} else {
+				connection = new SSLEngineSocket( pc.channel, pc.engine, pc.netIn, pc.appIn );
+			}
+			// Init byte arrived, now set desired timeout
+			connection.setSoTimeout( readTimeoutMs );
+		} catch ( IOException e ) {
+			synchronized ( this ) {
+				failed++;
+			}
+			Transfer.safeClose( pc.channel );
+			return;
+		}
+		Runnable handler = new Runnable() {
+			@Override
+			public void run()
+			{
+				try {
+					if ( pc.initByte == CONNECTING_PEER_WANTS_TO_UPLOAD ) {
+						// --> start Downloader(socket).
+						Downloader d = new Downloader( connection );
+						// Will take care of connection cleanup
+						incomingEvent.incomingUploadRequest( d );
+					} else if ( pc.initByte == CONNECTING_PEER_WANTS_TO_DOWNLOAD ) {
+						// --> start Uploader(socket).
+						Uploader u = new Uploader( connection );
+						// Will take care of connection cleanup
+						incomingEvent.incomingDownloadRequest( u );
+					} else {
+						log.debug( "Got invalid init-byte ... closing connection" );
+						Transfer.safeClose( connection );
+					}
+				} catch ( Exception e ) {
+					Transfer.safeClose( connection );
+					log.warn( "Error handling client", e );
+				}
+			}
+		};
+		try {
+			processingPool.execute( handler );
+			synchronized ( this ) {
+				handedOff++;
+			}
+		} catch ( RejectedExecutionException e ) {
+			synchronized ( this ) {
+				rejected++;
+			}
+			Transfer.safeClose( connection );
+		}
+	}
+
+	private void dropPending( PendingConnection pc )
+	{
+		if ( pending.remove( pc.key ) != null ) {
+			releaseHandshakeSlot( pc.address );
+		}
+		if ( pc.key != null ) {
+			pc.key.cancel();
+		}
+		Transfer.safeClose( pc.channel );
+	}
+
+	/**
+	 * Close connections that didn't complete the handshake in time.
+	 */
+	private void expirePending()
+	{
+		if ( pending.isEmpty() )
+			return;
+		final long now = System.nanoTime();
+		for ( PendingConnection pc : pending.values().toArray( new PendingConnection[ pending.size() ] ) ) {
+			if ( now - pc.acceptNanos > HANDSHAKE_TIMEOUT_MS * 1000000l ) {
+				synchronized ( this ) {
+					timedOut++;
+				}
+				dropPending( pc );
+			}
+		}
+	}
+
+	/**
+	 * Check rate limit and number of concurrent handshakes for given address.
+	 * 
+	 * @return true if a new connection from this address may proceed
+	 */
+	private boolean acquireHandshakeSlot( InetAddress address )
+	{
+		final long now = System.nanoTime();
+		AddressState state = addresses.get( address );
+		if ( state == null ) {
+			if ( addresses.size() > MAX_PENDING_TOTAL * 4 ) {
+				// Forget about addresses that have a full bucket again
+				for ( Iterator<AddressState> it = addresses.values().iterator(); it.hasNext(); ) {
+					AddressState as = it.next();
+					as.refill( now );
+					if ( as.pending == 0 && as.tokens >= HANDSHAKE_BURST_PER_IP ) {
+						it.remove();
+					}
+				}
+			}
+			state = new AddressState( now );
+			addresses.put( address, state );
+		}
+		state.refill( now );
+		if ( state.pending >= MAX_PENDING_PER_IP || state.tokens < 1 )
+			return false;
+		state.tokens -= 1;
+		state.pending++;
+		return true;
+	}
+
+	private void releaseHandshakeSlot( InetAddress address )
+	{
+		AddressState state = addresses.get( address );
+		if ( state != null && state.pending > 0 ) {
+			state.pending--;
+		}
+	}
+
 	public int getPort()
 	{
 		return this.port;
@@ -184,7 +437,7 @@ public class Listener
 	 */
 	public synchronized boolean isRunning()
 	{
-		return acceptThread != null && acceptThread.isAlive() && listenSocket != null && !listenSocket.isClosed();
+		return acceptThread != null && acceptThread.isAlive() && listenChannel != null && listenChannel.isOpen();
 	}
 
 	/**
@@ -209,4 +462,253 @@ public class Listener
 		this.run();
 		return true;
 	}
+
+	/**
+	 * Number of connections accepted so far.
+	 */
+	public synchronized long getAcceptedCount()
+	{
+		return accepted;
+	}
+
+	/**
+	 * Number of connections that completed the handshake and were passed to
+	 * the {@link IncomingEvent} handler.
+	 */
+	public synchronized long getHandedOffCount()
+	{
+		return handedOff;
+	}
+
+	/**
+	 * Number of connections closed right away because of per address or
+	 * global handshake limits.
+	 */
+	public synchronized long getRateLimitedCount()
+	{
+		return rateLimited;
+	}
+
+	/**
+	 * Number of connections that didn't complete the handshake in time.
+	 */
+	public synchronized long getTimedOutCount()
+	{
+		return timedOut;
+	}
+
+	/**
+	 * Number of connections that failed during handshake, e.g. SSL errors or
+	 * client disconnecting.
+	 */
+	public synchronized long getFailedCount()
+	{
+		return failed;
+	}
+
+	/**
+	 * Average time from accepting a connection to handing it off, in
+	 * milliseconds.
+	 */
+	public synchronized long getAverageAcceptLatencyMs()
+	{
+		if ( handedOff + rejected == 0 )
+			return 0;
+		return latencySumMs / ( handedOff + rejected );
+	}
+
+	/**
+	 * Maximum time from accepting a connection to handing it off, in
+	 * milliseconds.
+	 */
+	public synchronized long getMaxAcceptLatencyMs()
+	{
+		return latencyMaxMs;
+	}
+
+	public synchronized String getStats()
+	{
+		return "Accepted: " + accepted + ", handed off: " + handedOff + ", rate limited: " + rateLimited
+				+ ", timed out: " + timedOut + ", failed: " + failed + ", rejected: " + rejected
+				+ ", accept latency avg: " + getAverageAcceptLatencyMs() + "ms, max: " + latencyMaxMs + "ms";
+	}
+
+	/**
+	 * Token bucket and number of pending handshakes for one remote address.
+	 */
+	private static class AddressState
+	{
+		private double tokens;
+		private long lastRefill;
+		private int pending;
+
+		public AddressState( long now )
+		{
+			this.tokens = HANDSHAKE_BURST_PER_IP;
+			this.lastRefill = now;
+		}
+
+		public void refill( long now )
+		{
+			tokens = Math.min( HANDSHAKE_BURST_PER_IP,
+					tokens + ( now - lastRefill ) * HANDSHAKES_PER_SECOND_PER_IP / 1e9 );
+			lastRefill = now;
+		}
+	}
+
+	/**
+	 * Connection in handshake state. Only ever accessed by the accept thread.
+	 */
+	private class PendingConnection
+	{
+		private final SocketChannel channel;
+		private final InetAddress address;
+		private final long acceptNanos = System.nanoTime();
+		private final SSLEngine engine;
+		/** Encrypted data from peer, in write mode */
+		private ByteBuffer netIn;
+		/** Decrypted data from peer, in read mode */
+		private ByteBuffer appIn;
+		/** Encrypted data to peer, in write mode */
+		private ByteBuffer netOut;
+		private SelectionKey key;
+		private int initByte = -1;
+
+		public PendingConnection( SocketChannel channel, InetAddress address )
+		{
+			this.channel = channel;
+			this.address = address;
+			if ( context == null ) {
+				this.engine = null;
+				this.appIn = ByteBuffer.allocate( 1 );
+			} else {
+				this.engine = context.createSSLEngine();
+				this.engine.setUseClientMode( false );
+				this.netIn = ByteBuffer.allocate( engine.getSession().getPacketBufferSize() );
+				this.netOut = ByteBuffer.allocate( engine.getSession().getPacketBufferSize() );
+				this.appIn = ByteBuffer.allocate( engine.getSession().getApplicationBufferSize() );
+				this.appIn.flip();
+			}
+		}
+
+		/**
+		 * Continue handshake and try to read init byte, without blocking.
+		 *
+		 * @return true if the init byte was received
+		 */
+		public boolean process() throws IOException
+		{
+			if ( engine == null ) {
+				if ( channel.read( appIn ) == -1 )
+					throw new EOFException();
+				if ( appIn.hasRemaining() )
+					return false;
+				initByte = appIn.get( 0 );
+				return true;
+			}
+			if ( !handshake() )
+				return false;
+			// Handshake done, get init byte
+			while ( !appIn.hasRemaining() ) {
+				if ( !unwrap() )
+					return false;
+			}
+			initByte = appIn.get();
+			return true;
+		}
+
+		/**
+		 * Drive the SSL handshake as far as possible.
+		 *
+		 * @return true if the handshake is complete
+		 */
+		private boolean handshake() throws IOException
+		{
+			for ( ;; ) {
+				if ( !flush() ) {
+					key.interestOps( SelectionKey.OP_WRITE );
+					return false;
+				}
+				switch ( engine.getHandshakeStatus() ) {
+				case NEED_TASK:
+					// Could be offloaded, but these are fairly quick and we want to keep this simple
+					Runnable task;
+					while ( ( task = engine.getDelegatedTask() ) != null ) {
+						task.run();
+					}
+					break;
+				case NEED_WRAP:
+					SSLEngineResult res = engine.wrap( ByteBuffer.allocate( 0 ), netOut );
+					if ( res.getStatus() == SSLEngineResult.Status.CLOSED )
+						throw new SSLException( "Engine closed during handshake" );
+					break;
+				case NEED_UNWRAP:
+					if ( !unwrap() )
+						return false;
+					break;
+				default:
+					// FINISHED, NOT_HANDSHAKING
+					key.interestOps( SelectionKey.OP_READ );
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * Unwrap data from peer, reading more from the channel if required.
+		 *
+		 * @return false if no more data is available right now
+		 */
+		private boolean unwrap() throws IOException
+		{
+			for ( ;; ) {
+				appIn.compact();
+				netIn.flip();
+				SSLEngineResult res;
+				try {
+					res = engine.unwrap( netIn, appIn );
+				} finally {
+					netIn.compact();
+					appIn.flip();
+				}
+				switch ( res.getStatus() ) {
+				case OK:
+					return true;
+				case CLOSED:
+					throw new EOFException();
+				case BUFFER_OVERFLOW:
+					throw new SSLException( "Unexpected buffer overflow during handshake" );
+				case BUFFER_UNDERFLOW:
+					if ( !netIn.hasRemaining() )
+						throw new SSLException( "Record too large" );
+					int ret = channel.read( netIn );
+					if ( ret == -1 )
+						throw new EOFException();
+					if ( ret == 0 ) {
+						key.interestOps( SelectionKey.OP_READ );
+						return false;
+					}
+					break;
+				}
+			}
+		}
+
+		/**
+		 * Write out pending handshake data.
+		 *
+		 * @return true if everything was written
+		 */
+		private boolean flush() throws IOException
+		{
+			if ( netOut.position() == 0 )
+				return true;
+			netOut.flip();
+			try {
+				channel.write( netOut );
+				return !netOut.hasRemaining();
+			} finally {
+				netOut.compact();
+			}
+		}
+	}
 }
@@ -0,0 +1,23 @@
+package org.openslx.filetransfer;
+
+/**
+ * Extended range callback for downloads with pipelining enabled. In pipelined
+ * mode, {@link #get()} will be called again before the data of previously
+ * returned ranges has been received, so the callback cannot use the call to
+ * {@link #get()} as a sign that the previous range is complete. Instead,
+ * {@link #rangeComplete(FileRange)} is called once all data of a range has been
+ * passed to the {@link DataReceivedCallback}. Ranges are always completed in
+ * the order they were returned by {@link #get()}.
+ */
+public interface PipelinedRangeCallback extends WantRangeCallback
+{
+
+	/**
+	 * Called when all data of the given range has been received.
+	 *
+	 * @param range the range, as previously returned by {@link #get()}
+	 * @return true to continue the download, false to abort
+	 */
+	public boolean rangeComplete( FileRange range );
+
+}
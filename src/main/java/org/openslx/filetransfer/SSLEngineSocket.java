@@ -0,0 +1,459 @@
+package org.openslx.filetransfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * Blocking socket on top of a {@link SocketChannel} and an {@link SSLEngine}
+ * that already completed its handshake. This lets the {@link Listener} do the
+ * handshake non-blocking, and then hand the connection to the regular
+ * stream based {@link Downloader} and {@link Uploader}.
+ * Only the socket methods used by {@link Transfer} and its subclasses are
+ * implemented; {@link #getChannel()} returns null on purpose, as writing to
+ * the channel directly would bypass encryption.
+ */
+final class SSLEngineSocket extends Socket
+{
+
+	private final SocketChannel channel;
+
+	private final Socket rawSocket;
+
+	private final SSLEngine engine;
+
+	private final InputStream rawIn;
+
+	private final OutputStream rawOut;
+
+	/**
+	 * Encrypted data received from peer, in write mode
+	 */
+	private ByteBuffer netIn;
+
+	/**
+	 * Decrypted data not yet consumed, in read mode
+	 */
+	private ByteBuffer appIn;
+
+	/**
+	 * Encrypted data to be sent, only used while holding {@link #writeLock}
+	 */
+	private final ByteBuffer netOut;
+
+	private final Object readLock = new Object();
+
+	private final Object writeLock = new Object();
+
+	private final InputStream in = new SSLInputStream();
+
+	private final OutputStream out = new SSLOutputStream();
+
+	private volatile boolean inputShutdown, outputShutdown;
+
+	/**
+	 * @param channel connected channel, in blocking mode
+	 * @param engine engine that finished the handshake
+	 * @param netIn encrypted data already read from the channel, in write mode
+	 * @param appIn decrypted data not yet consumed, in read mode
+	 */
+	SSLEngineSocket( SocketChannel channel, SSLEngine engine, ByteBuffer netIn, ByteBuffer appIn ) throws IOException
+	{
+		super( (java.net.SocketImpl)null );
+		if ( !channel.isBlocking() )
+			throw new IllegalArgumentException( "Channel must be in blocking mode" );
+		this.channel = channel;
+		this.rawSocket = channel.socket();
+		this.engine = engine;
+		this.netIn = netIn;
+		this.appIn = appIn;
+		this.netOut = ByteBuffer.allocate( engine.getSession().getPacketBufferSize() );
+		// The socket adapter's streams honor SO_TIMEOUT, the channel itself doesn't
+		this.rawIn = rawSocket.getInputStream();
+		this.rawOut = rawSocket.getOutputStream();
+	}
+
+	private int read( byte[] b, int off, int len ) throws IOException
+	{
+		if ( len == 0 )
+			return 0;
+		synchronized ( readLock ) {
+			while ( !appIn.hasRemaining() ) {
+				if ( inputShutdown || engine.isInboundDone() )
+					return -1;
+				appIn.clear();
+				netIn.flip();
+				SSLEngineResult res;
+				try {
+					res = engine.unwrap( netIn, appIn );
+				} finally {
+					netIn.compact();
+					appIn.flip();
+				}
+				switch ( res.getStatus() ) {
+				case OK:
+					handlePostHandshake( res );
+					break;
+				case CLOSED:
+					return -1;
+				case BUFFER_OVERFLOW:
+					appIn = ByteBuffer.allocate( engine.getSession().getApplicationBufferSize() + appIn.capacity() );
+					appIn.flip();
+					break;
+				case BUFFER_UNDERFLOW:
+					if ( !netIn.hasRemaining() ) {
+						ByteBuffer bigger = ByteBuffer.allocate( engine.getSession().getPacketBufferSize() + netIn.capacity() );
+						netIn.flip();
+						bigger.put( netIn );
+						netIn = bigger;
+					}
+					int ret = rawIn.read( netIn.array(), netIn.arrayOffset() + netIn.position(), netIn.remaining() );
+					if ( ret == -1 )
+						return -1;
+					netIn.position( netIn.position() + ret );
+					break;
+				}
+			}
+			int num = Math.min( len, appIn.remaining() );
+			appIn.get( b, off, num );
+			return num;
+		}
+	}
+
+	private int available()
+	{
+		synchronized ( readLock ) {
+			return appIn.remaining();
+		}
+	}
+
+	/**
+	 * Peer might send post-handshake messages, like new session tickets or key
+	 * updates, which could require us to run tasks or send a reply.
+	 */
+	private void handlePostHandshake( SSLEngineResult res ) throws IOException
+	{
+		SSLEngineResult.HandshakeStatus hs = res.getHandshakeStatus();
+		while ( hs == SSLEngineResult.HandshakeStatus.NEED_TASK ) {
+			Runnable task;
+			while ( ( task = engine.getDelegatedTask() ) != null ) {
+				task.run();
+			}
+			hs = engine.getHandshakeStatus();
+		}
+		if ( hs == SSLEngineResult.HandshakeStatus.NEED_WRAP ) {
+			write( new byte[ 0 ], 0, 0 );
+		}
+	}
+
+	private void write( byte[] b, int off, int len ) throws IOException
+	{
+		synchronized ( writeLock ) {
+			if ( outputShutdown )
+				throw new SocketException( "Socket output is shutdown" );
+			ByteBuffer src = ByteBuffer.wrap( b, off, len );
+			do {
+				netOut.clear();
+				SSLEngineResult res = engine.wrap( src, netOut );
+				if ( res.getStatus() == SSLEngineResult.Status.CLOSED )
+					throw new SocketException( "SSL engine closed" );
+				if ( res.getStatus() != SSLEngineResult.Status.OK )
+					throw new SSLException( "Unexpected wrap result " + res.getStatus() );
+				rawOut.write( netOut.array(), netOut.arrayOffset(), netOut.position() );
+			} while ( src.hasRemaining()
+					|| engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP );
+		}
+	}
+
+	/**
+	 * Send close_notify to peer, if not done yet.
+	 */
+	private void closeOutbound()
+	{
+		synchronized ( writeLock ) {
+			if ( engine.isOutboundDone() )
+				return;
+			engine.closeOutbound();
+			try {
+				while ( !engine.isOutboundDone() ) {
+					netOut.clear();
+					engine.wrap( ByteBuffer.allocate( 0 ), netOut );
+					if ( netOut.position() == 0 )
+						break;
+					rawOut.write( netOut.array(), netOut.arrayOffset(), netOut.position() );
+				}
+			} catch ( IOException e ) {
+				// Best effort
+			}
+		}
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException
+	{
+		if ( isClosed() )
+			throw new SocketException( "Socket is closed" );
+		return in;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException
+	{
+		if ( isClosed() )
+			throw new SocketException( "Socket is closed" );
+		return out;
+	}
+
+	@Override
+	public void shutdownInput() throws IOException
+	{
+		inputShutdown = true;
+		rawSocket.shutdownInput();
+	}
+
+	@Override
+	public void shutdownOutput() throws IOException
+	{
+		if ( !outputShutdown ) {
+			closeOutbound();
+			outputShutdown = true;
+		}
+		rawSocket.shutdownOutput();
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		if ( !channel.isOpen() )
+			return;
+		if ( !outputShutdown ) {
+			closeOutbound();
+			outputShutdown = true;
+		}
+		inputShutdown = true;
+		channel.close();
+	}
+
+	@Override
+	public boolean isInputShutdown()
+	{
+		return inputShutdown || rawSocket.isInputShutdown();
+	}
+
+	@Override
+	public boolean isOutputShutdown()
+	{
+		return outputShutdown || rawSocket.isOutputShutdown();
+	}
+
+	@Override
+	public boolean isConnected()
+	{
+		return rawSocket.isConnected();
+	}
+
+	@Override
+	public boolean isBound()
+	{
+		return rawSocket.isBound();
+	}
+
+	@Override
+	public boolean isClosed()
+	{
+		return !channel.isOpen();
+	}
+
+	/**
+	 * No direct channel access, it would bypass encryption.
+	 */
+	@Override
+	public SocketChannel getChannel()
+	{
+		return null;
+	}
+
+	@Override
+	public InetAddress getInetAddress()
+	{
+		return rawSocket.getInetAddress();
+	}
+
+	@Override
+	public int getPort()
+	{
+		return rawSocket.getPort();
+	}
+
+	@Override
+	public InetAddress getLocalAddress()
+	{
+		return rawSocket.getLocalAddress();
+	}
+
+	@Override
+	public int getLocalPort()
+	{
+		return rawSocket.getLocalPort();
+	}
+
+	@Override
+	public SocketAddress getRemoteSocketAddress()
+	{
+		return rawSocket.getRemoteSocketAddress();
+	}
+
+	@Override
+	public SocketAddress getLocalSocketAddress()
+	{
+		return rawSocket.getLocalSocketAddress();
+	}
+
+	@Override
+	public void setSoTimeout( int timeout ) throws SocketException
+	{
+		rawSocket.setSoTimeout( timeout );
+	}
+
+	@Override
+	public int getSoTimeout() throws SocketException
+	{
+		return rawSocket.getSoTimeout();
+	}
+
+	@Override
+	public void setTcpNoDelay( boolean on ) throws SocketException
+	{
+		rawSocket.setTcpNoDelay( on );
+	}
+
+	@Override
+	public boolean getTcpNoDelay() throws SocketException
+	{
+		return rawSocket.getTcpNoDelay();
+	}
+
+	@Override
+	public void setKeepAlive( boolean on ) throws SocketException
+	{
+		rawSocket.setKeepAlive( on );
+	}
+
+	@Override
+	public boolean getKeepAlive() throws SocketException
+	{
+		return rawSocket.getKeepAlive();
+	}
+
+	@Override
+	public void setSendBufferSize( int size ) throws SocketException
+	{
+		rawSocket.setSendBufferSize( size );
+	}
+
+	@Override
+	public int getSendBufferSize() throws SocketException
+	{
+		return rawSocket.getSendBufferSize();
+	}
+
+	@Override
+	public void setReceiveBufferSize( int size ) throws SocketException
+	{
+		rawSocket.setReceiveBufferSize( size );
+	}
+
+	@Override
+	public int getReceiveBufferSize() throws SocketException
+	{
+		return rawSocket.getReceiveBufferSize();
+	}
+
+	@Override
+	public void setSoLinger( boolean on, int linger ) throws SocketException
+	{
+		rawSocket.setSoLinger( on, linger );
+	}
+
+	@Override
+	public int getSoLinger() throws SocketException
+	{
+		return rawSocket.getSoLinger();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "SSLEngineSocket[" + rawSocket + "]";
+	}
+
+	private class SSLInputStream extends InputStream
+	{
+		@Override
+		public int read() throws IOException
+		{
+			byte[] b = new byte[ 1 ];
+			int ret;
+			while ( ( ret = SSLEngineSocket.this.read( b, 0, 1 ) ) == 0 ) {
+				// Nothing
+			}
+			return ret == -1 ? -1 : ( b[0] & 0xff );
+		}
+
+		@Override
+		public int read( byte[] b, int off, int len ) throws IOException
+		{
+			if ( off < 0 || len < 0 || len > b.length - off )
+				throw new IndexOutOfBoundsException();
+			return SSLEngineSocket.this.read( b, off, len );
+		}
+
+		@Override
+		public int available() throws IOException
+		{
+			return SSLEngineSocket.this.available();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			SSLEngineSocket.this.close();
+		}
+	}
+
+	private class SSLOutputStream extends OutputStream
+	{
+		@Override
+		public void write( int b ) throws IOException
+		{
+			SSLEngineSocket.this.write( new byte[] { (byte)b }, 0, 1 );
+		}
+
+		@Override
+		public void write( byte[] b, int off, int len ) throws IOException
+		{
+			if ( off < 0 || len < 0 || len > b.length - off )
+				throw new IndexOutOfBoundsException();
+			if ( len == 0 )
+				return;
+			SSLEngineSocket.this.write( b, off, len );
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			SSLEngineSocket.this.close();
+		}
+	}
+
+}
@@ -0,0 +1,221 @@
+package org.openslx.filetransfer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.openslx.util.PrioThreadFactory;
+
+/**
+ * Reads and optionally compresses ranges of a file in the background for an
+ * {@link Uploader}, so reading from disk, compressing and writing to the
+ * socket overlap. A range is split into blocks, which are read and
+ * compressed in parallel on a small pool shared by all uploads, while the
+ * uploading thread sends finished blocks in order. Once all blocks of a
+ * range are queued, the following range of the same length is read ahead,
+ * as peers usually request ranges in order.
+ * Compressed blocks are LZ4 frames exactly like {@link Uploader.Lz4OutStream}
+ * writes them, so this doesn't change anything on the wire. Whether a block
+ * is actually worth compressing is left to the {@link CompressionAdvisor}.
+ */
+class SendPipeline
+{
+
+	/**
+	 * Size of a block; same as the frame size of a non-pipelined upload
+	 */
+	static final int BLOCK_SIZE = ChunkReadCache.FRAME_SIZE;
+
+	/**
+	 * Maximum number of blocks queued or being processed per upload
+	 */
+	private static final int MAX_BLOCKS_IN_FLIGHT = 8;
+
+	private static final ThreadPoolExecutor pool;
+
+	static {
+		int threads = Math.max( 2, Math.min( 8, Runtime.getRuntime().availableProcessors() ) );
+		pool = new ThreadPoolExecutor( threads, threads, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(),
+				new PrioThreadFactory( "BFTP-Send" ) );
+		pool.allowCoreThreadTimeOut( true );
+	}
+
+	static class Block
+	{
+		final long offset;
+		final int length;
+		final boolean compressed;
+		private final Future<byte[]> result;
+
+		private Block( long offset, int length, boolean compressed, Future<byte[]> result )
+		{
+			this.offset = offset;
+			this.length = length;
+			this.compressed = compressed;
+			this.result = result;
+		}
+
+		/**
+		 * Wait for this block to be read (and compressed).
+		 *
+		 * @return the raw data, or a complete LZ4 frame if compressed
+		 */
+		byte[] get() throws IOException, InterruptedException
+		{
+			try {
+				return result.get();
+			} catch ( ExecutionException e ) {
+				if ( e.getCause() instanceof IOException )
+					throw (IOException)e.getCause();
+				throw new IOException( e.getCause() );
+			}
+		}
+	}
+
+	private final FileChannel file;
+
+	private final CompressionAdvisor advisor;
+
+	/**
+	 * Blocks submitted so far, in order
+	 */
+	private final Deque<Block> blocks = new ArrayDeque<>();
+
+	private boolean compress;
+
+	/**
+	 * Next offset to submit, end of the range currently being sent, and end
+	 * of the range we read ahead
+	 */
+	private long submitOffset, rangeEnd, readAheadEnd;
+
+	private long readAheadHits, readAheadMisses;
+
+	SendPipeline( FileChannel file, CompressionAdvisor advisor )
+	{
+		this.file = file;
+		this.advisor = advisor;
+	}
+
+	/**
+	 * Start sending the given range. If we already read ahead blocks of this
+	 * range, they're used, otherwise everything queued is discarded.
+	 */
+	void start( FileRange range, boolean compress ) throws IOException
+	{
+		boolean reuse = !blocks.isEmpty() && this.compress == compress && blocks.peekFirst().offset == range.startOffset;
+		if ( reuse ) {
+			readAheadHits++;
+			// Keep blocks that lie within the requested range
+			long expected = range.startOffset;
+			Deque<Block> keep = new ArrayDeque<>();
+			while ( !blocks.isEmpty() ) {
+				Block b = blocks.peekFirst();
+				if ( b.offset != expected || b.offset + b.length > range.endOffset )
+					break;
+				keep.addLast( blocks.pollFirst() );
+				expected += b.length;
+			}
+			cancelAll();
+			blocks.addAll( keep );
+			submitOffset = expected;
+		} else {
+			if ( !blocks.isEmpty() ) {
+				readAheadMisses++;
+			}
+			cancelAll();
+			submitOffset = range.startOffset;
+		}
+		this.compress = compress;
+		rangeEnd = range.endOffset;
+		readAheadEnd = Math.min( file.size(), range.endOffset + range.getLength() );
+		if ( readAheadEnd < rangeEnd ) {
+			readAheadEnd = rangeEnd;
+		}
+		fill();
+	}
+
+	/**
+	 * Get next block of the current range. Call {@link Block#get()} on it to
+	 * get its data.
+	 *
+	 * @return next block, null if the range is done
+	 */
+	Block next()
+	{
+		Block b = blocks.peekFirst();
+		if ( b == null || b.offset >= rangeEnd )
+			return null;
+		blocks.pollFirst();
+		fill();
+		return b;
+	}
+
+	/**
+	 * Discard everything queued.
+	 */
+	void close()
+	{
+		cancelAll();
+		submitOffset = readAheadEnd = rangeEnd;
+	}
+
+	long getReadAheadHits()
+	{
+		return readAheadHits;
+	}
+
+	long getReadAheadMisses()
+	{
+		return readAheadMisses;
+	}
+
+	private void cancelAll()
+	{
+		for ( Block b : blocks ) {
+			b.result.cancel( false );
+		}
+		blocks.clear();
+	}
+
+	private void fill()
+	{
+		while ( blocks.size() < MAX_BLOCKS_IN_FLIGHT && submitOffset < readAheadEnd ) {
+			// Don't let blocks cross the end of the current range
+			long end = submitOffset < rangeEnd ? rangeEnd : readAheadEnd;
+			final long offset = submitOffset;
+			final int length = (int)Math.min( BLOCK_SIZE, end - offset );
+			final boolean doCompress = compress;
+			Future<byte[]> result = pool.submit( new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws Exception
+				{
+					byte[] data = new byte[ length ];
+					ByteBuffer buffer = ByteBuffer.wrap( data );
+					long pos = offset;
+					while ( buffer.hasRemaining() ) {
+						int ret = file.read( buffer, pos );
+						if ( ret == -1 )
+							throw new EOFException( "File shorter than requested range" );
+						pos += ret;
+					}
+					if ( doCompress )
+						return Uploader.Lz4OutStream.compressFrame( data, 0, length, offset, advisor );
+					return data;
+				}
+			} );
+			blocks.addLast( new Block( offset, length, doCompress, result ) );
+			submitOffset += length;
+		}
+	}
+
+}
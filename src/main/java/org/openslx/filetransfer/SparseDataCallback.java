@@ -0,0 +1,24 @@
+package org.openslx.filetransfer;
+
+/**
+ * Extended data callback for downloads that can handle ranges consisting of
+ * zeros only. If the data callback passed to the {@link Downloader} implements
+ * this interface, the remote peer is allowed to skip sending the payload of
+ * such ranges, and {@link #zeroDataReceived(long, int)} is called instead of
+ * {@link #dataReceived(long, int, byte[])}.
+ */
+public interface SparseDataCallback extends DataReceivedCallback
+{
+
+	/**
+	 * Called when the remote peer announced that the given part of the file
+	 * consists of zeros only. No call to {@link #dataReceived(long, int, byte[])}
+	 * will be made for this part.
+	 *
+	 * @param fileOffset start of the zero range
+	 * @param dataLength length of the zero range
+	 * @return true to continue the download, false to abort
+	 */
+	public boolean zeroDataReceived( long fileOffset, int dataLength );
+
+}
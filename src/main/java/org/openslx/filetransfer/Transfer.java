@@ -3,12 +3,22 @@ package org.openslx.filetransfer;
 import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLContext;
@@ -27,10 +37,26 @@ public abstract class Transfer
 	private boolean shouldGetToken;
 	protected boolean useCompression = true;
 
+	/**
+	 * Bandwidth limiters this connection is subject to
+	 */
+	private final List<BandwidthLimiter> limiters = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Smoothed time between sending a request and getting the reply, 0 if unknown
+	 */
+	private volatile long rttMs = 0;
+
 	protected final Logger log;
 
 	protected final static LZ4Factory lz4factory = LZ4Factory.fastestInstance();
 
+	/**
+	 * Maximum number of range requests a downloader may have in flight at any
+	 * time. This is what an uploader announces when agreeing to pipelining.
+	 */
+	protected final static int MAX_PIPELINE_DEPTH = 16;
+
 	/**
 	 * Actively initiated transfer.
 	 * 
@@ -45,12 +71,13 @@ public abstract class Transfer
 		this.log = log;
 		// create socket.
 		transferSocket = Util.connectAllRecords(
-				context == null ? SocketFactory.getDefault() : context.getSocketFactory(),
+				context == null ? ChannelSocketFactory.INSTANCE : context.getSocketFactory(),
 				host, port, 4000 );
 		transferSocket.setSoTimeout( readTimeoutMs );
 
-		outStream = new DataOutputStream( transferSocket.getOutputStream() );
-		dataFromServer = new DataInputStream( transferSocket.getInputStream() );
+		initLimiters();
+		outStream = new DataOutputStream( new ThrottledOutputStream( transferSocket.getOutputStream() ) );
+		dataFromServer = new DataInputStream( new ThrottledInputStream( transferSocket.getInputStream() ) );
 		shouldGetToken = false;
 	}
 
@@ -65,11 +92,91 @@ public abstract class Transfer
 	{
 		this.log = log;
 		transferSocket = socket;
-		outStream = new DataOutputStream( transferSocket.getOutputStream() );
-		dataFromServer = new DataInputStream( transferSocket.getInputStream() );
+		initLimiters();
+		outStream = new DataOutputStream( new ThrottledOutputStream( transferSocket.getOutputStream() ) );
+		dataFromServer = new DataInputStream( new ThrottledInputStream( transferSocket.getInputStream() ) );
 		shouldGetToken = true;
 	}
 
+	private void initLimiters()
+	{
+		limiters.add( BandwidthLimiter.getGlobal() );
+		BandwidthLimiter peer = BandwidthLimiter.getForPeer( transferSocket.getInetAddress() );
+		if ( peer != null ) {
+			limiters.add( peer );
+		}
+	}
+
+	/**
+	 * Feed a new round trip time sample into our estimate.
+	 */
+	protected void updateRtt( long ms )
+	{
+		long old = rttMs;
+		rttMs = old == 0 ? Math.max( 1, ms ) : Math.max( 1, ( old * 7 + ms ) / 8 );
+	}
+
+	/**
+	 * Get an estimate of the time it takes the remote peer to reply to a
+	 * request. This is only measured by the downloading side, and includes the
+	 * time the remote peer needs to start processing the request. With
+	 * pipelining, it also includes the time needed for sending the ranges
+	 * requested before, so it reflects how long requests are queued.
+	 * 
+	 * @return round trip time in milliseconds, 0 if unknown
+	 */
+	public long getRttMs()
+	{
+		return rttMs;
+	}
+
+	/**
+	 * @return address of the remote peer
+	 */
+	public InetAddress getRemoteAddress()
+	{
+		return transferSocket.getInetAddress();
+	}
+
+	/**
+	 * Make this connection subject to the given bandwidth limiter, in addition
+	 * to the global and per-peer limiters. This can be called at any time.
+	 * 
+	 * @param limiter limiter to add, usually the one of the transfer this connection belongs to
+	 */
+	public void addBandwidthLimiter( BandwidthLimiter limiter )
+	{
+		if ( limiter != null && !limiters.contains( limiter ) ) {
+			limiters.add( limiter );
+		}
+	}
+
+	/**
+	 * Get the number of bytes that should be sent or received at once, so
+	 * no bandwidth limiter makes us wait for long.
+	 * 
+	 * @param wanted number of bytes the caller would like to transfer
+	 * @return wanted, or less if a limiter requires smaller slices
+	 */
+	protected int getThrottleSliceSize( int wanted )
+	{
+		for ( BandwidthLimiter limiter : limiters ) {
+			wanted = Math.min( wanted, limiter.getSliceSize() );
+		}
+		return wanted;
+	}
+
+	/**
+	 * Account for given number of bytes in all bandwidth limiters, waiting
+	 * until all of them allow us to proceed.
+	 */
+	protected void throttle( int bytes ) throws InterruptedIOException
+	{
+		for ( BandwidthLimiter limiter : limiters ) {
+			limiter.acquire( bytes );
+		}
+	}
+
 	protected boolean sendRange( long startOffset, long endOffset )
 	{
 		try {
@@ -90,6 +197,47 @@ public abstract class Transfer
 		}
 	}
 
+	/**
+	 * Tell the uploading peer that it may reply with {@link #sendZeroRange()}
+	 * instead of sending the payload if the requested range is all zeros.
+	 * Peers not supporting this will just ignore it.
+	 */
+	protected void sendWantSparse()
+	{
+		try {
+			sendKeyValuePair( "SPARSE", "true" );
+		} catch ( IOException e ) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Tell the downloading peer that the range we're confirming consists of
+	 * zeros only, and no payload will follow.
+	 */
+	protected void sendZeroRange()
+	{
+		try {
+			sendKeyValuePair( "ZERO", "true" );
+		} catch ( IOException e ) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Announce the number of range requests we want to have in flight (downloader),
+	 * or are willing to accept in flight (uploader). Peers not supporting pipelining
+	 * will just ignore this.
+	 */
+	protected void sendPipelineDepth( int depth )
+	{
+		try {
+			sendKeyValuePair( "PIPELINE", Integer.toString( depth ) );
+		} catch ( IOException e ) {
+			e.printStackTrace();
+		}
+	}
+
 	/***********************************************************************/
 	/**
 	 * Method for sending error Code to server. For example in case of wrong
@@ -283,6 +431,18 @@ public abstract class Transfer
 		return remoteError;
 	}
 
+	/**
+	 * Set whether this side should request (downloader) or agree to (uploader)
+	 * compressed transfer of ranges. Disabling compression on a plain connection
+	 * allows the uploader to send ranges without copying them through the heap.
+	 * 
+	 * @param enabled whether to use compression
+	 */
+	public void setCompressionEnabled( boolean enabled )
+	{
+		useCompression = enabled;
+	}
+
 	/**
 	 * Get transfer token, sent by remote peer that initiated connection.
 	 * Call this ONLY if all of the following conditions are met:
@@ -332,6 +492,122 @@ public abstract class Transfer
 		Util.safeClose( list );
 	}
 
+	/**
+	 * Output stream that writes in slices, applying our bandwidth limits.
+	 */
+	private class ThrottledOutputStream extends FilterOutputStream
+	{
+		public ThrottledOutputStream( OutputStream out )
+		{
+			super( out );
+		}
+
+		@Override
+		public void write( int b ) throws IOException
+		{
+			throttle( 1 );
+			out.write( b );
+		}
+
+		@Override
+		public void write( byte[] b, int off, int len ) throws IOException
+		{
+			while ( len > 0 ) {
+				int num = getThrottleSliceSize( len );
+				throttle( num );
+				out.write( b, off, num );
+				off += num;
+				len -= num;
+			}
+		}
+	}
+
+	/**
+	 * Input stream that reads in slices, applying our bandwidth limits.
+	 * Data is accounted for after reading, so if we're too fast, the following
+	 * read will be delayed, eventually filling the TCP window, which slows
+	 * down the sender.
+	 */
+	private class ThrottledInputStream extends FilterInputStream
+	{
+		public ThrottledInputStream( InputStream in )
+		{
+			super( in );
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			int ret = in.read();
+			if ( ret != -1 ) {
+				throttle( 1 );
+			}
+			return ret;
+		}
+
+		@Override
+		public int read( byte[] b, int off, int len ) throws IOException
+		{
+			int ret = in.read( b, off, getThrottleSliceSize( len ) );
+			if ( ret > 0 ) {
+				throttle( ret );
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * Socket factory for plain connections, creating sockets that are backed by
+	 * a {@link SocketChannel}, which allows us to use zero copy transfers.
+	 */
+	private static class ChannelSocketFactory extends SocketFactory
+	{
+		private static final ChannelSocketFactory INSTANCE = new ChannelSocketFactory();
+
+		@Override
+		public Socket createSocket() throws IOException
+		{
+			return SocketChannel.open().socket();
+		}
+
+		@Override
+		public Socket createSocket( String host, int port ) throws IOException
+		{
+			return connect( new InetSocketAddress( host, port ) );
+		}
+
+		@Override
+		public Socket createSocket( InetAddress host, int port ) throws IOException
+		{
+			return connect( new InetSocketAddress( host, port ) );
+		}
+
+		@Override
+		public Socket createSocket( String host, int port, InetAddress localHost, int localPort ) throws IOException
+		{
+			Socket socket = createSocket();
+			socket.bind( new InetSocketAddress( localHost, localPort ) );
+			socket.connect( new InetSocketAddress( host, port ) );
+			return socket;
+		}
+
+		@Override
+		public Socket createSocket( InetAddress address, int port, InetAddress localAddress, int localPort ) throws IOException
+		{
+			Socket socket = createSocket();
+			socket.bind( new InetSocketAddress( localAddress, localPort ) );
+			socket.connect( new InetSocketAddress( address, port ) );
+			return socket;
+		}
+
+		private Socket connect( InetSocketAddress address ) throws IOException
+		{
+			Socket socket = createSocket();
+			socket.connect( address );
+			return socket;
+		}
+	}
+
 	/**
 	 * High level access to key-value-pairs.
 	 */
@@ -414,6 +690,34 @@ public abstract class Transfer
 			return meta.containsKey( "COMPRESS" );
 		}
 
+		/**
+		 * Peer indicated that it can handle ranges that are all zeros
+		 * being confirmed without sending any payload.
+		 */
+		public boolean peerWantsSparse()
+		{
+			return meta.containsKey( "SPARSE" );
+		}
+
+		/**
+		 * Peer confirmed the range as all zeros, no payload follows.
+		 */
+		public boolean isZeroRange()
+		{
+			return meta.containsKey( "ZERO" );
+		}
+
+		/**
+		 * Get the pipeline depth announced by the peer, i.e. how many range requests
+		 * it wants to have in flight, or is willing to accept in flight.
+		 * 
+		 * @return announced depth, 0 if the peer doesn't support pipelining
+		 */
+		public int getPipelineDepth()
+		{
+			return Util.parseInt( meta.get( "PIPELINE" ), 0 );
+		}
+
 		@Override
 		public String toString()
 		{
@@ -7,8 +7,14 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
 
 import net.jpountz.lz4.LZ4Compressor;
 
@@ -20,9 +26,35 @@ public class Uploader extends Transfer
 
 	private static final Logger log = LogManager.getLogger( Uploader.class );
 	
-	private final LZ4Compressor compressor = lz4factory.fastCompressor();
-	
 	private final Lz4OutStream compressedOut;
+
+	/**
+	 * Decides which blocks are worth compressing
+	 */
+	private final CompressionAdvisor compressionAdvisor = new CompressionAdvisor();
+
+	/**
+	 * Maximum number of bytes handed to the kernel at once when sending
+	 * uncompressed ranges via {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+	 */
+	private static final long ZERO_COPY_SLICE = 2 * 1024 * 1024;
+
+	/**
+	 * Number of bytes at the start of a range checked first when looking for
+	 * zero ranges
+	 */
+	static final int ZERO_CHECK_PREFIX = 4096;
+
+	/**
+	 * Size of the buffer for reading the rest of a range when looking for zero
+	 * ranges
+	 */
+	private static final int ZERO_CHECK_BUFFER_SIZE = 256 * 1024;
+
+	/**
+	 * Number of bytes we didn't have to send as they were part of a zero range
+	 */
+	private long zeroBytesSkipped = 0;
 	
 	/***********************************************************************/
 	/**
@@ -36,7 +68,7 @@ public class Uploader extends Transfer
 	public Uploader( String host, int port, int readTimeoutMs, SSLContext context, String token ) throws IOException
 	{
 		super( host, port, readTimeoutMs, context, log );
-		compressedOut = new Lz4OutStream( outStream );
+		compressedOut = new Lz4OutStream( outStream, compressionAdvisor );
 		outStream.writeByte( 'U' );
 		if ( !sendToken( token ) || !sendEndOfMeta() )
 			throw new IOException( "Sending token failed" );
@@ -52,7 +84,7 @@ public class Uploader extends Transfer
 	public Uploader( Socket socket ) throws IOException
 	{
 		super( socket, log );
-		compressedOut = new Lz4OutStream( outStream );
+		compressedOut = new Lz4OutStream( outStream, compressionAdvisor );
 	}
 
 	/***********************************************************************/
@@ -66,14 +98,27 @@ public class Uploader extends Transfer
 		return upload( filename, null );
 	}
 	
+	/**
+	 * Get the object deciding which blocks of this upload get compressed, for
+	 * configuration and statistics.
+	 */
+	public CompressionAdvisor getCompressionAdvisor()
+	{
+		return compressionAdvisor;
+	}
+
 	/**
 	 * Compressing output stream that will either write LZ4-compressed data, or if the data
 	 * doesn't compress well, just the original uncompressed data.
 	 */
-	private class Lz4OutStream extends OutputStream
+	static class Lz4OutStream extends OutputStream
 	{
 		
+		private final LZ4Compressor compressor = lz4factory.fastCompressor();
+
 		private final DataOutputStream parentStream;
+
+		private final CompressionAdvisor advisor;
 		
 		private byte[] buffer;
 		
@@ -81,9 +126,10 @@ public class Uploader extends Transfer
 		
 		private int chunksCompressed, chunksUncompressed;
 		
-		public Lz4OutStream( DataOutputStream out )
+		public Lz4OutStream( DataOutputStream out, CompressionAdvisor advisor )
 		{
 			parentStream = out;
+			this.advisor = advisor;
 			log.debug( "Compressor: " + compressor.getClass().getSimpleName() );
 		}
 
@@ -96,15 +142,38 @@ public class Uploader extends Transfer
 		@Override
 		public void write( byte[] data, int off, int decompressedLength ) throws IOException
 		{
+			write( -1, data, off, decompressedLength );
+		}
+
+		/**
+		 * Write given block of the file, asking the {@link CompressionAdvisor}
+		 * whether to compress it first.
+		 *
+		 * @param fileOffset offset of the block in the file, -1 to always compress
+		 */
+		public void write( long fileOffset, byte[] data, int off, int decompressedLength ) throws IOException
+		{
+			if ( fileOffset >= 0 && advisor != null && !advisor.shouldCompress( fileOffset, data, off, decompressedLength ) ) {
+				bytesDecompressedTotal += decompressedLength;
+				bytesSentTotal += decompressedLength;
+				chunksUncompressed++;
+				parentStream.writeInt( decompressedLength );
+				parentStream.writeInt( decompressedLength );
+				parentStream.write( data, off, decompressedLength );
+				return;
+			}
 			int maxCompressedLength = compressor.maxCompressedLength( decompressedLength );
 			if ( buffer == null || buffer.length < maxCompressedLength ) {
 				buffer = new byte[ maxCompressedLength ];
 			}
 			bytesDecompressedTotal += decompressedLength;
+			long start = System.nanoTime();
 			int compressedLength = compressor.compress( data, off, decompressedLength, buffer, 0, maxCompressedLength );
+			if ( fileOffset >= 0 && advisor != null ) {
+				advisor.compressed( fileOffset, decompressedLength, compressedLength, System.nanoTime() - start );
+			}
 			parentStream.writeInt( decompressedLength );
-			// Only send compressed data if we got down to at least ~88% the original size
-			if ( ( compressedLength * 9 / 8 ) < decompressedLength ) {
+			if ( CompressionAdvisor.isWorthIt( compressedLength, decompressedLength ) ) {
 				bytesSentTotal += compressedLength;
 				chunksCompressed++;
 				parentStream.writeInt( compressedLength );
@@ -117,12 +186,75 @@ public class Uploader extends Transfer
 			}
 		}
 		
+		/**
+		 * Write a frame previously created by {@link #compressFrame(byte[], int, int)}.
+		 */
+		void writeFrame( byte[] frame ) throws IOException
+		{
+			int decompressedLength = ByteBuffer.wrap( frame ).getInt( 0 );
+			int sentLength = frame.length - 8;
+			bytesDecompressedTotal += decompressedLength;
+			bytesSentTotal += sentLength;
+			if ( sentLength < decompressedLength ) {
+				chunksCompressed++;
+			} else {
+				chunksUncompressed++;
+			}
+			parentStream.write( frame );
+		}
+
+		/**
+		 * Create a frame, including header, exactly like {@link #write(byte[], int, int)}
+		 * would send it, so it can be cached and sent multiple times.
+		 */
+		static byte[] compressFrame( byte[] data, int off, int decompressedLength )
+		{
+			LZ4Compressor compressor = lz4factory.fastCompressor();
+			int maxCompressedLength = compressor.maxCompressedLength( decompressedLength );
+			byte[] buffer = new byte[ 8 + maxCompressedLength ];
+			int compressedLength = compressor.compress( data, off, decompressedLength, buffer, 8, maxCompressedLength );
+			ByteBuffer header = ByteBuffer.wrap( buffer );
+			header.putInt( decompressedLength );
+			if ( CompressionAdvisor.isWorthIt( compressedLength, decompressedLength ) ) {
+				header.putInt( compressedLength );
+				return Arrays.copyOf( buffer, 8 + compressedLength );
+			}
+			header.putInt( decompressedLength );
+			System.arraycopy( data, off, buffer, 8, decompressedLength );
+			return Arrays.copyOf( buffer, 8 + decompressedLength );
+		}
+
+		/**
+		 * Like {@link #compressFrame(byte[], int, int)}, but ask the given advisor
+		 * whether the block is worth compressing first, and report the outcome.
+		 */
+		static byte[] compressFrame( byte[] data, int off, int decompressedLength, long fileOffset,
+				CompressionAdvisor advisor )
+		{
+			if ( advisor == null )
+				return compressFrame( data, off, decompressedLength );
+			if ( !advisor.shouldCompress( fileOffset, data, off, decompressedLength ) ) {
+				ByteBuffer frame = ByteBuffer.allocate( 8 + decompressedLength );
+				frame.putInt( decompressedLength );
+				frame.putInt( decompressedLength );
+				frame.put( data, off, decompressedLength );
+				return frame.array();
+			}
+			long start = System.nanoTime();
+			byte[] frame = compressFrame( data, off, decompressedLength );
+			advisor.compressed( fileOffset, decompressedLength, frame.length - 8, System.nanoTime() - start );
+			return frame;
+		}
+
 		public void printStats()
 		{
 			if ( bytesSentTotal == 0 )
 				return;
 			log.info( "Bytes sent: " + bytesSentTotal + ", decompressed to: " + bytesDecompressedTotal );
 			log.info( "Chunks sent compressed: " + chunksCompressed + ", uncompressed: " + chunksUncompressed );
+			if ( advisor != null && advisor.getSkipCount() != 0 ) {
+				log.info( advisor.getStats() );
+			}
 		}
 
 	}
@@ -134,24 +266,33 @@ public class Uploader extends Transfer
 			return false;
 		}
 		RandomAccessFile file = null;
+		final File path = new File( filename );
+		ChunkReadCache cache = ChunkReadCache.getShared();
+		ChunkReadCache.FileIdentity fileId = null;
+		SendPipeline pipeline = null;
 		try {
 			try {
-				file = new RandomAccessFile( new File( filename ), "r" );
+				if ( cache.isEnabled() ) {
+					fileId = getFileIdentity( path );
+				}
+				file = new RandomAccessFile( path, "r" );
 			} catch ( FileNotFoundException e ) {
 				this.close( "Could not open given file for reading.", callback, true );
 				return false;
 			}
-			byte[] data = null;
-			// Cannot go above 500000 for backwards compat
-			for ( int bufsiz = 500; bufsiz >= 100 && data == null; bufsiz -= 100 ) {
-				try {
-					data = new byte[ bufsiz * 1000 ];
-				} catch ( OutOfMemoryError e ) {
-				}
+			// Only use the shared cache if the file wasn't replaced while we opened it
+			if ( fileId != null && !fileId.equals( getFileIdentity( path ) ) ) {
+				fileId = null;
 			}
-			if ( data == null ) {
-				this.close( "Could not allocate buffer for reading.", callback, true );
-				return false;
+			// Only used for checking whether a range is all zeros, actual data is read elsewhere
+			byte[] zeroCheckBuffer = null;
+			// For plain connections backed by a channel, we can have the kernel send uncompressed
+			// ranges straight from the page cache (sendfile), no copying through the heap
+			final SocketChannel zeroCopyChannel;
+			if ( transferSocket instanceof SSLSocket ) {
+				zeroCopyChannel = null;
+			} else {
+				zeroCopyChannel = transferSocket.getChannel();
 			}
 			while ( !Thread.currentThread().isInterrupted() ) { // Loop as long as remote peer is requesting chunks from this file
 				// Read meta data of remote peer - either new range, or it's telling us it's done
@@ -189,13 +330,33 @@ public class Uploader extends Transfer
 					this.close( "Could not seek to start of requested range in given file (" + requestedRange.startOffset + ")", callback, true, e );
 					return false;
 				}
+				// If the peer can handle it, check if the range is all zeros so we can skip sending it
+				boolean zeroRange = false;
+				if ( meta.peerWantsSparse() ) {
+					if ( zeroCheckBuffer == null ) {
+						zeroCheckBuffer = new byte[ ZERO_CHECK_BUFFER_SIZE ];
+					}
+					try {
+						zeroRange = isZeroRange( file.getChannel(), requestedRange, zeroCheckBuffer );
+					} catch ( IOException e ) {
+						this.close( "Error reading from file ", callback, true, e );
+						return false;
+					}
+				}
 				// Send confirmation of range and compression mode we're about to send
 				OutputStream outStr = outStream;
 				try {
-					if ( meta.peerWantsCompression() && useCompression ) {
+					if ( zeroRange ) {
+						sendZeroRange();
+					} else if ( meta.peerWantsCompression() && useCompression ) {
 						sendUseCompression();
 						outStr = compressedOut;
 					}
+					if ( meta.getPipelineDepth() > 1 ) {
+						// We handle requests strictly in order, so pipelining just
+						// means the next request is already waiting in the socket buffer
+						sendPipelineDepth( MAX_PIPELINE_DEPTH );
+					}
 					long ptr = file.getFilePointer();
 					if ( !sendRange( ptr, ptr + requestedRange.getLength() ) || !sendEndOfMeta() ) {
 						this.close( "Could not send range confirmation" );
@@ -205,35 +366,222 @@ public class Uploader extends Transfer
 					this.close( "Could not determine current position in file " + filename );
 					return false;
 				}
+				if ( zeroRange ) {
+					// No payload
+					zeroBytesSkipped += requestedRange.getLength();
+					if ( callback != null )
+						callback.uploadProgress( requestedRange.getLength() );
+					continue;
+				}
 				// Finally send requested chunk
-				int hasRead = 0;
-				int length = requestedRange.getLength();
-				while ( hasRead < length ) {
-					int ret;
+				boolean ok;
+				ChunkReadCache.Entry cached = null;
+				if ( outStr == outStream && zeroCopyChannel != null ) {
+					ok = sendRangeZeroCopy( file, requestedRange, zeroCopyChannel, callback );
+				} else if ( fileId != null && ( cached = getCachedRange( cache, fileId, path, file, requestedRange ) ) != null ) {
 					try {
-						ret = file.read( data, 0, Math.min( length - hasRead, data.length ) );
-					} catch ( IOException e ) {
-						this.close( "Error reading from file ", callback, true, e );
-						return false;
+						ok = sendRangeCached( cached, requestedRange, outStr, callback );
+					} finally {
+						cache.release( cached );
 					}
-					if ( ret == -1 ) {
-						this.close( "Error occured in Uploader.sendFile() while reading from File to send.", callback, true );
-						return false;
+				} else {
+					if ( pipeline == null ) {
+						pipeline = new SendPipeline( file.getChannel(), compressionAdvisor );
 					}
-					hasRead += ret;
-					try {
-						outStr.write( data, 0, ret );
-					} catch ( IOException e ) {
-						this.close( "Sending payload failed", e );
-						return false;
-					}
-					if ( callback != null )
-						callback.uploadProgress( ret );
+					ok = sendRangePipelined( pipeline, requestedRange, outStr, callback );
 				}
+				if ( !ok )
+					return false;
 			}
 		} finally {
+			if ( pipeline != null ) {
+				pipeline.close();
+				log.debug( "Read-ahead hits: " + pipeline.getReadAheadHits() + ", misses: " + pipeline.getReadAheadMisses() );
+			}
 			Transfer.safeClose( file, transferSocket );
 			compressedOut.printStats();
+			if ( zeroBytesSkipped != 0 ) {
+				log.info( "Bytes not sent because of zero ranges: " + zeroBytesSkipped );
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get identity of the given file for the cache, null if it cannot be stat'ed.
+	 */
+	private static ChunkReadCache.FileIdentity getFileIdentity( File file )
+	{
+		try {
+			return ChunkReadCache.FileIdentity.of( file );
+		} catch ( IOException e ) {
+			return null;
+		}
+	}
+
+	/**
+	 * Get requested range from the shared cache, if it's worth caching. If the
+	 * file changed since we opened it, the cache is bypassed.
+	 */
+	private ChunkReadCache.Entry getCachedRange( ChunkReadCache cache, ChunkReadCache.FileIdentity fileId,
+			File path, RandomAccessFile file, FileRange range )
+	{
+		try {
+			ChunkReadCache.FileIdentity current = ChunkReadCache.FileIdentity.of( path );
+			if ( !fileId.equals( current ) )
+				return null;
+			return cache.acquire( fileId, file.getChannel(), range );
+		} catch ( IOException e ) {
+			log.debug( "Cannot get range from cache", e );
+			return null;
+		}
+	}
+
+	/**
+	 * Send the given range from the cache. If the cache holds the compressed
+	 * form and compression is requested, the frames are sent as they are.
+	 */
+	private boolean sendRangeCached( ChunkReadCache.Entry cached, FileRange range, OutputStream outStr,
+			UploadStatusCallback callback )
+	{
+		List<byte[]> frames = null;
+		if ( outStr == compressedOut ) {
+			frames = cached.getCompressedFrames();
+		}
+		try {
+			if ( frames != null ) {
+				for ( byte[] frame : frames ) {
+					compressedOut.writeFrame( frame );
+					if ( callback != null )
+						callback.uploadProgress( ByteBuffer.wrap( frame ).getInt( 0 ) );
+				}
+			} else {
+				byte[] data = cached.getData();
+				for ( int off = 0; off < data.length; off += ChunkReadCache.FRAME_SIZE ) {
+					int len = Math.min( ChunkReadCache.FRAME_SIZE, data.length - off );
+					if ( outStr == compressedOut ) {
+						compressedOut.write( range.startOffset + off, data, off, len );
+					} else {
+						outStr.write( data, off, len );
+					}
+					if ( callback != null )
+						callback.uploadProgress( len );
+				}
+			}
+		} catch ( IOException e ) {
+			this.close( "Sending payload failed", e );
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Check whether the given range of the file consists of zeros only. Only
+	 * {@link #ZERO_CHECK_PREFIX} bytes are read at first, which is enough to
+	 * rule out most ranges with regular data; the rest of the range is only
+	 * read if that prefix is all zeros.
+	 */
+	static boolean isZeroRange( FileChannel source, FileRange range, byte[] data ) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.wrap( data );
+		long pos = range.startOffset;
+		int chunk = Math.min( ZERO_CHECK_PREFIX, data.length );
+		while ( pos < range.endOffset ) {
+			buffer.clear();
+			buffer.limit( (int)Math.min( chunk, range.endOffset - pos ) );
+			chunk = data.length;
+			int ret = source.read( buffer, pos );
+			if ( ret == -1 )
+				return false;
+			pos += ret;
+			buffer.flip();
+			while ( buffer.remaining() >= 8 ) {
+				if ( buffer.getLong() != 0 )
+					return false;
+			}
+			while ( buffer.hasRemaining() ) {
+				if ( buffer.get() != 0 )
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Send the given range via the send pipeline, which reads (and compresses,
+	 * if requested) blocks of the range in the background while we're writing
+	 * finished ones to the socket.
+	 */
+	private boolean sendRangePipelined( SendPipeline pipeline, FileRange requestedRange, OutputStream outStr,
+			UploadStatusCallback callback )
+	{
+		try {
+			pipeline.start( requestedRange, outStr == compressedOut );
+		} catch ( IOException e ) {
+			this.close( "Error reading from file ", callback, true, e );
+			return false;
+		}
+		SendPipeline.Block block;
+		while ( ( block = pipeline.next() ) != null ) {
+			byte[] data;
+			try {
+				data = block.get();
+			} catch ( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				this.close( "Thread interrupted in upload loop" );
+				return false;
+			} catch ( IOException e ) {
+				this.close( "Error occured in Uploader.sendFile() while reading from File to send.", callback, true, e );
+				return false;
+			}
+			try {
+				if ( block.compressed ) {
+					compressedOut.writeFrame( data );
+				} else {
+					outStr.write( data, 0, block.length );
+				}
+			} catch ( IOException e ) {
+				this.close( "Sending payload failed", e );
+				return false;
+			}
+			if ( callback != null )
+				callback.uploadProgress( block.length );
+		}
+		return true;
+	}
+
+	/**
+	 * Send the given range uncompressed, using {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+	 * which on Linux ends up as sendfile(). This is done in slices so we can still report
+	 * progress and react to interruption.
+	 */
+	private boolean sendRangeZeroCopy( RandomAccessFile file, FileRange requestedRange, SocketChannel target,
+			UploadStatusCallback callback )
+	{
+		FileChannel source = file.getChannel();
+		long pos = requestedRange.startOffset;
+		try {
+			// Make sure the meta data we sent so far actually went out before the payload
+			outStream.flush();
+			while ( pos < requestedRange.endOffset ) {
+				if ( Thread.currentThread().isInterrupted() ) {
+					this.close( "Thread interrupted in upload loop" );
+					return false;
+				}
+				int slice = getThrottleSliceSize( (int)Math.min( requestedRange.endOffset - pos, ZERO_COPY_SLICE ) );
+				long ret = source.transferTo( pos, slice, target );
+				if ( ret <= 0 ) {
+					this.close( "Error occured in Uploader.sendFile() while reading from File to send.", callback, true );
+					return false;
+				}
+				throttle( (int)ret );
+				pos += ret;
+				if ( callback != null )
+					callback.uploadProgress( ret );
+			}
+		} catch ( IOException e ) {
+			this.close( "Sending payload failed", e );
+			return false;
 		}
 		return true;
 	}
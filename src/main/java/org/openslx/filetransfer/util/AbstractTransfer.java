@@ -5,6 +5,8 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.openslx.bwlp.thrift.iface.TransferInformation;
+import org.openslx.filetransfer.BandwidthLimiter;
+import org.openslx.filetransfer.Transfer;
 
 public abstract class AbstractTransfer
 {
@@ -47,9 +49,20 @@ public abstract class AbstractTransfer
 	
 	protected AtomicInteger connectFails = new AtomicInteger();
 
+	/**
+	 * Bandwidth limit for all connections of this transfer combined
+	 */
+	private final BandwidthLimiter bandwidthLimiter = new BandwidthLimiter( 0 );
+
+	/**
+	 * Decides how many connections this transfer should use
+	 */
+	private final ConnectionScaler connectionScaler;
+
 	public AbstractTransfer( String transferId )
 	{
 		this.transferId = transferId;
+		this.connectionScaler = new ConnectionScaler( "Transfer " + transferId );
 	}
 
 	/**
@@ -91,6 +104,52 @@ public abstract class AbstractTransfer
 		return transferId;
 	}
 
+	/**
+	 * Get the bandwidth limiter of this transfer. It's unlimited by default;
+	 * use {@link BandwidthLimiter#setRate(long)} to limit the combined
+	 * bandwidth of all connections of this transfer.
+	 */
+	public final BandwidthLimiter getBandwidthLimiter()
+	{
+		return bandwidthLimiter;
+	}
+
+	public final ConnectionScaler getConnectionScaler()
+	{
+		return connectionScaler;
+	}
+
+	/**
+	 * Check whether another connection should be added to this transfer,
+	 * according to the {@link ConnectionScaler} and the global and per-peer
+	 * connection limits. If true is returned, the caller must call
+	 * {@link #releaseConnectionSlot(Transfer, int, long, int)} once the
+	 * connection is done.
+	 * 
+	 * @param connection the new connection
+	 * @param active number of active connections of this transfer
+	 * @param rttMs current round trip time of the active connections, 0 if unknown
+	 * @param max upper bound for number of connections of this transfer
+	 */
+	protected final boolean acquireConnectionSlot( Transfer connection, int active, long rttMs, int max )
+	{
+		int limit = connectionScaler.update( active, bandwidthLimiter.getBytesTotal(), rttMs, max );
+		if ( active >= limit )
+			return false;
+		return ConnectionScaler.acquireSlot( connection.getRemoteAddress() );
+	}
+
+	/**
+	 * Release connection slot acquired by {@link #acquireConnectionSlot(Transfer, int, long, int)}.
+	 * 
+	 * @param active number of active connections of this transfer, after removing this one
+	 */
+	protected final void releaseConnectionSlot( Transfer connection, int active, long rttMs, int max )
+	{
+		ConnectionScaler.releaseSlot( connection.getRemoteAddress() );
+		connectionScaler.update( active, bandwidthLimiter.getBytesTotal(), rttMs, max );
+	}
+
 	public abstract TransferInformation getTransferInfo();
 
 	/**
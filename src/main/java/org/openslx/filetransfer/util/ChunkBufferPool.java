@@ -0,0 +1,250 @@
+package org.openslx.filetransfer.util;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Pool of equally sized buffers, used for holding chunks while they're being
+ * received, hashed and written to disk. The total number of buffers handed out
+ * is bounded, so instead of running into OOM situations when the disk or hash
+ * checker can't keep up, callers will block in {@link #acquire(long)} until
+ * another buffer is returned.
+ */
+public class ChunkBufferPool
+{
+
+	private static final Logger LOGGER = LogManager.getLogger( ChunkBufferPool.class );
+
+	private final int bufferSize;
+
+	private final int maxBuffers;
+
+	private final int maxIdle;
+
+	private final ArrayDeque<byte[]> idle = new ArrayDeque<>();
+
+	/**
+	 * Buffers currently handed out by this pool. Used to ignore double
+	 * releases and buffers that didn't originate from this pool.
+	 */
+	private final Set<byte[]> inUse = Collections.newSetFromMap( new IdentityHashMap<byte[], Boolean>() );
+
+	/**
+	 * Statistics
+	 */
+	private long hits, misses, waits, timeouts, waitTimeMs, detached;
+
+	/**
+	 * Create new buffer pool.
+	 *
+	 * @param bufferSize size of each buffer in bytes
+	 * @param maxBuffers maximum number of buffers that can be handed out at the same time
+	 * @param maxIdle maximum number of unused buffers to keep around for reuse
+	 */
+	public ChunkBufferPool( int bufferSize, int maxBuffers, int maxIdle )
+	{
+		if ( bufferSize <= 0 || maxBuffers <= 0 || maxIdle < 0 )
+			throw new IllegalArgumentException( "Invalid pool size " + maxBuffers + "x" + bufferSize );
+		this.bufferSize = bufferSize;
+		this.maxBuffers = maxBuffers;
+		this.maxIdle = Math.min( maxIdle, maxBuffers );
+	}
+
+	/**
+	 * Get a buffer from the pool, waiting for one to be released if the maximum
+	 * number of buffers is already in use.
+	 *
+	 * @param timeoutMs maximum time to wait for a buffer; 0 to return immediately
+	 * @return buffer, or null on timeout
+	 * @throws InterruptedException
+	 */
+	public synchronized byte[] acquire( long timeoutMs ) throws InterruptedException
+	{
+		byte[] buffer = poll();
+		if ( buffer != null || timeoutMs <= 0 ) {
+			if ( buffer == null ) {
+				timeouts++;
+			}
+			return buffer;
+		}
+		waits++;
+		final long start = System.currentTimeMillis();
+		final long deadline = start + timeoutMs;
+		try {
+			for ( ;; ) {
+				long remaining = deadline - System.currentTimeMillis();
+				if ( remaining <= 0 ) {
+					timeouts++;
+					return null;
+				}
+				this.wait( remaining );
+				buffer = poll();
+				if ( buffer != null )
+					return buffer;
+			}
+		} finally {
+			waitTimeMs += System.currentTimeMillis() - start;
+		}
+	}
+
+	/**
+	 * Get a buffer from the pool if one is available right away.
+	 *
+	 * @return buffer, or null if the maximum number of buffers is in use
+	 */
+	public byte[] tryAcquire()
+	{
+		try {
+			return acquire( 0 );
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	private byte[] poll()
+	{
+		byte[] buffer = idle.pollFirst();
+		if ( buffer != null ) {
+			hits++;
+		} else if ( inUse.size() < maxBuffers ) {
+			buffer = new byte[ bufferSize ];
+			misses++;
+		} else {
+			return null;
+		}
+		inUse.add( buffer );
+		return buffer;
+	}
+
+	/**
+	 * Return buffer to the pool. Buffers that didn't come from this pool, or
+	 * have already been released or detached, are ignored, so it's safe to
+	 * call this on any buffer.
+	 */
+	public synchronized void release( byte[] buffer )
+	{
+		if ( buffer == null || !inUse.remove( buffer ) )
+			return;
+		if ( idle.size() < maxIdle ) {
+			idle.addFirst( buffer );
+		}
+		this.notify();
+	}
+
+	/**
+	 * Remove given buffer from the pool's bookkeeping without returning it,
+	 * because someone else holds on to it indefinitely. The pool will allocate
+	 * a new buffer in its place.
+	 */
+	public synchronized void detach( byte[] buffer )
+	{
+		if ( buffer == null || !inUse.remove( buffer ) )
+			return;
+		detached++;
+		this.notify();
+	}
+
+	/**
+	 * Whether the given buffer was handed out by this pool and not yet
+	 * returned.
+	 */
+	public synchronized boolean isInUse( byte[] buffer )
+	{
+		return inUse.contains( buffer );
+	}
+
+	public int getBufferSize()
+	{
+		return bufferSize;
+	}
+
+	public int getMaxBuffers()
+	{
+		return maxBuffers;
+	}
+
+	public synchronized int getInUseCount()
+	{
+		return inUse.size();
+	}
+
+	public synchronized int getIdleCount()
+	{
+		return idle.size();
+	}
+
+	/**
+	 * Number of requests served by an idle buffer.
+	 */
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	/**
+	 * Number of requests that required allocating a new buffer.
+	 */
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	/**
+	 * Number of requests that had to wait for a buffer to be released.
+	 */
+	public synchronized long getWaits()
+	{
+		return waits;
+	}
+
+	/**
+	 * Number of requests that didn't get a buffer.
+	 */
+	public synchronized long getTimeouts()
+	{
+		return timeouts;
+	}
+
+	/**
+	 * Total time spent waiting for buffers, in milliseconds.
+	 */
+	public synchronized long getWaitTimeMs()
+	{
+		return waitTimeMs;
+	}
+
+	public synchronized String getStats()
+	{
+		return "Buffers in use: " + inUse.size() + "/" + maxBuffers + ", idle: " + idle.size()
+				+ ", hits: " + hits + ", misses: " + misses + ", waits: " + waits + " (" + waitTimeMs + "ms)"
+				+ ", timeouts: " + timeouts + ", detached: " + detached;
+	}
+
+	@Override
+	public String toString()
+	{
+		return getStats();
+	}
+
+	static int defaultMaxBuffers( int bufferSize )
+	{
+		long maxMem = Runtime.getRuntime().maxMemory();
+		if ( maxMem == Long.MAX_VALUE ) {
+			maxMem = 1024l * 1024 * 1024;
+		}
+		// Use at most a quarter of the heap for chunk buffers
+		int count = (int)Math.min( 1024, maxMem / 4 / bufferSize );
+		if ( count < 4 ) {
+			LOGGER.warn( "JVM heap very small, allowing only 4 chunk buffers" );
+			count = 4;
+		}
+		return count;
+	}
+
+}
@@ -0,0 +1,541 @@
+package org.openslx.filetransfer.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openslx.filetransfer.LocalChunkSource;
+import org.openslx.util.Util;
+
+/**
+ * Persistent index mapping chunk sha1 sums to files containing a chunk with
+ * that sum, to be used as the {@link LocalChunkSource} of incoming transfers
+ * for server side copying.
+ * The index consists of two files in the given directory. The chunk table is
+ * an open addressing hash table that's memory mapped, the file table is an
+ * append-only log of added and removed files. Entries are never removed from
+ * the chunk table; entries referencing removed files are ignored on lookup
+ * and dropped by {@link #compact()}.
+ * An in-memory Bloom filter is used to quickly skip sums that are not in the
+ * index at all, which is the common case for new uploads.
+ */
+public class ChunkHashIndex implements LocalChunkSource, Closeable
+{
+
+	private static final Logger LOGGER = LogManager.getLogger( ChunkHashIndex.class );
+
+	private static final int MAGIC = 0x424c4349; // BLCI
+
+	private static final int VERSION = 1;
+
+	/*
+	 * Header: magic, version, capacity, number of used slots
+	 */
+	private static final int HEADER_SIZE = 16;
+
+	private static final int OFF_USED = 12;
+
+	/*
+	 * Slot: sha1 (20 bytes), file id (int), offset (long), size (int)
+	 * File id 0 marks an empty slot.
+	 */
+	private static final int SLOT_SIZE = 36;
+
+	private static final int OFF_FILE_ID = 20, OFF_OFFSET = 24, OFF_SIZE = 32;
+
+	private static final int DEFAULT_CAPACITY = 1 << 16;
+
+	/**
+	 * Don't remember more than this many locations for the same chunk
+	 */
+	static final int MAX_SOURCES_PER_SUM = 4;
+
+	/**
+	 * Results of {@link #insert(ByteBuffer, int, Map, byte[], int, long, int)}
+	 */
+	private static final int INSERT_NONE = 0, INSERT_NEW = 1, INSERT_REUSED = 2;
+
+	/**
+	 * Bloom filter bits per table slot, and number of hash functions
+	 */
+	private static final int BLOOM_BITS_PER_SLOT = 8, BLOOM_HASHES = 4;
+
+	private static final byte LOG_ADD = 'A', LOG_REMOVE = 'D';
+
+	private final File tableFile;
+
+	private final File filesFile;
+
+	private final int initialCapacity;
+
+	private FileChannel tableChannel;
+
+	private MappedByteBuffer table;
+
+	private int capacity;
+
+	private int used;
+
+	private long[] bloom;
+
+	/**
+	 * Live files by id
+	 */
+	private final Map<Integer, String> files = new HashMap<>();
+
+	/**
+	 * Id of live files by name
+	 */
+	private final Map<String, Integer> fileIds = new HashMap<>();
+
+	private int nextFileId = 1;
+
+	private DataOutputStream filesLog;
+
+	/**
+	 * Open the index in given directory, creating it if it doesn't exist yet.
+	 */
+	public ChunkHashIndex( File directory ) throws IOException
+	{
+		this( directory, DEFAULT_CAPACITY );
+	}
+
+	ChunkHashIndex( File directory, int initialCapacity ) throws IOException
+	{
+		directory.mkdirs();
+		this.tableFile = new File( directory, "chunks.idx" );
+		this.filesFile = new File( directory, "files.log" );
+		this.initialCapacity = Integer.highestOneBit( Math.max( 16, initialCapacity - 1 ) ) << 1;
+		readFileLog();
+		openTable();
+		filesLog = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( filesFile, true ) ) );
+	}
+
+	/*
+	 * Lookup
+	 */
+
+	@Override
+	public synchronized List<ChunkSource> getCloneSources( List<byte[]> sums )
+	{
+		List<ChunkSource> list = new ArrayList<>();
+		if ( table == null )
+			return list;
+		for ( byte[] sha1 : sums ) {
+			if ( sha1 == null || sha1.length != FileChunk.SHA1_LENGTH || !bloomMightContain( sha1 ) )
+				continue;
+			ChunkSource source = null;
+			int slot = firstSlot( sha1, capacity );
+			for ( int probes = 0; probes < capacity; ++probes, slot = ( slot + 1 ) & ( capacity - 1 ) ) {
+				int pos = HEADER_SIZE + slot * SLOT_SIZE;
+				int fileId = table.getInt( pos + OFF_FILE_ID );
+				if ( fileId == 0 )
+					break;
+				if ( !slotMatches( pos, sha1 ) )
+					continue;
+				String fileName = files.get( fileId );
+				if ( fileName == null )
+					continue; // Removed file
+				if ( source == null ) {
+					source = new ChunkSource( sha1 );
+				}
+				source.addFile( fileName, table.getLong( pos + OFF_OFFSET ), table.getInt( pos + OFF_SIZE ) );
+			}
+			if ( source != null ) {
+				list.add( source );
+			}
+		}
+		return list;
+	}
+
+	/*
+	 * Modification
+	 */
+
+	/**
+	 * Add all chunks of given file to the index. If the file is already
+	 * known, its old entries are replaced.
+	 *
+	 * @param fileName absolute path of file
+	 * @param chunks chunks of the file; those without sha1 sum are skipped
+	 */
+	public synchronized void addFile( String fileName, List<FileChunk> chunks ) throws IOException
+	{
+		if ( table == null )
+			throw new IOException( "Index is closed" );
+		removeFile( fileName );
+		int fileId = nextFileId++;
+		filesLog.writeByte( LOG_ADD );
+		filesLog.writeInt( fileId );
+		filesLog.writeUTF( fileName );
+		filesLog.flush();
+		files.put( fileId, fileName );
+		fileIds.put( fileName, fileId );
+		ensureCapacity( chunks.size() );
+		int added = 0;
+		for ( FileChunk chunk : chunks ) {
+			byte[] sha1 = chunk.getSha1Sum();
+			if ( sha1 == null || Arrays.equals( sha1, FileChunk.NULL_BLOCK_SHA1 ) )
+				continue; // Null blocks aren't copied anyways
+			int ret = insert( table, capacity, files, sha1, fileId, chunk.range.startOffset, chunk.range.getLength() );
+			if ( ret != INSERT_NONE ) {
+				bloomAdd( sha1 );
+				added++;
+				if ( ret == INSERT_NEW ) {
+					used++;
+				}
+			}
+		}
+		table.putInt( OFF_USED, used );
+		table.force();
+		LOGGER.debug( "Added " + added + " chunks of " + fileName + " to index" );
+	}
+
+	/**
+	 * Remove given file from the index. Its chunk entries are kept until the
+	 * next call to {@link #compact()}, but will be ignored for lookups.
+	 *
+	 * @return true if the file was in the index
+	 */
+	public synchronized boolean removeFile( String fileName ) throws IOException
+	{
+		Integer fileId = fileIds.remove( fileName );
+		if ( fileId == null )
+			return false;
+		files.remove( fileId );
+		filesLog.writeByte( LOG_REMOVE );
+		filesLog.writeInt( fileId );
+		filesLog.flush();
+		return true;
+	}
+
+	/**
+	 * Rewrite the index without entries of removed files. This should be
+	 * called after deleting images, to keep the index small.
+	 */
+	public synchronized void compact() throws IOException
+	{
+		if ( table == null )
+			throw new IOException( "Index is closed" );
+		rebuild( 0 );
+		// Rewrite file log with live files only
+		Util.safeClose( filesLog );
+		File tmp = new File( filesFile.getPath() + ".new" );
+		try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ) ) ) ) {
+			for ( Map.Entry<Integer, String> file : files.entrySet() ) {
+				out.writeByte( LOG_ADD );
+				out.writeInt( file.getKey() );
+				out.writeUTF( file.getValue() );
+			}
+		}
+		if ( !tmp.renameTo( filesFile ) )
+			throw new IOException( "Cannot replace " + filesFile );
+		filesLog = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( filesFile, true ) ) );
+	}
+
+	@Override
+	public synchronized void close()
+	{
+		if ( table != null ) {
+			table.force();
+			table = null;
+		}
+		Util.safeClose( tableChannel, filesLog );
+	}
+
+	/*
+	 * Statistics
+	 */
+
+	/**
+	 * Number of chunk entries, including those of removed files.
+	 */
+	public synchronized int getEntryCount()
+	{
+		return used;
+	}
+
+	public synchronized int getFileCount()
+	{
+		return files.size();
+	}
+
+	/*
+	 * Internal
+	 */
+
+	private void readFileLog() throws IOException
+	{
+		if ( !filesFile.exists() )
+			return;
+		try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( filesFile ) ) ) ) {
+			for ( ;; ) {
+				byte op = in.readByte();
+				int fileId = in.readInt();
+				if ( op == LOG_ADD ) {
+					String fileName = in.readUTF();
+					files.put( fileId, fileName );
+					fileIds.put( fileName, fileId );
+				} else if ( op == LOG_REMOVE ) {
+					fileIds.remove( files.remove( fileId ) );
+				} else {
+					LOGGER.warn( "Corrupted file log " + filesFile + ", ignoring rest" );
+					break;
+				}
+				if ( fileId >= nextFileId ) {
+					nextFileId = fileId + 1;
+				}
+			}
+		} catch ( EOFException e ) {
+			// Done, or last record truncated
+		}
+	}
+
+	private void openTable() throws IOException
+	{
+		if ( tableFile.exists() ) {
+			try {
+				mapTable( tableFile );
+				if ( table.getInt( 0 ) == MAGIC && table.getInt( 4 ) == VERSION ) {
+					capacity = table.getInt( 8 );
+					used = table.getInt( OFF_USED );
+					if ( Integer.bitCount( capacity ) == 1
+							&& tableChannel.size() == HEADER_SIZE + (long)capacity * SLOT_SIZE && used < capacity ) {
+						rebuildBloom();
+						return;
+					}
+				}
+				LOGGER.warn( "Chunk index " + tableFile + " is corrupted, starting from scratch" );
+			} catch ( IOException e ) {
+				LOGGER.warn( "Cannot open chunk index " + tableFile + ", starting from scratch", e );
+			}
+			table = null;
+			Util.safeClose( tableChannel );
+		}
+		createTable( tableFile, initialCapacity );
+		mapTable( tableFile );
+		capacity = initialCapacity;
+		used = 0;
+		rebuildBloom();
+	}
+
+	private void mapTable( File file ) throws IOException
+	{
+		@SuppressWarnings( "resource" )
+		FileChannel channel = new RandomAccessFile( file, "rw" ).getChannel();
+		tableChannel = channel;
+		table = channel.map( FileChannel.MapMode.READ_WRITE, 0, channel.size() );
+	}
+
+	private static void createTable( File file, int capacity ) throws IOException
+	{
+		try ( RandomAccessFile raf = new RandomAccessFile( file, "rw" ) ) {
+			raf.setLength( 0 );
+			raf.setLength( HEADER_SIZE + (long)capacity * SLOT_SIZE );
+			raf.writeInt( MAGIC );
+			raf.writeInt( VERSION );
+			raf.writeInt( capacity );
+			raf.writeInt( 0 );
+		}
+	}
+
+	/**
+	 * Make sure the table can take the given number of additional entries
+	 * while staying below a load factor of 0.7. If not, the table is rebuilt
+	 * without entries of removed files, sized for the live entries plus the
+	 * additional ones.
+	 */
+	private void ensureCapacity( int additional ) throws IOException
+	{
+		if ( used + (long)additional <= capacity * 7L / 10 )
+			return;
+		rebuild( additional );
+	}
+
+	/**
+	 * Copy all live entries to a new table large enough to hold them plus the
+	 * given number of additional entries, then replace the current table with it.
+	 */
+	private void rebuild( int additional ) throws IOException
+	{
+		int live = 0;
+		for ( int slot = 0; slot < capacity; ++slot ) {
+			if ( files.containsKey( table.getInt( HEADER_SIZE + slot * SLOT_SIZE + OFF_FILE_ID ) ) ) {
+				live++;
+			}
+		}
+		int newCapacity = initialCapacity;
+		while ( live + (long)additional > newCapacity * 7L / 10 ) {
+			newCapacity <<= 1;
+		}
+		File tmp = new File( tableFile.getPath() + ".new" );
+		createTable( tmp, newCapacity );
+		int newUsed = 0;
+		try ( RandomAccessFile raf = new RandomAccessFile( tmp, "rw" ) ) {
+			MappedByteBuffer dest = raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, raf.length() );
+			byte[] sha1 = new byte[ FileChunk.SHA1_LENGTH ];
+			for ( int slot = 0; slot < capacity; ++slot ) {
+				int pos = HEADER_SIZE + slot * SLOT_SIZE;
+				int fileId = table.getInt( pos + OFF_FILE_ID );
+				if ( !files.containsKey( fileId ) )
+					continue;
+				table.position( pos );
+				table.get( sha1 );
+				if ( insert( dest, newCapacity, files, sha1, fileId, table.getLong( pos + OFF_OFFSET ),
+						table.getInt( pos + OFF_SIZE ) ) != INSERT_NONE ) {
+					newUsed++;
+				}
+			}
+			dest.putInt( OFF_USED, newUsed );
+			dest.force();
+		}
+		table = null;
+		Util.safeClose( tableChannel );
+		if ( !tmp.renameTo( tableFile ) )
+			throw new IOException( "Cannot replace " + tableFile );
+		mapTable( tableFile );
+		LOGGER.info( "Rebuilt chunk index: " + used + " -> " + newUsed + " entries, capacity " + capacity + " -> " + newCapacity );
+		capacity = newCapacity;
+		used = newUsed;
+		rebuildBloom();
+	}
+
+	/**
+	 * Insert entry into given table, unless there already is an identical one,
+	 * or too many of live files for the same sum. The first slot along the way
+	 * that belongs to a removed file is reused, if any.
+	 *
+	 * @param liveFiles files whose entries are still valid, by id
+	 * @return {@link #INSERT_NONE}, {@link #INSERT_NEW} if a free slot was used,
+	 *         or {@link #INSERT_REUSED} if a slot of a removed file was overwritten
+	 */
+	private static int insert( ByteBuffer dest, int capacity, Map<Integer, String> liveFiles, byte[] sha1, int fileId,
+			long offset, int size )
+	{
+		int sameSum = 0;
+		int deadPos = -1;
+		int slot = firstSlot( sha1, capacity );
+		for ( int probes = 0; probes < capacity; ++probes, slot = ( slot + 1 ) & ( capacity - 1 ) ) {
+			int pos = HEADER_SIZE + slot * SLOT_SIZE;
+			int existingId = dest.getInt( pos + OFF_FILE_ID );
+			if ( existingId == 0 ) {
+				if ( sameSum >= MAX_SOURCES_PER_SUM )
+					return INSERT_NONE;
+				// Never empty a slot of a removed file, it might be part of another sum's probe sequence
+				writeSlot( dest, deadPos == -1 ? pos : deadPos, sha1, fileId, offset, size );
+				return deadPos == -1 ? INSERT_NEW : INSERT_REUSED;
+			}
+			if ( !liveFiles.containsKey( existingId ) ) {
+				if ( deadPos == -1 ) {
+					deadPos = pos;
+				}
+				continue;
+			}
+			if ( slotMatches( dest, pos, sha1 ) ) {
+				if ( existingId == fileId && dest.getLong( pos + OFF_OFFSET ) == offset )
+					return INSERT_NONE;
+				sameSum++;
+			}
+		}
+		// No free slot left, cannot happen as we keep the load factor below 1
+		if ( deadPos != -1 && sameSum < MAX_SOURCES_PER_SUM ) {
+			writeSlot( dest, deadPos, sha1, fileId, offset, size );
+			return INSERT_REUSED;
+		}
+		return INSERT_NONE;
+	}
+
+	private static void writeSlot( ByteBuffer dest, int pos, byte[] sha1, int fileId, long offset, int size )
+	{
+		dest.position( pos );
+		dest.put( sha1 );
+		dest.putInt( pos + OFF_FILE_ID, fileId );
+		dest.putLong( pos + OFF_OFFSET, offset );
+		dest.putInt( pos + OFF_SIZE, size );
+	}
+
+	private boolean slotMatches( int pos, byte[] sha1 )
+	{
+		return slotMatches( table, pos, sha1 );
+	}
+
+	private static boolean slotMatches( ByteBuffer buffer, int pos, byte[] sha1 )
+	{
+		// Compare last bytes first, the first ones were used for picking the slot
+		for ( int i = FileChunk.SHA1_LENGTH - 1; i >= 0; --i ) {
+			if ( buffer.get( pos + i ) != sha1[i] )
+				return false;
+		}
+		return true;
+	}
+
+	private static int firstSlot( byte[] sha1, int capacity )
+	{
+		return getInt( sha1, 0 ) & ( capacity - 1 );
+	}
+
+	private static int getInt( byte[] a, int off )
+	{
+		return ( a[off] & 0xff ) << 24 | ( a[off + 1] & 0xff ) << 16 | ( a[off + 2] & 0xff ) << 8 | ( a[off + 3] & 0xff );
+	}
+
+	/*
+	 * Bloom filter. Since sha1 sums are uniformly distributed, we can just
+	 * derive the bit positions from the sum directly.
+	 */
+
+	private void rebuildBloom()
+	{
+		bloom = new long[ Math.max( 1, (int) ( (long)capacity * BLOOM_BITS_PER_SLOT / 64 ) ) ];
+		byte[] sha1 = new byte[ FileChunk.SHA1_LENGTH ];
+		for ( int slot = 0; slot < capacity; ++slot ) {
+			int pos = HEADER_SIZE + slot * SLOT_SIZE;
+			if ( !files.containsKey( table.getInt( pos + OFF_FILE_ID ) ) )
+				continue;
+			table.position( pos );
+			table.get( sha1 );
+			bloomAdd( sha1 );
+		}
+	}
+
+	private void bloomAdd( byte[] sha1 )
+	{
+		long bits = (long)bloom.length * 64;
+		int h1 = getInt( sha1, 4 ), h2 = getInt( sha1, 8 );
+		for ( int i = 0; i < BLOOM_HASHES; ++i ) {
+			long bit = ( ( h1 + i * (long)h2 ) & Long.MAX_VALUE ) % bits;
+			bloom[(int) ( bit >>> 6 )] |= 1L << bit;
+		}
+	}
+
+	private boolean bloomMightContain( byte[] sha1 )
+	{
+		long bits = (long)bloom.length * 64;
+		int h1 = getInt( sha1, 4 ), h2 = getInt( sha1, 8 );
+		for ( int i = 0; i < BLOOM_HASHES; ++i ) {
+			long bit = ( ( h1 + i * (long)h2 ) & Long.MAX_VALUE ) % bits;
+			if ( ( bloom[(int) ( bit >>> 6 )] & ( 1L << bit ) ) == 0 )
+				return false;
+		}
+		return true;
+	}
+
+}
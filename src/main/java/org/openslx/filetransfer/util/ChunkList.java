@@ -6,9 +6,10 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.zip.CRC32;
 
 import org.apache.logging.log4j.LogManager;
@@ -21,22 +22,62 @@ public class ChunkList
 
 	private static final Logger LOGGER = LogManager.getLogger( ChunkList.class );
 
+	/*
+	 * Which queue a chunk is in, see {@link #queue}
+	 */
+	private static final byte Q_MISSING = 0, Q_PENDING = 1, Q_COMPLETE = 2;
+
+	/*
+	 * What we accounted for a complete chunk, see {@link #completeFlags}
+	 */
+	private static final byte F_HAS_SHA1 = 1, F_HASHING = 2, F_UNHASHED = F_HAS_SHA1 | F_HASHING;
+
 	/**
 	 * Here we keep a list of all chunks in the proper order, in case we quickly need to access one
 	 */
 	private final List<FileChunk> allChunks;
 
+	/**
+	 * Queue each chunk is currently in, indexed by chunk index
+	 */
+	private final byte[] queue;
+
 	/**
 	 * Chunks that are missing from the file
 	 */
-	private final LinkedList<FileChunk> missingChunks = new LinkedList<>();
+	private final IndexList missingChunks;
 
 	/**
 	 * Chunks that are currently being uploaded or hash-checked
 	 */
-	private final List<FileChunk> pendingChunks = new LinkedList<>();
+	private final IndexList pendingChunks;
+
+	/**
+	 * Chunks that are complete, in the order they were completed
+	 */
+	private final IndexList completeChunks;
+
+	/**
+	 * Subset of the complete chunks that have a sha1 sum, but still need to be hash checked
+	 */
+	private final IndexList unhashedChunks;
+
+	/**
+	 * For complete chunks, whether we counted them as having a sha1 sum and/or being
+	 * in hashing state. We remember this so the counters stay consistent even if the
+	 * status of a chunk gets changed from outside.
+	 */
+	private final byte[] completeFlags;
 
-	private final List<FileChunk> completeChunks = new ArrayList<>( 100 );
+	/**
+	 * Number of complete chunks that have a sha1 sum / are in hashing state
+	 */
+	private int completeWithSha1, completeHashing;
+
+	/**
+	 * Map from sha1 sum to all chunks having this sum, for finding local copy candidates
+	 */
+	private final Map<ByteBuffer, List<FileChunk>> chunksBySha1 = new HashMap<>();
 
 	// 0 = complete, 1 = missing, 2 = uploading, 3 = queued for copying, 4 = copying, 5 = hashing
 	private final ByteBuffer statusArray;
@@ -50,9 +91,26 @@ public class ChunkList
 
 	public ChunkList( long fileSize, List<byte[]> sha1Sums )
 	{
-		FileChunk.createChunkList( missingChunks, fileSize, sha1Sums );
-		statusArray = ByteBuffer.allocate( missingChunks.size() );
-		allChunks = Collections.unmodifiableList( new ArrayList<>( missingChunks ) );
+		List<FileChunk> list = new ArrayList<>();
+		FileChunk.createChunkList( list, fileSize, sha1Sums );
+		allChunks = Collections.unmodifiableList( list );
+		final int count = list.size();
+		statusArray = ByteBuffer.allocate( count );
+		queue = new byte[ count ];
+		completeFlags = new byte[ count ];
+		int[] next = new int[ count ], prev = new int[ count ];
+		missingChunks = new IndexList( next, prev );
+		pendingChunks = new IndexList( next, prev );
+		completeChunks = new IndexList( next, prev );
+		unhashedChunks = new IndexList( new int[ count ], new int[ count ] );
+		for ( int i = 0; i < count; ++i ) {
+			queue[i] = Q_MISSING;
+			missingChunks.addLast( i );
+			FileChunk chunk = list.get( i );
+			if ( chunk.sha1sum != null ) {
+				addToSha1Map( chunk );
+			}
+		}
 	}
 
 	/**
@@ -72,14 +130,23 @@ public class ChunkList
 				break;
 			if ( sum != null ) {
 				FileChunk chunk = allChunks.get( index );
+				// Setting the sum might change the status of a complete chunk to hashing
+				boolean wasComplete = queue[index] == Q_COMPLETE;
+				if ( wasComplete ) {
+					uncountComplete( index );
+				}
 				if ( chunk.setSha1Sum( sum ) ) {
 					if ( firstNew == -1 ) {
 						firstNew = index;
 					}
+					addToSha1Map( chunk );
 					if ( chunk.status == ChunkStatus.MISSING && Arrays.equals( FileChunk.NULL_BLOCK_SHA1, sum ) ) {
 						markMissingAsComplete( index );
 					}
 				}
+				if ( wasComplete ) {
+					countComplete( index );
+				}
 				if ( !hasChecksum ) {
 					hasChecksum = true;
 				}
@@ -127,16 +194,30 @@ public class ChunkList
 	 */
 	public synchronized FileChunk getMissing() throws InterruptedException
 	{
-		if ( missingChunks.isEmpty() && pendingChunks.isEmpty() )
+		return getMissing( true );
+	}
+
+	/**
+	 * Get a missing chunk, marking it pending.
+	 * 
+	 * @param mayWait if there are no missing chunks, but some are still pending, wait a few seconds
+	 *           for one of them to fail and become available again
+	 * @return chunk marked as missing
+	 * @throws InterruptedException
+	 */
+	synchronized FileChunk getMissing( boolean mayWait ) throws InterruptedException
+	{
+		if ( missingChunks.isEmpty() && ( pendingChunks.isEmpty() || !mayWait ) )
 			return null;
 		if ( missingChunks.isEmpty() ) {
 			this.wait( 6000 );
 			if ( missingChunks.isEmpty() )
 				return null;
 		}
-		FileChunk c = missingChunks.removeFirst();
+		int index = missingChunks.removeFirst();
+		FileChunk c = allChunks.get( index );
 		c.setStatus( ChunkStatus.UPLOADING );
-		pendingChunks.add( c );
+		addPending( index );
 		return c;
 	}
 
@@ -147,7 +228,7 @@ public class ChunkList
 	 */
 	public synchronized boolean hasLocallyMissingChunk()
 	{
-		return !missingChunks.isEmpty() && missingChunks.peekFirst().status == ChunkStatus.MISSING;
+		return !missingChunks.isEmpty() && allChunks.get( missingChunks.getFirst() ).status == ChunkStatus.MISSING;
 	}
 
 	/**
@@ -158,15 +239,14 @@ public class ChunkList
 	{
 		if ( missingChunks.isEmpty() )
 			return null;
-		FileChunk last = missingChunks.removeLast();
-		if ( last.status != ChunkStatus.QUEUED_FOR_COPY ) {
-			// Put back
-			missingChunks.add( last );
+		int index = missingChunks.getLast();
+		FileChunk last = allChunks.get( index );
+		if ( last.status != ChunkStatus.QUEUED_FOR_COPY )
 			return null;
-		}
 		// Is a candidate
+		missingChunks.remove( index );
 		last.setStatus( ChunkStatus.COPYING );
-		pendingChunks.add( last );
+		addPending( index );
 		return last;
 	}
 
@@ -182,27 +262,23 @@ public class ChunkList
 			try {
 				if ( src.sourceCandidates.isEmpty() )
 					continue;
-				List<FileChunk> append = null;
-				for ( Iterator<FileChunk> it = missingChunks.iterator(); it.hasNext(); ) {
-					FileChunk chunk = it.next();
-					if ( !Arrays.equals( chunk.sha1sum, src.sha1sum ) )
+				List<FileChunk> matches = chunksBySha1.get( ByteBuffer.wrap( src.sha1sum ) );
+				if ( matches == null )
+					continue;
+				for ( FileChunk chunk : matches ) {
+					int index = chunk.getChunkIndex();
+					if ( queue[index] != Q_MISSING )
 						continue;
 					if ( chunk.status == ChunkStatus.QUEUED_FOR_COPY )
 						continue;
 					// Bingo
-					if ( append == null ) {
-						append = new ArrayList<>( 20 );
-					}
-					it.remove();
 					chunk.setStatus( ChunkStatus.QUEUED_FOR_COPY );
 					chunk.setSource( src );
-					append.add( chunk );
-				}
-				if ( append != null ) {
 					// Move all the chunks queued for copying to the end of the list, so when
 					// we getMissing() a chunk for upload from client, these ones would only
 					// come last, in case reading from storage and writing back is really slow
-					missingChunks.addAll( append );
+					missingChunks.remove( index );
+					missingChunks.addLast( index );
 				}
 			} catch ( Exception e ) {
 				LOGGER.warn( "chunk clone list is messed up", e );
@@ -235,7 +311,11 @@ public class ChunkList
 	 */
 	public synchronized List<FileChunk> getCompleted()
 	{
-		return new ArrayList<>( completeChunks );
+		List<FileChunk> list = new ArrayList<>( completeChunks.size() );
+		for ( int index = completeChunks.head; index != -1; index = completeChunks.next[index] ) {
+			list.add( allChunks.get( index ) );
+		}
+		return list;
 	}
 
 	/**
@@ -250,11 +330,17 @@ public class ChunkList
 		}
 		int index = 0;
 		for ( Boolean missing : statusList ) {
+			if ( index >= allChunks.size() )
+				break;
 			FileChunk chunk = allChunks.get( index );
 			if ( fileLength != -1 && fileLength < chunk.range.endOffset )
 				break; // Stop, file is shorter than end of this chunk
-			if ( missingChunks.remove( chunk ) || pendingChunks.remove( chunk ) ) {
-				completeChunks.add( chunk );
+			if ( queue[index] == Q_COMPLETE ) {
+				uncountComplete( index );
+			} else {
+				removeFromQueue( index );
+				queue[index] = Q_COMPLETE;
+				completeChunks.addLast( index );
 			}
 			if ( missing ) {
 				// Trigger hashing
@@ -263,6 +349,7 @@ public class ChunkList
 				// Assume complete
 				chunk.setStatus( ChunkStatus.COMPLETE );
 			}
+			countComplete( index );
 			index++;
 		}
 	}
@@ -274,13 +361,17 @@ public class ChunkList
 	 */
 	public synchronized FileChunk getUnhashedComplete()
 	{
-		for ( Iterator<FileChunk> it = completeChunks.iterator(); it.hasNext(); ) {
-			FileChunk chunk = it.next();
+		while ( !unhashedChunks.isEmpty() ) {
+			int index = unhashedChunks.getFirst();
+			FileChunk chunk = allChunks.get( index );
+			uncountComplete( index );
 			if ( chunk.sha1sum != null && chunk.status == ChunkStatus.HASHING ) {
-				it.remove();
-				pendingChunks.add( chunk );
+				completeChunks.remove( index );
+				addPending( index );
 				return chunk;
 			}
+			// State was changed behind our back, count again
+			countComplete( index );
 		}
 		return null;
 	}
@@ -292,13 +383,15 @@ public class ChunkList
 	 */
 	public synchronized void markCompleted( FileChunk c, boolean hashCheckSuccessful )
 	{
-		if ( !pendingChunks.remove( c ) ) {
+		int index = getIndex( c );
+		if ( index == -1 || queue[index] != Q_PENDING ) {
 			LOGGER.warn( "Inconsistent state: markSuccessful called for Chunk " + c.toString()
 					+ ", but chunk is not marked as currently transferring!" );
 			return;
 		}
+		pendingChunks.remove( index );
 		c.setStatus( ( hashCheckSuccessful || c.getSha1Sum() == null ) ? ChunkStatus.COMPLETE : ChunkStatus.HASHING );
-		completeChunks.add( c );
+		addComplete( index );
 		this.notifyAll();
 	}
 
@@ -312,14 +405,17 @@ public class ChunkList
 	 */
 	public synchronized int markFailed( FileChunk c )
 	{
-		if ( !pendingChunks.remove( c ) ) {
+		int index = getIndex( c );
+		if ( index == -1 || queue[index] != Q_PENDING ) {
 			LOGGER.warn( "Inconsistent state: markFailed called for Chunk " + c.toString()
 					+ ", but chunk is not marked as currently transferring!" );
 			return -1;
 		}
+		pendingChunks.remove( index );
 		// Add as first element so it will be re-transmitted immediately
 		c.setStatus( ChunkStatus.MISSING );
-		missingChunks.addFirst( c );
+		queue[index] = Q_MISSING;
+		missingChunks.addFirst( index );
 		this.notifyAll();
 		return c.incFailed();
 	}
@@ -330,15 +426,16 @@ public class ChunkList
 	private synchronized boolean markMissingAsComplete( int index )
 	{
 		FileChunk chunk = allChunks.get( index );
-		if ( completeChunks.contains( chunk ) )
+		if ( queue[index] == Q_COMPLETE )
 			return true;
-		if ( !missingChunks.remove( chunk ) ) {
+		if ( queue[index] != Q_MISSING ) {
 			LOGGER.warn( "Inconsistent state: markMissingAsComplete called for chunk " + chunk.toString() + " (indexed as " + index
 					+ ") which is not missing" );
 			return false;
 		}
+		missingChunks.remove( index );
 		chunk.setStatus( ChunkStatus.COMPLETE );
-		completeChunks.add( chunk );
+		addComplete( index );
 		this.notifyAll();
 		return true;
 	}
@@ -354,17 +451,9 @@ public class ChunkList
 	{
 		if ( !missingChunks.isEmpty() || !pendingChunks.isEmpty() )
 			return false;
-		boolean sawWithHash = false;
-		for ( FileChunk chunk : completeChunks ) {
-			if ( chunk.status == ChunkStatus.HASHING )
-				return false;
-			if ( chunk.sha1sum != null ) {
-				sawWithHash = true;
-			} else if ( chunk.sha1sum == null && sawWithHash ) {
-				return false;
-			}
-		}
-		return true;
+		if ( completeHashing != 0 )
+			return false;
+		return completeWithSha1 == 0 || completeWithSha1 == completeChunks.size();
 	}
 
 	@Override
@@ -403,12 +492,17 @@ public class ChunkList
 
 			}
 			sb.append( '|' ); ////////////
-			if ( missingChunks.contains( chunk ) )
+			switch ( queue[chunk.getChunkIndex()] ) {
+			case Q_MISSING:
 				sb.append( 'M' );
-			if ( pendingChunks.contains( chunk ) )
+				break;
+			case Q_PENDING:
 				sb.append( 'P' );
-			if ( completeChunks.contains( chunk ) )
+				break;
+			case Q_COMPLETE:
 				sb.append( 'C' );
+				break;
+			}
 			sb.append( ']' );
 		}
 		sb.append( '}' );
@@ -456,15 +550,205 @@ public class ChunkList
 
 	public synchronized String getQueueName( FileChunk chunk )
 	{
-		if ( missingChunks.contains( chunk ) )
+		int index = getIndex( chunk );
+		if ( index == -1 )
+			return "NOQUEUE";
+		switch ( queue[index] ) {
+		case Q_MISSING:
 			return "missing";
-		if ( pendingChunks.contains( chunk ) )
+		case Q_PENDING:
 			return "pending";
-		if ( completeChunks.contains( chunk ) )
+		case Q_COMPLETE:
 			return "completed";
+		}
 		return "NOQUEUE";
 	}
 
+	/*
+	 * Internal helpers for moving chunks between queues and keeping counters up to date
+	 */
+
+	/**
+	 * Get index of given chunk, or -1 if the chunk doesn't belong to this list.
+	 */
+	private int getIndex( FileChunk chunk )
+	{
+		int index = chunk.getChunkIndex();
+		if ( index < 0 || index >= allChunks.size() || allChunks.get( index ) != chunk )
+			return -1;
+		return index;
+	}
+
+	private void addPending( int index )
+	{
+		queue[index] = Q_PENDING;
+		pendingChunks.addLast( index );
+	}
+
+	private void addComplete( int index )
+	{
+		queue[index] = Q_COMPLETE;
+		completeChunks.addLast( index );
+		countComplete( index );
+	}
+
+	private void removeFromQueue( int index )
+	{
+		switch ( queue[index] ) {
+		case Q_MISSING:
+			missingChunks.remove( index );
+			break;
+		case Q_PENDING:
+			pendingChunks.remove( index );
+			break;
+		case Q_COMPLETE:
+			uncountComplete( index );
+			completeChunks.remove( index );
+			break;
+		}
+	}
+
+	/**
+	 * Account for the current state of given complete chunk.
+	 */
+	private void countComplete( int index )
+	{
+		FileChunk chunk = allChunks.get( index );
+		byte flags = 0;
+		if ( chunk.sha1sum != null ) {
+			flags |= F_HAS_SHA1;
+			completeWithSha1++;
+		}
+		if ( chunk.status == ChunkStatus.HASHING ) {
+			flags |= F_HASHING;
+			completeHashing++;
+		}
+		if ( flags == F_UNHASHED ) {
+			unhashedChunks.addLast( index );
+		}
+		completeFlags[index] = flags;
+	}
+
+	/**
+	 * Undo {@link #countComplete(int)} for given chunk.
+	 */
+	private void uncountComplete( int index )
+	{
+		byte flags = completeFlags[index];
+		if ( ( flags & F_HAS_SHA1 ) != 0 ) {
+			completeWithSha1--;
+		}
+		if ( ( flags & F_HASHING ) != 0 ) {
+			completeHashing--;
+		}
+		if ( flags == F_UNHASHED ) {
+			unhashedChunks.remove( index );
+		}
+		completeFlags[index] = 0;
+	}
+
+	private void addToSha1Map( FileChunk chunk )
+	{
+		ByteBuffer key = ByteBuffer.wrap( chunk.sha1sum );
+		List<FileChunk> list = chunksBySha1.get( key );
+		if ( list == null ) {
+			list = new ArrayList<>( 1 );
+			chunksBySha1.put( key, list );
+		}
+		list.add( chunk );
+	}
+
+	/**
+	 * Doubly linked list of chunk indexes. The links are stored in arrays indexed by
+	 * chunk index, so adding and removing chunks doesn't allocate and removal of
+	 * arbitrary chunks is O(1). Lists sharing the same link arrays must not contain
+	 * the same chunk at the same time.
+	 */
+	private static final class IndexList
+	{
+		private final int[] next, prev;
+
+		private int head = -1, tail = -1, size = 0;
+
+		public IndexList( int[] next, int[] prev )
+		{
+			this.next = next;
+			this.prev = prev;
+		}
+
+		public boolean isEmpty()
+		{
+			return size == 0;
+		}
+
+		public int size()
+		{
+			return size;
+		}
+
+		public int getFirst()
+		{
+			return head;
+		}
+
+		public int getLast()
+		{
+			return tail;
+		}
+
+		public void addFirst( int index )
+		{
+			prev[index] = -1;
+			next[index] = head;
+			if ( head == -1 ) {
+				tail = index;
+			} else {
+				prev[head] = index;
+			}
+			head = index;
+			size++;
+		}
+
+		public void addLast( int index )
+		{
+			next[index] = -1;
+			prev[index] = tail;
+			if ( tail == -1 ) {
+				head = index;
+			} else {
+				next[tail] = index;
+			}
+			tail = index;
+			size++;
+		}
+
+		public int removeFirst()
+		{
+			int index = head;
+			remove( index );
+			return index;
+		}
+
+		/**
+		 * Remove given index from list. Caller must make sure it's actually in this list.
+		 */
+		public void remove( int index )
+		{
+			int p = prev[index], n = next[index];
+			if ( p == -1 ) {
+				head = n;
+			} else {
+				next[p] = n;
+			}
+			if ( n == -1 ) {
+				tail = p;
+			} else {
+				prev[n] = p;
+			}
+			size--;
+		}
+	}
+
 	public static boolean hashListsEqualFcBb( List<FileChunk> one, List<ByteBuffer> two )
 	{
 		return hashListsEqualFcArray( one, ThriftUtil.unwrapByteBufferList( two ) );
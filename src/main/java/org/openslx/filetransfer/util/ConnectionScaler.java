@@ -0,0 +1,314 @@
+package org.openslx.filetransfer.util;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Decides how many concurrent connections a transfer should accept, by hill
+ * climbing on the transfer's aggregate throughput: Every sample period, if
+ * all allowed connections are in use, allow one more. If throughput didn't
+ * grow noticeably with the additional connection, go back to the previous
+ * number and wait a few periods before probing again. If the round trip time
+ * of the connections grows a lot while throughput doesn't, the link is
+ * probably congested, so we allow one connection less.
+ * Additionally, there is a global limit of connections across all transfers,
+ * and a limit per remote peer, see {@link #acquireSlot(InetAddress)}.
+ */
+public class ConnectionScaler
+{
+
+	private static final Logger LOGGER = LogManager.getLogger( ConnectionScaler.class );
+
+	/**
+	 * Number of connections a new transfer starts with
+	 */
+	static final int INITIAL_CONNECTIONS = 2;
+
+	/**
+	 * Minimum length of a sample period
+	 */
+	static final long MIN_SAMPLE_MS = 3000;
+
+	/**
+	 * Sample period should be at least this many round trips
+	 */
+	private static final int SAMPLE_RTTS = 16;
+
+	/**
+	 * Throughput must grow by at least this factor to keep an additional connection
+	 */
+	private static final double MIN_GAIN = 1.1;
+
+	/**
+	 * Round trip time grew by this factor compared to the lowest one seen -> congestion
+	 */
+	private static final double RTT_CONGESTION_FACTOR = 3;
+
+	/**
+	 * Number of sample periods to wait after backing off, before probing again
+	 */
+	private static final int HOLD_SAMPLES = 5;
+
+	/*
+	 * Global and per-peer limits
+	 */
+
+	private static int maxGlobal = 64;
+
+	private static int maxPerPeer = 16;
+
+	private static int globalCount = 0;
+
+	private static final Map<InetAddress, Integer> peerCounts = new HashMap<>();
+
+	private static long slotsRejected = 0;
+
+	/*
+	 * State of this instance
+	 */
+
+	private final String name;
+
+	private int limit = INITIAL_CONNECTIONS;
+
+	private long sampleStart = 0, sampleBytes;
+
+	/**
+	 * Throughput of last sample period, and the one before we probed with an
+	 * additional connection
+	 */
+	private double lastThroughput = -1, baseThroughput;
+
+	/**
+	 * We allowed an additional connection in the last sample period
+	 */
+	private boolean probing = false;
+
+	private int holdSamples = 0;
+
+	private long minRttMs = Long.MAX_VALUE, lastRttMs;
+
+	private long increases, decreases;
+
+	ConnectionScaler( String name )
+	{
+		this.name = name;
+	}
+
+	/**
+	 * Update throughput statistics and get the number of connections the
+	 * transfer should allow at the moment.
+	 *
+	 * @param active number of currently active connections
+	 * @param bytesTotal total number of bytes transferred so far
+	 * @param rttMs current round trip time estimate of the connections, 0 if unknown
+	 * @param max upper bound for the number of connections of this transfer
+	 * @return number of connections to allow
+	 */
+	int update( int active, long bytesTotal, long rttMs, int max )
+	{
+		return update( System.nanoTime(), active, bytesTotal, rttMs, max );
+	}
+
+	synchronized int update( long now, int active, long bytesTotal, long rttMs, int max )
+	{
+		if ( max < 1 ) {
+			max = 1;
+		}
+		if ( limit > max ) {
+			limit = max;
+		}
+		if ( sampleStart == 0 || active == 0 ) {
+			// Start new sample period when the first connection arrives
+			sampleStart = now;
+			sampleBytes = bytesTotal;
+			return limit;
+		}
+		if ( rttMs > 0 ) {
+			lastRttMs = rttMs;
+			minRttMs = Math.min( minRttMs, rttMs );
+		}
+		long elapsed = now - sampleStart;
+		if ( elapsed < Math.max( MIN_SAMPLE_MS, rttMs * SAMPLE_RTTS ) * 1000000 )
+			return limit;
+		double throughput = ( bytesTotal - sampleBytes ) * 1e9 / elapsed;
+		double previous = lastThroughput;
+		sampleStart = now;
+		sampleBytes = bytesTotal;
+		lastThroughput = throughput;
+		if ( probing ) {
+			probing = false;
+			if ( active < limit ) {
+				// Peer didn't make use of the additional connection
+				limit--;
+				decreases++;
+				holdSamples = HOLD_SAMPLES;
+				LOGGER.info( name + ": Backing off to " + limit + " connections, peer only used " + active );
+				return limit;
+			}
+			if ( throughput < baseThroughput * MIN_GAIN ) {
+				limit--;
+				decreases++;
+				holdSamples = HOLD_SAMPLES;
+				LOGGER.info( name + ": Backing off to " + limit + " connections, throughput "
+						+ kib( baseThroughput ) + " -> " + kib( throughput ) + "KiB/s" );
+				return limit;
+			}
+			LOGGER.info( name + ": Keeping " + limit + " connections, throughput "
+					+ kib( baseThroughput ) + " -> " + kib( throughput ) + "KiB/s" );
+		} else if ( limit > 1 && rttMs > 0 && minRttMs > 0 && rttMs > minRttMs * RTT_CONGESTION_FACTOR
+				&& previous >= 0 && throughput <= previous ) {
+			limit--;
+			decreases++;
+			holdSamples = HOLD_SAMPLES;
+			LOGGER.info( name + ": Round trip time up from " + minRttMs + " to " + rttMs + "ms, throughput "
+					+ kib( throughput ) + "KiB/s, backing off to " + limit + " connections" );
+			return limit;
+		}
+		if ( holdSamples > 0 ) {
+			holdSamples--;
+			return limit;
+		}
+		if ( active >= limit && limit < max ) {
+			// All connections busy, see if another one helps
+			baseThroughput = throughput;
+			limit++;
+			increases++;
+			probing = true;
+			LOGGER.info( name + ": Probing with " + limit + " connections, throughput "
+					+ kib( throughput ) + "KiB/s (" + kib( throughput / active ) + "KiB/s per connection)" );
+		}
+		return limit;
+	}
+
+	private static long kib( double bytesPerSecond )
+	{
+		return (long) ( bytesPerSecond / 1024 );
+	}
+
+	/**
+	 * @return number of connections currently allowed
+	 */
+	public synchronized int getLimit()
+	{
+		return limit;
+	}
+
+	/**
+	 * @return throughput in bytes per second during the last sample period, or -1 if unknown
+	 */
+	public synchronized long getThroughput()
+	{
+		return (long)lastThroughput;
+	}
+
+	public synchronized long getIncreaseCount()
+	{
+		return increases;
+	}
+
+	public synchronized long getDecreaseCount()
+	{
+		return decreases;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "Connections allowed: " + limit + ", throughput: " + kib( lastThroughput ) + "KiB/s, rtt: "
+				+ lastRttMs + "ms (min " + ( minRttMs == Long.MAX_VALUE ? 0 : minRttMs ) + "ms), probing: " + probing
+				+ ", increases: " + increases + ", decreases: " + decreases;
+	}
+
+	/*
+	 * Global/per-peer limits
+	 */
+
+	/**
+	 * Reserve a connection slot for given peer, if neither the global limit
+	 * nor the limit for that peer is reached yet. Release it again via
+	 * {@link #releaseSlot(InetAddress)} when the connection is done.
+	 *
+	 * @param address address of the remote peer, might be null
+	 * @return true if the connection may proceed
+	 */
+	static synchronized boolean acquireSlot( InetAddress address )
+	{
+		if ( globalCount >= maxGlobal ) {
+			slotsRejected++;
+			return false;
+		}
+		if ( address != null ) {
+			Integer count = peerCounts.get( address );
+			int c = count == null ? 0 : count;
+			if ( c >= maxPerPeer ) {
+				slotsRejected++;
+				return false;
+			}
+			peerCounts.put( address, c + 1 );
+		}
+		globalCount++;
+		return true;
+	}
+
+	static synchronized void releaseSlot( InetAddress address )
+	{
+		if ( globalCount > 0 ) {
+			globalCount--;
+		}
+		if ( address != null ) {
+			Integer count = peerCounts.get( address );
+			if ( count == null || count <= 1 ) {
+				peerCounts.remove( address );
+			} else {
+				peerCounts.put( address, count - 1 );
+			}
+		}
+	}
+
+	/**
+	 * Set maximum number of transfer connections across all transfers.
+	 */
+	public static synchronized void setGlobalLimit( int max )
+	{
+		maxGlobal = Math.max( 1, max );
+	}
+
+	/**
+	 * Set maximum number of transfer connections to/from the same remote peer.
+	 */
+	public static synchronized void setPeerLimit( int max )
+	{
+		maxPerPeer = Math.max( 1, max );
+	}
+
+	/**
+	 * @return number of transfer connections across all transfers
+	 */
+	public static synchronized int getGlobalConnectionCount()
+	{
+		return globalCount;
+	}
+
+	/**
+	 * @return number of connections to/from given peer
+	 */
+	public static synchronized int getPeerConnectionCount( InetAddress address )
+	{
+		Integer count = peerCounts.get( address );
+		return count == null ? 0 : count;
+	}
+
+	/**
+	 * @return number of connections rejected because of global or per-peer limits
+	 */
+	public static synchronized long getRejectedCount()
+	{
+		return slotsRejected;
+	}
+
+}
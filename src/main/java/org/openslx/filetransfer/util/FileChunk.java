@@ -37,6 +37,11 @@ public class FileChunk
 	
 	static final long NULL_BLOCK_CRC32 = 2759631178l;
 
+	/**
+	 * Zeros to feed into the CRC32 for padding the last chunk to a multiple of 4KiB
+	 */
+	private static final byte[] DNBD3_PADDING = new byte[ 4096 ];
+
 	public FileChunk( long startOffset, long endOffset, byte[] sha1sum )
 	{
 		this.range = new FileRange( startOffset, endOffset );
@@ -104,30 +109,38 @@ public class FileChunk
 		return status;
 	}
 
-	public synchronized void calculateDnbd3Crc32( byte[] data )
+	public void calculateDnbd3Crc32( byte[] data )
+	{
+		int expectedLength = range.getLength();
+		if ( expectedLength > data.length ) {
+			LOGGER.error( "Chunk #" + getChunkIndex() + ": " + data.length + " instead of " + expectedLength + " for " + getChunkIndex() );
+		}
+		CRC32 crc = new CRC32();
+		crc.update( data, 0, expectedLength );
+		setDnbd3Crc32( crc );
+	}
+
+	/**
+	 * Set the CRC32 of this chunk, as calculated by the caller over the
+	 * chunk's data. The DNBD3 padding will be added by this method.
+	 */
+	synchronized void setDnbd3Crc32( CRC32 crc )
 	{
 		// As this is usually called before we validated the sha1, handle the case where
 		// this gets called multiple times and only remember the last result
 		long old = Long.MAX_VALUE;
-		if ( crc32 == null ) {
-			crc32 = new CRC32();
-		} else {
+		if ( crc32 != null ) {
 			LOGGER.info( "Redoing CRC32 of Chunk " + getChunkIndex() );
 			old = crc32.getValue();
-			crc32.reset();
 		}
 		int expectedLength = range.getLength();
-		if ( expectedLength > data.length ) {
-			LOGGER.error( "Chunk #" + getChunkIndex() + ": " + data.length + " instead of " + expectedLength + " for " + getChunkIndex() );
-		}
-		crc32.update( data, 0, expectedLength );
 		if ( ( expectedLength % 4096 ) != 0 ) {
 			// DNBD3 virtually pads all images to be a multiple of 4KiB in size,
 			// so simulate that here too
 			LOGGER.debug( "Block " + getChunkIndex() + " not multiple of 4k." );
-			byte[] padding = new byte[ 4096 - ( expectedLength % 4096 ) ];
-			crc32.update( padding );
+			crc.update( DNBD3_PADDING, 0, 4096 - ( expectedLength % 4096 ) );
 		}
+		crc32 = crc;
 		if ( old != Long.MAX_VALUE && old != crc32.getValue() ) {
 			LOGGER.warn( String.format( "Changed from %x to %x", old, crc32.getValue() ) );
 		}
@@ -153,6 +166,16 @@ public class FileChunk
 		return writtenToDisk;
 	}
 
+	/**
+	 * Data of this chunk is already in the file, i.e. it was copied there
+	 * directly or read back from it for hashing, so a successful hash check
+	 * doesn't need to write it again.
+	 */
+	synchronized void setWrittenToDisk()
+	{
+		this.writtenToDisk = true;
+	}
+
 	synchronized void setStatus( ChunkStatus status )
 	{
 		if ( status != null ) {
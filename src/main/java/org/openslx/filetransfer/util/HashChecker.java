@@ -8,6 +8,7 @@ import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -22,6 +23,11 @@ public class HashChecker
 
 	private static final Logger LOGGER = LogManager.getLogger( HashChecker.class );
 
+	/**
+	 * Size of blocks a chunk is hashed in, should comfortably fit into L2 cache
+	 */
+	private static final int HASH_STRIDE = 64 * 1024;
+
 	private final BlockingQueue<HashTask> queue;
 
 	private final List<Thread> threads = new ArrayList<>();
@@ -213,9 +219,21 @@ public class HashChecker
 					break;
 				}
 				HashResult result = HashResult.NONE;
-				if ( task.checkSha1 || task.calcSha1 ) {
-					// Calculate digest
-					md.update( task.data, 0, task.chunk.range.getLength() );
+				final boolean sha1 = task.checkSha1 || task.calcSha1;
+				final CRC32 crc = task.calcCrc32 ? new CRC32() : null;
+				final int length = task.chunk.range.getLength();
+				// Feed both SHA-1 and CRC32 from the same block while it's still in cache,
+				// instead of streaming the whole chunk from RAM twice
+				for ( int offset = 0; offset < length; offset += HASH_STRIDE ) {
+					int len = Math.min( HASH_STRIDE, length - offset );
+					if ( sha1 ) {
+						md.update( task.data, offset, len );
+					}
+					if ( crc != null ) {
+						crc.update( task.data, offset, len );
+					}
+				}
+				if ( sha1 ) {
 					byte[] digest = md.digest();
 					if ( task.checkSha1 ) {
 						result = Arrays.equals( digest, task.chunk.getSha1Sum() ) ? HashResult.VALID : HashResult.INVALID;
@@ -223,9 +241,8 @@ public class HashChecker
 						task.chunk.setSha1Sum( digest );
 					}
 				}
-				if ( task.calcCrc32 ) {
-					// Calculate CRC32
-					task.chunk.calculateDnbd3Crc32( task.data );
+				if ( crc != null ) {
+					task.chunk.setDnbd3Crc32( crc );
 				}
 				execCallback( task, result );
 			}
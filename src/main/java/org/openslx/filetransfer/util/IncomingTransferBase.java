@@ -6,26 +6,33 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.openslx.bwlp.thrift.iface.TransferState;
 import org.openslx.bwlp.thrift.iface.TransferStatus;
-import org.openslx.filetransfer.DataReceivedCallback;
+import org.openslx.filetransfer.DirectDataCallback;
 import org.openslx.filetransfer.Downloader;
 import org.openslx.filetransfer.FileRange;
 import org.openslx.filetransfer.LocalChunkSource;
 import org.openslx.filetransfer.LocalChunkSource.ChunkSource;
-import org.openslx.filetransfer.WantRangeCallback;
+import org.openslx.filetransfer.PipelinedRangeCallback;
+import org.openslx.filetransfer.SparseDataCallback;
 import org.openslx.filetransfer.util.HashChecker.HashCheckCallback;
 import org.openslx.filetransfer.util.HashChecker.HashResult;
+import org.openslx.filetransfer.util.WriteBehindQueue.WriteCallback;
 import org.openslx.util.ThriftUtil;
 
 public abstract class IncomingTransferBase extends AbstractTransfer implements HashCheckCallback
@@ -40,7 +47,31 @@ public abstract class IncomingTransferBase extends AbstractTransfer implements H
 
 	private final File tmpFileName;
 
-	private final RandomAccessFile tmpFileHandle;
+	/**
+	 * Temporary file. Only ever replaced if the channel got closed because a
+	 * thread was interrupted while accessing it, see {@link #reopenTmpFile(RandomAccessFile)}.
+	 */
+	private volatile RandomAccessFile tmpFileHandle;
+
+	/**
+	 * Protects against reopening the temporary file while it's being closed
+	 */
+	private final Object tmpFileLock = new Object();
+
+	/**
+	 * Set once the temporary file was closed for good
+	 */
+	private boolean tmpFileClosed = false;
+
+	/**
+	 * Non-null if write-behind is enabled
+	 */
+	private final WriteBehindQueue writeQueue;
+
+	/**
+	 * Bytes written since the last fsync, for {@link FsyncPolicy#EVERY_N_MIB}
+	 */
+	private final AtomicLong bytesSinceSync = new AtomicLong();
 
 	private final ChunkList chunks;
 
@@ -48,13 +79,94 @@ public abstract class IncomingTransferBase extends AbstractTransfer implements H
 
 	private final long fileSize;
 
+	/**
+	 * Length of the temporary file when this transfer was created. Everything
+	 * past this offset that wasn't written yet is a hole in the file.
+	 */
+	private final long initialFileLength;
+
 	private static final HashChecker hashChecker;
 
+	/**
+	 * Buffers for receiving chunks, shared by all incoming transfers
+	 */
+	private static final ChunkBufferPool bufferPool;
+
 	/*
 	 * Overridable constants
 	 */
 
-	protected static int MAX_CONNECTIONS_PER_TRANSFER = 2;
+	/**
+	 * Upper bound for concurrent connections of one transfer. The actual limit
+	 * is determined by the transfer's {@link ConnectionScaler}.
+	 */
+	protected static int MAX_CONNECTIONS_PER_TRANSFER = 8;
+
+	/**
+	 * How many range requests each connection keeps in flight, if the
+	 * uploading peer supports pipelining. 1 disables pipelining.
+	 */
+	protected static int PIPELINE_DEPTH = 3;
+
+	/**
+	 * Whether connections receive chunks straight into their chunk buffer,
+	 * decompressing on a separate thread pool. See
+	 * {@link Downloader#setStagedReceive(boolean)}.
+	 */
+	protected static boolean STAGED_RECEIVE = false;
+
+	/**
+	 * How long a connection waits for a free chunk buffer before giving up.
+	 */
+	protected static int BUFFER_WAIT_MS = 60000;
+
+	/**
+	 * Number of threads copying chunks from local files, if server side
+	 * copying is enabled.
+	 */
+	protected static int LOCAL_COPY_THREADS = 2;
+
+	/**
+	 * Write received chunks to disk asynchronously, coalescing adjacent chunks
+	 * into larger writes. See {@link WriteBehindQueue}.
+	 */
+	protected static boolean WRITE_BEHIND = false;
+
+	/**
+	 * How many bytes may be waiting in the write-behind queue before
+	 * connections block.
+	 */
+	protected static long WRITE_BEHIND_MAX_PENDING = 8l * FileChunk.CHUNK_SIZE;
+
+	/**
+	 * When to flush data written to the temporary file to disk.
+	 */
+	protected static FsyncPolicy FSYNC_POLICY = FsyncPolicy.NONE;
+
+	/**
+	 * Interval for {@link FsyncPolicy#EVERY_N_MIB}
+	 */
+	protected static int FSYNC_INTERVAL_MIB = 256;
+
+	public static enum FsyncPolicy
+	{
+		/**
+		 * Leave it to the OS
+		 */
+		NONE,
+		/**
+		 * After every write, which might contain multiple chunks with write-behind
+		 */
+		PER_CHUNK,
+		/**
+		 * Every {@link IncomingTransferBase#FSYNC_INTERVAL_MIB} MiB, and when finished
+		 */
+		EVERY_N_MIB,
+		/**
+		 * Once when the transfer is finished
+		 */
+		ON_FINISH,
+	}
 
 	/**
 	 * Whether file is (still) writable. Used for the file transfer callbacks.
@@ -94,6 +206,9 @@ public abstract class IncomingTransferBase extends AbstractTransfer implements H
 			hc = null;
 		}
 		hashChecker = hc;
+		int maxBuffers = ChunkBufferPool.defaultMaxBuffers( FileChunk.CHUNK_SIZE );
+		bufferPool = new ChunkBufferPool( FileChunk.CHUNK_SIZE, maxBuffers, Math.max( 2, maxBuffers / 4 ) );
+		LOGGER.debug( "Chunk buffer pool size: " + maxBuffers );
 	}
 
 	/*_*/
@@ -108,16 +223,20 @@ public abstract class IncomingTransferBase extends AbstractTransfer implements H
 		tmpFileName = absFilePath;
 		tmpFileName.getParentFile().mkdirs();
 		tmpFileHandle = new RandomAccessFile( absFilePath, "rw" );
+		long length = fileSize;
 		try {
 			if ( tmpFileHandle.length() > fileSize ) {
 				tmpFileHandle.setLength( fileSize );
 			}
+			length = tmpFileHandle.length();
 		} catch ( IOException e ) {
 			LOGGER.debug( "File " + tmpFileName + " is too long and could not be truncated" );
 		}
+		initialFileLength = length;
+		writeQueue = WRITE_BEHIND ? new WriteBehindQueue( this, WRITE_BEHIND_MAX_PENDING ) : null;
 		chunks = new ChunkList( fileSize, blockHashes );
 		if ( this.localChunkSource != null ) {
-			this.localCopyManager = new LocalCopyManager( this, this.chunks );
+			this.localCopyManager = new LocalCopyManager( this, this.chunks, LOCAL_COPY_THREADS );
 			checkLocalCopyCandidates( blockHashes, 0 );
 		} else {
 			this.localCopyManager = null;
@@ -145,12 +264,29 @@ public abstract class IncomingTransferBase extends AbstractTransfer implements H
 		if ( localCopyManager != null ) {
 			localCopyManager.interrupt();
 		}
-		safeClose( tmpFileHandle );
+		if ( writeQueue != null ) {
+			writeQueue.close();
+		}
+		closeTmpFile();
 		if ( getTransferInfo() != null && getTransferInfo().token != null ) {
 			LOGGER.debug( "Cancelled upload " + getTransferInfo().token );
 		}
 	}
 
+	/**
+	 * Highest round trip time of all active connections, 0 if unknown.
+	 */
+	private long getRttMs()
+	{
+		long rtt = 0;
+		synchronized ( downloads ) {
+			for ( Downloader d : downloads ) {
+				rtt = Math.max( rtt, d.getRttMs() );
+			}
+		}
+		return rtt;
+	}
+
 	@Override
 	public final int getActiveConnectionCount()
 	{
@@ -237,6 +373,10 @@ public abstract class IncomingTransferBase extends AbstractTransfer implements H
 			byte[] data = null;
 			try {
 				data = loadChunkFromFile( chunk );
+			} catch ( BufferPoolExhaustedException e ) {
+				// Try again later
+				chunks.markCompleted( chunk, false );
+				break;
 			} catch ( EOFException e1 ) {
 				LOGGER.warn( "blockhash update: file too short, marking chunk as invalid" );
 				chunks.markFailed( chunk );
@@ -253,11 +393,13 @@ public abstract class IncomingTransferBase extends AbstractTransfer implements H
 			}
 			try {
 				if ( !hashChecker.queue( chunk, data, this, HashChecker.CHECK_SHA1 ) ) { // false == queue full, stop
+					bufferPool.release( data );
 					chunks.markCompleted( chunk, false );
 					break;
 				}
 			} catch ( InterruptedException e ) {
 				LOGGER.debug( "updateBlockHashList got interrupted" );
+				bufferPool.release( data );
 				chunks.markCompleted( chunk, false );
 				Thread.currentThread().interrupt();
 				return;
@@ -295,47 +437,86 @@ public abstract class IncomingTransferBase extends AbstractTransfer implements H
 		localCopyManager.trigger();
 	}
 
-	private byte[] loadChunkFromFile( FileChunk chunk ) throws EOFException
+	/**
+	 * Read given chunk from the temporary file into a buffer from the pool.
+	 * The caller is responsible for releasing the buffer if it doesn't get
+	 * passed to the hash checker.
+	 */
+	private byte[] loadChunkFromFile( FileChunk chunk ) throws EOFException, BufferPoolExhaustedException
 	{
-		synchronized ( tmpFileHandle ) {
+		if ( state != TransferState.IDLE && state != TransferState.WORKING )
+			return null;
+		// Don't block here, this might be called by a hash checker thread, which we need
+		// to make progress to get buffers back
+		byte[] buffer = bufferPool.tryAcquire();
+		if ( buffer == null )
+			throw new BufferPoolExhaustedException();
+		boolean ok = false;
+		try {
+			readFully( ByteBuffer.wrap( buffer, 0, chunk.range.getLength() ), chunk.range.startOffset );
+			ok = true;
+			return buffer;
+		} catch ( EOFException e ) {
+			throw e;
+		} catch ( IOException e ) {
 			if ( state != TransferState.IDLE && state != TransferState.WORKING )
-				return null;
-			try {
-				tmpFileHandle.seek( chunk.range.startOffset );
-				byte[] buffer = new byte[ chunk.range.getLength() ];
-				tmpFileHandle.readFully( buffer );
-				return buffer;
-			} catch ( EOFException e ) {
-				throw e;
-			} catch ( IOException e ) {
-				LOGGER.error( "Could not read chunk " + chunk.getChunkIndex() + " of File " + getTmpFileName().toString(), e );
-				return null;
+				return null; // File closed concurrently
+			LOGGER.error( "Could not read chunk " + chunk.getChunkIndex() + " of File " + getTmpFileName().toString(), e );
+			return null;
+		} finally {
+			if ( !ok ) {
+				bufferPool.release( buffer );
 			}
 		}
 	}
 
+	/**
+	 * Thrown by {@link IncomingTransferBase#loadChunkFromFile(FileChunk)} if no buffer is available.
+	 */
+	private static class BufferPoolExhaustedException extends Exception
+	{
+		private static final long serialVersionUID = 4620531869389151396L;
+	}
+
 	/**
 	 * Callback class for an instance of the Downloader, which supplies
 	 * the Downloader with wanted file ranges, and handles incoming data.
 	 */
-	private class CbHandler implements WantRangeCallback, DataReceivedCallback
+	private class CbHandler implements PipelinedRangeCallback, SparseDataCallback, DirectDataCallback
 	{
 		/**
 		 * The current chunk being transfered.
 		 */
 		private FileChunk currentChunk = null;
 		/**
-		 * Current buffer to receive to
+		 * Remote peer told us the current chunk is all zeros, see {@link #zeroDataReceived(long, int)}
+		 */
+		private boolean currentChunkIsZero = false;
+		/**
+		 * In pipelined mode, all chunks we requested from the remote peer that didn't
+		 * complete yet, in the order they were requested. currentChunk is the head of
+		 * this queue.
+		 */
+		private final Deque<FileChunk> requestedChunks = new ArrayDeque<>();
+		/**
+		 * Current buffer to receive to, from {@link IncomingTransferBase#bufferPool}
 		 */
-		private byte[] buffer = new byte[ FileChunk.CHUNK_SIZE ];
+		private byte[] buffer = null;
 		/**
 		 * Downloader object
 		 */
 		private final Downloader downloader;
+		/**
+		 * Whether the downloader will request multiple ranges at once, in which case
+		 * a chunk is finished in {@link #rangeComplete(FileRange)} instead of the
+		 * next call to {@link #get()}.
+		 */
+		private final boolean pipelined;
 
-		private CbHandler( Downloader downloader )
+		private CbHandler( Downloader downloader, boolean pipelined )
 		{
 			this.downloader = downloader;
+			this.pipelined = pipelined;
 		}
 
 		@Override
@@ -349,58 +530,63 @@ public abstract class IncomingTransferBase extends AbstractTransfer implements H
 			return fileWritable;
 		}
 
+		@Override
+		public boolean zeroDataReceived( long fileOffset, int dataLength )
+		{
+			if ( currentChunk == null )
+				throw new IllegalStateException( "zeroDataReceived without current chunk" );
+			if ( fileOffset != currentChunk.range.startOffset || dataLength != currentChunk.range.getLength() )
+				throw new IllegalStateException( "zeroDataReceived not covering current chunk" );
+			currentChunkIsZero = true;
+			return fileWritable;
+		}
+
+		@Override
+		public byte[] getReceiveBuffer( FileRange range )
+		{
+			if ( currentChunk == null || !currentChunk.range.equals( range ) )
+				return null;
+			return buffer;
+		}
+
+		@Override
+		public boolean rangeDataReceived( FileRange range )
+		{
+			if ( currentChunk == null || !currentChunk.range.equals( range ) )
+				throw new IllegalStateException( "rangeDataReceived for range other than current chunk" );
+			return fileWritable;
+		}
+
 		@Override
 		public FileRange get()
 		{
-			boolean needNewBuffer = false;
-			if ( currentChunk != null ) {
-				try {
-					if ( chunkReceivedInternal( currentChunk, buffer ) ) {
-						needNewBuffer = true;
-					}
-				} catch ( InterruptedException e3 ) {
-					LOGGER.info( "Downloader was interrupted when trying to hash" );
-					currentChunk = null;
+			if ( !pipelined && currentChunk != null ) {
+				if ( !finishCurrentChunk() )
 					return null;
-				}
-				if ( needNewBuffer ) {
-					try {
-						buffer = new byte[ buffer.length ];
-					} catch ( OutOfMemoryError e ) {
-						// Usually catching OOM errors is a bad idea, but it's quite safe here as
-						// we know exactly where it happened, no hidden sub-calls through 20 objects.
-						// The most likely cause here is that the hash checker/disk cannot keep up
-						// writing out completed chunks, so we just sleep a bit and try again. If it still
-						// fails, we exit completely.
-						try {
-							Thread.sleep( 6000 );
-						} catch ( InterruptedException e1 ) {
-							Thread.currentThread().interrupt();
-							return null;
-						}
-						// Might raise OOM again, but THIS TIME I MEAN IT
-						try {
-							buffer = new byte[ buffer.length ];
-						} catch ( OutOfMemoryError e2 ) {
-							LOGGER.warn( "Out of JVM memory - aborting incoming " + IncomingTransferBase.this.getId() );
-							downloader.sendErrorCode( "Out of RAM" );
-							cancel();
-						}
-					}
-				}
-				currentChunk = null;
 			}
+			if ( buffer == null && !acquireBuffer() )
+				return null;
 			// Get next missing chunk
+			FileChunk chunk;
 			try {
-				currentChunk = chunks.getMissing();
+				// Don't wait for other connections' pending chunks if we're still waiting for data ourselves
+				chunk = chunks.getMissing( requestedChunks.isEmpty() );
 			} catch ( InterruptedException e ) {
 				Thread.currentThread().interrupt();
 				LOGGER.info( "Incoming transfer connection was interrupted" );
 				return null;
 			}
-			if ( currentChunk == null ) {
+			if ( chunk == null ) {
 				return null; // No more chunks, returning null tells the Downloader we're done.
 			}
+			if ( pipelined ) {
+				requestedChunks.add( chunk );
+				if ( currentChunk == null ) {
+					currentChunk = chunk;
+				}
+			} else {
+				currentChunk = chunk;
+			}
 			// Check remaining disk space and abort if it's too low
 			if ( !hasEnoughFreeSpace() ) {
 				downloader.sendErrorCode( "Out of disk space" );
@@ -411,7 +597,98 @@ public abstract class IncomingTransferBase extends AbstractTransfer implements H
 			if ( state == TransferState.IDLE ) {
 				state = TransferState.WORKING;
 			}
-			return currentChunk.range;
+			return chunk.range;
+		}
+
+		@Override
+		public boolean rangeComplete( FileRange range )
+		{
+			if ( currentChunk == null || !currentChunk.range.equals( range ) ) {
+				LOGGER.warn( "rangeComplete for " + range + " does not match current chunk " + currentChunk );
+				return false;
+			}
+			requestedChunks.pollFirst();
+			boolean ok = finishCurrentChunk();
+			currentChunk = requestedChunks.peekFirst();
+			return ok;
+		}
+
+		/**
+		 * Hand over the current chunk for hashing/writing, allocating a new
+		 * receive buffer if the old one is still in use by that.
+		 * 
+		 * @return false if the connection should be aborted
+		 */
+		private boolean finishCurrentChunk()
+		{
+			boolean needNewBuffer = false;
+			boolean isZero = currentChunkIsZero;
+			currentChunkIsZero = false;
+			try {
+				if ( isZero ? zeroChunkReceivedInternal( currentChunk, buffer )
+						: chunkReceivedInternal( currentChunk, buffer ) ) {
+					needNewBuffer = true;
+				}
+			} catch ( InterruptedException e3 ) {
+				LOGGER.info( "Downloader was interrupted when trying to hash" );
+				currentChunk = null;
+				releaseBuffer();
+				return false;
+			}
+			currentChunk = null;
+			if ( needNewBuffer ) {
+				buffer = null;
+				// In pipelined mode, the next chunk's data is already on its way
+				if ( pipelined && !requestedChunks.isEmpty() )
+					return acquireBuffer();
+			}
+			return true;
+		}
+
+		/**
+		 * Get a new receive buffer from the pool. If the hash checker or disk cannot keep up
+		 * writing out completed chunks, this will block until enough of them are done, which in
+		 * turn throttles this connection.
+		 * 
+		 * @return false if no buffer could be acquired, and the connection should be aborted
+		 */
+		private boolean acquireBuffer()
+		{
+			try {
+				buffer = bufferPool.acquire( BUFFER_WAIT_MS );
+			} catch ( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			if ( buffer == null ) {
+				LOGGER.warn( "No chunk buffer available after " + BUFFER_WAIT_MS + "ms - aborting incoming "
+						+ IncomingTransferBase.this.getId() + ". " + bufferPool.getStats() );
+				downloader.sendErrorCode( "Out of RAM" );
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Return current receive buffer to the pool, if any.
+		 */
+		private void releaseBuffer()
+		{
+			bufferPool.release( buffer );
+			buffer = null;
+		}
+
+		/**
+		 * Get all chunks that were handed out to the downloader, but not
+		 * received completely.
+		 */
+		private List<FileChunk> getUnfinishedChunks()
+		{
+			if ( pipelined )
+				return new ArrayList<>( requestedChunks );
+			if ( currentChunk == null )
+				return Collections.emptyList();
+			return Collections.singletonList( currentChunk );
 		}
 	}
 
@@ -420,7 +697,8 @@ public abstract class IncomingTransferBase extends AbstractTransfer implements H
 	 * @param currentChunk
 	 * @param buffer
 	 * @return true if buffer is used internally and should not be modified in the future, false if
-	 *         reuse is safe
+	 *         reuse is safe. If true is returned for a buffer from the pool, it will be returned to
+	 *         the pool by whoever is using it.
 	 * @throws InterruptedException
 	 */
 	final boolean chunkReceivedInternal( FileChunk currentChunk, byte[] buffer ) throws InterruptedException
@@ -432,6 +710,10 @@ public abstract class IncomingTransferBase extends AbstractTransfer implements H
 			LOGGER.warn( "Callback chunkReceived caused exception", e );
 			needNewBuffer = true; // To be on the safe side
 		}
+		if ( needNewBuffer ) {
+			// Subclass holds on to the buffer, so it must never be recycled
+			bufferPool.detach( buffer );
+		}
 		InterruptedException passEx = null;
 		if ( hashChecker != null && currentChunk.getSha1Sum() != null ) {
 			try {
@@ -443,6 +725,8 @@ public abstract class IncomingTransferBase extends AbstractTransfer implements H
 		}
 		// We have no hash checker, or hasher rejected block,
 		// or the hash for the current chunk is unknown - flush to disk
+		if ( passEx == null && writeBehind( currentChunk, buffer, false ) )
+			return true;
 		long pre = System.currentTimeMillis();
 		writeFileData( currentChunk.range.startOffset, currentChunk.range.getLength(), buffer );
 		long duration = System.currentTimeMillis() - pre;
@@ -456,6 +740,126 @@ public abstract class IncomingTransferBase extends AbstractTransfer implements H
 		return needNewBuffer;
 	}
 
+	/**
+	 * Copy a chunk from another local file directly into the temporary file,
+	 * without passing the data through the heap. Uses
+	 * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+	 * which allows the kernel to use copy_file_range, or even share the
+	 * data with the source file on file systems supporting reflinks.
+	 * Call {@link #chunkCopiedInternal(FileChunk)} afterwards.
+	 * 
+	 * @param chunk destination chunk
+	 * @param source channel of the source file
+	 * @param sourceOffset offset of the chunk's data in the source file
+	 * @param dest channel of the temporary file, exclusively used by the
+	 *           calling thread, as its position is changed
+	 * @throws IOException if reading the source or writing the destination
+	 *            failed
+	 */
+	final void copyChunkFrom( FileChunk chunk, FileChannel source, long sourceOffset, FileChannel dest ) throws IOException
+	{
+		if ( state != TransferState.WORKING )
+			throw new IllegalStateException( "Cannot write to file if state != WORKING (is " + state.toString() + ")" );
+		long length = chunk.range.getLength();
+		long done = 0;
+		dest.position( chunk.range.startOffset );
+		while ( done < length ) {
+			long ret = source.transferTo( sourceOffset + done, length - done, dest );
+			if ( ret <= 0 && sourceOffset + done >= source.size() )
+				throw new EOFException( "Source file too short" );
+			done += ret;
+		}
+		dataWritten( dest, length );
+	}
+
+	/**
+	 * Called after a chunk was copied into the temporary file by
+	 * {@link #copyChunkFrom(FileChunk, FileChannel, long, FileChannel)}.
+	 * The data is read back into a buffer from the pool for hash checking;
+	 * if no buffer is available right now, the chunk will be hash checked
+	 * later on, see {@link #queueUnhashedChunk(boolean)}.
+	 */
+	final void chunkCopiedInternal( FileChunk chunk )
+	{
+		chunk.setWrittenToDisk();
+		byte[] buffer = null;
+		if ( hashChecker != null && chunk.getSha1Sum() != null ) {
+			try {
+				buffer = bufferPool.acquire( BUFFER_WAIT_MS );
+				if ( buffer != null ) {
+					readFully( ByteBuffer.wrap( buffer, 0, chunk.range.getLength() ), chunk.range.startOffset );
+				}
+			} catch ( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+			} catch ( IOException e ) {
+				LOGGER.warn( "Cannot read back copied chunk " + chunk.getChunkIndex(), e );
+				bufferPool.release( buffer );
+				buffer = null;
+			}
+		}
+		if ( buffer == null ) {
+			chunks.markCompleted( chunk, false );
+			chunkStatusChanged( chunk );
+			return;
+		}
+		boolean needNewBuffer = false;
+		try {
+			needNewBuffer = chunkReceived( chunk, buffer );
+		} catch (Exception e) {
+			LOGGER.warn( "Callback chunkReceived caused exception", e );
+			needNewBuffer = true; // To be on the safe side
+		}
+		if ( needNewBuffer ) {
+			bufferPool.detach( buffer );
+		}
+		try {
+			hashChecker.queue( chunk, buffer, IncomingTransferBase.this, HashChecker.BLOCKING | HashChecker.CHECK_SHA1 );
+		} catch ( InterruptedException e ) {
+			bufferPool.release( buffer );
+			chunks.markCompleted( chunk, false );
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Handle a chunk the remote peer announced as all zeros. If we know the
+	 * chunk is supposed to be the null block, there's no need to hash it, and
+	 * if the region of the file was never written to, we don't even have to
+	 * write anything, leaving a hole in the file. Otherwise the chunk is
+	 * treated like regular data.
+	 * 
+	 * @return same as {@link #chunkReceivedInternal(FileChunk, byte[])}
+	 * @throws InterruptedException
+	 */
+	final boolean zeroChunkReceivedInternal( FileChunk currentChunk, byte[] buffer ) throws InterruptedException
+	{
+		int length = currentChunk.range.getLength();
+		// Buffer might contain data of a previous chunk
+		Arrays.fill( buffer, 0, length, (byte)0 );
+		if ( !Arrays.equals( currentChunk.getSha1Sum(), FileChunk.NULL_BLOCK_SHA1 ) )
+			return chunkReceivedInternal( currentChunk, buffer );
+		boolean needNewBuffer = false;
+		try {
+			needNewBuffer = chunkReceived( currentChunk, buffer );
+		} catch (Exception e) {
+			LOGGER.warn( "Callback chunkReceived caused exception", e );
+			needNewBuffer = true; // To be on the safe side
+		}
+		if ( needNewBuffer ) {
+			bufferPool.detach( buffer );
+		}
+		// If the chunk failed before, something might have been written already
+		if ( currentChunk.getFailCount() != 0 || currentChunk.range.startOffset < initialFileLength ) {
+			writeFileData( currentChunk.range.startOffset, length, buffer );
+		}
+		chunks.markCompleted( currentChunk, true );
+		chunkStatusChanged( currentChunk );
+		if ( chunks.isComplete() ) {
+			finishUploadInternal();
+		}
+		return needNewBuffer;
+	}
+
 	public boolean addConnection( final Downloader connection, ExecutorService pool )
 	{
 		if ( state == TransferState.FINISHED ) {
@@ -465,33 +869,41 @@ public abstract class IncomingTransferBase extends AbstractTransfer implements H
 		if ( state == TransferState.ERROR )
 			return false;
 		synchronized ( downloads ) {
-			if ( downloads.size() >= MAX_CONNECTIONS_PER_TRANSFER )
+			if ( !acquireConnectionSlot( connection, downloads.size(), getRttMs(), MAX_CONNECTIONS_PER_TRANSFER ) )
 				return false;
 			downloads.add( connection );
 		}
+		connection.addBandwidthLimiter( getBandwidthLimiter() );
 		try {
 			pool.execute( new Runnable() {
 				@Override
 				public void run()
 				{
 					int active;
+					CbHandler cbh = new CbHandler( connection, PIPELINE_DEPTH > 1 );
 					try {
-						CbHandler cbh = new CbHandler( connection );
+						connection.setPipelineDepth( PIPELINE_DEPTH );
+						connection.setStagedReceive( STAGED_RECEIVE );
 						if ( connection.download( cbh, cbh ) ) {
 							connectFails.set( 0 );
 						} else {
 							connectFails.incrementAndGet();
-							if ( cbh.currentChunk != null ) {
-								// If the download failed and we have a current chunk, put it back into
-								// the queue, so it will be handled again later...
-								chunks.markFailed( cbh.currentChunk );
+							List<byte[]> lst = null;
+							for ( FileChunk chunk : cbh.getUnfinishedChunks() ) {
+								// If the download failed and we have unfinished chunks, put them back into
+								// the queue, so they will be handled again later...
+								chunks.markFailed( chunk );
 								// Possibly queue for local copy
-								if ( localCopyManager != null && cbh.currentChunk.sha1sum != null ) {
-									List<byte[]> lst = new ArrayList<>( 1 );
-									lst.add( cbh.currentChunk.sha1sum );
-									checkLocalCopyCandidates( lst, 0 );
+								if ( localCopyManager != null && chunk.sha1sum != null ) {
+									if ( lst == null ) {
+										lst = new ArrayList<>();
+									}
+									lst.add( chunk.sha1sum );
 								}
-								chunkStatusChanged( cbh.currentChunk );
+								chunkStatusChanged( chunk );
+							}
+							if ( lst != null ) {
+								checkLocalCopyCandidates( lst, 0 );
 							}
 							LOGGER.info( "Connection for " + getTmpFileName().getAbsolutePath() + " dropped prematurely" );
 						}
@@ -499,9 +911,11 @@ public abstract class IncomingTransferBase extends AbstractTransfer implements H
 							lastActivityTime.set( System.currentTimeMillis() );
 						}
 					} finally {
+						cbh.releaseBuffer();
 						synchronized ( downloads ) {
 							downloads.remove( connection );
 							active = downloads.size();
+							releaseConnectionSlot( connection, active, getRttMs(), MAX_CONNECTIONS_PER_TRANSFER );
 						}
 					}
 					if ( chunks.isComplete() ) {
@@ -522,6 +936,7 @@ public abstract class IncomingTransferBase extends AbstractTransfer implements H
 			LOGGER.warn( "threadpool rejected the incoming file transfer", e );
 			synchronized ( downloads ) {
 				downloads.remove( connection );
+				releaseConnectionSlot( connection, downloads.size(), getRttMs(), MAX_CONNECTIONS_PER_TRANSFER );
 			}
 			return false;
 		}
@@ -558,28 +973,228 @@ public abstract class IncomingTransferBase extends AbstractTransfer implements H
 	 */
 	private void writeFileData( long fileOffset, int dataLength, byte[] data )
 	{
-		synchronized ( tmpFileHandle ) {
+		if ( state != TransferState.WORKING )
+			throw new IllegalStateException( "Cannot write to file if state != WORKING (is " + state.toString() + ")" );
+		try {
+			writeFully( ByteBuffer.wrap( data, 0, dataLength ), fileOffset );
+		} catch ( IOException e ) {
 			if ( state != TransferState.WORKING )
-				throw new IllegalStateException( "Cannot write to file if state != WORKING (is " + state.toString() + ")" );
-			try {
-				tmpFileHandle.seek( fileOffset );
-				tmpFileHandle.write( data, 0, dataLength );
-			} catch ( IOException e ) {
-				LOGGER.error( "Cannot write to '" + getTmpFileName()
-						+ "'. Disk full, network storage error, bad permissions, ...?", e );
-				fileWritable = false;
-			}
+				throw new IllegalStateException( "File closed while writing (state is " + state.toString() + ")" );
+			LOGGER.error( "Cannot write to '" + getTmpFileName()
+					+ "'. Disk full, network storage error, bad permissions, ...?", e );
+			fileWritable = false;
 		}
 		if ( !fileWritable ) {
 			cancel();
 		}
 	}
 
+	/**
+	 * Write a run of adjacent buffers to the local file, starting at the given
+	 * offset. Only called by the {@link WriteBehindQueue}'s writer thread.
+	 *
+	 * @return true if all data was written
+	 */
+	boolean writeFileData( long fileOffset, ByteBuffer[] data )
+	{
+		if ( state != TransferState.WORKING )
+			return false;
+		long written = 0;
+		try {
+			for ( int tries = 0;; ++tries ) {
+				RandomAccessFile file = tmpFileHandle;
+				try {
+					FileChannel ch = file.getChannel();
+					ch.position( fileOffset + written );
+					while ( data[data.length - 1].hasRemaining() ) {
+						written += ch.write( data );
+					}
+					dataWritten( ch, written );
+					return true;
+				} catch ( ClosedChannelException e ) {
+					if ( tries != 0 || !reopenTmpFile( file ) )
+						throw e;
+				}
+			}
+		} catch ( IOException e ) {
+			if ( state != TransferState.WORKING )
+				return false;
+			LOGGER.error( "Cannot write to '" + getTmpFileName()
+					+ "'. Disk full, network storage error, bad permissions, ...?", e );
+			fileWritable = false;
+		}
+		cancel();
+		return false;
+	}
+
+	/**
+	 * Positional write to the temporary file, so concurrent writers don't need
+	 * a shared lock.
+	 */
+	private void writeFully( ByteBuffer buffer, long fileOffset ) throws IOException
+	{
+		boolean interrupted = false;
+		try {
+			for ( int tries = 0;; ++tries ) {
+				RandomAccessFile file = tmpFileHandle;
+				try {
+					FileChannel ch = file.getChannel();
+					int start = buffer.position();
+					while ( buffer.hasRemaining() ) {
+						fileOffset += ch.write( buffer, fileOffset );
+					}
+					dataWritten( ch, buffer.position() - start );
+					return;
+				} catch ( ClosedChannelException e ) {
+					if ( tries != 0 || !reopenTmpFile( file ) )
+						throw e;
+					// Retry with interrupt flag cleared, or we'd just close the channel again
+					interrupted = Thread.interrupted();
+				}
+			}
+		} finally {
+			if ( interrupted ) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Positional read from the temporary file, filling the given buffer.
+	 * 
+	 * @throws EOFException if the file is too short
+	 */
+	private void readFully( ByteBuffer buffer, long fileOffset ) throws IOException
+	{
+		boolean interrupted = false;
+		try {
+			for ( int tries = 0;; ++tries ) {
+				RandomAccessFile file = tmpFileHandle;
+				try {
+					FileChannel ch = file.getChannel();
+					while ( buffer.hasRemaining() ) {
+						int ret = ch.read( buffer, fileOffset );
+						if ( ret == -1 )
+							throw new EOFException();
+						fileOffset += ret;
+					}
+					return;
+				} catch ( ClosedChannelException e ) {
+					if ( tries != 0 || !reopenTmpFile( file ) )
+						throw e;
+					interrupted = Thread.interrupted();
+				}
+			}
+		} finally {
+			if ( interrupted ) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Account for data written to the temporary file and fsync according to
+	 * {@link #FSYNC_POLICY}.
+	 */
+	private void dataWritten( FileChannel ch, long bytes ) throws IOException
+	{
+		switch ( FSYNC_POLICY ) {
+		case PER_CHUNK:
+			ch.force( false );
+			break;
+		case EVERY_N_MIB:
+			if ( bytesSinceSync.addAndGet( bytes ) >= FSYNC_INTERVAL_MIB * 1024l * 1024l ) {
+				bytesSinceSync.set( 0 );
+				ch.force( false );
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * A thread getting interrupted while accessing the temporary file closes
+	 * the underlying channel for everyone else too. In that case, open the
+	 * file again, unless the transfer is over or another thread already did.
+	 * 
+	 * @param old the handle the failed operation was using
+	 * @return true if there is a new handle to retry with
+	 */
+	private boolean reopenTmpFile( RandomAccessFile old )
+	{
+		synchronized ( tmpFileLock ) {
+			if ( tmpFileHandle != old )
+				return true;
+			if ( tmpFileClosed || old.getChannel().isOpen()
+					|| ( state != TransferState.IDLE && state != TransferState.WORKING ) )
+				return false;
+			try {
+				tmpFileHandle = new RandomAccessFile( tmpFileName, "rw" );
+			} catch ( FileNotFoundException e ) {
+				LOGGER.warn( "Cannot reopen " + tmpFileName, e );
+				return false;
+			}
+			LOGGER.info( "Reopened " + tmpFileName + " after its channel was closed by an interrupt" );
+			return true;
+		}
+	}
+
+	private void closeTmpFile()
+	{
+		synchronized ( tmpFileLock ) {
+			tmpFileClosed = true;
+			safeClose( tmpFileHandle );
+		}
+	}
+
+	/**
+	 * Hand chunk over to the write-behind queue, if enabled. Once the data is
+	 * on disk, the chunk is marked as completed and the buffer is returned to
+	 * the pool.
+	 * 
+	 * @param chunk chunk to write
+	 * @param data buffer holding the chunk's data
+	 * @param hashChecked whether the chunk has been successfully hash checked
+	 * @return true if the chunk was queued, false if it needs to be written
+	 *         synchronously
+	 */
+	private boolean writeBehind( final FileChunk chunk, final byte[] data, final boolean hashChecked )
+			throws InterruptedException
+	{
+		if ( writeQueue == null || state != TransferState.WORKING )
+			return false;
+		return writeQueue.add( chunk.range.startOffset, data, chunk.range.getLength(), new WriteCallback() {
+			@Override
+			public void writeDone( boolean success )
+			{
+				if ( success ) {
+					chunks.markCompleted( chunk, hashChecked );
+				} else {
+					chunks.markFailed( chunk );
+				}
+				chunkStatusChanged( chunk );
+				// Might be detached if the subclass kept it, in which case this is a no-op
+				bufferPool.release( data );
+				if ( !success || !hashChecked )
+					return;
+				if ( chunks.isComplete() ) {
+					finishUploadInternal();
+				}
+				queueUnhashedChunk( false );
+				if ( localCopyManager != null && localCopyManager.isAlive() ) {
+					localCopyManager.trigger();
+				}
+			}
+		} );
+	}
+
 	@Override
 	public void hashCheckDone( HashResult result, byte[] data, FileChunk chunk )
 	{
 		if ( state != TransferState.IDLE && state != TransferState.WORKING ) {
 			LOGGER.warn( "hashCheckDone called in bad state " + state.name() );
+			bufferPool.release( data );
 			return;
 		}
 		switch ( result ) {
@@ -590,6 +1205,9 @@ public abstract class IncomingTransferBase extends AbstractTransfer implements H
 		case VALID:
 			if ( chunk.isWrittenToDisk() ) {
 				chunks.markCompleted( chunk, true );
+			} else if ( queueWriteAfterHashCheck( chunk, data ) ) {
+				// Write queue takes care of the rest once the data is on disk
+				return;
 			} else {
 				try {
 					long pre = System.currentTimeMillis();
@@ -619,6 +1237,8 @@ public abstract class IncomingTransferBase extends AbstractTransfer implements H
 			LOGGER.warn( "Got hashCheckDone with result NONE" );
 			break;
 		}
+		// Data is on disk (or discarded), recycle buffer
+		bufferPool.release( data );
 		// A block finished, see if we can queue a new one
 		queueUnhashedChunk( false );
 		if ( localCopyManager != null && localCopyManager.isAlive() ) {
@@ -626,6 +1246,16 @@ public abstract class IncomingTransferBase extends AbstractTransfer implements H
 		}
 	}
 
+	private boolean queueWriteAfterHashCheck( FileChunk chunk, byte[] data )
+	{
+		try {
+			return writeBehind( chunk, data, true );
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
 	/**
 	 * Gets an unhashed chunk (if existent) and queues it for hashing
 	 */
@@ -637,6 +1267,10 @@ public abstract class IncomingTransferBase extends AbstractTransfer implements H
 		byte[] data;
 		try {
 			data = loadChunkFromFile( chunk );
+		} catch ( BufferPoolExhaustedException e ) {
+			// Will be picked up again once another chunk is done
+			chunks.markCompleted( chunk, false );
+			return;
 		} catch ( EOFException e1 ) {
 			LOGGER.warn( "Cannot queue unhashed chunk: file too short. Marking as invalid." );
 			chunks.markFailed( chunk );
@@ -649,16 +1283,20 @@ public abstract class IncomingTransferBase extends AbstractTransfer implements H
 			chunkStatusChanged( chunk );
 			return;
 		}
+		// Data came from disk, no need to write it again once hashed
+		chunk.setWrittenToDisk();
 		try {
 			int flags = HashChecker.CHECK_SHA1;
 			if ( blocking ) {
 				flags |= HashChecker.BLOCKING;
 			}
 			if ( !hashChecker.queue( chunk, data, this, flags ) ) {
+				bufferPool.release( data );
 				chunks.markCompleted( chunk, false );
 			}
 		} catch ( InterruptedException e ) {
 			LOGGER.debug( "Interrupted while trying to queueUnhashedChunk" );
+			bufferPool.release( data );
 			chunks.markCompleted( chunk, false );
 			Thread.currentThread().interrupt();
 		}
@@ -669,6 +1307,10 @@ public abstract class IncomingTransferBase extends AbstractTransfer implements H
 		if ( state == TransferState.FINISHED || state == TransferState.ERROR ) {
 			return;
 		}
+		if ( writeQueue != null ) {
+			// Everything is on disk already, otherwise we wouldn't be complete
+			writeQueue.close();
+		}
 		try {
 			if ( tmpFileHandle.length() < fileSize && chunks.lastChunkIsZero() ) {
 				tmpFileHandle.setLength( fileSize );
@@ -676,13 +1318,38 @@ public abstract class IncomingTransferBase extends AbstractTransfer implements H
 		} catch ( IOException e ) {
 			LOGGER.warn( "Cannot extend file size to " + fileSize );
 		}
-		safeClose( tmpFileHandle );
+		if ( FSYNC_POLICY != FsyncPolicy.NONE ) {
+			try {
+				tmpFileHandle.getChannel().force( true );
+			} catch ( IOException e ) {
+				LOGGER.warn( "Cannot fsync " + tmpFileName, e );
+			}
+		}
+		closeTmpFile();
 		if ( localCopyManager != null ) {
 			localCopyManager.interrupt();
 		}
 		state = TransferState.FINISHED; // Races...
 		if ( !finishIncomingTransfer() ) {
 			state = TransferState.ERROR;
+		} else if ( localChunkSource instanceof ChunkHashIndex ) {
+			addToChunkIndex( (ChunkHashIndex)localChunkSource );
+		}
+	}
+
+	/**
+	 * Make the chunks of the finished file available for server side copying
+	 * to future transfers.
+	 */
+	private void addToChunkIndex( ChunkHashIndex index )
+	{
+		File file = getFinalFile();
+		if ( file == null )
+			return;
+		try {
+			index.addFile( file.getAbsolutePath(), chunks.getCompleted() );
+		} catch ( Exception e ) {
+			LOGGER.warn( "Cannot add " + file + " to chunk index", e );
 		}
 	}
 	
@@ -691,6 +1358,23 @@ public abstract class IncomingTransferBase extends AbstractTransfer implements H
 		return hashChecker;
 	}
 
+	/**
+	 * Get the pool all incoming transfers take their chunk buffers from,
+	 * mostly for querying statistics.
+	 */
+	public static ChunkBufferPool getChunkBufferPool()
+	{
+		return bufferPool;
+	}
+
+	/**
+	 * @return the write-behind queue, null if disabled
+	 */
+	final WriteBehindQueue getWriteQueue()
+	{
+		return writeQueue;
+	}
+
 	/*
 	 * 
 	 */
@@ -709,6 +1393,18 @@ public abstract class IncomingTransferBase extends AbstractTransfer implements H
 
 	protected abstract void chunkStatusChanged( FileChunk chunk );
 
+	/**
+	 * If the {@link LocalChunkSource} of this transfer is a {@link ChunkHashIndex},
+	 * the file will be added to the index after {@link #finishIncomingTransfer()}
+	 * succeeded, using the file name returned by this method. Override this to
+	 * return where the file ended up after finishIncomingTransfer(); the default
+	 * returns null, so the file isn't added to the index.
+	 */
+	protected File getFinalFile()
+	{
+		return null;
+	}
+
 	/**
 	 * Called when a chunk has been received -- no validation has taken place yet
 	 * @return whether we want to use the buffered data later on and it must not be written to
@@ -3,9 +3,19 @@ package org.openslx.filetransfer.util;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.HashMap;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -13,32 +23,87 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.openslx.filetransfer.LocalChunkSource.ChunkSource;
 import org.openslx.filetransfer.LocalChunkSource.SourceFile;
+import org.openslx.util.PrioThreadFactory;
 import org.openslx.util.Util;
 
+/**
+ * Copies chunks of an incoming transfer from local files that contain the
+ * same data. This thread hands out copy candidates to a small pool of
+ * workers, which copy the data into the temporary file via
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ * so it doesn't have to pass through the heap. Copied chunks are read back
+ * from the temporary file for hash checking.
+ */
 public class LocalCopyManager extends Thread
 {
 
 	private static final Logger LOGGER = LogManager.getLogger( LocalCopyManager.class );
 
-	private FileChunk currentChunk = null;
+	/**
+	 * Maximum number of source files to keep open
+	 */
+	private static final int MAX_OPEN_SOURCES = 32;
 
 	private final ChunkList chunkList;
 
 	private final IncomingTransferBase transfer;
 
-	private final Map<String, RandomAccessFile> sources = new HashMap<>();
+	private final int workerCount;
+
+	private final ThreadPoolExecutor workers;
+
+	/**
+	 * Open source files, least recently used first
+	 */
+	private final Map<String, FileChannel> sources = new LinkedHashMap<String, FileChannel>( 16, 0.75f, true ) {
+		private static final long serialVersionUID = -1803409402420424562L;
+
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<String, FileChannel> eldest )
+		{
+			if ( size() <= MAX_OPEN_SOURCES )
+				return false;
+			Util.safeClose( eldest.getValue() );
+			return true;
+		}
+	};
+
+	/**
+	 * Source files that don't exist or couldn't be read
+	 */
+	private final Set<String> brokenSources = new HashSet<>();
+
+	/**
+	 * Handles of the temporary file not in use by a worker right now. Every
+	 * worker needs its own, as transferTo writes at the destination's current
+	 * position.
+	 */
+	private final Deque<RandomAccessFile> destinations = new ArrayDeque<>();
+
+	private boolean closed = false;
 
-	private Semaphore hasWork = new Semaphore( 0 );
+	private final Semaphore hasWork = new Semaphore( 0 );
 
-	private AtomicInteger copyCount = new AtomicInteger();
+	private final AtomicInteger copyCount = new AtomicInteger();
+
+	private int activeCopies = 0;
 
 	private boolean paused = true;
 
 	public LocalCopyManager( IncomingTransferBase transfer, ChunkList list )
+	{
+		this( transfer, list, 1 );
+	}
+
+	public LocalCopyManager( IncomingTransferBase transfer, ChunkList list, int workerCount )
 	{
 		super( "LocalCopyManager" );
 		this.transfer = transfer;
 		this.chunkList = list;
+		this.workerCount = Math.max( 1, workerCount );
+		this.workers = new ThreadPoolExecutor( this.workerCount, this.workerCount, 10, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new PrioThreadFactory( "LocalCopy" ) );
+		this.workers.allowCoreThreadTimeOut( true );
 	}
 
 	/**
@@ -51,25 +116,11 @@ public class LocalCopyManager extends Thread
 		if ( this.getState() == State.NEW ) {
 			start();
 		}
-		triggerInternal();
-	}
-	
-	private synchronized void triggerInternal()
-	{
-		if ( this.paused )
-			return;
 		if ( !isAlive() ) {
 			LOGGER.warn( "Cannot be triggered when Thread is not running." );
-			if ( currentChunk != null ) {
-				chunkList.markFailed( currentChunk );
-				currentChunk = null;
-			}
 			return;
 		}
-		if ( currentChunk == null ) {
-			currentChunk = chunkList.getCopyCandidate();
-			hasWork.release();
-		}
+		hasWork.release();
 	}
 
 	@Override
@@ -77,135 +128,230 @@ public class LocalCopyManager extends Thread
 	{
 		try {
 			while ( !interrupted() ) {
-				while ( currentChunk != null ) {
-					hasWork.drainPermits();
-					copyChunk();
-				}
+				dispatch();
 				if ( !hasWork.tryAcquire( 10, TimeUnit.SECONDS ) ) {
 					if ( chunkList.isComplete() ) {
 						transfer.finishUploadInternal();
 						break;
 					} else if ( !transfer.isActive() ) {
 						break;
-					} else {
-						triggerInternal();
 					}
+					// Hash check of copied chunks might have been postponed for lack of buffers
+					transfer.queueUnhashedChunk( false );
 				}
+				hasWork.drainPermits();
 			}
 		} catch ( InterruptedException | IllegalStateException e ) {
 			interrupt();
 		}
+		// Running copies will mark their chunks as failed when interrupted
+		workers.shutdownNow();
+		boolean interrupted = Thread.interrupted();
+		try {
+			workers.awaitTermination( 5, TimeUnit.SECONDS );
+		} catch ( InterruptedException e ) {
+			interrupted = true;
+		}
+		int openCount;
 		synchronized ( this ) {
-			if ( currentChunk != null ) {
-				LOGGER.warn( "Still had a chunk when thread was interrupted." );
-				chunkList.markFailed( currentChunk );
-				currentChunk = null;
+			closed = true;
+			openCount = sources.size();
+			for ( FileChannel channel : sources.values() ) {
+				Util.safeClose( channel );
 			}
+			sources.clear();
+			for ( RandomAccessFile file : destinations ) {
+				Util.safeClose( file );
+			}
+			destinations.clear();
 		}
-		for ( RandomAccessFile file : sources.values() ) {
-			Util.safeClose( file );
+		if ( interrupted ) {
+			interrupt();
+		}
+		LOGGER.debug( "My work here is done. Copied " + copyCount.get() + " chunks, " + openCount + " files still open." );
+	}
+
+	/**
+	 * Hand out as many copy candidates to the workers as allowed.
+	 */
+	private void dispatch()
+	{
+		for ( ;; ) {
+			FileChunk chunk;
+			synchronized ( this ) {
+				if ( this.paused )
+					return;
+				// In order not to hinder (fast) upload of unknown blocks, copy only one chunk
+				// at a time as long as chunks are missing
+				int max = chunkList.hasLocallyMissingChunk() ? 1 : workerCount;
+				if ( activeCopies >= max )
+					return;
+				chunk = chunkList.getCopyCandidate();
+				if ( chunk == null )
+					return;
+				activeCopies++;
+			}
+			try {
+				workers.execute( new CopyTask( chunk ) );
+			} catch ( RejectedExecutionException e ) {
+				synchronized ( this ) {
+					activeCopies--;
+				}
+				chunkList.markFailed( chunk );
+				return;
+			}
+		}
+	}
+
+	private class CopyTask implements Runnable
+	{
+		private final FileChunk chunk;
+
+		public CopyTask( FileChunk chunk )
+		{
+			this.chunk = chunk;
+		}
+
+		@Override
+		public void run()
+		{
+			boolean ok = false;
+			try {
+				ok = copyChunk( chunk );
+			} catch ( InterruptedException | IllegalStateException e ) {
+				// Transfer is over
+			} finally {
+				if ( !ok ) {
+					LOGGER.info( "Local copying failed, queueing for normal upload..." );
+					chunkList.markFailed( chunk );
+				}
+				synchronized ( LocalCopyManager.this ) {
+					activeCopies--;
+				}
+				hasWork.release();
+			}
 		}
-		LOGGER.debug( "My work here is done. Copied " + copyCount.get() + " chunks from " + sources.size() + " files." );
 	}
 
-	private void copyChunk() throws InterruptedException
+	/**
+	 * Copy given chunk, trying all its source files.
+	 *
+	 * @return true if the chunk was copied and is now awaiting hash check
+	 */
+	private boolean copyChunk( FileChunk chunk ) throws InterruptedException
 	{
-		ChunkSource source = currentChunk.getSources();
-		if ( source != null ) {
-			// OK
+		ChunkSource source = chunk.getSources();
+		if ( source == null )
+			return false;
+		RandomAccessFile dest = getDestination();
+		if ( dest == null )
+			return false;
+		boolean retried = false;
+		try {
 			for ( ;; ) {
 				// Try every possible source file
-				SourceFile sourceFile = getOpenFile( source, currentChunk.range.getLength() );
+				SourceFile sourceFile = getOpenFile( source, chunk.range.getLength() );
 				if ( sourceFile == null ) {
 					// Was marked as having a source file, but now we got null -- most likely
 					// the source file doesn't exist or isn't readable
 					LOGGER.warn( "No open file for local copying!" );
-					break;
+					return false;
 				}
-				// OK
-				RandomAccessFile raf = sources.get( sourceFile.fileName );
-				byte[] buffer;
-				try {
-					raf.seek( sourceFile.offset );
-					// In order not to hinder (fast) upload of unknown blocks, throttle
-					// local copying as long as chunks are missing - do before allocating buffer
-					// so we don't hold allocated unused memory for no reason, but the seek has
-					// been done so we know the file handle is not goofed up
-					if ( chunkList.hasLocallyMissingChunk() ) {
-						int delay;
-						HashChecker hc = transfer.getHashChecker();
-						if ( hc == null ) {
-							delay = 50;
-						} else {
-							delay = ( hc.getQueueFill() * 500 ) / hc.getQueueCapacity();
-						}
-						Thread.sleep( delay );
-					}
-					buffer = new byte[ sourceFile.chunkSize ];
-					raf.readFully( buffer );
-				} catch ( InterruptedException e ) {
-					throw e;
-				} catch ( Exception e ) {
-					LOGGER.warn( "Could not read chunk to replicate from " + sourceFile.fileName, e );
-					buffer = null;
-					if ( e instanceof IOException ) {
-						// Mark file as messed up
-						sources.put( sourceFile.fileName, null );
-					}
+				FileChannel channel;
+				synchronized ( this ) {
+					channel = sources.get( sourceFile.fileName );
 				}
-				if ( buffer != null ) {
-					// All is well, read chunk locally, pass on
-					transfer.chunkReceivedInternal( currentChunk, buffer );
+				if ( channel == null )
+					continue; // Evicted right away, open again
+				try {
+					transfer.copyChunkFrom( chunk, channel, sourceFile.offset, dest.getChannel() );
+				} catch ( ClosedByInterruptException e ) {
+					throw new InterruptedException();
+				} catch ( ClosedChannelException e ) {
+					// Evicted from cache while in use, or closed by another worker being interrupted
 					synchronized ( this ) {
-						currentChunk = null;
+						if ( sources.get( sourceFile.fileName ) == channel ) {
+							sources.remove( sourceFile.fileName );
+						}
 					}
-					copyCount.incrementAndGet();
-					triggerInternal();
-					return;
+					if ( retried || !dest.getChannel().isOpen() )
+						return false;
+					retried = true;
+					continue;
+				} catch ( IOException e ) {
+					LOGGER.warn( "Could not copy chunk from " + sourceFile.fileName, e );
+					markBroken( sourceFile.fileName );
+					continue;
 				}
-				// Reaching here means failure
-				// We'll keep looping as long as there are source files available
+				transfer.chunkCopiedInternal( chunk );
+				copyCount.incrementAndGet();
+				return true;
 			}
-			// End of loop over source files
-		}
-		// FAILED
-		LOGGER.info( "Local copying failed, queueing for normal upload..." );
-		synchronized ( this ) {
-			chunkList.markFailed( currentChunk );
-			currentChunk = null;
+		} finally {
+			releaseDestination( dest );
 		}
 	}
 
-	private SourceFile getOpenFile( ChunkSource source, int requiredSize )
+	private synchronized SourceFile getOpenFile( ChunkSource source, int requiredSize )
 	{
 		for ( SourceFile candidate : source.sourceCandidates ) {
-			if ( sources.get( candidate.fileName ) != null )
+			if ( candidate.chunkSize == requiredSize && sources.containsKey( candidate.fileName ) )
 				return candidate;
 		}
 		// Have to open
 		for ( SourceFile candidate : source.sourceCandidates ) {
-			if ( sources.containsKey( candidate.fileName ) ) // Maps to null (otherwise upper loop would have returned)
+			if ( brokenSources.contains( candidate.fileName ) )
 				continue; // File is broken, don't use
 			if ( candidate.chunkSize != requiredSize )
 				continue;
 			File f = new File( candidate.fileName );
-			if ( !f.exists() ) {
-				sources.put( candidate.fileName, null ); // Mark for future
+			if ( closed || !f.exists() ) {
+				brokenSources.add( candidate.fileName ); // Mark for future
 				continue;
 			}
 			try {
 				RandomAccessFile raf = new RandomAccessFile( f, "r" );
-				sources.put( candidate.fileName, raf );
+				sources.put( candidate.fileName, raf.getChannel() );
 				return candidate;
 			} catch ( Exception e ) {
 				LOGGER.info( "Cannot open " + candidate.fileName, e );
-				sources.put( candidate.fileName, null ); // Mark for future
+				brokenSources.add( candidate.fileName ); // Mark for future
 			}
 		}
 		// Nothing worked
 		return null;
 	}
 
+	private synchronized void markBroken( String fileName )
+	{
+		brokenSources.add( fileName );
+		Util.safeClose( sources.remove( fileName ) );
+	}
+
+	private synchronized RandomAccessFile getDestination()
+	{
+		if ( closed )
+			return null;
+		RandomAccessFile file = destinations.pollFirst();
+		if ( file != null && file.getChannel().isOpen() )
+			return file;
+		try {
+			return new RandomAccessFile( transfer.getTmpFileName(), "rw" );
+		} catch ( IOException e ) {
+			LOGGER.warn( "Cannot open destination file " + transfer.getTmpFileName(), e );
+			return null;
+		}
+	}
+
+	private synchronized void releaseDestination( RandomAccessFile file )
+	{
+		if ( closed || !file.getChannel().isOpen() ) {
+			Util.safeClose( file );
+		} else {
+			destinations.addFirst( file );
+		}
+	}
+
 	public boolean isPaused()
 	{
 		return paused;
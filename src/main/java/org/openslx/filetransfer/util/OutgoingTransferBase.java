@@ -26,7 +26,11 @@ public abstract class OutgoingTransferBase extends AbstractTransfer
 	 * Overridable constants
 	 */
 
-	protected static int MAX_CONNECTIONS_PER_TRANSFER = 2;
+	/**
+	 * Upper bound for concurrent connections of one transfer. The actual limit
+	 * is determined by the transfer's {@link ConnectionScaler}.
+	 */
+	protected static int MAX_CONNECTIONS_PER_TRANSFER = 8;
 
 	/*
 	 * Class members
@@ -61,10 +65,12 @@ public abstract class OutgoingTransferBase extends AbstractTransfer
 	public synchronized boolean addConnection( final Uploader connection, ExecutorService pool )
 	{
 		synchronized ( uploads ) {
-			if ( uploads.size() >= MAX_CONNECTIONS_PER_TRANSFER )
+			// We cannot measure the round trip time on the uploading side
+			if ( !acquireConnectionSlot( connection, uploads.size(), 0, MAX_CONNECTIONS_PER_TRANSFER ) )
 				return false;
 			uploads.add( connection );
 		}
+		connection.addBandwidthLimiter( getBandwidthLimiter() );
 		return runConnectionInternal( connection, pool );
 	}
 
@@ -81,6 +87,7 @@ public abstract class OutgoingTransferBase extends AbstractTransfer
 					} finally {
 						synchronized ( uploads ) {
 							uploads.remove( connection );
+							releaseConnectionSlot( connection, uploads.size(), 0, MAX_CONNECTIONS_PER_TRANSFER );
 						}
 					}
 					if ( ret ) {
@@ -99,6 +106,7 @@ public abstract class OutgoingTransferBase extends AbstractTransfer
 			LOGGER.warn( "threadpool rejected the incoming file transfer", e );
 			synchronized ( uploads ) {
 				uploads.remove( connection );
+				releaseConnectionSlot( connection, uploads.size(), 0, MAX_CONNECTIONS_PER_TRANSFER );
 			}
 			return false;
 		}
@@ -0,0 +1,239 @@
+package org.openslx.filetransfer.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Writes chunks to the temporary file of an {@link IncomingTransferBase} in
+ * the background. Connections and the hash checker just hand over their
+ * buffer and carry on, while a single writer thread takes everything queued
+ * so far, sorts it by offset and writes runs of adjacent chunks with one
+ * gathering write. Once a chunk is on disk (or writing it failed), its
+ * callback is run by the writer thread.
+ */
+class WriteBehindQueue
+{
+
+	private static final Logger LOGGER = LogManager.getLogger( WriteBehindQueue.class );
+
+	/**
+	 * Writer thread exits after being idle for this long, and is restarted on demand
+	 */
+	private static final int IDLE_TIMEOUT_MS = 10000;
+
+	interface WriteCallback
+	{
+		/**
+		 * Called by the writer thread once the data has been written.
+		 *
+		 * @param success false if writing failed or the queue was closed
+		 */
+		void writeDone( boolean success );
+	}
+
+	private static class Entry implements Comparable<Entry>
+	{
+		private final long offset;
+		private final ByteBuffer data;
+		private final WriteCallback callback;
+
+		public Entry( long offset, ByteBuffer data, WriteCallback callback )
+		{
+			this.offset = offset;
+			this.data = data;
+			this.callback = callback;
+		}
+
+		@Override
+		public int compareTo( Entry o )
+		{
+			return Long.compare( offset, o.offset );
+		}
+	}
+
+	private final IncomingTransferBase transfer;
+
+	private final long maxPendingBytes;
+
+	private List<Entry> pending = new ArrayList<>();
+
+	/**
+	 * Bytes queued or currently being written
+	 */
+	private long pendingBytes = 0;
+
+	private Thread writer = null;
+
+	private boolean closed = false;
+
+	private long writeCount = 0, chunkCount = 0;
+
+	WriteBehindQueue( IncomingTransferBase transfer, long maxPendingBytes )
+	{
+		this.transfer = transfer;
+		this.maxPendingBytes = maxPendingBytes;
+	}
+
+	/**
+	 * Queue data for writing. Blocks while too much data is pending already.
+	 * If this returns true, the queue owns the buffer until the callback is
+	 * run.
+	 *
+	 * @param offset offset in file
+	 * @param data buffer containing the data
+	 * @param length number of bytes of buffer to write
+	 * @param callback called once the data is on disk
+	 * @return true if queued, false if the queue has been closed
+	 * @throws InterruptedException if interrupted while waiting for space in the queue
+	 */
+	public synchronized boolean add( long offset, byte[] data, int length, WriteCallback callback )
+			throws InterruptedException
+	{
+		while ( !closed && pendingBytes > 0 && pendingBytes + length > maxPendingBytes ) {
+			this.wait();
+		}
+		if ( closed )
+			return false;
+		pending.add( new Entry( offset, ByteBuffer.wrap( data, 0, length ), callback ) );
+		pendingBytes += length;
+		if ( writer == null ) {
+			writer = new Thread( "WriteBehind:" + transfer.getId() ) {
+				@Override
+				public void run()
+				{
+					writerLoop();
+				}
+			};
+			writer.setDaemon( true );
+			writer.start();
+		} else {
+			this.notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * Wait until everything queued so far is written. Returns immediately if
+	 * called by the writer thread.
+	 */
+	public synchronized void flush() throws InterruptedException
+	{
+		if ( Thread.currentThread() == writer )
+			return;
+		while ( pendingBytes > 0 ) {
+			this.wait();
+		}
+	}
+
+	/**
+	 * Close the queue. Data not written yet is discarded, and the according
+	 * callbacks are run with success = false.
+	 */
+	public void close()
+	{
+		List<Entry> discard;
+		synchronized ( this ) {
+			if ( closed )
+				return;
+			closed = true;
+			discard = pending;
+			pending = new ArrayList<>();
+			for ( Entry e : discard ) {
+				pendingBytes -= e.data.remaining();
+			}
+			this.notifyAll();
+		}
+		for ( Entry e : discard ) {
+			callback( e, false );
+		}
+	}
+
+	private void writerLoop()
+	{
+		for ( ;; ) {
+			List<Entry> batch;
+			synchronized ( this ) {
+				long deadline = System.currentTimeMillis() + IDLE_TIMEOUT_MS;
+				while ( pending.isEmpty() ) {
+					long wait = deadline - System.currentTimeMillis();
+					if ( closed || wait <= 0 ) {
+						writer = null;
+						return;
+					}
+					try {
+						this.wait( wait );
+					} catch ( InterruptedException e ) {
+						LOGGER.warn( "Write-behind thread of " + transfer.getId() + " interrupted" );
+						writer = null;
+						this.notifyAll();
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+				batch = pending;
+				pending = new ArrayList<>();
+			}
+			Collections.sort( batch );
+			long batchBytes = 0;
+			for ( int start = 0; start < batch.size(); ) {
+				// Find run of adjacent chunks
+				int end = start + 1;
+				long nextOffset = batch.get( start ).offset + batch.get( start ).data.remaining();
+				while ( end < batch.size() && batch.get( end ).offset == nextOffset ) {
+					nextOffset += batch.get( end ).data.remaining();
+					end++;
+				}
+				ByteBuffer[] buffers = new ByteBuffer[ end - start ];
+				for ( int i = start; i < end; ++i ) {
+					buffers[i - start] = batch.get( i ).data;
+				}
+				long offset = batch.get( start ).offset;
+				batchBytes += nextOffset - offset;
+				boolean ok = transfer.writeFileData( offset, buffers );
+				synchronized ( this ) {
+					writeCount++;
+					chunkCount += buffers.length;
+				}
+				for ( int i = start; i < end; ++i ) {
+					callback( batch.get( i ), ok );
+				}
+				start = end;
+			}
+			synchronized ( this ) {
+				pendingBytes -= batchBytes;
+				this.notifyAll();
+			}
+		}
+	}
+
+	private void callback( Entry e, boolean success )
+	{
+		try {
+			e.callback.writeDone( success );
+		} catch ( Throwable t ) {
+			LOGGER.warn( "Write callback of " + transfer.getId() + " threw", t );
+		}
+	}
+
+	/**
+	 * @return number of write operations issued so far
+	 */
+	synchronized long getWriteCount()
+	{
+		return writeCount;
+	}
+
+	/**
+	 * @return number of chunks written so far
+	 */
+	synchronized long getChunkCount()
+	{
+		return chunkCount;
+	}
+
+}
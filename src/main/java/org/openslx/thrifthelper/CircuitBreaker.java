@@ -0,0 +1,218 @@
+package org.openslx.thrifthelper;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Keeps track of whether a server seems to be down, so calls can fail right
+ * away instead of every one of them waiting for connection timeouts.
+ * After {@link Config#failureThreshold} failed calls or connection attempts in
+ * a row, no calls are let through for a while (OPEN). Once that time is up, or
+ * a background probe could connect to the server again, a single call is let
+ * through (HALF_OPEN); if that call succeeds, calls go through normally again
+ * (CLOSED), otherwise the breaker stays open for twice as long as before.
+ */
+public class CircuitBreaker
+{
+
+	private static final Logger LOGGER = LogManager.getLogger( CircuitBreaker.class );
+
+	public enum State
+	{
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	public static class Config
+	{
+		/**
+		 * Number of failed calls or connection attempts in a row after which no
+		 * calls are let through for a while
+		 */
+		public int failureThreshold = 3;
+		/**
+		 * How long to not let calls through after the threshold was reached.
+		 * Doubles every time the trial call after that fails too.
+		 */
+		public int openMs = 10_000;
+		/**
+		 * Maximum time to not let calls through
+		 */
+		public int maxOpenMs = 120_000;
+	}
+
+	private final String name;
+
+	private final int failureThreshold, minOpenMs, maxOpenMs;
+
+	private State state = State.CLOSED;
+
+	private int consecutiveFailures;
+
+	/** While OPEN, don't let calls through before this time */
+	private long openUntil;
+
+	/** How long to stay OPEN next time */
+	private long openMs;
+
+	/** While HALF_OPEN, whether the trial call is running */
+	private boolean trialRunning;
+
+	private boolean probing;
+
+	/**
+	 * Statistics
+	 */
+	private long timesOpened, rejected;
+
+	public CircuitBreaker( String name, Config config )
+	{
+		if ( config.failureThreshold <= 0 || config.openMs <= 0 )
+			throw new IllegalArgumentException( "Invalid circuit breaker config for " + name );
+		this.name = name;
+		this.failureThreshold = config.failureThreshold;
+		this.minOpenMs = config.openMs;
+		this.maxOpenMs = Math.max( config.openMs, config.maxOpenMs );
+		this.openMs = minOpenMs;
+	}
+
+	/**
+	 * Whether a call could be made right now, without reserving anything.
+	 */
+	public synchronized boolean isAvailable()
+	{
+		switch ( state ) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			return System.currentTimeMillis() >= openUntil;
+		default:
+			return !trialRunning;
+		}
+	}
+
+	/**
+	 * Ask for permission to make a call. If this returns true, {@link #done()}
+	 * has to be called once the call is over, after reporting its outcome via
+	 * {@link #success()} or {@link #failure()}.
+	 */
+	public synchronized boolean acquire()
+	{
+		if ( state == State.OPEN ) {
+			if ( System.currentTimeMillis() < openUntil ) {
+				rejected++;
+				return false;
+			}
+			state = State.HALF_OPEN;
+		}
+		if ( state == State.HALF_OPEN ) {
+			if ( trialRunning ) {
+				rejected++;
+				return false;
+			}
+			trialRunning = true;
+		}
+		return true;
+	}
+
+	/**
+	 * A call permitted by {@link #acquire()} is over.
+	 */
+	public synchronized void done()
+	{
+		trialRunning = false;
+	}
+
+	/**
+	 * A call went through fine.
+	 */
+	public synchronized void success()
+	{
+		consecutiveFailures = 0;
+		if ( state != State.CLOSED ) {
+			LOGGER.info( "Circuit breaker for " + name + " closed again" );
+			state = State.CLOSED;
+		}
+		openMs = minOpenMs;
+	}
+
+	/**
+	 * A call or connection attempt failed.
+	 */
+	public synchronized void failure()
+	{
+		consecutiveFailures++;
+		if ( state == State.HALF_OPEN || ( state == State.CLOSED && consecutiveFailures >= failureThreshold ) ) {
+			if ( state != State.OPEN ) {
+				timesOpened++;
+				LOGGER.warn( "Circuit breaker for " + name + " opened after " + consecutiveFailures
+						+ " failures, failing calls for " + openMs + "ms" );
+			}
+			state = State.OPEN;
+			openUntil = System.currentTimeMillis() + openMs;
+			openMs = Math.min( maxOpenMs, openMs * 2 );
+		}
+	}
+
+	/**
+	 * Check whether the server should be probed in the background, and mark it
+	 * as being probed if so.
+	 */
+	synchronized boolean startProbe()
+	{
+		if ( state != State.OPEN || probing )
+			return false;
+		probing = true;
+		return true;
+	}
+
+	/**
+	 * Result of a background probe started via {@link #startProbe()}. If we
+	 * could connect, the next call may go through right away.
+	 */
+	synchronized void probeFinished( boolean ok )
+	{
+		probing = false;
+		if ( ok && state == State.OPEN ) {
+			openUntil = 0;
+		}
+	}
+
+	public synchronized State getState()
+	{
+		return state;
+	}
+
+	public synchronized int getConsecutiveFailures()
+	{
+		return consecutiveFailures;
+	}
+
+	/**
+	 * @return how often the breaker opened
+	 */
+	public synchronized long getTimesOpened()
+	{
+		return timesOpened;
+	}
+
+	/**
+	 * @return number of calls not let through
+	 */
+	public synchronized long getRejectedCount()
+	{
+		return rejected;
+	}
+
+	public synchronized String getStats()
+	{
+		return state + ", failures in a row: " + consecutiveFailures + ", opened: " + timesOpened + ", rejected: "
+				+ rejected;
+	}
+
+	@Override
+	public String toString()
+	{
+		return name + ": " + getStats();
+	}
+
+}
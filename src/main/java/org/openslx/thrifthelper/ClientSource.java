@@ -0,0 +1,43 @@
+package org.openslx.thrifthelper;
+
+import org.apache.thrift.TServiceClient;
+import org.apache.thrift.transport.TTransportException;
+import org.openslx.thrifthelper.ThriftClientPool.PooledClient;
+
+/**
+ * Where {@link ThriftHandler} gets its connections from; either a single
+ * {@link ThriftClientPool}, or a {@link ThriftEndpointGroup} spreading calls
+ * over multiple servers.
+ */
+interface ClientSource<T extends TServiceClient>
+{
+
+	/**
+	 * Get a connection.
+	 *
+	 * @return connection, or null if creating a new connection failed
+	 * @throws TTransportException if no connection became available in time
+	 */
+	PooledClient<T> borrow() throws TTransportException;
+
+	/**
+	 * Return a connection after a call.
+	 */
+	void release( PooledClient<T> client );
+
+	/**
+	 * Get rid of a borrowed connection, as it's broken.
+	 */
+	void invalidate( PooledClient<T> client );
+
+	/**
+	 * Report the outcome of a call made on a borrowed connection. Called
+	 * before the connection is released or invalidated.
+	 *
+	 * @param nanos how long the call took
+	 * @param ok false if the call failed because of a transport or protocol
+	 *           error
+	 */
+	void callFinished( PooledClient<T> client, long nanos, boolean ok );
+
+}
@@ -0,0 +1,222 @@
+package org.openslx.thrifthelper;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.thrift.transport.TTransportException;
+import org.openslx.thrifthelper.ThriftManager.ErrorCallback;
+
+/**
+ * Ready-made {@link ErrorCallback} for
+ * {@link ThriftManager#setMasterErrorCallback(ErrorCallback)} and
+ * {@link ThriftManager#setSatelliteErrorCallback(ErrorCallback)}.
+ * Only calls that failed because the connection couldn't be opened or broke
+ * are retried; anything else, like a protocol error or an application
+ * exception, never is. Before retrying, a random time between zero and an
+ * exponentially growing maximum is waited, so clients don't all come back at
+ * the same time after a server restart. On top of that, every method has a
+ * budget of retries that refills slowly, so a server that is down isn't kept
+ * busy with retries of a method that is called a lot.
+ */
+public class RetryPolicy implements ErrorCallback
+{
+
+	private static final Logger LOGGER = LogManager.getLogger( RetryPolicy.class );
+
+	public static class Config
+	{
+		/**
+		 * Maximum number of retries per call
+		 */
+		public int maxRetries = 3;
+		/**
+		 * Maximum time to wait before the first retry; doubles with every
+		 * further retry
+		 */
+		public int baseDelayMs = 100;
+		/**
+		 * Upper limit of the maximum time to wait before a retry
+		 */
+		public int maxDelayMs = 10_000;
+		/**
+		 * Number of retries a method can use up in a short time
+		 */
+		public int retryBudget = 10;
+		/**
+		 * Time it takes for one retry to be added to a method's budget again
+		 */
+		public int budgetRefillMs = 1_000;
+	}
+
+	private static class Budget
+	{
+		double tokens;
+		long lastRefill;
+	}
+
+	private final int maxRetries, baseDelayMs, maxDelayMs, retryBudget, budgetRefillMs;
+
+	private final ErrorCallback next;
+
+	private final Map<String, Budget> budgets = new HashMap<>();
+
+	/**
+	 * Statistics
+	 */
+	private long retries, notRetryable, exhausted, overBudget, delayMs;
+
+	public RetryPolicy( Config config )
+	{
+		this( config, null );
+	}
+
+	/**
+	 * Create policy that also asks another callback, e.g. for logging. A call
+	 * is only retried if both this policy and the other callback agree; the
+	 * other callback is asked first and not told about the wait.
+	 */
+	public RetryPolicy( Config config, ErrorCallback next )
+	{
+		if ( config.maxRetries < 0 || config.baseDelayMs < 0 || config.maxDelayMs < 0 || config.retryBudget < 0
+				|| config.budgetRefillMs <= 0 )
+			throw new IllegalArgumentException( "Invalid retry policy config" );
+		this.maxRetries = config.maxRetries;
+		this.baseDelayMs = config.baseDelayMs;
+		this.maxDelayMs = Math.max( config.baseDelayMs, config.maxDelayMs );
+		this.retryBudget = config.retryBudget;
+		this.budgetRefillMs = config.budgetRefillMs;
+		this.next = next;
+	}
+
+	@Override
+	public boolean thriftError( int failCount, String method, Throwable t )
+	{
+		if ( next != null && !next.thriftError( failCount, method, t ) )
+			return false;
+		if ( !isRetryable( t ) ) {
+			synchronized ( this ) {
+				notRetryable++;
+			}
+			return false;
+		}
+		if ( failCount > maxRetries ) {
+			synchronized ( this ) {
+				exhausted++;
+			}
+			return false;
+		}
+		if ( !takeBudget( method ) ) {
+			LOGGER.debug( "Retry budget of " + method + " used up, not retrying" );
+			return false;
+		}
+		long delay = getDelayMs( failCount );
+		synchronized ( this ) {
+			retries++;
+			delayMs += delay;
+		}
+		if ( delay > 0 ) {
+			try {
+				Thread.sleep( delay );
+			} catch ( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Whether a call that failed with the given exception should be retried.
+	 * null means we couldn't connect.
+	 */
+	static boolean isRetryable( Throwable t )
+	{
+		return t == null || t instanceof TTransportException;
+	}
+
+	/**
+	 * Pick the time to wait before the given retry: random, between zero and
+	 * base delay * 2^(failCount-1), capped at the max delay.
+	 */
+	long getDelayMs( int failCount )
+	{
+		long max = baseDelayMs;
+		for ( int i = 1; i < failCount && max < maxDelayMs; ++i ) {
+			max *= 2;
+		}
+		max = Math.min( max, maxDelayMs );
+		if ( max <= 0 )
+			return 0;
+		return ThreadLocalRandom.current().nextLong( max + 1 );
+	}
+
+	/**
+	 * Use up one retry of the given method's budget.
+	 *
+	 * @return false if the budget is used up
+	 */
+	synchronized boolean takeBudget( String method )
+	{
+		long now = System.currentTimeMillis();
+		Budget budget = budgets.get( method );
+		if ( budget == null ) {
+			budget = new Budget();
+			budget.tokens = retryBudget;
+			budgets.put( method, budget );
+		} else {
+			budget.tokens = Math.min( retryBudget,
+					budget.tokens + (double) ( now - budget.lastRefill ) / budgetRefillMs );
+		}
+		budget.lastRefill = now;
+		if ( budget.tokens < 1 ) {
+			overBudget++;
+			return false;
+		}
+		budget.tokens--;
+		return true;
+	}
+
+	/**
+	 * @return number of retries allowed so far
+	 */
+	public synchronized long getRetryCount()
+	{
+		return retries;
+	}
+
+	/**
+	 * @return number of failed calls not retried because of the kind of error
+	 */
+	public synchronized long getNotRetryableCount()
+	{
+		return notRetryable;
+	}
+
+	/**
+	 * @return number of failed calls not retried because they were retried
+	 *         too often already
+	 */
+	public synchronized long getExhaustedCount()
+	{
+		return exhausted;
+	}
+
+	/**
+	 * @return number of failed calls not retried because the method's budget
+	 *         was used up
+	 */
+	public synchronized long getOverBudgetCount()
+	{
+		return overBudget;
+	}
+
+	public synchronized String getStats()
+	{
+		return "Retries: " + retries + " (" + delayMs + "ms waited), not retryable: " + notRetryable
+				+ ", too many retries: " + exhausted + ", over budget: " + overBudget;
+	}
+
+}
@@ -0,0 +1,537 @@
+package org.openslx.thrifthelper;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.thrift.TException;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.async.TAsyncClient;
+import org.apache.thrift.async.TAsyncClientManager;
+import org.apache.thrift.protocol.TProtocolException;
+import org.apache.thrift.transport.TNonblockingSocket;
+import org.apache.thrift.transport.TNonblockingTransport;
+import org.apache.thrift.transport.TTransportException;
+import org.openslx.thrifthelper.ThriftManager.ErrorCallback;
+import org.openslx.util.PrioThreadFactory;
+
+/**
+ * Asynchronous client for a thrift server, returning {@link CompletableFuture}s,
+ * so many calls can be outstanding without a thread per call. See
+ * {@link ThriftManager#getMasterAsyncClient()}.
+ * For plain connections, calls are made via thrift's non-blocking transport,
+ * with one selector thread per server. As an async client can only run one
+ * call at a time, connections are pooled like for the blocking clients, and
+ * calls exceeding {@link ThriftClientPool.Config#maxTotal} are queued.
+ * Broken connections are handled the same way as for the blocking clients:
+ * the {@link ErrorCallback} is asked whether to retry on a new connection.
+ * Thrift's non-blocking transport doesn't support TLS, so for TLS servers
+ * calls are run through the blocking client on a pool of worker threads
+ * instead.
+ * Futures are always completed on a worker thread, never on the selector
+ * thread, so dependent stages cannot stall other calls.
+ *
+ * @param <I> the AsyncIface of the thrift service
+ */
+public class ThriftAsyncClient<I>
+{
+
+	private static final Logger LOGGER = LogManager.getLogger( ThriftAsyncClient.class );
+
+	/**
+	 * Runs the error callback after a connection broke. This might block for a
+	 * while, e.g. {@link RetryPolicy} sleeps in there, so keep it away from the
+	 * workers that complete the futures.
+	 */
+	private static final ThreadPoolExecutor retryPool;
+
+	static {
+		retryPool = new ThreadPoolExecutor( 0, Integer.MAX_VALUE, 1, TimeUnit.MINUTES,
+				new SynchronousQueue<Runnable>(), new PrioThreadFactory( "ThriftAsyncRetry" ) );
+	}
+
+	/**
+	 * A call to make on an async client, usually a lambda like
+	 * <code>(client, cb) -&gt; client.getImageDetails( session, id, cb )</code>.
+	 */
+	public interface AsyncCall<I, R>
+	{
+		public void call( I client, AsyncMethodCallback<R> callback ) throws TException;
+	}
+
+	/**
+	 * Creates an async client for the given connection
+	 */
+	interface AsyncClientCreator<I>
+	{
+		public I newClient( TAsyncClientManager manager, TNonblockingTransport transport );
+	}
+
+	private static class Connection<I>
+	{
+		final I client;
+		final TNonblockingTransport transport;
+		long lastUse;
+
+		Connection( I client, TNonblockingTransport transport )
+		{
+			this.client = client;
+			this.transport = transport;
+		}
+	}
+
+	private final String name;
+
+	private final int maxTotal, maxIdleMs, validateAfterMs, timeoutMs;
+
+	/*
+	 * Non-blocking mode
+	 */
+
+	private final String host;
+
+	private final int port;
+
+	private final AsyncClientCreator<I> creator;
+
+	private final ErrorCallback errorCallback;
+
+	/** Connections waiting for reuse, most recently used first */
+	private final Deque<Connection<I>> idle = new ArrayDeque<>();
+
+	/** Calls waiting for a connection */
+	private final Deque<Attempt<?>> pending = new ArrayDeque<>();
+
+	private int active;
+
+	private TAsyncClientManager manager;
+
+	/*
+	 * TLS mode
+	 */
+
+	/**
+	 * AsyncIface implementation running calls through the blocking client
+	 */
+	private final I bridge;
+
+	/**
+	 * Completes futures in non-blocking mode, runs calls in TLS mode
+	 */
+	private final ThreadPoolExecutor workers;
+
+	private boolean closed = false;
+
+	private ThriftAsyncClient( String name, String host, int port, int timeoutMs, AsyncClientCreator<I> creator,
+			ErrorCallback errorCallback, I bridge, ThriftClientPool.Config config )
+	{
+		if ( config.maxTotal <= 0 )
+			throw new IllegalArgumentException( "Invalid pool config for " + name );
+		this.name = name;
+		this.host = host;
+		this.port = port;
+		this.timeoutMs = timeoutMs;
+		this.creator = creator;
+		this.errorCallback = errorCallback;
+		this.bridge = bridge;
+		this.maxTotal = config.maxTotal;
+		this.maxIdleMs = config.maxIdleMs;
+		this.validateAfterMs = Math.min( config.validateAfterMs, config.maxIdleMs );
+		// In non-blocking mode, workers only run completions and error callbacks
+		int threads = bridge == null ? Math.min( 4, maxTotal ) : maxTotal;
+		this.workers = new ThreadPoolExecutor( threads, threads, 1, TimeUnit.MINUTES,
+				new LinkedBlockingQueue<Runnable>(), new PrioThreadFactory( "ThriftAsync-" + name ) );
+		this.workers.allowCoreThreadTimeOut( true );
+	}
+
+	/**
+	 * Create client using thrift's non-blocking transport.
+	 */
+	static <I> ThriftAsyncClient<I> nonBlocking( String name, String host, int port, int timeoutMs,
+			AsyncClientCreator<I> creator, ErrorCallback errorCallback, ThriftClientPool.Config config )
+	{
+		return new ThriftAsyncClient<I>( name, host, port, timeoutMs, creator, errorCallback, null, config );
+	}
+
+	/**
+	 * Create client running calls through the given blocking client on worker
+	 * threads. Retrying is left to the blocking client.
+	 *
+	 * @param asyncIfClazz AsyncIface of the service
+	 * @param blockingClient Iface implementation, i.e. proxy from {@link ThriftManager}
+	 */
+	static <I> ThriftAsyncClient<I> blocking( String name, Class<I> asyncIfClazz, Object blockingClient,
+			ThriftClientPool.Config config )
+	{
+		return new ThriftAsyncClient<I>( name, null, 0, 0, null, null, createBridge( asyncIfClazz, blockingClient ),
+				config );
+	}
+
+	/**
+	 * Create an AsyncIface implementation that runs each call through the
+	 * method of the same name of the blocking client on a worker thread.
+	 */
+	private static <I> I createBridge( Class<I> asyncIfClazz, final Object blockingClient )
+	{
+		final Map<String, Method> syncMethods = new HashMap<>();
+		for ( Method asyncMethod : asyncIfClazz.getMethods() ) {
+			Class<?>[] params = asyncMethod.getParameterTypes();
+			for ( Class<?> iface : blockingClient.getClass().getInterfaces() ) {
+				try {
+					syncMethods.put( asyncMethod.getName(),
+							iface.getMethod( asyncMethod.getName(), Arrays.copyOf( params, params.length - 1 ) ) );
+					break;
+				} catch ( NoSuchMethodException e ) {
+				}
+			}
+		}
+		final Map<String, Method> methods = Collections.unmodifiableMap( syncMethods );
+		return asyncIfClazz.cast( Proxy.newProxyInstance( asyncIfClazz.getClassLoader(), new Class<?>[] { asyncIfClazz },
+				new InvocationHandler() {
+					@Override
+					public Object invoke( Object proxy, Method method, final Object[] args ) throws Throwable
+					{
+						final Method target = methods.get( method.getName() );
+						if ( target == null || args == null || args.length == 0 )
+							throw new IllegalAccessException( "Cannot call this method on an async thrift client" );
+						@SuppressWarnings( "unchecked" )
+						final AsyncMethodCallback<Object> callback = (AsyncMethodCallback<Object>)args[args.length - 1];
+						final Object[] callArgs = Arrays.copyOf( args, args.length - 1 );
+						// Caller already runs on a worker, see call()
+						try {
+							callback.onComplete( target.invoke( blockingClient, callArgs ) );
+						} catch ( InvocationTargetException e ) {
+							Throwable cause = e.getCause();
+							callback.onError( cause instanceof Exception ? (Exception)cause : e );
+						}
+						return null;
+					}
+				} ) );
+	}
+
+	/**
+	 * Make a call. The returned future completes with the call's result, or
+	 * exceptionally with the exception the call threw, or the transport error
+	 * if the {@link ErrorCallback} decided not to retry.
+	 *
+	 * @param method name of the thrift method, passed to the error callback
+	 * @param call the call to make
+	 */
+	public <R> CompletableFuture<R> call( String method, AsyncCall<I, R> call )
+	{
+		final CompletableFuture<R> future = new CompletableFuture<>();
+		if ( bridge != null ) {
+			final AsyncCall<I, R> bridgeCall = call;
+			try {
+				workers.execute( new Runnable() {
+					@Override
+					public void run()
+					{
+						try {
+							bridgeCall.call( bridge, new AsyncMethodCallback<R>() {
+								@Override
+								public void onComplete( R response )
+								{
+									future.complete( response );
+								}
+
+								@Override
+								public void onError( Exception e )
+								{
+									future.completeExceptionally( e );
+								}
+							} );
+						} catch ( Exception e ) {
+							future.completeExceptionally( e );
+						}
+					}
+				} );
+			} catch ( RejectedExecutionException e ) {
+				future.completeExceptionally( new TTransportException( "Client closed" ) );
+			}
+		} else {
+			new Attempt<>( method, call, future ).start();
+		}
+		return future;
+	}
+
+	/**
+	 * One call, possibly retried on multiple connections.
+	 */
+	private class Attempt<R> implements AsyncMethodCallback<R>, Runnable
+	{
+		private final String method;
+		private final AsyncCall<I, R> call;
+		private final CompletableFuture<R> future;
+		private Connection<I> connection;
+		private boolean reused;
+		private int failCount = 0;
+
+		Attempt( String method, AsyncCall<I, R> call, CompletableFuture<R> future )
+		{
+			this.method = method;
+			this.call = call;
+			this.future = future;
+		}
+
+		/**
+		 * Get a connection and make the call, or queue if all connections are in
+		 * use.
+		 */
+		void start()
+		{
+			synchronized ( ThriftAsyncClient.this ) {
+				if ( closed ) {
+					complete( null, new TTransportException( "Client closed" ) );
+					return;
+				}
+				if ( active >= maxTotal ) {
+					pending.addLast( this );
+					return;
+				}
+				active++;
+			}
+			run();
+		}
+
+		/**
+		 * Called with a slot reserved in {@link #active}
+		 */
+		@Override
+		public void run()
+		{
+			try {
+				connection = getConnection();
+			} catch ( TTransportException | IOException | RuntimeException e ) {
+				connection = null;
+				releaseSlot( null, false );
+				failed( e );
+				return;
+			}
+			try {
+				call.call( connection.client, this );
+			} catch ( Exception e ) {
+				onError( e );
+			}
+		}
+
+		private Connection<I> getConnection() throws TTransportException, IOException
+		{
+			long now = System.currentTimeMillis();
+			Connection<I> c;
+			synchronized ( ThriftAsyncClient.this ) {
+				while ( ( c = idle.pollFirst() ) != null ) {
+					if ( now - c.lastUse < maxIdleMs && c.transport.isOpen() )
+						break;
+					c.transport.close();
+				}
+			}
+			reused = c != null && now - c.lastUse > validateAfterMs;
+			if ( c != null )
+				return c;
+			TNonblockingSocket transport = new TNonblockingSocket( host, port, timeoutMs );
+			try {
+				I client = creator.newClient( getManager(), transport );
+				if ( timeoutMs > 0 ) {
+					( (TAsyncClient)client ).setTimeout( timeoutMs );
+				}
+				return new Connection<I>( client, transport );
+			} catch ( IOException | RuntimeException e ) {
+				transport.close();
+				throw e;
+			}
+		}
+
+		@Override
+		public void onComplete( R response )
+		{
+			releaseSlot( connection, false );
+			complete( response, null );
+		}
+
+		@Override
+		public void onError( Exception e )
+		{
+			boolean broken = isConnectionError( e );
+			releaseSlot( connection, broken || ( (TAsyncClient)connection.client ).hasError() );
+			if ( broken ) {
+				failed( e );
+			} else {
+				complete( null, e );
+			}
+		}
+
+		/**
+		 * Connection broke, ask error callback whether to retry.
+		 */
+		private void failed( final Exception e )
+		{
+			if ( reused && failCount == 0 ) {
+				// Connection went stale while idle, this doesn't count
+				LOGGER.debug( "Idle connection to " + name + " broke, retrying" );
+				reused = false;
+				start();
+				return;
+			}
+			if ( errorCallback == null ) {
+				complete( null, e );
+				return;
+			}
+			try {
+				retryPool.execute( new Runnable() {
+					@Override
+					public void run()
+					{
+						// Call the error callback. As long as true is returned, keep retrying
+						if ( errorCallback.thriftError( ++failCount, method, e ) ) {
+							start();
+						} else {
+							complete( null, e );
+						}
+					}
+				} );
+			} catch ( RejectedExecutionException e2 ) {
+				complete( null, e );
+			}
+		}
+
+		private void complete( final R response, final Throwable t )
+		{
+			try {
+				workers.execute( new Runnable() {
+					@Override
+					public void run()
+					{
+						if ( t == null ) {
+							future.complete( response );
+						} else {
+							future.completeExceptionally( t );
+						}
+					}
+				} );
+			} catch ( RejectedExecutionException e ) {
+				future.completeExceptionally( t == null ? new TTransportException( "Client closed" ) : t );
+			}
+		}
+	}
+
+	private static boolean isConnectionError( Exception e )
+	{
+		return e instanceof TTransportException || e instanceof TProtocolException || e instanceof IOException
+				|| e instanceof TimeoutException;
+	}
+
+	/**
+	 * Give back connection after a call, and start next queued call, if any.
+	 */
+	private void releaseSlot( Connection<I> connection, boolean broken )
+	{
+		Attempt<?> next;
+		synchronized ( this ) {
+			if ( connection != null ) {
+				if ( broken || closed ) {
+					connection.transport.close();
+				} else {
+					connection.lastUse = System.currentTimeMillis();
+					idle.addFirst( connection );
+				}
+			}
+			next = pending.pollFirst();
+			if ( next == null ) {
+				active--;
+			}
+		}
+		if ( next != null ) {
+			// Slot is handed over, but don't make the call on the selector thread
+			try {
+				workers.execute( next );
+			} catch ( RejectedExecutionException e ) {
+				next.run();
+			}
+		}
+	}
+
+	private synchronized TAsyncClientManager getManager() throws IOException
+	{
+		if ( closed )
+			throw new IOException( "Client closed" );
+		if ( manager == null ) {
+			manager = new TAsyncClientManager();
+		}
+		return manager;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * @return number of calls currently being made
+	 */
+	public synchronized int getActiveCount()
+	{
+		return active;
+	}
+
+	/**
+	 * @return number of calls waiting for a connection
+	 */
+	public synchronized int getPendingCount()
+	{
+		return pending.size();
+	}
+
+	/**
+	 * @return number of idle connections
+	 */
+	public synchronized int getIdleCount()
+	{
+		return idle.size();
+	}
+
+	/**
+	 * Close all connections and stop the selector thread. Calls that are still
+	 * queued or in progress fail.
+	 */
+	public void close()
+	{
+		TAsyncClientManager mgr;
+		synchronized ( this ) {
+			if ( closed )
+				return;
+			closed = true;
+			for ( Connection<I> c : idle ) {
+				c.transport.close();
+			}
+			idle.clear();
+			for ( Attempt<?> a : pending ) {
+				a.future.completeExceptionally( new TTransportException( "Client closed" ) );
+			}
+			pending.clear();
+			mgr = manager;
+		}
+		if ( mgr != null ) {
+			mgr.stop();
+		}
+		workers.shutdown();
+	}
+
+}
@@ -0,0 +1,464 @@
+package org.openslx.thrifthelper;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.thrift.TBase;
+import org.apache.thrift.TBaseHelper;
+import org.apache.thrift.TException;
+import org.openslx.util.PrioThreadFactory;
+
+/**
+ * Caching wrapper for a thrift client, for calls returning data that rarely
+ * changes, like the list of operating systems or virtualizers. Which methods
+ * are cached, and for how long, is configured per method via
+ * {@link #cache(String, long, long)}; all other calls are passed on as they
+ * are.
+ * Results are cached per method and arguments. Concurrent identical calls
+ * for which nothing is cached result in a single call to the server, which
+ * the others wait for. Once a result expired, it is still returned for the
+ * configured stale period, while it's refreshed in the background.
+ * Thrift structs are mutable, so the cache keeps its own copy of each result
+ * and every caller gets a copy of that, which callers may modify freely
+ * without affecting anybody else.
+ *
+ * @param <T> the Iface of the thrift service
+ */
+public class ThriftCachingProxy<T>
+{
+
+	private static final Logger LOGGER = LogManager.getLogger( ThriftCachingProxy.class );
+
+	/**
+	 * Methods returning reference data, see {@link #cacheReferenceData()}
+	 */
+	private static final String[] REFERENCE_DATA_METHODS = { "getOperatingSystems", "getVirtualizers",
+			"getOrganizations", "getAllOrganizations", "getLocations", "getPredefinedData", "getConfiguration",
+			"getSupportedFeatures" };
+
+	/**
+	 * Start purging unusable entries once we have this many
+	 */
+	private static final int PURGE_THRESHOLD = 1024;
+
+	private static final ThreadPoolExecutor refreshPool;
+
+	static {
+		refreshPool = new ThreadPoolExecutor( 2, 2, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(),
+				new PrioThreadFactory( "ThriftCacheRefresh" ) );
+		refreshPool.allowCoreThreadTimeOut( true );
+	}
+
+	private static class MethodConfig
+	{
+		final long ttlMs, staleMs;
+
+		MethodConfig( long ttlMs, long staleMs )
+		{
+			this.ttlMs = ttlMs;
+			this.staleMs = staleMs;
+		}
+	}
+
+	private static final class Key
+	{
+		private final String method;
+		private final List<Object> args;
+
+		Key( String method, Object[] args )
+		{
+			this.method = method;
+			this.args = args == null ? null : Arrays.asList( args.clone() );
+		}
+
+		@Override
+		public boolean equals( Object obj )
+		{
+			if ( !( obj instanceof Key ) )
+				return false;
+			Key o = (Key)obj;
+			return method.equals( o.method ) && ( args == null ? o.args == null : args.equals( o.args ) );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return method.hashCode() ^ ( args == null ? 0 : args.hashCode() );
+		}
+	}
+
+	private static class Entry
+	{
+		/** Cached copy of the result, if loaded */
+		Object value;
+		boolean hasValue;
+		long expiresAt, staleUntil;
+		/** Running call to the server, if any */
+		CompletableFuture<Object> loading;
+	}
+
+	private final T target;
+
+	private final T client;
+
+	private final Map<String, MethodConfig> config = new ConcurrentHashMap<>();
+
+	/**
+	 * Methods invalidating cached methods when called
+	 */
+	private final Map<String, Set<String>> invalidatedBy = new ConcurrentHashMap<>();
+
+	private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+
+	private final Set<String> methodNames = new HashSet<>();
+
+	private final AtomicLong hits = new AtomicLong(), staleHits = new AtomicLong(), misses = new AtomicLong(),
+			coalesced = new AtomicLong(), refreshFailures = new AtomicLong();
+
+	/**
+	 * Wrap given client.
+	 *
+	 * @param ifClazz the Iface of the thrift service
+	 * @param target client to wrap, usually from {@link ThriftManager}
+	 */
+	public ThriftCachingProxy( Class<T> ifClazz, final T target )
+	{
+		this.target = target;
+		for ( Method m : ifClazz.getMethods() ) {
+			methodNames.add( m.getName() );
+		}
+		this.client = ifClazz.cast( Proxy.newProxyInstance( ifClazz.getClassLoader(), new Class<?>[] { ifClazz },
+				new InvocationHandler() {
+					@Override
+					public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable
+					{
+						return handle( method, args );
+					}
+				} ) );
+	}
+
+	/**
+	 * Get the caching client. Use it like the wrapped client.
+	 */
+	public T getClient()
+	{
+		return client;
+	}
+
+	/**
+	 * Cache results of given method.
+	 *
+	 * @param method name of the method
+	 * @param ttlMs how long a result is used without asking the server again
+	 * @param staleMs how long an expired result is still used, while it's
+	 *           refreshed in the background; 0 to wait for a fresh result
+	 * @return this, for chaining
+	 */
+	public ThriftCachingProxy<T> cache( String method, long ttlMs, long staleMs )
+	{
+		checkMethod( method );
+		if ( ttlMs <= 0 ) {
+			config.remove( method );
+		} else {
+			config.put( method, new MethodConfig( ttlMs, Math.max( 0, staleMs ) ) );
+		}
+		invalidate( method );
+		return this;
+	}
+
+	/**
+	 * Cache the usual reference data calls of the wrapped service, like
+	 * getOperatingSystems or getVirtualizers, for five minutes, using stale
+	 * results for another 30 minutes if refreshing fails or takes a while.
+	 *
+	 * @return this, for chaining
+	 */
+	public ThriftCachingProxy<T> cacheReferenceData()
+	{
+		for ( String method : REFERENCE_DATA_METHODS ) {
+			if ( methodNames.contains( method ) ) {
+				cache( method, TimeUnit.MINUTES.toMillis( 5 ), TimeUnit.MINUTES.toMillis( 30 ) );
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Invalidate cached results of the given methods whenever the given
+	 * method is called through this proxy, e.g. because it modifies the
+	 * data they return.
+	 *
+	 * @return this, for chaining
+	 */
+	public ThriftCachingProxy<T> invalidateOn( String method, String... cachedMethods )
+	{
+		checkMethod( method );
+		Set<String> set = new HashSet<>( Arrays.asList( cachedMethods ) );
+		Set<String> old = invalidatedBy.get( method );
+		if ( old != null ) {
+			set.addAll( old );
+		}
+		invalidatedBy.put( method, set );
+		return this;
+	}
+
+	/**
+	 * Drop all cached results of given method.
+	 */
+	public void invalidate( String method )
+	{
+		for ( Iterator<Key> it = entries.keySet().iterator(); it.hasNext(); ) {
+			if ( it.next().method.equals( method ) ) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Drop cached result of given method for the given arguments.
+	 */
+	public void invalidate( String method, Object... args )
+	{
+		entries.remove( new Key( method, args.length == 0 ? null : args ) );
+	}
+
+	/**
+	 * Drop all cached results.
+	 */
+	public void invalidateAll()
+	{
+		entries.clear();
+	}
+
+	private void checkMethod( String method )
+	{
+		if ( !methodNames.contains( method ) )
+			throw new IllegalArgumentException( "No such method: " + method );
+	}
+
+	private Object handle( Method method, Object[] args ) throws Throwable
+	{
+		String name = method.getName();
+		MethodConfig cfg = config.get( name );
+		if ( cfg == null ) {
+			Object ret = invokeTarget( method, args );
+			Set<String> invalidate = invalidatedBy.get( name );
+			if ( invalidate != null ) {
+				for ( String m : invalidate ) {
+					invalidate( m );
+				}
+			}
+			return ret;
+		}
+		Key key = new Key( name, args );
+		Entry entry = entries.get( key );
+		if ( entry == null ) {
+			if ( entries.size() >= PURGE_THRESHOLD ) {
+				purge();
+			}
+			Entry newEntry = new Entry();
+			entry = entries.putIfAbsent( key, newEntry );
+			if ( entry == null ) {
+				entry = newEntry;
+			}
+		}
+		CompletableFuture<Object> wait = null;
+		CompletableFuture<Object> load = null;
+		Object cached = null;
+		boolean haveCached = false, refresh = false;
+		synchronized ( entry ) {
+			long now = System.currentTimeMillis();
+			if ( entry.hasValue && now < entry.expiresAt ) {
+				hits.incrementAndGet();
+				cached = entry.value;
+				haveCached = true;
+			} else if ( entry.hasValue && now < entry.staleUntil ) {
+				staleHits.incrementAndGet();
+				cached = entry.value;
+				haveCached = true;
+				if ( entry.loading == null ) {
+					entry.loading = load = new CompletableFuture<>();
+					refresh = true;
+				}
+			} else if ( entry.loading != null ) {
+				coalesced.incrementAndGet();
+				wait = entry.loading;
+			} else {
+				misses.incrementAndGet();
+				entry.loading = load = new CompletableFuture<>();
+			}
+		}
+		if ( refresh ) {
+			final Entry e = entry;
+			final CompletableFuture<Object> f = load;
+			try {
+				refreshPool.execute( new Runnable() {
+					@Override
+					public void run()
+					{
+						try {
+							load( method, args, e, f, cfg );
+						} catch ( Throwable t ) {
+							refreshFailures.incrementAndGet();
+							LOGGER.debug( "Refreshing cached result of " + name + " failed", t );
+						}
+					}
+				} );
+			} catch ( RejectedExecutionException ex ) {
+				synchronized ( entry ) {
+					entry.loading = null;
+				}
+			}
+		}
+		if ( haveCached )
+			return copy( cached );
+		if ( load != null )
+			return load( method, args, entry, load, cfg );
+		try {
+			return copy( wait.get() );
+		} catch ( ExecutionException e ) {
+			throw e.getCause();
+		} catch ( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new TException( "Interrupted while waiting for " + name );
+		}
+	}
+
+	/**
+	 * Call the wrapped client and cache the result.
+	 *
+	 * @return the result, as returned by the wrapped client
+	 */
+	private Object load( Method method, Object[] args, Entry entry, CompletableFuture<Object> future,
+			MethodConfig cfg ) throws Throwable
+	{
+		Object result;
+		try {
+			result = invokeTarget( method, args );
+		} catch ( Throwable t ) {
+			synchronized ( entry ) {
+				entry.loading = null;
+			}
+			future.completeExceptionally( t );
+			throw t;
+		}
+		Object snapshot = copy( result );
+		synchronized ( entry ) {
+			long now = System.currentTimeMillis();
+			entry.value = snapshot;
+			entry.hasValue = true;
+			entry.expiresAt = now + cfg.ttlMs;
+			entry.staleUntil = entry.expiresAt + cfg.staleMs;
+			entry.loading = null;
+		}
+		future.complete( snapshot );
+		return result;
+	}
+
+	private Object invokeTarget( Method method, Object[] args ) throws Throwable
+	{
+		try {
+			return method.invoke( target, args );
+		} catch ( InvocationTargetException e ) {
+			throw e.getCause() == null ? e : e.getCause();
+		}
+	}
+
+	/**
+	 * Remove entries that are neither usable nor loading.
+	 */
+	private void purge()
+	{
+		long now = System.currentTimeMillis();
+		for ( Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+			Entry e = it.next();
+			synchronized ( e ) {
+				if ( e.loading == null && ( !e.hasValue || now >= e.staleUntil ) ) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deep copy of a result: thrift structs, and collections, maps and binary
+	 * fields containing them. Strings, numbers and enums are immutable anyways.
+	 */
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	static Object copy( Object o )
+	{
+		if ( o instanceof TBase )
+			return ( (TBase)o ).deepCopy();
+		if ( o instanceof List || o instanceof Set ) {
+			Collection<Object> copy = o instanceof List ? new ArrayList<>( ( (Collection)o ).size() )
+					: new HashSet<>();
+			for ( Object e : (Collection<Object>)o ) {
+				copy.add( copy( e ) );
+			}
+			return copy;
+		}
+		if ( o instanceof Map ) {
+			Map<Object, Object> copy = new HashMap<>();
+			for ( Map.Entry<Object, Object> e : ( (Map<Object, Object>)o ).entrySet() ) {
+				copy.put( copy( e.getKey() ), copy( e.getValue() ) );
+			}
+			return copy;
+		}
+		if ( o instanceof ByteBuffer )
+			return TBaseHelper.copyBinary( (ByteBuffer)o );
+		return o;
+	}
+
+	public long getHitCount()
+	{
+		return hits.get();
+	}
+
+	public long getStaleHitCount()
+	{
+		return staleHits.get();
+	}
+
+	public long getMissCount()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * @return number of calls that waited for an identical call in progress
+	 */
+	public long getCoalescedCount()
+	{
+		return coalesced.get();
+	}
+
+	public String getStats()
+	{
+		return "Entries: " + entries.size() + ", hits: " + hits.get() + ", stale hits: " + staleHits.get()
+				+ ", misses: " + misses.get() + ", coalesced: " + coalesced.get() + ", failed refreshes: "
+				+ refreshFailures.get();
+	}
+
+}
@@ -0,0 +1,240 @@
+package org.openslx.thrifthelper;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per method statistics of the calls made through a proxied thrift client,
+ * see {@link ThriftManager#getMasterCallMetrics()}. Recording only touches
+ * a few counters of the method being called, so it's cheap enough to be
+ * always on.
+ */
+public class ThriftCallMetrics
+{
+
+	/**
+	 * Number of latency histogram buckets. Bucket 0 counts calls that took
+	 * less than 1µs, bucket n counts calls that took between 2^(n-1) and 2^n
+	 * µs, the last bucket counts everything slower.
+	 */
+	public static final int BUCKETS = 32;
+
+	public static class MethodMetrics
+	{
+		private final String name;
+
+		private final LongAdder calls = new LongAdder();
+
+		private final LongAdder errors = new LongAdder();
+
+		private final LongAdder transportErrors = new LongAdder();
+
+		private final LongAdder retries = new LongAdder();
+
+		private final LongAdder totalNanos = new LongAdder();
+
+		private final AtomicInteger inFlight = new AtomicInteger();
+
+		private final AtomicLongArray histogram = new AtomicLongArray( BUCKETS );
+
+		private MethodMetrics( String name )
+		{
+			this.name = name;
+		}
+
+		/**
+		 * Call started; returns start time to pass to {@link #end(long, boolean)}
+		 */
+		long begin()
+		{
+			inFlight.incrementAndGet();
+			return System.nanoTime();
+		}
+
+		void end( long start, boolean error )
+		{
+			long nanos = System.nanoTime() - start;
+			inFlight.decrementAndGet();
+			calls.increment();
+			totalNanos.add( nanos );
+			if ( error ) {
+				errors.increment();
+			}
+			histogram.incrementAndGet( bucketOf( nanos / 1000 ) );
+		}
+
+		void transportError()
+		{
+			transportErrors.increment();
+		}
+
+		void retry()
+		{
+			retries.increment();
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		/**
+		 * @return number of completed calls, successful or not
+		 */
+		public long getCallCount()
+		{
+			return calls.sum();
+		}
+
+		/**
+		 * @return number of calls that ended in an exception being thrown to
+		 *         the caller
+		 */
+		public long getErrorCount()
+		{
+			return errors.sum();
+		}
+
+		/**
+		 * @return number of attempts that failed because of a broken connection
+		 */
+		public long getTransportErrorCount()
+		{
+			return transportErrors.sum();
+		}
+
+		/**
+		 * @return number of times a call was retried on another connection
+		 */
+		public long getRetryCount()
+		{
+			return retries.sum();
+		}
+
+		/**
+		 * @return number of calls currently running
+		 */
+		public int getInFlight()
+		{
+			return inFlight.get();
+		}
+
+		public long getTotalTimeNanos()
+		{
+			return totalNanos.sum();
+		}
+
+		/**
+		 * @return copy of the latency histogram, see {@link ThriftCallMetrics#BUCKETS}
+		 */
+		public long[] getLatencyHistogram()
+		{
+			long[] copy = new long[ BUCKETS ];
+			for ( int i = 0; i < BUCKETS; ++i ) {
+				copy[i] = histogram.get( i );
+			}
+			return copy;
+		}
+
+		/**
+		 * Estimate the given percentile of call latency from the histogram.
+		 *
+		 * @param percentile 0 - 100
+		 * @return upper bound of the histogram bucket the percentile falls into,
+		 *         in µs; 0 if there were no calls yet
+		 */
+		public long getLatencyPercentileMicros( double percentile )
+		{
+			long[] counts = getLatencyHistogram();
+			long total = 0;
+			for ( long c : counts ) {
+				total += c;
+			}
+			if ( total == 0 )
+				return 0;
+			long wanted = (long)Math.ceil( total * Math.max( 0, Math.min( 100, percentile ) ) / 100 );
+			long sum = 0;
+			for ( int i = 0; i < BUCKETS; ++i ) {
+				sum += counts[i];
+				if ( sum >= wanted && sum != 0 )
+					return bucketUpperBoundMicros( i );
+			}
+			return bucketUpperBoundMicros( BUCKETS - 1 );
+		}
+
+		@Override
+		public String toString()
+		{
+			long count = getCallCount();
+			return name + ": calls: " + count + ", errors: " + getErrorCount() + ", transport errors: "
+					+ getTransportErrorCount() + ", retries: " + getRetryCount() + ", in flight: " + getInFlight()
+					+ ", avg: " + ( count == 0 ? 0 : getTotalTimeNanos() / count / 1000 ) + "µs, p50: "
+					+ getLatencyPercentileMicros( 50 ) + "µs, p99: " + getLatencyPercentileMicros( 99 ) + "µs";
+		}
+	}
+
+	private final Map<String, MethodMetrics> methods;
+
+	ThriftCallMetrics( Iterable<String> methodNames )
+	{
+		Map<String, MethodMetrics> map = new TreeMap<>();
+		for ( String name : methodNames ) {
+			map.put( name, new MethodMetrics( name ) );
+		}
+		this.methods = Collections.unmodifiableMap( map );
+	}
+
+	static int bucketOf( long micros )
+	{
+		if ( micros <= 0 )
+			return 0;
+		return Math.min( BUCKETS - 1, 64 - Long.numberOfLeadingZeros( micros ) );
+	}
+
+	/**
+	 * @return upper bound of given histogram bucket in µs, exclusive
+	 */
+	public static long bucketUpperBoundMicros( int bucket )
+	{
+		if ( bucket >= BUCKETS - 1 )
+			return Long.MAX_VALUE;
+		return 1l << bucket;
+	}
+
+	/**
+	 * Get metrics of given method.
+	 *
+	 * @return metrics, or null if there is no thrift method of that name
+	 */
+	public MethodMetrics get( String method )
+	{
+		return methods.get( method );
+	}
+
+	/**
+	 * @return metrics of all methods, by method name
+	 */
+	public Map<String, MethodMetrics> getAll()
+	{
+		return methods;
+	}
+
+	/**
+	 * @return one line per method that was called at least once
+	 */
+	public String getStats()
+	{
+		StringBuilder sb = new StringBuilder();
+		for ( MethodMetrics m : methods.values() ) {
+			if ( m.getCallCount() == 0 && m.getInFlight() == 0 )
+				continue;
+			sb.append( m.toString() ).append( '\n' );
+		}
+		return sb.toString();
+	}
+
+}
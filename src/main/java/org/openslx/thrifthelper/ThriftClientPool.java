@@ -0,0 +1,616 @@
+package org.openslx.thrifthelper;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSocket;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.thrift.TServiceClient;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+import org.apache.thrift.transport.layered.TLayeredTransport;
+import org.openslx.thrifthelper.ThriftHandler.WantClientCallback;
+import org.openslx.util.PrioThreadFactory;
+import org.openslx.util.QuickTimer;
+import org.openslx.util.QuickTimer.Task;
+
+/**
+ * Bounded pool of thrift client connections. At most {@link Config#maxTotal}
+ * connections exist at any time; callers wanting a connection while all of
+ * them are in use will wait up to {@link Config#maxWaitMs} for one to be
+ * returned. Connections that have been idle for a while are checked before
+ * being handed out again, and if {@link Config#minIdle} is set, the pool is
+ * filled up with fresh connections in the background.
+ * If {@link Config#circuitBreaker} is set, calls fail right away while the
+ * server seems to be down, see {@link CircuitBreaker}.
+ * Call {@link #close()} when the pool isn't needed anymore.
+ */
+public class ThriftClientPool<T extends TServiceClient> implements ClientSource<T>
+{
+
+	private static final Logger LOGGER = LogManager.getLogger( ThriftClientPool.class );
+
+	/**
+	 * Opens connections for filling up the idle pool, so a server that can't be
+	 * reached doesn't hold up the QuickTimer
+	 */
+	private static final ThreadPoolExecutor fillPool;
+
+	static {
+		fillPool = new ThreadPoolExecutor( 2, 2, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(),
+				new PrioThreadFactory( "ThriftPoolFill" ) );
+		fillPool.allowCoreThreadTimeOut( true );
+	}
+
+	public static class Config
+	{
+		/**
+		 * Number of idle connections to keep open in the background. These are
+		 * created right away when the pool is created.
+		 */
+		public int minIdle = 0;
+		/**
+		 * Maximum number of connections, idle or in use
+		 */
+		public int maxTotal = 32;
+		/**
+		 * How long to wait for a connection if all of them are in use
+		 */
+		public int maxWaitMs = 15_000;
+		/**
+		 * How long a client/connection should be allowed to be idle before we
+		 * get rid of it and open a fresh one
+		 */
+		public int maxIdleMs = 110_000;
+		/**
+		 * Check whether the connection is still alive if it has been idle for
+		 * longer than this
+		 */
+		public int validateAfterMs = 5_000;
+		/**
+		 * Settings for failing calls right away while the server seems to be
+		 * down; null to always try connecting
+		 */
+		public CircuitBreaker.Config circuitBreaker = null;
+	}
+
+	private final String name;
+
+	private final WantClientCallback<? extends T> clientFactory;
+
+	private final int minIdle, maxTotal, maxWaitMs, maxIdleMs, validateAfterMs;
+
+	/** null if disabled */
+	private final CircuitBreaker breaker;
+
+	/** Connections waiting for reuse, most recently used first */
+	private final Deque<PooledClient<T>> idle = new ArrayDeque<>();
+
+	/** Connections handed out, and connections currently being established */
+	private int active, creating;
+
+	/** Threads waiting for a connection */
+	private int waiting;
+
+	/** A fill job is queued or running on {@link #fillPool} */
+	private boolean filling;
+
+	private boolean closed;
+
+	private final Task maintenance;
+
+	/**
+	 * Statistics
+	 */
+	private long created, destroyed, timeouts, validationFailures, waitTimeMs;
+
+	ThriftClientPool( String name, WantClientCallback<? extends T> clientFactory, Config config )
+	{
+		this( name, clientFactory, config, config.circuitBreaker );
+	}
+
+	/**
+	 * Create pool using the given circuit breaker settings instead of
+	 * {@link Config#circuitBreaker}.
+	 */
+	ThriftClientPool( String name, WantClientCallback<? extends T> clientFactory, Config config,
+			CircuitBreaker.Config breakerConfig )
+	{
+		if ( config.maxTotal <= 0 || config.minIdle < 0 || config.maxWaitMs < 0 )
+			throw new IllegalArgumentException( "Invalid pool config for " + name );
+		this.name = name;
+		this.clientFactory = clientFactory;
+		this.maxTotal = config.maxTotal;
+		this.minIdle = Math.min( config.minIdle, config.maxTotal );
+		this.maxWaitMs = config.maxWaitMs;
+		this.maxIdleMs = config.maxIdleMs;
+		this.validateAfterMs = Math.min( config.validateAfterMs, config.maxIdleMs );
+		this.breaker = breakerConfig == null ? null : new CircuitBreaker( name, breakerConfig );
+		maintenance = new Task() {
+			@Override
+			public void fire()
+			{
+				evictExpired();
+				scheduleFill();
+			}
+		};
+		if ( minIdle > 0 ) {
+			// Pre-warm, then make sure we always have fresh connections around
+			QuickTimer.scheduleAtFixedDelay( maintenance, 0, maxIdleMs / 2 );
+		} else {
+			// Periodically scan for old connections, in case the application idles for extended periods of time...
+			QuickTimer.scheduleAtFixedDelay( maintenance, maxIdleMs * 5l, maxIdleMs * 5l );
+		}
+	}
+
+	/**
+	 * Get a connection from the pool, or create a new one if none is idle and
+	 * the limit isn't reached yet.
+	 *
+	 * @return connection, or null if creating a new connection failed
+	 * @throws TTransportException if no connection became available in time,
+	 *            or the circuit breaker is open
+	 */
+	@Override
+	public PooledClient<T> borrow() throws TTransportException
+	{
+		if ( breaker != null && !breaker.acquire() )
+			throw new TTransportException( TTransportException.NOT_OPEN, name + " seems to be down, not trying" );
+		PooledClient<T> client = null;
+		try {
+			for ( ;; ) {
+				client = take();
+				if ( client == null ) {
+					client = create( true );
+					if ( client == null && breaker != null ) {
+						breaker.failure();
+					}
+					return client;
+				}
+				if ( isUsable( client ) )
+					return client;
+				discard( client );
+				client = null;
+			}
+		} finally {
+			if ( client == null && breaker != null ) {
+				breaker.done();
+			}
+		}
+	}
+
+	/**
+	 * Return a client connection to the pool, updating its last
+	 * use timestamp for proper idle timeout handling.
+	 */
+	@Override
+	public void release( PooledClient<T> client )
+	{
+		if ( client == null )
+			return;
+		client.lastUse = System.currentTimeMillis();
+		boolean discard;
+		synchronized ( this ) {
+			active--;
+			discard = closed;
+			if ( discard ) {
+				destroyed++;
+			} else {
+				idle.addFirst( client );
+			}
+			this.notify();
+		}
+		if ( discard ) {
+			close( client );
+		}
+		if ( breaker != null ) {
+			breaker.done();
+		}
+	}
+
+	/**
+	 * Get rid of a borrowed connection, as it's broken.
+	 */
+	@Override
+	public void invalidate( PooledClient<T> client )
+	{
+		if ( client == null )
+			return;
+		discard( client );
+		if ( breaker != null ) {
+			breaker.done();
+		}
+	}
+
+	@Override
+	public void callFinished( PooledClient<T> client, long nanos, boolean ok )
+	{
+		if ( breaker == null )
+			return;
+		if ( ok ) {
+			breaker.success();
+		} else {
+			breaker.failure();
+		}
+	}
+
+	/**
+	 * Close a connection taken from the pool.
+	 */
+	private void discard( PooledClient<T> client )
+	{
+		synchronized ( this ) {
+			active--;
+			destroyed++;
+			this.notify();
+		}
+		close( client );
+	}
+
+	/**
+	 * Take an idle connection, or reserve a slot for creating a new one,
+	 * waiting if neither is possible right now.
+	 *
+	 * @return idle client, or null if caller should create a new one
+	 */
+	private synchronized PooledClient<T> take() throws TTransportException
+	{
+		long start = 0;
+		try {
+			for ( ;; ) {
+				if ( closed )
+					throw new TTransportException( TTransportException.NOT_OPEN, name + " is closed" );
+				PooledClient<T> client = idle.pollFirst();
+				if ( client != null ) {
+					active++;
+					return client;
+				}
+				if ( active + creating < maxTotal ) {
+					creating++;
+					return null;
+				}
+				long now = System.currentTimeMillis();
+				if ( start == 0 ) {
+					start = now;
+					waiting++;
+				}
+				long remaining = start + maxWaitMs - now;
+				if ( remaining <= 0 ) {
+					timeouts++;
+					LOGGER.warn( "Timeout waiting for thrift connection to " + name + ": " + getStats() );
+					throw new TTransportException( TTransportException.TIMED_OUT,
+							"No connection to " + name + " available after " + maxWaitMs + "ms" );
+				}
+				try {
+					this.wait( remaining );
+				} catch ( InterruptedException e ) {
+					Thread.currentThread().interrupt();
+					throw new TTransportException( "Interrupted while waiting for connection to " + name );
+				}
+			}
+		} finally {
+			if ( start != 0 ) {
+				waiting--;
+				waitTimeMs += System.currentTimeMillis() - start;
+			}
+		}
+	}
+
+	/**
+	 * Create new connection. A slot must have been reserved by incrementing
+	 * {@link #creating} beforehand.
+	 *
+	 * @param borrow whether the new connection will be handed out, or
+	 *           put in the idle pool
+	 */
+	private PooledClient<T> create( boolean borrow )
+	{
+		PooledClient<T> wrap = null, stale = null;
+		try {
+			LOGGER.debug( "Creating new thrift client for " + name );
+			T client = clientFactory.getNewClient();
+			if ( client != null ) {
+				wrap = new PooledClient<T>( client, this );
+			}
+		} finally {
+			synchronized ( this ) {
+				creating--;
+				if ( wrap != null ) {
+					created++;
+					if ( borrow ) {
+						active++;
+					} else if ( closed ) {
+						// Pool was closed while connecting
+						destroyed++;
+						stale = wrap;
+						wrap = null;
+					} else {
+						idle.addLast( wrap );
+					}
+				}
+				this.notify();
+			}
+			if ( stale != null ) {
+				close( stale );
+			}
+		}
+		return wrap;
+	}
+
+	private void evictExpired()
+	{
+		Deque<PooledClient<T>> list = new ArrayDeque<>();
+		long deadline = System.currentTimeMillis() - maxIdleMs;
+		synchronized ( this ) {
+			for ( Iterator<PooledClient<T>> it = idle.iterator(); it.hasNext(); ) {
+				PooledClient<T> client = it.next();
+				if ( client.lastUse < deadline ) {
+					list.add( client );
+					it.remove();
+				}
+			}
+			destroyed += list.size();
+		}
+		for ( PooledClient<T> client : list ) {
+			close( client );
+		}
+	}
+
+	/**
+	 * Fill up idle connections in the background, unless that's already
+	 * happening.
+	 */
+	private void scheduleFill()
+	{
+		synchronized ( this ) {
+			if ( minIdle == 0 || filling || closed || idle.size() + creating >= minIdle )
+				return;
+			filling = true;
+		}
+		try {
+			fillPool.execute( new Runnable() {
+				@Override
+				public void run()
+				{
+					try {
+						fillIdle();
+					} finally {
+						synchronized ( ThriftClientPool.this ) {
+							filling = false;
+						}
+					}
+				}
+			} );
+		} catch ( RejectedExecutionException e ) {
+			synchronized ( this ) {
+				filling = false;
+			}
+		}
+	}
+
+	private void fillIdle()
+	{
+		for ( ;; ) {
+			synchronized ( this ) {
+				if ( closed || idle.size() + creating >= minIdle || active + creating + idle.size() >= maxTotal )
+					return;
+				creating++;
+			}
+			if ( create( false ) == null )
+				return;
+		}
+	}
+
+	/**
+	 * Stop background maintenance and close all idle connections. Connections
+	 * currently borrowed are closed when they're returned; trying to borrow
+	 * another one will fail.
+	 */
+	public void close()
+	{
+		maintenance.cancel();
+		Deque<PooledClient<T>> list;
+		synchronized ( this ) {
+			if ( closed )
+				return;
+			closed = true;
+			list = new ArrayDeque<>( idle );
+			idle.clear();
+			destroyed += list.size();
+			this.notifyAll();
+		}
+		for ( PooledClient<T> client : list ) {
+			close( client );
+		}
+	}
+
+	private boolean isUsable( PooledClient<T> client )
+	{
+		long idleMs = System.currentTimeMillis() - client.lastUse;
+		if ( idleMs > maxIdleMs )
+			return false;
+		if ( idleMs <= validateAfterMs )
+			return true;
+		if ( isConnected( client.client ) )
+			return true;
+		synchronized ( this ) {
+			validationFailures++;
+		}
+		LOGGER.debug( "Discarding dead thrift connection to " + name + " after " + idleMs + "ms idle" );
+		return false;
+	}
+
+	/**
+	 * Check if the socket of given client is still connected. The server isn't
+	 * supposed to send anything while we don't have a call pending, so if
+	 * reading from the socket yields EOF or any data, the connection is not
+	 * usable anymore.
+	 */
+	private static boolean isConnected( TServiceClient client )
+	{
+		TTransport transport = client.getInputProtocol().getTransport();
+		while ( transport instanceof TLayeredTransport ) {
+			transport = ( (TLayeredTransport)transport ).getInnerTransport();
+		}
+		if ( !transport.isOpen() )
+			return false;
+		if ( ! ( transport instanceof TSocket ) )
+			return true;
+		Socket socket = ( (TSocket)transport ).getSocket();
+		if ( socket == null || socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown() )
+			return false;
+		// Reading from an SSL socket might mess with the session state, just go with what we know
+		if ( socket instanceof SSLSocket )
+			return true;
+		try {
+			int oldTimeout = socket.getSoTimeout();
+			socket.setSoTimeout( 1 );
+			try {
+				socket.getInputStream().read();
+				return false;
+			} catch ( SocketTimeoutException e ) {
+				return true;
+			} finally {
+				socket.setSoTimeout( oldTimeout );
+			}
+		} catch ( IOException e ) {
+			return false;
+		}
+	}
+
+	private static void close( PooledClient<?> client )
+	{
+		try {
+			client.client.getInputProtocol().getTransport().close();
+		} catch ( Exception e ) {
+		}
+		try {
+			client.client.getOutputProtocol().getTransport().close();
+		} catch ( Exception e ) {
+		}
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public int getMaxTotal()
+	{
+		return maxTotal;
+	}
+
+	/**
+	 * Number of connections currently in use.
+	 */
+	public synchronized int getActiveCount()
+	{
+		return active;
+	}
+
+	/**
+	 * Number of connections waiting for reuse.
+	 */
+	public synchronized int getIdleCount()
+	{
+		return idle.size();
+	}
+
+	/**
+	 * Number of threads currently waiting for a connection.
+	 */
+	public synchronized int getWaitingCount()
+	{
+		return waiting;
+	}
+
+	/**
+	 * Number of connections that are open or being established.
+	 */
+	public synchronized int getTotalCount()
+	{
+		return active + creating + idle.size();
+	}
+
+	public synchronized long getCreatedCount()
+	{
+		return created;
+	}
+
+	public synchronized long getDestroyedCount()
+	{
+		return destroyed;
+	}
+
+	/**
+	 * Number of callers that gave up waiting for a connection.
+	 */
+	public synchronized long getTimeouts()
+	{
+		return timeouts;
+	}
+
+	/**
+	 * Number of idle connections found to be dead when trying to reuse them.
+	 */
+	public synchronized long getValidationFailures()
+	{
+		return validationFailures;
+	}
+
+	/**
+	 * Total time spent waiting for connections, in milliseconds.
+	 */
+	public synchronized long getWaitTimeMs()
+	{
+		return waitTimeMs;
+	}
+
+	/**
+	 * @return the circuit breaker of this pool, null if disabled
+	 */
+	public CircuitBreaker getCircuitBreaker()
+	{
+		return breaker;
+	}
+
+	public synchronized String getStats()
+	{
+		return "Connections active: " + active + "/" + maxTotal + ", idle: " + idle.size() + ", creating: " + creating
+				+ ", waiting: " + waiting + " (" + waitTimeMs + "ms total)" + ", created: " + created
+				+ ", destroyed: " + destroyed + ", timeouts: " + timeouts + ", dead on reuse: " + validationFailures;
+	}
+
+	@Override
+	public String toString()
+	{
+		return name + ": " + getStats();
+	}
+
+	static class PooledClient<T extends TServiceClient>
+	{
+		final T client;
+		/** The pool this connection belongs to */
+		final ThriftClientPool<T> pool;
+		private long lastUse;
+
+		private PooledClient( T client, ThriftClientPool<T> pool )
+		{
+			this.client = client;
+			this.pool = pool;
+			this.lastUse = System.currentTimeMillis();
+		}
+	}
+
+}
@@ -0,0 +1,165 @@
+package org.openslx.thrifthelper;
+
+/**
+ * One server of a {@link ThriftEndpointGroup}, with what we know about its
+ * health: average call latency, calls in flight, and the state of the
+ * {@link CircuitBreaker} of its connection pool, which decides whether it's
+ * currently considered unavailable.
+ */
+public class ThriftEndpoint
+{
+
+	private final String host;
+
+	private final int port;
+
+	private final double latencyWeight;
+
+	private CircuitBreaker breaker;
+
+	/** Average call latency, -1 if unknown */
+	private double latencyMicros = -1;
+
+	private int inFlight;
+
+	/**
+	 * Statistics
+	 */
+	private long calls, failures;
+
+	ThriftEndpoint( String host, int port, double latencyWeight )
+	{
+		if ( latencyWeight <= 0 || latencyWeight > 1 )
+			throw new IllegalArgumentException( "Invalid latency weight for " + host + ":" + port );
+		this.host = host;
+		this.port = port;
+		this.latencyWeight = latencyWeight;
+	}
+
+	void setCircuitBreaker( CircuitBreaker breaker )
+	{
+		this.breaker = breaker;
+	}
+
+	/**
+	 * Whether a call could be made right now.
+	 */
+	boolean isAvailable()
+	{
+		return breaker.isAvailable();
+	}
+
+	/**
+	 * A call to this endpoint is about to start.
+	 */
+	synchronized void started()
+	{
+		inFlight++;
+	}
+
+	/**
+	 * A call started via {@link #started()} is over.
+	 */
+	synchronized void finished()
+	{
+		inFlight--;
+	}
+
+	/**
+	 * Record outcome of a call.
+	 *
+	 * @param ok false if the call failed because of a transport error
+	 */
+	synchronized void callFinished( long nanos, boolean ok )
+	{
+		calls++;
+		if ( !ok ) {
+			failures++;
+			return;
+		}
+		double micros = nanos / 1000d;
+		if ( latencyMicros < 0 ) {
+			latencyMicros = micros;
+		} else {
+			latencyMicros += latencyWeight * ( micros - latencyMicros );
+		}
+	}
+
+	/**
+	 * Opening a new connection to this endpoint failed.
+	 */
+	synchronized void connectFailed()
+	{
+		calls++;
+		failures++;
+	}
+
+	/**
+	 * Value used for picking an endpoint, lower is better. Average latency
+	 * weighted by the number of calls currently running; 0 if we don't know
+	 * anything about the endpoint yet.
+	 */
+	synchronized double getScore()
+	{
+		if ( latencyMicros < 0 )
+			return 0;
+		return latencyMicros * ( inFlight + 1 );
+	}
+
+	public String getHost()
+	{
+		return host;
+	}
+
+	public int getPort()
+	{
+		return port;
+	}
+
+	public CircuitBreaker.State getState()
+	{
+		return breaker.getState();
+	}
+
+	public CircuitBreaker getCircuitBreaker()
+	{
+		return breaker;
+	}
+
+	/**
+	 * @return average latency of calls in µs, -1 if there were no successful
+	 *         calls yet
+	 */
+	public synchronized long getLatencyMicros()
+	{
+		return (long)latencyMicros;
+	}
+
+	public synchronized int getInFlight()
+	{
+		return inFlight;
+	}
+
+	public synchronized long getCallCount()
+	{
+		return calls;
+	}
+
+	public synchronized long getFailureCount()
+	{
+		return failures;
+	}
+
+	public synchronized String getStats()
+	{
+		return this + ": latency: " + getLatencyMicros() + "µs, in flight: " + inFlight + ", calls: " + calls
+				+ ", failures: " + failures + ", circuit: " + breaker.getStats();
+	}
+
+	@Override
+	public String toString()
+	{
+		return host + ":" + port;
+	}
+
+}
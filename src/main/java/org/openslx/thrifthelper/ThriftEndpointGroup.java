@@ -0,0 +1,382 @@
+package org.openslx.thrifthelper;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.thrift.TServiceClient;
+import org.apache.thrift.transport.TTransportException;
+import org.openslx.thrifthelper.ThriftClientPool.PooledClient;
+import org.openslx.thrifthelper.ThriftHandler.WantClientCallback;
+import org.openslx.util.PrioThreadFactory;
+import org.openslx.util.QuickTimer;
+import org.openslx.util.QuickTimer.Task;
+
+/**
+ * Several servers offering the same thrift service, e.g. multiple master
+ * servers. Each endpoint gets its own {@link ThriftClientPool}. For every
+ * call, two of the available endpoints are picked at random and the one with
+ * the lower average latency, weighted by the number of calls currently
+ * running on it, is used. If connecting to it fails, the other available
+ * endpoints are tried in order of their latency before giving up.
+ * Endpoints that keep failing are skipped for a while, see
+ * {@link CircuitBreaker}; if all of them are unavailable, calls fail right
+ * away instead of waiting for connection timeouts.
+ */
+public class ThriftEndpointGroup<T extends TServiceClient> implements ClientSource<T>
+{
+
+	private static final Logger LOGGER = LogManager.getLogger( ThriftEndpointGroup.class );
+
+	public static class Config
+	{
+		/**
+		 * When to stop using an endpoint for a while, applied to every endpoint
+		 * separately; {@link ThriftClientPool.Config#circuitBreaker} is ignored
+		 */
+		public CircuitBreaker.Config circuitBreaker = new CircuitBreaker.Config();
+		/**
+		 * How often to check in the background whether unavailable endpoints
+		 * accept connections again, 0 to disable
+		 */
+		public int probeIntervalMs = 5_000;
+		/**
+		 * Weight of the latest call when updating the average latency of an
+		 * endpoint, 0 - 1
+		 */
+		public double latencyWeight = 0.3;
+	}
+
+	/**
+	 * Creates connections to a specific endpoint
+	 */
+	interface EndpointClientFactory<T>
+	{
+		T getNewClient( ThriftEndpoint endpoint );
+	}
+
+	private static class Member<T extends TServiceClient>
+	{
+		final ThriftEndpoint endpoint;
+		final ThriftClientPool<T> pool;
+
+		Member( ThriftEndpoint endpoint, ThriftClientPool<T> pool )
+		{
+			this.endpoint = endpoint;
+			this.pool = pool;
+		}
+	}
+
+	private static class Candidate<T extends TServiceClient>
+	{
+		final Member<T> member;
+		final double score;
+
+		Candidate( Member<T> member, double score )
+		{
+			this.member = member;
+			this.score = score;
+		}
+	}
+
+	private static final Comparator<Candidate<?>> BY_SCORE = new Comparator<Candidate<?>>() {
+		@Override
+		public int compare( Candidate<?> o1, Candidate<?> o2 )
+		{
+			return Double.compare( o1.score, o2.score );
+		}
+	};
+
+	private static final ThreadPoolExecutor probePool;
+
+	static {
+		probePool = new ThreadPoolExecutor( 2, 2, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(),
+				new PrioThreadFactory( "ThriftProbe", Thread.MIN_PRIORITY ) );
+		probePool.allowCoreThreadTimeOut( true );
+	}
+
+	private final String name;
+
+	private final List<Member<T>> members;
+
+	private final List<ThriftEndpoint> endpoints;
+
+	private final EndpointClientFactory<? extends T> clientFactory;
+
+	private final Task probeTask;
+
+	/**
+	 * Statistics
+	 */
+	private final AtomicLong failovers = new AtomicLong(), rejected = new AtomicLong();
+
+	ThriftEndpointGroup( String name, List<InetSocketAddress> addresses, EndpointClientFactory<? extends T> clientFactory,
+			ThriftClientPool.Config poolConfig, Config config )
+	{
+		if ( addresses.isEmpty() )
+			throw new IllegalArgumentException( "No endpoints given for " + name );
+		if ( config.circuitBreaker == null )
+			throw new IllegalArgumentException( "No circuit breaker config given for " + name );
+		this.name = name;
+		this.clientFactory = clientFactory;
+		List<Member<T>> tmpMembers = new ArrayList<>( addresses.size() );
+		List<ThriftEndpoint> tmpEndpoints = new ArrayList<>( addresses.size() );
+		for ( InetSocketAddress address : addresses ) {
+			final ThriftEndpoint endpoint = new ThriftEndpoint( address.getHostString(), address.getPort(),
+					config.latencyWeight );
+			ThriftClientPool<T> pool = new ThriftClientPool<T>( name + " " + endpoint, new WantClientCallback<T>() {
+				@Override
+				public T getNewClient()
+				{
+					return ThriftEndpointGroup.this.clientFactory.getNewClient( endpoint );
+				}
+			}, poolConfig, config.circuitBreaker );
+			endpoint.setCircuitBreaker( pool.getCircuitBreaker() );
+			tmpMembers.add( new Member<T>( endpoint, pool ) );
+			tmpEndpoints.add( endpoint );
+		}
+		this.members = Collections.unmodifiableList( tmpMembers );
+		this.endpoints = Collections.unmodifiableList( tmpEndpoints );
+		probeTask = new Task() {
+			@Override
+			public void fire()
+			{
+				probeUnavailable();
+			}
+		};
+		if ( config.probeIntervalMs > 0 ) {
+			QuickTimer.scheduleAtFixedDelay( probeTask, config.probeIntervalMs, config.probeIntervalMs );
+		}
+	}
+
+	/**
+	 * Get a connection to the best available endpoint, failing over to the
+	 * others if connecting fails.
+	 *
+	 * @return connection, or null if connecting to all available endpoints
+	 *         failed
+	 * @throws TTransportException if all endpoints are currently unavailable,
+	 *            or no connection became available in time
+	 */
+	@Override
+	public PooledClient<T> borrow() throws TTransportException
+	{
+		List<Member<T>> order = candidates();
+		if ( order.isEmpty() ) {
+			rejected.incrementAndGet();
+			throw new TTransportException( TTransportException.NOT_OPEN, "All endpoints of " + name
+					+ " are unavailable" );
+		}
+		TTransportException lastError = null;
+		boolean first = true;
+		for ( Member<T> m : order ) {
+			if ( !first ) {
+				failovers.incrementAndGet();
+			}
+			first = false;
+			PooledClient<T> client;
+			m.endpoint.started();
+			try {
+				client = m.pool.borrow();
+			} catch ( TTransportException e ) {
+				// All connections to this endpoint busy, or it just became unavailable
+				m.endpoint.finished();
+				lastError = e;
+				continue;
+			}
+			if ( client != null )
+				return client;
+			m.endpoint.connectFailed();
+			m.endpoint.finished();
+		}
+		if ( lastError != null )
+			throw lastError;
+		return null;
+	}
+
+	@Override
+	public void release( PooledClient<T> client )
+	{
+		if ( client == null )
+			return;
+		Member<T> m = memberOf( client );
+		m.pool.release( client );
+		m.endpoint.finished();
+	}
+
+	@Override
+	public void invalidate( PooledClient<T> client )
+	{
+		if ( client == null )
+			return;
+		Member<T> m = memberOf( client );
+		m.pool.invalidate( client );
+		m.endpoint.finished();
+	}
+
+	@Override
+	public void callFinished( PooledClient<T> client, long nanos, boolean ok )
+	{
+		if ( client == null )
+			return;
+		Member<T> m = memberOf( client );
+		m.pool.callFinished( client, nanos, ok );
+		m.endpoint.callFinished( nanos, ok );
+	}
+
+	private Member<T> memberOf( PooledClient<T> client )
+	{
+		for ( Member<T> m : members ) {
+			if ( m.pool == client.pool )
+				return m;
+		}
+		throw new IllegalArgumentException( "Connection doesn't belong to " + name );
+	}
+
+	/**
+	 * Get available endpoints in the order they should be tried. The first one
+	 * is the better of two random ones, the rest are sorted by score.
+	 */
+	private List<Member<T>> candidates()
+	{
+		List<Candidate<T>> list = new ArrayList<>( members.size() );
+		for ( Member<T> m : members ) {
+			if ( m.endpoint.isAvailable() ) {
+				// Take a snapshot of the score, it might change while sorting
+				list.add( new Candidate<T>( m, m.endpoint.getScore() ) );
+			}
+		}
+		if ( list.size() > 1 ) {
+			ThreadLocalRandom rnd = ThreadLocalRandom.current();
+			int a = rnd.nextInt( list.size() );
+			int b = rnd.nextInt( list.size() - 1 );
+			if ( b >= a ) {
+				b++;
+			}
+			Candidate<T> pick = BY_SCORE.compare( list.get( a ), list.get( b ) ) <= 0 ? list.get( a ) : list.get( b );
+			list.remove( pick );
+			Collections.sort( list, BY_SCORE );
+			list.add( 0, pick );
+		}
+		List<Member<T>> result = new ArrayList<>( list.size() );
+		for ( Candidate<T> c : list ) {
+			result.add( c.member );
+		}
+		return result;
+	}
+
+	/**
+	 * Try to connect to endpoints that are currently out of rotation, so they
+	 * can be used again as soon as they're back, instead of waiting for their
+	 * time out to run out.
+	 */
+	private void probeUnavailable()
+	{
+		for ( final ThriftEndpoint endpoint : endpoints ) {
+			final CircuitBreaker breaker = endpoint.getCircuitBreaker();
+			if ( !breaker.startProbe() )
+				continue;
+			probePool.execute( new Runnable() {
+				@Override
+				public void run()
+				{
+					boolean ok = false;
+					try {
+						T client = clientFactory.getNewClient( endpoint );
+						if ( client != null ) {
+							ok = true;
+							client.getInputProtocol().getTransport().close();
+						}
+					} catch ( Exception e ) {
+						LOGGER.debug( "Probing " + endpoint + " failed", e );
+					} finally {
+						breaker.probeFinished( ok );
+					}
+				}
+			} );
+		}
+	}
+
+	/**
+	 * Stop probing endpoints and close the connection pools of all endpoints.
+	 */
+	public void close()
+	{
+		probeTask.cancel();
+		for ( Member<T> m : members ) {
+			m.pool.close();
+		}
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * @return all endpoints of this group, with their current state
+	 */
+	public List<ThriftEndpoint> getEndpoints()
+	{
+		return endpoints;
+	}
+
+	/**
+	 * Get the connection pool of the given endpoint.
+	 *
+	 * @return the pool, or null if the endpoint doesn't belong to this group
+	 */
+	public ThriftClientPool<?> getPool( ThriftEndpoint endpoint )
+	{
+		for ( Member<T> m : members ) {
+			if ( m.endpoint == endpoint )
+				return m.pool;
+		}
+		return null;
+	}
+
+	/**
+	 * @return number of times a call went to another endpoint because
+	 *         connecting to the preferred one failed
+	 */
+	public long getFailoverCount()
+	{
+		return failovers.get();
+	}
+
+	/**
+	 * @return number of calls failed right away because no endpoint was
+	 *         available
+	 */
+	public long getRejectedCount()
+	{
+		return rejected.get();
+	}
+
+	public String getStats()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append( name ).append( ": failovers: " ).append( getFailoverCount() ).append( ", rejected: " )
+				.append( getRejectedCount() ).append( '\n' );
+		for ( Member<T> m : members ) {
+			sb.append( m.endpoint.getStats() ).append( "; " ).append( m.pool.getStats() ).append( '\n' );
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString()
+	{
+		return name;
+	}
+
+}
@@ -1,55 +1,62 @@
 package org.openslx.thrifthelper;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.ArrayDeque;
 import java.util.Collections;
-import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
 import org.apache.thrift.TException;
 import org.apache.thrift.TServiceClient;
 import org.apache.thrift.protocol.TProtocolException;
 import org.apache.thrift.transport.TTransportException;
+import org.openslx.thrifthelper.ThriftClientPool.PooledClient;
 import org.openslx.thrifthelper.ThriftManager.ErrorCallback;
-import org.openslx.util.QuickTimer;
-import org.openslx.util.QuickTimer.Task;
 
 class ThriftHandler<T extends TServiceClient> implements InvocationHandler
 {
 
-	private final static Logger LOGGER = LogManager.getLogger( ThriftHandler.class );
-	
-	/**
-	 * How long a client/connection should be allowed to be idle before we get rid of it and open a fresh one
-	 */
-	private final static long MAX_IDLE_MS = 110_000;
-
 	protected interface WantClientCallback<T>
 	{
 		public T getNewClient();
 	}
 
-	/** Pool of (potentially) good connections, waiting for reuse */
-	private final Deque<TWrap<T>> pool = new ArrayDeque<>();
-	/** Old connections to be released by cleanup task */
-	private Deque<TWrap<T>> trash = new ArrayDeque<>();
+	/**
+	 * A method of the thrift interface, and the method of the client class
+	 * to dispatch to.
+	 */
+	private static class Target
+	{
+		final String name;
+		/** (Object client, Object[] args)Object */
+		final MethodHandle handle;
+		final ThriftCallMetrics.MethodMetrics metrics;
+
+		Target( String name, MethodHandle handle, ThriftCallMetrics.MethodMetrics metrics )
+		{
+			this.name = name;
+			this.handle = handle;
+			this.metrics = metrics;
+		}
+	}
 
-	private final WantClientCallback<? extends T> clientFactory;
+	private final ClientSource<T> pool;
 
 	private final ErrorCallback errorCallback;
 
-	private final Set<String> thriftMethods;
+	private final Map<Method, Target> targets;
+
+	private final ThriftCallMetrics metrics;
 
-	public ThriftHandler( final Class<? extends T> clazz, WantClientCallback<? extends T> clientFactory, ErrorCallback errCb )
+	public ThriftHandler( final Class<?> ifClazz, final Class<? extends T> clazz, ClientSource<T> pool,
+			ErrorCallback errCb )
 	{
 		this.errorCallback = errCb;
-		this.clientFactory = clientFactory;
+		this.pool = pool;
 		Set<String> tmpset = new HashSet<String>();
 		Method[] methods = clazz.getMethods();
 		// Iterate over all methods of this class
@@ -69,31 +76,33 @@ class ThriftHandler<T extends TServiceClient> implements InvocationHandler
 				tmpset.add( name );
 			}
 		}
-		thriftMethods = Collections.unmodifiableSet( tmpset );
-		// Periodically scan for old connections, in case the application idles for extended periods of time...
-		QuickTimer.scheduleAtFixedDelay( new Task() {
-			@Override
-			public void fire()
-			{
-				Deque<TWrap<T>> newTrash = new ArrayDeque<>();
-				Deque<TWrap<T>> list;
-				long now = System.currentTimeMillis();
-				synchronized ( pool ) {
-					list = trash;
-					trash = newTrash;
-					for ( Iterator<TWrap<T>> it = pool.iterator(); it.hasNext(); ) {
-						TWrap<T> client = it.next();
-						if ( client.deadline < now ) {
-							list.add( client );
-							it.remove();
-						}
-					}
-				}
-				for ( TWrap<T> client : list ) {
-					freeClient( client );
-				}
+		this.metrics = new ThriftCallMetrics( tmpset );
+		// Map methods of the interface to method handles of the client class once,
+		// so calls don't have to go through reflection
+		Map<Method, Target> tmpmap = new HashMap<>();
+		MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+		for ( Method method : ifClazz.getMethods() ) {
+			if ( !tmpset.contains( method.getName() ) )
+				continue;
+			try {
+				Method clientMethod = clazz.getMethod( method.getName(), method.getParameterTypes() );
+				MethodHandle handle = lookup.unreflect( clientMethod );
+				handle = handle.asType( handle.type().generic() )
+						.asSpreader( Object[].class, method.getParameterCount() );
+				tmpmap.put( method, new Target( method.getName(), handle, metrics.get( method.getName() ) ) );
+			} catch ( NoSuchMethodException | IllegalAccessException e ) {
+				throw new IllegalArgumentException( "Cannot map " + method + " to " + clazz.getName(), e );
 			}
-		}, MAX_IDLE_MS * 5, MAX_IDLE_MS * 5 );
+		}
+		targets = Collections.unmodifiableMap( tmpmap );
+	}
+
+	/**
+	 * Get metrics of calls made through this handler.
+	 */
+	public ThriftCallMetrics getMetrics()
+	{
+		return metrics;
 	}
 
 	@Override
@@ -101,39 +110,47 @@ class ThriftHandler<T extends TServiceClient> implements InvocationHandler
 	{
 
 		// first find the thrift methods
-		if ( !thriftMethods.contains( method.getName() ) ) {
+		Target target = targets.get( method );
+		if ( target == null ) {
 			throw new IllegalAccessException( "Cannot call this method on a proxied thrift client" );
 		}
 
-		TWrap<T> clientWrap = getClient();
+		ThriftCallMetrics.MethodMetrics stats = target.metrics;
+		long start = stats.begin();
+		boolean failed = true;
+		PooledClient<T> clientWrap = null;
 		try {
+			clientWrap = pool.borrow();
 			Throwable cause = null;
-			for ( int i = 1; clientWrap != null; i++ ) {
-				try {
-					return method.invoke( clientWrap.client, args );
-				} catch ( InvocationTargetException e ) {
-					cause = e.getCause(); // Get original exception
-					if ( cause != null && ! ( cause instanceof TTransportException )
-							&& ! ( cause instanceof TProtocolException ) ) {
-						// If it's not an exception potentially hinting at dead connection, just pass it on
-						throw cause;
-					}
-					// Get rid of broken connection
-					freeClient( clientWrap );
-					clientWrap = null;
-					if ( cause == null ) {
+			for ( int i = 1;; i++ ) {
+				if ( clientWrap != null ) {
+					long attemptStart = System.nanoTime();
+					boolean broken = false;
+					try {
+						Object ret = (Object)target.handle.invokeExact( (Object)clientWrap.client, args );
+						failed = false;
+						return ret;
+					} catch ( TTransportException | TProtocolException e ) {
+						// Exception potentially hinting at dead connection, get rid of it;
+						// anything else is just passed on
+						broken = true;
 						cause = e;
+						stats.transportError();
+					} finally {
+						pool.callFinished( clientWrap, System.nanoTime() - attemptStart, !broken );
 					}
+					pool.invalidate( clientWrap );
+					clientWrap = null;
 				}
+				// Connection broke, or we couldn't connect in the first place (cause is null then).
 				// Call the error callback. As long as true is returned, keep retrying
-				if ( !errorCallback.thriftError( i, method.getName(), cause ) ) {
+				if ( !errorCallback.thriftError( i, target.name, cause ) ) {
 					break;
 				}
+				stats.retry();
 				// Apparently we should retry, get another client
-				if ( clientWrap == null ) {
-					clientWrap = getClient();
-					cause = null;
-				}
+				clientWrap = pool.borrow();
+				cause = null;
 			}
 
 			// Uh oh
@@ -141,68 +158,8 @@ class ThriftHandler<T extends TServiceClient> implements InvocationHandler
 				throw cause;
 			throw new TTransportException( "Could not connect" );
 		} finally {
-			returnClient( clientWrap );
-		}
-	}
-
-	private void freeClient( TWrap<T> client )
-	{
-		try {
-			client.client.getInputProtocol().getTransport().close();
-		} catch ( Exception e ) {
-		}
-		try {
-			client.client.getOutputProtocol().getTransport().close();
-		} catch ( Exception e ) {
-		}
-
-	}
-
-	/**
-	 * Get an available client connection. Prefer connection from pool,
-	 * honoring the max idle time. If none are available, create a fresh
-	 * client connection.
-	 */
-	private TWrap<T> getClient()
-	{
-		long now = System.currentTimeMillis();
-		synchronized ( pool ) {
-			TWrap<T> client;
-			while ( ( client = pool.poll() ) != null ) {
-				if ( client.deadline >= now )
-					return client; // Still fresh
-				trash.add( client );
-			}
-		}
-		// No usable existing connection, create new client
-		LOGGER.debug( "Creating new thrift client" );
-		T client = clientFactory.getNewClient();
-		if ( client == null )
-			return null;
-		return new TWrap<T>( client );
-	}
-
-	/**
-	 * Return a client connection to the pool, updating its last
-	 * use timestamp for proper idle timeout handling.
- 	 */
-	private void returnClient( TWrap<T> client )
-	{
-		if ( client == null )
-			return;
-		client.deadline = System.currentTimeMillis() + MAX_IDLE_MS;
-		synchronized ( pool ) {
-			pool.push( client );
-		}
-	}
-	
-	private static class TWrap<T>
-	{
-		private final T client;
-		private long deadline;
-		public TWrap(T client)
-		{
-			this.client = client;
+			pool.release( clientWrap );
+			stats.end( start, failed );
 		}
 	}
 
@@ -2,7 +2,9 @@ package org.openslx.thrifthelper;
 
 import java.io.IOException;
 import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.List;
 
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLContext;
@@ -10,13 +12,16 @@ import javax.net.ssl.SSLContext;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.thrift.TServiceClient;
+import org.apache.thrift.async.TAsyncClientManager;
 import org.apache.thrift.protocol.TBinaryProtocol;
 import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TNonblockingTransport;
 import org.apache.thrift.transport.TSocket;
 import org.apache.thrift.transport.TTransportException;
 import org.apache.thrift.transport.layered.TFramedTransport;
 import org.openslx.bwlp.thrift.iface.MasterServer;
 import org.openslx.bwlp.thrift.iface.SatelliteServer;
+import org.openslx.thrifthelper.ThriftAsyncClient.AsyncClientCreator;
 import org.openslx.thrifthelper.ThriftHandler.WantClientCallback;
 import org.openslx.util.Util;
 
@@ -40,18 +45,27 @@ public class ThriftManager<T>
 
 	private final T client;
 
+	private final ClientSource<TServiceClient> pool;
+
+	private final ThriftCallMetrics metrics;
+
 	private ThriftManager( Class<T> ifClazz, Class<? extends TServiceClient> clientClazz,
-			WantClientCallback<? extends TServiceClient> internalCallback, ErrorCallback errorCb )
+			ClientSource<TServiceClient> pool, ErrorCallback errorCb )
 	{
+		this.pool = pool;
+		ThriftHandler<TServiceClient> handler = new ThriftHandler<TServiceClient>( ifClazz, clientClazz, pool, errorCb );
+		this.metrics = handler.getMetrics();
 		this.client = ifClazz.cast( Proxy.newProxyInstance(
 				ifClazz.getClassLoader(),
-				new Class[] { ifClazz }, new ThriftHandler<TServiceClient>(
-						clientClazz, internalCallback, errorCb ) ) );
+				new Class[] { ifClazz }, handler ) );
 	}
 
 	private static ThriftManager<MasterServer.Iface> masterManager = null;
 	private static ThriftManager<SatelliteServer.Iface> satelliteManager = null;
 
+	private static ThriftAsyncClient<MasterServer.AsyncIface> masterAsyncClient = null;
+	private static ThriftAsyncClient<SatelliteServer.AsyncIface> satelliteAsyncClient = null;
+
 	private static ErrorCallback satErrorCallback = null;
 	private static ErrorCallback masterErrorCallback = null;
 	private static SSLContext satSslContext = null;
@@ -63,6 +77,20 @@ public class ThriftManager<T>
 	 * @return true if setting the address worked, false otherwise
 	 */
 	public static synchronized boolean setMasterServerAddress( final SSLContext ctx, final String host, final int port, final int timeout )
+	{
+		return setMasterServerAddress( ctx, host, port, timeout, new ThriftClientPool.Config() );
+	}
+
+	/**
+	 * Sets the address of the master server, using the given connection pool
+	 * settings
+	 * 
+	 * @param host the ip/hostname of the master server
+	 * @param poolConfig limits for the connection pool
+	 * @return true if setting the address worked, false otherwise
+	 */
+	public static synchronized boolean setMasterServerAddress( final SSLContext ctx, final String host, final int port,
+			final int timeout, ThriftClientPool.Config poolConfig )
 	{
 		if ( masterManager != null ) {
 			LOGGER.error( "Master server address already set." );
@@ -72,21 +100,103 @@ public class ThriftManager<T>
 			LOGGER.error( "Given address is empty." );
 			return false;
 		}
+		ErrorCallback errorCb = new ErrorCallback() {
+			@Override
+			public boolean thriftError( int failCount, String method, Throwable t )
+			{
+				return masterErrorCallback != null && masterErrorCallback.thriftError( failCount, method, t );
+			}
+		};
+		String name = "master " + host + ":" + port;
 		// finally set it
 		masterManager = new ThriftManager<MasterServer.Iface>( MasterServer.Iface.class, MasterServer.Client.class,
-				new WantClientCallback<MasterServer.Client>() {
+				new ThriftClientPool<TServiceClient>( name, new WantClientCallback<MasterServer.Client>() {
 					@Override
 					public MasterServer.Client getNewClient()
 					{
 						return getNewMasterClient( ctx, host, port, timeout );
 					}
-				}, new ErrorCallback() {
+				}, poolConfig ), errorCb );
+		if ( ctx == null ) {
+			masterAsyncClient = ThriftAsyncClient.nonBlocking( name, host, port, timeout,
+					new AsyncClientCreator<MasterServer.AsyncIface>() {
+						@Override
+						public MasterServer.AsyncIface newClient( TAsyncClientManager manager, TNonblockingTransport transport )
+						{
+							return new MasterServer.AsyncClient( new TBinaryProtocol.Factory(), manager, transport );
+						}
+					}, errorCb, poolConfig );
+		} else {
+			masterAsyncClient = ThriftAsyncClient.blocking( name, MasterServer.AsyncIface.class, masterManager.client,
+					poolConfig );
+		}
+		return true;
+	}
+
+	/**
+	 * Sets multiple addresses of the master server. Calls go to the endpoint
+	 * that responded fastest recently, failing over to the others if it's
+	 * down. See {@link ThriftEndpointGroup}.
+	 * 
+	 * @param addresses ip/hostname and port of each master server
+	 * @return true if setting the addresses worked, false otherwise
+	 */
+	public static synchronized boolean setMasterServerAddresses( final SSLContext ctx,
+			final List<InetSocketAddress> addresses, final int timeout )
+	{
+		return setMasterServerAddresses( ctx, addresses, timeout, new ThriftClientPool.Config(),
+				new ThriftEndpointGroup.Config() );
+	}
+
+	/**
+	 * Sets multiple addresses of the master server, using the given connection
+	 * pool and failover settings. Every endpoint gets its own connection pool
+	 * using poolConfig.
+	 * 
+	 * @param addresses ip/hostname and port of each master server
+	 * @param poolConfig limits for the connection pool of each endpoint
+	 * @param groupConfig failure detection settings
+	 * @return true if setting the addresses worked, false otherwise
+	 */
+	public static synchronized boolean setMasterServerAddresses( final SSLContext ctx,
+			final List<InetSocketAddress> addresses, final int timeout, ThriftClientPool.Config poolConfig,
+			ThriftEndpointGroup.Config groupConfig )
+	{
+		if ( masterManager != null ) {
+			LOGGER.error( "Master server address already set." );
+			return false;
+		}
+		if ( addresses.isEmpty() ) {
+			LOGGER.error( "Given address list is empty." );
+			return false;
+		}
+		ErrorCallback errorCb = new ErrorCallback() {
+			@Override
+			public boolean thriftError( int failCount, String method, Throwable t )
+			{
+				return masterErrorCallback != null && masterErrorCallback.thriftError( failCount, method, t );
+			}
+		};
+		StringBuilder name = new StringBuilder( "master " );
+		for ( InetSocketAddress address : addresses ) {
+			if ( name.length() > 7 ) {
+				name.append( ',' );
+			}
+			name.append( address.getHostString() ).append( ':' ).append( address.getPort() );
+		}
+		ThriftEndpointGroup<TServiceClient> group = new ThriftEndpointGroup<TServiceClient>( name.toString(), addresses,
+				new ThriftEndpointGroup.EndpointClientFactory<MasterServer.Client>() {
 					@Override
-					public boolean thriftError( int failCount, String method, Throwable t )
+					public MasterServer.Client getNewClient( ThriftEndpoint endpoint )
 					{
-						return masterErrorCallback != null && masterErrorCallback.thriftError( failCount, method, t );
+						return getNewMasterClient( ctx, endpoint.getHost(), endpoint.getPort(), timeout );
 					}
-				} );
+				}, poolConfig, groupConfig );
+		masterManager = new ThriftManager<MasterServer.Iface>( MasterServer.Iface.class, MasterServer.Client.class,
+				group, errorCb );
+		// The non-blocking client only knows a single address, so go through the endpoint group
+		masterAsyncClient = ThriftAsyncClient.blocking( name.toString(), MasterServer.AsyncIface.class,
+				masterManager.client, poolConfig );
 		return true;
 	}
 
@@ -97,6 +207,20 @@ public class ThriftManager<T>
 	 * @return true if setting the address worked, false otherwise
 	 */
 	public static synchronized boolean setSatelliteAddress( final SSLContext ctx, final String host, final int port, final int timeout )
+	{
+		return setSatelliteAddress( ctx, host, port, timeout, new ThriftClientPool.Config() );
+	}
+
+	/**
+	 * Sets the IP of the satellite to connect to, using the given connection
+	 * pool settings
+	 * 
+	 * @param host the ip/hostname of the satellite
+	 * @param poolConfig limits for the connection pool
+	 * @return true if setting the address worked, false otherwise
+	 */
+	public static synchronized boolean setSatelliteAddress( final SSLContext ctx, final String host, final int port,
+			final int timeout, ThriftClientPool.Config poolConfig )
 	{
 		if ( satelliteManager != null ) {
 			LOGGER.error( "Satellite server address already set." );
@@ -107,21 +231,36 @@ public class ThriftManager<T>
 			return false;
 		}
 		satSslContext = ctx;
+		ErrorCallback errorCb = new ErrorCallback() {
+			@Override
+			public boolean thriftError( int failCount, String method, Throwable t )
+			{
+				return satErrorCallback != null && satErrorCallback.thriftError( failCount, method, t );
+			}
+		};
+		String name = "satellite " + host + ":" + port;
 		// finally set it
 		satelliteManager = new ThriftManager<SatelliteServer.Iface>( SatelliteServer.Iface.class, SatelliteServer.Client.class,
-				new WantClientCallback<SatelliteServer.Client>() {
+				new ThriftClientPool<TServiceClient>( name, new WantClientCallback<SatelliteServer.Client>() {
 					@Override
 					public SatelliteServer.Client getNewClient()
 					{
 						return getNewSatelliteClient( ctx, host, port, timeout );
 					}
-				}, new ErrorCallback() {
-					@Override
-					public boolean thriftError( int failCount, String method, Throwable t )
-					{
-						return satErrorCallback != null && satErrorCallback.thriftError( failCount, method, t );
-					}
-				} );
+				}, poolConfig ), errorCb );
+		if ( ctx == null ) {
+			satelliteAsyncClient = ThriftAsyncClient.nonBlocking( name, host, port, timeout,
+					new AsyncClientCreator<SatelliteServer.AsyncIface>() {
+						@Override
+						public SatelliteServer.AsyncIface newClient( TAsyncClientManager manager, TNonblockingTransport transport )
+						{
+							return new SatelliteServer.AsyncClient( new TBinaryProtocol.Factory(), manager, transport );
+						}
+					}, errorCb, poolConfig );
+		} else {
+			satelliteAsyncClient = ThriftAsyncClient.blocking( name, SatelliteServer.AsyncIface.class,
+					satelliteManager.client, poolConfig );
+		}
 		return true;
 	}
 	
@@ -161,9 +300,109 @@ public class ThriftManager<T>
 		return masterManager.client;
 	}
 
+	/**
+	 * Returns the asynchronous client for the master server. Calls return
+	 * futures instead of blocking; broken connections are retried according
+	 * to the master error callback, like for {@link #getMasterClient()}.
+	 * 
+	 * @return the async client, or null if the master server address wasn't set yet
+	 */
+	public static ThriftAsyncClient<MasterServer.AsyncIface> getMasterAsyncClient()
+	{
+		if ( masterAsyncClient == null ) {
+			LOGGER.error( "Master server adress was not set prior to getting the client. Use setMasterServerAddress(<addr>)." );
+		}
+		return masterAsyncClient;
+	}
+
+	/**
+	 * Returns the asynchronous client for the satellite. Calls return futures
+	 * instead of blocking; broken connections are retried according to the
+	 * satellite error callback, like for {@link #getSatClient()}.
+	 * 
+	 * @return the async client, or null if the satellite address wasn't set yet
+	 */
+	public static ThriftAsyncClient<SatelliteServer.AsyncIface> getSatAsyncClient()
+	{
+		if ( satelliteAsyncClient == null ) {
+			LOGGER.error( "Satellite server adress was not set prior to getting the client. Use setSatelliteAddress(<addr>)." );
+		}
+		return satelliteAsyncClient;
+	}
+
+	/**
+	 * Get the connection pool backing {@link #getMasterClient()}, e.g. for
+	 * monitoring its active, idle and waiting counts.
+	 * 
+	 * @return the pool, or null if the master server address wasn't set yet,
+	 *         or multiple addresses were set; see
+	 *         {@link #getMasterEndpointGroup()} in that case
+	 */
+	public static ThriftClientPool<?> getMasterClientPool()
+	{
+		ThriftManager<?> manager = masterManager;
+		if ( manager == null || !( manager.pool instanceof ThriftClientPool ) )
+			return null;
+		return (ThriftClientPool<?>)manager.pool;
+	}
+
+	/**
+	 * Get the endpoints backing {@link #getMasterClient()} if multiple
+	 * addresses were set via
+	 * {@link #setMasterServerAddresses(SSLContext, List, int)}, e.g. for
+	 * monitoring their health.
+	 * 
+	 * @return the endpoint group, or null if not set, or only a single
+	 *         address was set
+	 */
+	public static ThriftEndpointGroup<?> getMasterEndpointGroup()
+	{
+		ThriftManager<?> manager = masterManager;
+		if ( manager == null || !( manager.pool instanceof ThriftEndpointGroup ) )
+			return null;
+		return (ThriftEndpointGroup<?>)manager.pool;
+	}
+
+	/**
+	 * Get the connection pool backing {@link #getSatClient()}, e.g. for
+	 * monitoring its active, idle and waiting counts.
+	 * 
+	 * @return the pool, or null if the satellite address wasn't set yet
+	 */
+	public static ThriftClientPool<?> getSatelliteClientPool()
+	{
+		ThriftManager<?> manager = satelliteManager;
+		return manager == null ? null : (ThriftClientPool<?>)manager.pool;
+	}
+
+	/**
+	 * Get latency, error and retry statistics of calls made through
+	 * {@link #getMasterClient()}, per method.
+	 * 
+	 * @return the metrics, or null if the master server address wasn't set yet
+	 */
+	public static ThriftCallMetrics getMasterCallMetrics()
+	{
+		ThriftManager<?> manager = masterManager;
+		return manager == null ? null : manager.metrics;
+	}
+
+	/**
+	 * Get latency, error and retry statistics of calls made through
+	 * {@link #getSatClient()}, per method.
+	 * 
+	 * @return the metrics, or null if the satellite address wasn't set yet
+	 */
+	public static ThriftCallMetrics getSatelliteCallMetrics()
+	{
+		ThriftManager<?> manager = satelliteManager;
+		return manager == null ? null : manager.metrics;
+	}
+
 	/**
 	 * Set the callback class for errors that occur on one of the
-	 * thrift connections to the master server.
+	 * thrift connections to the master server. See {@link RetryPolicy}
+	 * for one that waits before retrying, with limits.
 	 * 
 	 * @param cb
 	 */
@@ -174,7 +413,8 @@ public class ThriftManager<T>
 
 	/**
 	 * Set the callback class for errors that occur on one of the
-	 * thrift connections to the satellite server.
+	 * thrift connections to the satellite server. See {@link RetryPolicy}
+	 * for one that waits before retrying, with limits.
 	 * 
 	 * @param cb
 	 */
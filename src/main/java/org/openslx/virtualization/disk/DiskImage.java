@@ -152,6 +152,76 @@ public abstract class DiskImage implements Closeable
 		close();
 	}
 
+	/**
+	 * Allocation state of a range of a disk image's virtual disk.
+	 */
+	public enum AllocationState
+	{
+		/**
+		 * Range is not allocated in the disk image; it reads as zeros or from a backing file.
+		 */
+		UNALLOCATED,
+		/**
+		 * Range is allocated in the disk image and contains data.
+		 */
+		ALLOCATED,
+		/**
+		 * Range is explicitly marked to read as zeros.
+		 */
+		ZERO;
+	}
+
+	/**
+	 * Contiguous range of a disk image's virtual disk sharing the same {@link AllocationState}.
+	 */
+	public static final class AllocationRange
+	{
+		/**
+		 * Offset of the range in the virtual disk in bytes.
+		 */
+		public final long offset;
+
+		/**
+		 * Length of the range in bytes.
+		 */
+		public final long length;
+
+		/**
+		 * Allocation state of the range.
+		 */
+		public final AllocationState state;
+
+		/**
+		 * Creates a new range of a virtual disk.
+		 * 
+		 * @param offset offset of the range in the virtual disk in bytes.
+		 * @param length length of the range in bytes.
+		 * @param state allocation state of the range.
+		 */
+		public AllocationRange( long offset, long length, AllocationState state )
+		{
+			this.offset = offset;
+			this.length = length;
+			this.state = state;
+		}
+
+		/**
+		 * Returns the end of the range (exclusive) in the virtual disk.
+		 * 
+		 * @return end offset of the range in bytes.
+		 */
+		public long getEnd()
+		{
+			return this.offset + this.length;
+		}
+
+		@Override
+		public String toString()
+		{
+			return this.state + "[" + this.offset + "+" + this.length + "]";
+		}
+	}
+
 	/**
 	 * Format of a disk image.
 	 * 
@@ -1,6 +1,9 @@
 package org.openslx.virtualization.disk;
 
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.openslx.virtualization.Version;
 
@@ -45,6 +48,26 @@ public class DiskImageQcow2 extends DiskImage
 	 */
 	private static final int QCOW2_MAGIC = 0x514649fb;
 
+	/**
+	 * Mask to extract the offset (bits 9 - 55) of a L1 or standard L2 table entry.
+	 */
+	private static final long QCOW2_OFFSET_MASK = 0x00fffffffffffe00L;
+
+	/**
+	 * Flag (bit 62) of a L2 table entry marking a compressed cluster.
+	 */
+	private static final long QCOW2_COMPRESSED_FLAG = 0x4000000000000000L;
+
+	/**
+	 * Flag (bit 0) of a standard L2 table entry marking a cluster reading as zeros.
+	 */
+	private static final long QCOW2_ZERO_FLAG = 0x1L;
+
+	/**
+	 * Number of subclusters per cluster if extended L2 tables are used.
+	 */
+	private static final int QCOW2_SUBCLUSTERS = 32;
+
 	/**
 	 * Creates a new QCOW2 disk image from an existing QCOW2 image file.
 	 * 
@@ -101,87 +124,260 @@ public class DiskImageQcow2 extends DiskImage
 	public boolean isCompressed() throws DiskImageException
 	{
 		final RandomAccessFile diskFile = this.getDiskImage();
-		final boolean qcowUseExtendedL2;
-		boolean qcowCompressed = false;
+		final Qcow2Layout qcowLayout = new Qcow2Layout();
+		final long[] qcowL1Table = qcowLayout.readL1Table();
+		final ByteBuffer qcowL2Table = ByteBuffer.allocate( qcowLayout.clusterSize );
+
+		// check for each L2 table referenced from the L1 table its entries
+		// until a compressed cluster descriptor is found
+		for ( int i = 0; i < qcowL1Table.length; i++ ) {
+			// extract offset (bits 9 - 55) from L1 table entry
+			final long qcowL2TableOffset = ( qcowL1Table[i] & DiskImageQcow2.QCOW2_OFFSET_MASK );
+
+			if ( qcowL2TableOffset == 0 ) {
+				// L2 table and all clusters described by this L2 table are unallocated
+				continue;
+			}
 
-		// check if QCOW2 image uses extended L2 tables
-		// extended L2 tables are only possible in QCOW2 version 3 header format
-		if ( this.getVersion().getMajor() >= Short.valueOf( "3" ) ) {
-			// read incompatible feature bits
-			final long qcowIncompatibleFeatures = DiskImageUtils.readLong( diskFile, 72 );
+			// read whole L2 table at once
+			DiskImageUtils.readBytesIntoBuffer( diskFile, qcowL2TableOffset, qcowL2Table );
 
-			// support for extended L2 tables is enabled if bit 4 is set
-			qcowUseExtendedL2 = ( ( ( qcowIncompatibleFeatures & 0x000000000010 ) >>> 4 ) == 1 );
-		} else {
-			qcowUseExtendedL2 = false;
+			// get each L2 table entry and check if it is a compressed cluster descriptor
+			for ( int j = 0; j < qcowLayout.l2TableSize; j++ ) {
+				final long qcowL2TableEntry = qcowL2Table.getLong( j * qcowLayout.l2TableEntrySize );
+
+				// check if QCOW2 disk image contains at least one compressed cluster descriptor
+				if ( ( qcowL2TableEntry & DiskImageQcow2.QCOW2_COMPRESSED_FLAG ) != 0 ) {
+					return true;
+				}
+			}
 		}
 
-		// get number of entries in L1 table
-		final int qcowL1TableSize = DiskImageUtils.readInt( diskFile, 36 );
+		return false;
+	}
 
-		// check if a valid L1 table is present
-		if ( qcowL1TableSize > 0 ) {
-			// QCOW2 image contains active L1 table with more than 0 entries: l1_size > 0
-			// search for first L2 table and its first entry to get compression bit
+	/**
+	 * Returns the allocation map of the QCOW2 disk image's virtual disk.
+	 * 
+	 * The returned list of ranges covers the whole virtual disk without gaps, in ascending order.
+	 * Adjacent ranges with the same state are merged. If the QCOW2 disk image uses extended L2
+	 * tables, the state is determined for each subcluster, otherwise for each cluster. Compressed
+	 * clusters are reported as allocated.
+	 * 
+	 * @return ranges of the virtual disk with their allocation states.
+	 * 
+	 * @throws DiskImageException unable to read the allocation map of the disk image.
+	 */
+	public List<AllocationRange> getAllocationMap() throws DiskImageException
+	{
+		final RandomAccessFile diskFile = this.getDiskImage();
+		final Qcow2Layout qcowLayout = new Qcow2Layout();
+		final long[] qcowL1Table = qcowLayout.readL1Table();
+		final ByteBuffer qcowL2Table = ByteBuffer.allocate( qcowLayout.clusterSize );
+		final long qcowL2TableCoverage = (long)qcowLayout.l2TableSize * qcowLayout.clusterSize;
+		final int qcowSubclusterSize = qcowLayout.clusterSize / DiskImageQcow2.QCOW2_SUBCLUSTERS;
+		final List<AllocationRange> ranges = new ArrayList<>();
+
+		for ( int i = 0; i < qcowL1Table.length; i++ ) {
+			final long qcowL2TableGuestOffset = i * qcowL2TableCoverage;
+			final long qcowL2TableOffset = ( qcowL1Table[i] & DiskImageQcow2.QCOW2_OFFSET_MASK );
+
+			if ( qcowL2TableGuestOffset >= qcowLayout.size ) {
+				break;
+			}
 
-			// get cluster bits to calculate the cluster size
-			final int qcowClusterBits = DiskImageUtils.readInt( diskFile, 20 );
-			final int qcowClusterSize = ( 1 << qcowClusterBits );
+			if ( qcowL2TableOffset == 0 ) {
+				// L2 table and all clusters described by this L2 table are unallocated
+				addRange( ranges, qcowL2TableGuestOffset, qcowL2TableCoverage, AllocationState.UNALLOCATED,
+						qcowLayout.size );
+				continue;
+			}
 
-			// entries of a L1 table have always the size of 8 byte (64 bit)
-			final int qcowL1TableEntrySize = 8;
+			// read whole L2 table at once
+			DiskImageUtils.readBytesIntoBuffer( diskFile, qcowL2TableOffset, qcowL2Table );
 
-			// entries of a L2 table have either the size of 8 or 16 byte (64 or 128 bit)
-			final int qcowL2TableEntrySize = ( qcowUseExtendedL2 ) ? 16 : 8;
+			for ( int j = 0; j < qcowLayout.l2TableSize; j++ ) {
+				final long qcowClusterGuestOffset = qcowL2TableGuestOffset + (long)j * qcowLayout.clusterSize;
+				final int qcowL2TableEntryOffset = j * qcowLayout.l2TableEntrySize;
+				final long qcowL2TableEntry = qcowL2Table.getLong( qcowL2TableEntryOffset );
 
-			// calculate number of L2 table entries
-			final int qcowL2TableSize = qcowClusterSize / qcowL2TableEntrySize;
+				if ( qcowClusterGuestOffset >= qcowLayout.size ) {
+					break;
+				}
 
-			// get offset of L1 table
-			final long qcowL1TableOffset = DiskImageUtils.readLong( diskFile, 40 );
+				if ( ( qcowL2TableEntry & DiskImageQcow2.QCOW2_COMPRESSED_FLAG ) != 0 ) {
+					// compressed clusters are always allocated as a whole
+					addRange( ranges, qcowClusterGuestOffset, qcowLayout.clusterSize, AllocationState.ALLOCATED,
+							qcowLayout.size );
+				} else if ( qcowLayout.extendedL2 ) {
+					// bits 0 - 31 of the subcluster bitmap mark allocated subclusters,
+					// bits 32 - 63 mark subclusters reading as zeros
+					final long qcowSubclusterBitmap = qcowL2Table.getLong( qcowL2TableEntryOffset + 8 );
+					for ( int k = 0; k < DiskImageQcow2.QCOW2_SUBCLUSTERS; k++ ) {
+						final AllocationState state;
+						if ( ( ( qcowSubclusterBitmap >>> ( 32 + k ) ) & 1 ) != 0 ) {
+							state = AllocationState.ZERO;
+						} else if ( ( ( qcowSubclusterBitmap >>> k ) & 1 ) != 0 ) {
+							state = AllocationState.ALLOCATED;
+						} else {
+							state = AllocationState.UNALLOCATED;
+						}
+						addRange( ranges, qcowClusterGuestOffset + (long)k * qcowSubclusterSize, qcowSubclusterSize,
+								state, qcowLayout.size );
+					}
+				} else {
+					final AllocationState state;
+					if ( ( qcowL2TableEntry & DiskImageQcow2.QCOW2_ZERO_FLAG ) != 0 ) {
+						state = AllocationState.ZERO;
+					} else if ( ( qcowL2TableEntry & DiskImageQcow2.QCOW2_OFFSET_MASK ) != 0 ) {
+						state = AllocationState.ALLOCATED;
+					} else {
+						state = AllocationState.UNALLOCATED;
+					}
+					addRange( ranges, qcowClusterGuestOffset, qcowLayout.clusterSize, state, qcowLayout.size );
+				}
+			}
+		}
 
-			// check for each L2 table referenced from an L1 table its entries
-			// until a compressed cluster descriptor is found
-			for ( long i = 0; i < qcowL1TableSize; i++ ) {
-				// get offset of current L2 table from the current L1 table entry
-				final long qcowL1TableEntryOffset = qcowL1TableOffset + ( i * qcowL1TableEntrySize );
-				final long qcowL1TableEntry = DiskImageUtils.readLong( diskFile, qcowL1TableEntryOffset );
+		// virtual disk not covered by the L1 table is unallocated
+		final long qcowCoveredSize = ranges.isEmpty() ? 0 : ranges.get( ranges.size() - 1 ).getEnd();
+		if ( qcowCoveredSize < qcowLayout.size ) {
+			addRange( ranges, qcowCoveredSize, qcowLayout.size - qcowCoveredSize, AllocationState.UNALLOCATED,
+					qcowLayout.size );
+		}
 
-				// extract offset (bits 9 - 55) from L1 table entry
-				final long qcowL2TableOffset = ( qcowL1TableEntry & 0x00fffffffffffe00L );
+		return ranges;
+	}
 
-				if ( qcowL2TableOffset == 0 ) {
-					// L2 table and all clusters described by this L2 table are unallocated
-					continue;
-				}
+	/**
+	 * Appends a range to a list of ranges, merging it with the last range if possible.
+	 * 
+	 * @param ranges list of ranges to append the range to.
+	 * @param offset offset of the range in bytes.
+	 * @param length length of the range in bytes.
+	 * @param state allocation state of the range.
+	 * @param size size of the virtual disk in bytes; the range is cut off at this size.
+	 */
+	private static void addRange( List<AllocationRange> ranges, long offset, long length, AllocationState state,
+			long size )
+	{
+		if ( offset >= size ) {
+			return;
+		}
 
-				// get each L2 table entry and check if it is a compressed cluster descriptor
-				for ( long j = 0; j < qcowL2TableSize; j++ ) {
-					// get current L2 table entry
-					final long qcowL2TableEntryOffset = qcowL2TableOffset + ( j * qcowL2TableEntrySize );
-					final long qcowL2TableEntry = DiskImageUtils.readLong( diskFile, qcowL2TableEntryOffset );
+		final long end = Math.min( offset + length, size );
+		final int last = ranges.size() - 1;
 
-					// extract cluster type (standard or compressed) (bit 62)
-					boolean qcowClusterCompressed = ( ( ( qcowL2TableEntry & 0x4000000000000000L ) >>> 62 ) == 1 );
+		if ( last >= 0 && ranges.get( last ).state == state && ranges.get( last ).getEnd() == offset ) {
+			final AllocationRange lastRange = ranges.get( last );
+			ranges.set( last, new AllocationRange( lastRange.offset, end - lastRange.offset, state ) );
+		} else {
+			ranges.add( new AllocationRange( offset, end - offset, state ) );
+		}
+	}
 
-					// check if QCOW2 disk image contains at least one compressed cluster descriptor
-					if ( qcowClusterCompressed ) {
-						qcowCompressed = true;
-						break;
-					}
-				}
+	/**
+	 * Layout of the QCOW2 disk image's lookup tables as stated in its header.
+	 */
+	private class Qcow2Layout
+	{
+		/**
+		 * Size of the virtual disk in bytes.
+		 */
+		private final long size;
+
+		/**
+		 * Size of a cluster in bytes.
+		 */
+		private final int clusterSize;
+
+		/**
+		 * State whether extended L2 tables with subcluster allocation are used.
+		 */
+		private final boolean extendedL2;
+
+		/**
+		 * Size of a L2 table entry in bytes.
+		 */
+		private final int l2TableEntrySize;
+
+		/**
+		 * Number of entries in a L2 table.
+		 */
+		private final int l2TableSize;
+
+		/**
+		 * Number of entries in the L1 table.
+		 */
+		private final int l1TableSize;
+
+		/**
+		 * Offset of the L1 table in the disk image file.
+		 */
+		private final long l1TableOffset;
+
+		/**
+		 * Reads the layout from the QCOW2 header.
+		 * 
+		 * @throws DiskImageException unable to read the header or header contains invalid values.
+		 */
+		private Qcow2Layout() throws DiskImageException
+		{
+			final RandomAccessFile diskFile = DiskImageQcow2.this.getDiskImage();
+
+			// check if QCOW2 image uses extended L2 tables
+			// extended L2 tables are only possible in QCOW2 version 3 header format
+			if ( DiskImageQcow2.this.getVersion().getMajor() >= Short.valueOf( "3" ) ) {
+				// read incompatible feature bits
+				final long qcowIncompatibleFeatures = DiskImageUtils.readLong( diskFile, 72 );
+
+				// support for extended L2 tables is enabled if bit 4 is set
+				this.extendedL2 = ( ( ( qcowIncompatibleFeatures & 0x000000000010 ) >>> 4 ) == 1 );
+			} else {
+				this.extendedL2 = false;
+			}
 
-				// terminate if one compressed cluster descriptor is already found
-				if ( qcowCompressed ) {
-					break;
-				}
+			// get cluster bits to calculate the cluster size
+			final int qcowClusterBits = DiskImageUtils.readInt( diskFile, 20 );
+			if ( qcowClusterBits < 9 || qcowClusterBits > 21 ) {
+				throw new DiskImageException( "Invalid QCOW2 cluster size in header found!" );
+			}
+			this.clusterSize = ( 1 << qcowClusterBits );
+
+			// entries of a L2 table have either the size of 8 or 16 byte (64 or 128 bit)
+			this.l2TableEntrySize = ( this.extendedL2 ) ? 16 : 8;
+			this.l2TableSize = this.clusterSize / this.l2TableEntrySize;
+
+			this.size = DiskImageUtils.readLong( diskFile, 24 );
+			this.l1TableSize = DiskImageUtils.readInt( diskFile, 36 );
+			this.l1TableOffset = DiskImageUtils.readLong( diskFile, 40 );
+
+			// entries of a L1 table have always the size of 8 byte (64 bit)
+			if ( this.l1TableSize < 0
+					|| this.l1TableSize * 8L > DiskImageUtils.getImageSize( diskFile ) ) {
+				throw new DiskImageException( "Invalid QCOW2 L1 table size in header found!" );
 			}
-		} else {
-			// QCOW2 image does not contain an active L1 table with any entry: l1_size = 0
-			qcowCompressed = false;
 		}
 
-		return qcowCompressed;
+		/**
+		 * Reads the whole L1 table at once.
+		 * 
+		 * @return entries of the L1 table.
+		 * 
+		 * @throws DiskImageException unable to read the L1 table.
+		 */
+		private long[] readL1Table() throws DiskImageException
+		{
+			final long[] l1Table = new long[ this.l1TableSize ];
+
+			if ( this.l1TableSize > 0 ) {
+				final ByteBuffer buffer = ByteBuffer.allocate( this.l1TableSize * 8 );
+				DiskImageUtils.readBytesIntoBuffer( DiskImageQcow2.this.getDiskImage(), this.l1TableOffset, buffer );
+				buffer.asLongBuffer().get( l1Table );
+			}
+
+			return l1Table;
+		}
 	}
 
 	@Override
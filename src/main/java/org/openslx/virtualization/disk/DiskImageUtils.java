@@ -2,6 +2,8 @@ package org.openslx.virtualization.disk;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Utilities to parse disk image format elements and control versions of disk images.
@@ -141,4 +143,41 @@ public class DiskImageUtils
 
 		return values;
 	}
+
+	/**
+	 * Fills the given <code>buffer</code> with bytes read at a given <code>offset</code> from the
+	 * specified disk image file, using a single positional read where possible. Parts of the buffer
+	 * located beyond the end of the disk image file are filled with zeros.
+	 * 
+	 * @implNote In contrast to the other read methods, this method does neither query the size of
+	 *           the disk image file nor modify its file pointer, so it is suitable for reading large
+	 *           tables in bulk.
+	 * 
+	 * @param diskImage file to a disk storing the image content.
+	 * @param offset offset in bytes for reading the bytes.
+	 * @param buffer buffer to fill; it is flipped afterwards and ready to be read from.
+	 * 
+	 * @throws DiskImageException unable to read bytes from the disk image file.
+	 */
+	public static void readBytesIntoBuffer( RandomAccessFile diskImage, long offset, ByteBuffer buffer )
+			throws DiskImageException
+	{
+		final FileChannel channel = diskImage.getChannel();
+
+		buffer.clear();
+		try {
+			while ( buffer.hasRemaining() ) {
+				final int ret = channel.read( buffer, offset + buffer.position() );
+				if ( ret == -1 ) {
+					break;
+				}
+			}
+		} catch ( IOException e ) {
+			throw new DiskImageException( e.getLocalizedMessage() );
+		}
+		while ( buffer.hasRemaining() ) {
+			buffer.put( (byte)0 );
+		}
+		buffer.flip();
+	}
 }
@@ -0,0 +1,117 @@
+package org.openslx.filetransfer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+public class BandwidthLimiterTest
+{
+
+	@Test
+	@DisplayName( "Test rate is enforced" )
+	public void testRate() throws Exception
+	{
+		BandwidthLimiter limiter = new BandwidthLimiter( 1000000 );
+		assertEquals( 10000, limiter.getSliceSize() );
+		long start = System.nanoTime();
+		// 100ms worth of burst, then 300ms of throttling
+		for ( int i = 0; i < 40; ++i ) {
+			limiter.acquire( limiter.getSliceSize() );
+		}
+		long ms = ( System.nanoTime() - start ) / 1000000;
+		assertTrue( ms >= 250, "Took only " + ms + "ms" );
+		assertTrue( ms < 1000, "Took " + ms + "ms" );
+		assertEquals( 400000, limiter.getBytesTotal() );
+	}
+
+	@Test
+	@DisplayName( "Test changing rate affects waiting threads" )
+	public void testChangeRate() throws Exception
+	{
+		final BandwidthLimiter limiter = new BandwidthLimiter( 1000 );
+		final boolean[] done = new boolean[ 1 ];
+		Thread t = new Thread() {
+			@Override
+			public void run()
+			{
+				try {
+					for ( int i = 0; i < 10; ++i ) {
+						limiter.acquire( limiter.getSliceSize() );
+					}
+					done[0] = true;
+				} catch ( InterruptedIOException e ) {
+				}
+			}
+		};
+		t.start();
+		t.join( 300 );
+		assertTrue( t.isAlive() );
+		limiter.setRate( 0 );
+		t.join( 1000 );
+		assertFalse( t.isAlive() );
+		assertTrue( done[0] );
+		assertEquals( Integer.MAX_VALUE, limiter.getSliceSize() );
+	}
+
+	@Test
+	@DisplayName( "Test interrupting waiting thread" )
+	public void testInterrupt() throws Exception
+	{
+		final BandwidthLimiter limiter = new BandwidthLimiter( 1000 );
+		final Exception[] ex = new Exception[ 1 ];
+		Thread t = new Thread() {
+			@Override
+			public void run()
+			{
+				try {
+					for ( ;; ) {
+						limiter.acquire( limiter.getSliceSize() );
+					}
+				} catch ( InterruptedIOException e ) {
+					ex[0] = e;
+				}
+			}
+		};
+		t.start();
+		Thread.sleep( 50 );
+		t.interrupt();
+		t.join( 1000 );
+		assertFalse( t.isAlive() );
+		assertTrue( ex[0] instanceof InterruptedIOException );
+	}
+
+	@Test
+	@DisplayName( "Test per peer limiters" )
+	public void testPeers() throws Exception
+	{
+		InetAddress a = InetAddress.getByName( "192.0.2.1" );
+		InetAddress b = InetAddress.getByName( "192.0.2.2" );
+		BandwidthLimiter la = BandwidthLimiter.getForPeer( a );
+		BandwidthLimiter lb = BandwidthLimiter.getForPeer( b );
+		assertSame( la, BandwidthLimiter.getForPeer( a ) );
+		assertNotSame( la, lb );
+		try {
+			BandwidthLimiter.setDefaultPeerRate( 5000 );
+			BandwidthLimiter.setPeerRate( a, 1000 );
+			assertEquals( 1000, la.getRate() );
+			assertEquals( 5000, lb.getRate() );
+			BandwidthLimiter.setDefaultPeerRate( 7000 );
+			assertEquals( 1000, la.getRate() );
+			assertEquals( 7000, lb.getRate() );
+			BandwidthLimiter.setPeerRate( a, -1 );
+			assertEquals( 7000, la.getRate() );
+		} finally {
+			BandwidthLimiter.setDefaultPeerRate( 0 );
+		}
+		assertEquals( 0, la.getRate() );
+	}
+
+}
@@ -0,0 +1,145 @@
+package org.openslx.filetransfer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+public class ChunkReadCacheTest
+{
+
+	private static final int RANGE = 1024 * 1024;
+
+	private static File createFile( byte[] data ) throws Exception
+	{
+		File file = File.createTempFile( "bftp-cache", ".bin" );
+		file.deleteOnExit();
+		Files.write( file.toPath(), data );
+		return file;
+	}
+
+	private static byte[] createData( int seed )
+	{
+		byte[] data = new byte[ 4 * RANGE ];
+		new Random( seed ).nextBytes( data );
+		// Compressible second half
+		Arrays.fill( data, data.length / 2, data.length, (byte)7 );
+		return data;
+	}
+
+	@Test
+	@DisplayName( "Test only ranges read repeatedly get cached" )
+	public void testHot() throws Exception
+	{
+		byte[] data = createData( 1 );
+		File file = createFile( data );
+		ChunkReadCache cache = new ChunkReadCache( 8 * RANGE );
+		ChunkReadCache.FileIdentity id = ChunkReadCache.FileIdentity.of( file );
+		FileRange range = new FileRange( RANGE, 2 * RANGE );
+		try ( RandomAccessFile raf = new RandomAccessFile( file, "r" ) ) {
+			assertNull( cache.acquire( id, raf.getChannel(), range ) );
+			ChunkReadCache.Entry entry = cache.acquire( id, raf.getChannel(), range );
+			assertNotNull( entry );
+			assertArrayEquals( Arrays.copyOfRange( data, RANGE, 2 * RANGE ), entry.getData() );
+			assertSame( entry, cache.acquire( id, raf.getChannel(), range ) );
+			assertEquals( 1, cache.getHitCount() );
+			cache.release( entry );
+			cache.release( entry );
+		}
+		assertEquals( RANGE, cache.getUsedBytes() );
+	}
+
+	@Test
+	@DisplayName( "Test entries in use are not evicted, and budget is respected" )
+	public void testEviction() throws Exception
+	{
+		byte[] data = createData( 2 );
+		File file = createFile( data );
+		ChunkReadCache cache = new ChunkReadCache( 2 * RANGE );
+		cache.setCacheCompressed( false );
+		ChunkReadCache.FileIdentity id = ChunkReadCache.FileIdentity.of( file );
+		try ( RandomAccessFile raf = new RandomAccessFile( file, "r" ) ) {
+			ChunkReadCache.Entry[] entries = new ChunkReadCache.Entry[ 3 ];
+			for ( int i = 0; i < 3; ++i ) {
+				FileRange range = new FileRange( i * RANGE, ( i + 1 ) * RANGE );
+				cache.acquire( id, raf.getChannel(), range );
+				entries[i] = cache.acquire( id, raf.getChannel(), range );
+			}
+			assertNotNull( entries[0] );
+			assertNotNull( entries[1] );
+			// Budget exhausted, and both entries still in use
+			assertNull( entries[2] );
+			cache.release( entries[0] );
+			FileRange range = new FileRange( 2 * RANGE, 3 * RANGE );
+			entries[2] = cache.acquire( id, raf.getChannel(), range );
+			assertNotNull( entries[2] );
+			assertEquals( 1, cache.getEvictionCount() );
+			assertEquals( 2 * RANGE, cache.getUsedBytes() );
+			cache.release( entries[1] );
+			cache.release( entries[2] );
+		}
+	}
+
+	@Test
+	@DisplayName( "Test modified file gets a new identity" )
+	public void testFileChanged() throws Exception
+	{
+		File file = createFile( createData( 3 ) );
+		ChunkReadCache.FileIdentity id = ChunkReadCache.FileIdentity.of( file );
+		assertEquals( id, ChunkReadCache.FileIdentity.of( file ) );
+		Files.write( file.toPath(), createData( 4 ) );
+		file.setLastModified( file.lastModified() + 2000 );
+		assertFalse( id.equals( ChunkReadCache.FileIdentity.of( file ) ) );
+	}
+
+	@Test
+	@DisplayName( "Test cached compressed frames decompress to original data" )
+	public void testCompressedFrames() throws Exception
+	{
+		byte[] data = createData( 5 );
+		File file = createFile( data );
+		ChunkReadCache cache = new ChunkReadCache( 16 * RANGE );
+		ChunkReadCache.FileIdentity id = ChunkReadCache.FileIdentity.of( file );
+		FileRange range = new FileRange( 0, data.length );
+		try ( RandomAccessFile raf = new RandomAccessFile( file, "r" ) ) {
+			cache.acquire( id, raf.getChannel(), range );
+			ChunkReadCache.Entry entry = cache.acquire( id, raf.getChannel(), range );
+			List<byte[]> frames = entry.getCompressedFrames();
+			assertSame( frames, entry.getCompressedFrames() );
+			LZ4FastDecompressor decompressor = LZ4Factory.fastestInstance().fastDecompressor();
+			byte[] result = new byte[ data.length ];
+			int pos = 0;
+			for ( byte[] frame : frames ) {
+				ByteBuffer header = ByteBuffer.wrap( frame );
+				int decompressed = header.getInt();
+				int sent = header.getInt();
+				assertEquals( sent, frame.length - 8 );
+				if ( sent < decompressed ) {
+					decompressor.decompress( frame, 8, result, pos, decompressed );
+				} else {
+					System.arraycopy( frame, 8, result, pos, decompressed );
+				}
+				pos += decompressed;
+			}
+			assertArrayEquals( data, result );
+			cache.release( entry );
+		}
+	}
+
+}
@@ -0,0 +1,82 @@
+package org.openslx.filetransfer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+public class CompressionAdvisorTest
+{
+
+	private static final int BLOCK = SendPipeline.BLOCK_SIZE;
+
+	@Test
+	@DisplayName( "Test incompressible regions are skipped and probed again with growing pauses" )
+	public void testSkipAndProbe()
+	{
+		byte[] random = new byte[ BLOCK ];
+		new Random( 1 ).nextBytes( random );
+		CompressionAdvisor advisor = new CompressionAdvisor();
+		int compressed = 0;
+		for ( int i = 0; i < 32; ++i ) {
+			long offset = (long)i * BLOCK;
+			if ( advisor.shouldCompress( offset, random, 0, BLOCK ) ) {
+				compressed++;
+				advisor.compressed( offset, BLOCK, BLOCK + 100, 1000 );
+			}
+		}
+		// First attempt, then probes after 4, 8 and 16 skipped blocks
+		assertEquals( 4, compressed );
+		assertEquals( 28, advisor.getSkipCount() );
+		assertEquals( 28l * BLOCK, advisor.getBytesSkipped() );
+		assertTrue( advisor.getSavedNanos() > 0 );
+		// Other regions are not affected
+		assertTrue( advisor.shouldCompress( 64l * 1024 * 1024, random, 0, BLOCK ) );
+	}
+
+	@Test
+	@DisplayName( "Test compressible block resets region" )
+	public void testReset()
+	{
+		byte[] data = new byte[ BLOCK ];
+		CompressionAdvisor advisor = new CompressionAdvisor();
+		assertTrue( advisor.shouldCompress( 0, data, 0, BLOCK ) );
+		advisor.compressed( 0, BLOCK, BLOCK, 1000 );
+		for ( int i = 0; i < 4; ++i ) {
+			assertFalse( advisor.shouldCompress( 0, data, 0, BLOCK ) );
+		}
+		assertTrue( advisor.shouldCompress( 0, data, 0, BLOCK ) );
+		advisor.compressed( 0, BLOCK, 1000, 1000 );
+		assertTrue( advisor.shouldCompress( 0, data, 0, BLOCK ) );
+		// Disabled advisor compresses everything
+		advisor.compressed( 0, BLOCK, BLOCK, 1000 );
+		advisor.setEnabled( false );
+		assertTrue( advisor.shouldCompress( 0, data, 0, BLOCK ) );
+	}
+
+	@Test
+	@DisplayName( "Test entropy estimation and pre-check" )
+	public void testEntropyCheck()
+	{
+		byte[] random = new byte[ BLOCK ];
+		new Random( 2 ).nextBytes( random );
+		byte[] text = new byte[ BLOCK ];
+		for ( int i = 0; i < text.length; ++i ) {
+			text[i] = (byte) ( 'a' + ( i * 7 ) % 13 );
+		}
+		assertTrue( CompressionAdvisor.estimateEntropy( random, 0, BLOCK ) > 7.5 );
+		assertTrue( CompressionAdvisor.estimateEntropy( text, 0, BLOCK ) < 4 );
+		assertEquals( 0, CompressionAdvisor.estimateEntropy( new byte[ 100 ], 0, 100 ), 0.0001 );
+		CompressionAdvisor advisor = new CompressionAdvisor();
+		advisor.setEntropyCheck( true );
+		assertFalse( advisor.shouldCompress( 0, random, 0, BLOCK ) );
+		assertTrue( advisor.shouldCompress( 16l * 1024 * 1024, text, 0, BLOCK ) );
+		assertEquals( 1, advisor.getSkipCount() );
+		assertEquals( 0, advisor.getAttemptCount() );
+	}
+
+}
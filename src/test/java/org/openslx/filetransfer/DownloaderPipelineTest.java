@@ -0,0 +1,255 @@
+package org.openslx.filetransfer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.openslx.util.Util;
+
+public class DownloaderPipelineTest
+{
+
+	private static final int RANGE_SIZE = 64 * 1024;
+
+	private static final int RANGE_COUNT = 40;
+
+	/**
+	 * Artificial one-way latency of the loopback connection
+	 */
+	private static final int LATENCY_MS = 15;
+
+	private static File sourceFile;
+
+	private static byte[] sourceData;
+
+	private static int listenPort;
+
+	private static DelayProxy proxy;
+
+	@BeforeAll
+	public static void setUp() throws IOException
+	{
+		sourceData = new byte[ RANGE_SIZE * RANGE_COUNT ];
+		new Random( 42 ).nextBytes( sourceData );
+		sourceFile = File.createTempFile( "bftp-pipeline", ".bin" );
+		sourceFile.deleteOnExit();
+		Files.write( sourceFile.toPath(), sourceData );
+		listenPort = getFreePort();
+		Listener listener = new Listener( new IncomingEvent() {
+			@Override
+			public void incomingDownloadRequest( final Uploader uploader ) throws IOException
+			{
+				new Thread() {
+					@Override
+					public void run()
+					{
+						if ( uploader.getToken() != null ) {
+							uploader.upload( sourceFile.getAbsolutePath() );
+						}
+					}
+				}.start();
+			}
+
+			@Override
+			public void incomingUploadRequest( Downloader downloader ) throws IOException
+			{
+				downloader.cancel();
+			}
+		}, null, listenPort, 10000 );
+		assertTrue( listener.start() );
+		proxy = new DelayProxy( listenPort, LATENCY_MS );
+		proxy.start();
+	}
+
+	@AfterAll
+	public static void tearDown()
+	{
+		proxy.interrupt();
+		Util.safeClose( proxy.server );
+	}
+
+	@Test
+	@DisplayName( "Test pipelined download delivers correct data and is faster on high latency link" )
+	public void testPipelinedDownloadFaster() throws IOException
+	{
+		// Warm up both paths once, so JIT and socket setup don't skew the measurement
+		download( 1 );
+		download( 8 );
+		long sequential = download( 1 );
+		long pipelined = download( 8 );
+		assertTrue( pipelined * 10 < sequential * 6, "Pipelined download took " + pipelined
+				+ "ms, sequential " + sequential + "ms" );
+	}
+
+	private long download( int depth ) throws IOException
+	{
+		final byte[] received = new byte[ sourceData.length ];
+		final int[] completed = new int[ 1 ];
+		Downloader downloader = new Downloader( "127.0.0.1", proxy.getPort(), 10000, null, "token" );
+		downloader.setPipelineDepth( depth );
+		long start = System.nanoTime();
+		boolean ok = downloader.download( new DataReceivedCallback() {
+			@Override
+			public boolean dataReceived( long fileOffset, int dataLength, byte[] data )
+			{
+				System.arraycopy( data, 0, received, (int)fileOffset, dataLength );
+				return true;
+			}
+		}, new PipelinedRangeCallback() {
+			private long next = 0;
+
+			@Override
+			public FileRange get()
+			{
+				if ( next >= sourceData.length )
+					return null;
+				FileRange range = new FileRange( next, next + RANGE_SIZE );
+				next += RANGE_SIZE;
+				return range;
+			}
+
+			@Override
+			public boolean rangeComplete( FileRange range )
+			{
+				assertTrue( range.startOffset == (long)completed[0] * RANGE_SIZE, "Ranges completed out of order" );
+				completed[0]++;
+				return true;
+			}
+		} );
+		long duration = ( System.nanoTime() - start ) / 1000000;
+		assertTrue( ok, "Download failed" );
+		if ( depth > 1 ) {
+			assertTrue( completed[0] == RANGE_COUNT, "Not all ranges completed" );
+		}
+		assertArrayEquals( sourceData, received );
+		return duration;
+	}
+
+	private static int getFreePort() throws IOException
+	{
+		try ( ServerSocket sock = new ServerSocket( 0 ) ) {
+			return sock.getLocalPort();
+		}
+	}
+
+	/**
+	 * Simple TCP proxy that forwards data in both directions after a fixed delay,
+	 * simulating a high latency link without limiting bandwidth.
+	 */
+	private static class DelayProxy extends Thread
+	{
+		private final int targetPort;
+		private final int delayMs;
+		private final ServerSocket server;
+
+		public DelayProxy( int targetPort, int delayMs ) throws IOException
+		{
+			super( "DelayProxy" );
+			setDaemon( true );
+			this.targetPort = targetPort;
+			this.delayMs = delayMs;
+			this.server = new ServerSocket( 0, 50, InetAddress.getLoopbackAddress() );
+		}
+
+		public int getPort()
+		{
+			return server.getLocalPort();
+		}
+
+		@Override
+		public void run()
+		{
+			while ( !isInterrupted() ) {
+				try {
+					Socket client = server.accept();
+					Socket target = new Socket( InetAddress.getLoopbackAddress(), targetPort );
+					client.setTcpNoDelay( true );
+					target.setTcpNoDelay( true );
+					pipe( client, target );
+					pipe( target, client );
+				} catch ( IOException e ) {
+					break;
+				}
+			}
+		}
+
+		private void pipe( final Socket from, final Socket to ) throws IOException
+		{
+			final InputStream in = from.getInputStream();
+			final OutputStream out = to.getOutputStream();
+			final BlockingQueue<Packet> queue = new LinkedBlockingQueue<>();
+			Thread reader = new Thread() {
+				@Override
+				public void run()
+				{
+					byte[] buffer = new byte[ 256 * 1024 ];
+					int ret;
+					try {
+						while ( ( ret = in.read( buffer ) ) != -1 ) {
+							byte[] data = new byte[ ret ];
+							System.arraycopy( buffer, 0, data, 0, ret );
+							queue.put( new Packet( data ) );
+						}
+					} catch ( Exception e ) {
+					}
+					try {
+						queue.put( new Packet( null ) );
+					} catch ( InterruptedException e ) {
+					}
+				}
+			};
+			Thread writer = new Thread() {
+				@Override
+				public void run()
+				{
+					try {
+						for ( ;; ) {
+							Packet p = queue.take();
+							long wait = p.due - System.currentTimeMillis();
+							if ( wait > 0 ) {
+								Thread.sleep( wait );
+							}
+							if ( p.data == null )
+								break;
+							out.write( p.data );
+						}
+						to.shutdownOutput();
+					} catch ( Exception e ) {
+						Util.safeClose( from, to );
+					}
+				}
+			};
+			reader.setDaemon( true );
+			writer.setDaemon( true );
+			reader.start();
+			writer.start();
+		}
+
+		private class Packet
+		{
+			private final byte[] data;
+			private final long due = System.currentTimeMillis() + delayMs;
+
+			public Packet( byte[] data )
+			{
+				this.data = data;
+			}
+		}
+	}
+
+}
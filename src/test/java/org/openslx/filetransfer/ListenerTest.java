@@ -0,0 +1,206 @@
+package org.openslx.filetransfer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.openslx.util.Util;
+
+public class ListenerTest
+{
+
+	private static final char[] PASSWORD = "testtest".toCharArray();
+
+	private static File sourceFile;
+
+	private static byte[] sourceData;
+
+	private static SSLContext clientContext;
+
+	private static Listener plainListener;
+
+	private static Listener sslListener;
+
+	@BeforeAll
+	public static void setUp() throws Exception
+	{
+		sourceData = new byte[ 5 * 1024 * 1024 + 4321 ];
+		new Random( 4711 ).nextBytes( sourceData );
+		for ( int i = 0; i < sourceData.length; i += 3 ) {
+			sourceData[i] = 0;
+		}
+		sourceFile = File.createTempFile( "bftp-listener", ".bin" );
+		sourceFile.deleteOnExit();
+		Files.write( sourceFile.toPath(), sourceData );
+		KeyStore keystore = KeyStore.getInstance( "PKCS12" );
+		try ( InputStream is = ListenerTest.class.getResourceAsStream( "/filetransfer/test-keystore.p12" ) ) {
+			keystore.load( is, PASSWORD );
+		}
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance( KeyManagerFactory.getDefaultAlgorithm() );
+		kmf.init( keystore, PASSWORD );
+		SSLContext serverContext = SSLContext.getInstance( "TLSv1.2" );
+		serverContext.init( kmf.getKeyManagers(), null, null );
+		TrustManagerFactory tmf = TrustManagerFactory.getInstance( TrustManagerFactory.getDefaultAlgorithm() );
+		tmf.init( keystore );
+		clientContext = SSLContext.getInstance( "TLSv1.2" );
+		clientContext.init( null, tmf.getTrustManagers(), null );
+		plainListener = new Listener( new ServingEvent(), null, getFreePort(), 10000 );
+		assertTrue( plainListener.start() );
+		sslListener = new Listener( new ServingEvent(), serverContext, getFreePort(), 10000 );
+		assertTrue( sslListener.start() );
+	}
+
+	@Test
+	@DisplayName( "Test uncompressed download over TLS" )
+	public void testSslDownload() throws IOException
+	{
+		assertArrayEquals( sourceData, download( sslListener, clientContext, false ) );
+	}
+
+	@Test
+	@DisplayName( "Test compressed download over TLS" )
+	public void testSslCompressedDownload() throws IOException
+	{
+		assertArrayEquals( sourceData, download( sslListener, clientContext, true ) );
+	}
+
+	@Test
+	@DisplayName( "Test idle connections don't block other clients" )
+	public void testIdleClientsDontBlock() throws Exception
+	{
+		List<Socket> idle = new ArrayList<>();
+		try {
+			// More than the old handshake thread pool could handle
+			for ( int i = 0; i < 12; ++i ) {
+				idle.add( new Socket( "127.0.0.1", sslListener.getPort() ) );
+				idle.add( new Socket( "127.0.0.1", plainListener.getPort() ) );
+			}
+			long before = sslListener.getHandedOffCount();
+			assertArrayEquals( sourceData, download( sslListener, clientContext, true ) );
+			assertArrayEquals( sourceData, download( plainListener, null, false ) );
+			assertEquals( before + 1, sslListener.getHandedOffCount() );
+		} finally {
+			for ( Socket s : idle ) {
+				Util.safeClose( s );
+			}
+		}
+	}
+
+	@Test
+	@DisplayName( "Test per address limit and handshake timeout" )
+	public void testLimits() throws Exception
+	{
+		int oldPending = Listener.MAX_PENDING_PER_IP;
+		int oldTimeout = Listener.HANDSHAKE_TIMEOUT_MS;
+		Listener listener = new Listener( new ServingEvent(), null, getFreePort(), 10000 );
+		assertTrue( listener.start() );
+		List<Socket> idle = new ArrayList<>();
+		try {
+			Listener.MAX_PENDING_PER_IP = 2;
+			Listener.HANDSHAKE_TIMEOUT_MS = 1000;
+			for ( int i = 0; i < 3; ++i ) {
+				Socket s = new Socket( "127.0.0.1", listener.getPort() );
+				s.setSoTimeout( 5000 );
+				idle.add( s );
+			}
+			// Third one is closed right away
+			assertEquals( -1, idle.get( 2 ).getInputStream().read() );
+			assertEquals( 1, listener.getRateLimitedCount() );
+			// Others time out
+			long start = System.currentTimeMillis();
+			assertEquals( -1, idle.get( 0 ).getInputStream().read() );
+			assertEquals( -1, idle.get( 1 ).getInputStream().read() );
+			assertTrue( System.currentTimeMillis() - start < 4000 );
+			assertEquals( 2, listener.getTimedOutCount() );
+			assertEquals( 3, listener.getAcceptedCount() );
+			// Slots are free again
+			Listener.HANDSHAKE_TIMEOUT_MS = oldTimeout;
+			assertArrayEquals( sourceData, download( listener, null, true ) );
+			assertEquals( 1, listener.getHandedOffCount() );
+		} finally {
+			Listener.MAX_PENDING_PER_IP = oldPending;
+			Listener.HANDSHAKE_TIMEOUT_MS = oldTimeout;
+			for ( Socket s : idle ) {
+				Util.safeClose( s );
+			}
+		}
+	}
+
+	private static int getFreePort() throws IOException
+	{
+		try ( ServerSocket sock = new ServerSocket( 0 ) ) {
+			return sock.getLocalPort();
+		}
+	}
+
+	private byte[] download( Listener listener, SSLContext context, boolean compressed ) throws IOException
+	{
+		final byte[] received = new byte[ sourceData.length ];
+		Downloader downloader = new Downloader( "127.0.0.1", listener.getPort(), 10000, context, "token" );
+		downloader.setCompressionEnabled( compressed );
+		boolean ok = downloader.download( new DataReceivedCallback() {
+			@Override
+			public boolean dataReceived( long fileOffset, int dataLength, byte[] data )
+			{
+				System.arraycopy( data, 0, received, (int)fileOffset, dataLength );
+				return true;
+			}
+		}, new WantRangeCallback() {
+			private long next = 0;
+
+			@Override
+			public FileRange get()
+			{
+				if ( next >= sourceData.length )
+					return null;
+				FileRange range = new FileRange( next, Math.min( next + 1024 * 1024, sourceData.length ) );
+				next = range.endOffset;
+				return range;
+			}
+		} );
+		assertTrue( ok, "Download failed" );
+		return received;
+	}
+
+	private static class ServingEvent implements IncomingEvent
+	{
+		@Override
+		public void incomingDownloadRequest( final Uploader uploader ) throws IOException
+		{
+			new Thread() {
+				@Override
+				public void run()
+				{
+					if ( uploader.getToken() != null ) {
+						uploader.upload( sourceFile.getAbsolutePath() );
+					}
+				}
+			}.start();
+		}
+
+		@Override
+		public void incomingUploadRequest( Downloader downloader ) throws IOException
+		{
+			downloader.cancel();
+		}
+	}
+
+}
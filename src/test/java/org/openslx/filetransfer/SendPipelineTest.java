@@ -0,0 +1,88 @@
+package org.openslx.filetransfer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import net.jpountz.lz4.LZ4Factory;
+
+public class SendPipelineTest
+{
+
+	private static final int RANGE = 3 * SendPipeline.BLOCK_SIZE + 1234;
+
+	/**
+	 * Fetch all blocks of the given range and reassemble them.
+	 */
+	private static byte[] fetch( SendPipeline pipeline, FileRange range, boolean compress ) throws Exception
+	{
+		pipeline.start( range, compress );
+		byte[] result = new byte[ range.getLength() ];
+		SendPipeline.Block block;
+		while ( ( block = pipeline.next() ) != null ) {
+			assertEquals( compress, block.compressed );
+			assertTrue( block.length <= SendPipeline.BLOCK_SIZE );
+			byte[] data = block.get();
+			int pos = (int) ( block.offset - range.startOffset );
+			if ( !compress ) {
+				System.arraycopy( data, 0, result, pos, block.length );
+				continue;
+			}
+			ByteBuffer header = ByteBuffer.wrap( data );
+			assertEquals( block.length, header.getInt() );
+			int sent = header.getInt();
+			if ( sent < block.length ) {
+				LZ4Factory.fastestInstance().fastDecompressor().decompress( data, 8, result, pos, block.length );
+			} else {
+				System.arraycopy( data, 8, result, pos, block.length );
+			}
+		}
+		return result;
+	}
+
+	@Test
+	@DisplayName( "Test sequential ranges are read ahead, random ones still work" )
+	public void testReadAhead() throws Exception
+	{
+		byte[] data = new byte[ 4 * RANGE - 100 ];
+		new Random( 42 ).nextBytes( data );
+		Arrays.fill( data, RANGE, 2 * RANGE, (byte)1 );
+		File file = File.createTempFile( "bftp-pipeline", ".bin" );
+		file.deleteOnExit();
+		Files.write( file.toPath(), data );
+		try ( RandomAccessFile raf = new RandomAccessFile( file, "r" ) ) {
+			SendPipeline pipeline = new SendPipeline( raf.getChannel(), null );
+			for ( int i = 0; i < 4; ++i ) {
+				FileRange range = new FileRange( (long)i * RANGE, Math.min( ( i + 1L ) * RANGE, data.length ) );
+				assertArrayEquals( Arrays.copyOfRange( data, (int)range.startOffset, (int)range.endOffset ),
+						fetch( pipeline, range, i % 2 == 1 ) );
+			}
+			// Compression changed every time, so nothing could be reused
+			assertEquals( 0, pipeline.getReadAheadHits() );
+			for ( int i = 0; i < 3; ++i ) {
+				FileRange range = new FileRange( (long)i * RANGE, ( i + 1L ) * RANGE );
+				assertArrayEquals( Arrays.copyOfRange( data, (int)range.startOffset, (int)range.endOffset ),
+						fetch( pipeline, range, true ) );
+			}
+			assertEquals( 2, pipeline.getReadAheadHits() );
+			// Jump back
+			FileRange range = new FileRange( 100, 200 );
+			assertArrayEquals( Arrays.copyOfRange( data, 100, 200 ), fetch( pipeline, range, false ) );
+			assertTrue( pipeline.getReadAheadMisses() > 0 );
+			pipeline.close();
+			assertNull( pipeline.next() );
+		}
+	}
+
+}
@@ -0,0 +1,317 @@
+package org.openslx.filetransfer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+public class UploaderTest
+{
+
+	private static final int RANGE_SIZE = 3 * 1024 * 1024;
+
+	private static File sourceFile;
+
+	private static byte[] sourceData;
+
+	private static File sparseFile;
+
+	private static byte[] sparseData;
+
+	private static int listenPort;
+
+	@BeforeAll
+	public static void setUp() throws IOException
+	{
+		// Odd size, so the last range is a short one
+		sourceData = new byte[ 2 * RANGE_SIZE + 12345 ];
+		new Random( 1234 ).nextBytes( sourceData );
+		// Make everything after the first range compressible
+		for ( int i = RANGE_SIZE; i < sourceData.length; i++ ) {
+			sourceData[i] = (byte) ( ( i % 251 ) < 200 ? 0 : sourceData[i] );
+		}
+		sourceFile = File.createTempFile( "bftp-upload", ".bin" );
+		sourceFile.deleteOnExit();
+		Files.write( sourceFile.toPath(), sourceData );
+		// Random data in second range, the rest is zeros
+		sparseData = new byte[ 3 * RANGE_SIZE + 12345 ];
+		System.arraycopy( sourceData, 0, sparseData, RANGE_SIZE, RANGE_SIZE );
+		sparseFile = File.createTempFile( "bftp-upload-sparse", ".bin" );
+		sparseFile.deleteOnExit();
+		Files.write( sparseFile.toPath(), sparseData );
+		try ( ServerSocket sock = new ServerSocket( 0 ) ) {
+			listenPort = sock.getLocalPort();
+		}
+		Listener listener = new Listener( new IncomingEvent() {
+			@Override
+			public void incomingDownloadRequest( final Uploader uploader ) throws IOException
+			{
+				new Thread() {
+					@Override
+					public void run()
+					{
+						String token = uploader.getToken();
+						if ( "sparse".equals( token ) ) {
+							uploader.upload( sparseFile.getAbsolutePath() );
+						} else if ( token != null ) {
+							uploader.upload( sourceFile.getAbsolutePath() );
+						}
+					}
+				}.start();
+			}
+
+			@Override
+			public void incomingUploadRequest( Downloader downloader ) throws IOException
+			{
+				downloader.cancel();
+			}
+		}, null, listenPort, 10000 );
+		assertTrue( listener.start() );
+	}
+
+	@Test
+	@DisplayName( "Test uncompressed download via zero copy path" )
+	public void testUncompressedDownload() throws IOException
+	{
+		assertArrayEquals( sourceData, download( false, 0 ) );
+	}
+
+	@Test
+	@DisplayName( "Test compressed download via heap buffer" )
+	public void testCompressedDownload() throws IOException
+	{
+		assertArrayEquals( sourceData, download( true, 0 ) );
+	}
+
+	@Test
+	@DisplayName( "Test compressed download with receive buffer smaller than compressed frames" )
+	public void testCompressedDownloadSmallBuffer() throws IOException
+	{
+		assertArrayEquals( sourceData, download( true, 20000 ) );
+	}
+
+	@Test
+	@DisplayName( "Test staged download straight into callback's buffer" )
+	public void testStagedDownload() throws IOException
+	{
+		assertArrayEquals( sourceData, downloadStaged( true ) );
+		assertArrayEquals( sourceData, downloadStaged( false ) );
+	}
+
+	@Test
+	@DisplayName( "Test repeated downloads are served from the shared range cache" )
+	public void testCachedDownload() throws IOException
+	{
+		ChunkReadCache cache = ChunkReadCache.getShared();
+		cache.setMemoryBudget( 64 * 1024 * 1024 );
+		try {
+			long hits = cache.getHitCount();
+			// First download only marks ranges as recently read, second one loads them
+			assertArrayEquals( sourceData, download( true, 0 ) );
+			assertArrayEquals( sourceData, download( true, 0 ) );
+			assertEquals( hits, cache.getHitCount() );
+			assertTrue( cache.getUsedBytes() > sourceData.length );
+			assertArrayEquals( sourceData, download( true, 20000 ) );
+			assertEquals( hits + 3, cache.getHitCount() );
+		} finally {
+			cache.setMemoryBudget( 0 );
+		}
+		assertEquals( 0, cache.getUsedBytes() );
+	}
+
+	@Test
+	@DisplayName( "Test zero range check past the prefix and across buffer boundaries" )
+	public void testIsZeroRange() throws IOException
+	{
+		File file = File.createTempFile( "bftp-zerocheck", ".bin" );
+		file.deleteOnExit();
+		byte[] data = new byte[ 100000 ];
+		data[Uploader.ZERO_CHECK_PREFIX + 10] = 1;
+		data[data.length - 1] = 1;
+		Files.write( file.toPath(), data );
+		byte[] buffer = new byte[ 1000 ];
+		try ( RandomAccessFile raf = new RandomAccessFile( file, "r" ) ) {
+			FileChannel ch = raf.getChannel();
+			assertTrue( Uploader.isZeroRange( ch, new FileRange( 0, Uploader.ZERO_CHECK_PREFIX + 10 ), buffer ) );
+			assertFalse( Uploader.isZeroRange( ch, new FileRange( 0, Uploader.ZERO_CHECK_PREFIX + 11 ), buffer ) );
+			assertTrue( Uploader.isZeroRange( ch, new FileRange( 5000, data.length - 1 ), buffer ) );
+			assertFalse( Uploader.isZeroRange( ch, new FileRange( 5000, data.length ), buffer ) );
+		}
+	}
+
+	@Test
+	@DisplayName( "Test zero ranges are not transferred if callback supports it" )
+	public void testSparseDownload() throws IOException
+	{
+		final byte[] received = new byte[ sparseData.length ];
+		final List<FileRange> zeroRanges = new ArrayList<>();
+		Downloader downloader = new Downloader( "127.0.0.1", listenPort, 10000, null, "sparse" );
+		boolean ok = downloader.download( new SparseDataCallback() {
+			@Override
+			public boolean dataReceived( long fileOffset, int dataLength, byte[] data )
+			{
+				System.arraycopy( data, 0, received, (int)fileOffset, dataLength );
+				return true;
+			}
+
+			@Override
+			public boolean zeroDataReceived( long fileOffset, int dataLength )
+			{
+				zeroRanges.add( new FileRange( fileOffset, fileOffset + dataLength ) );
+				return true;
+			}
+		}, new RangeList( sparseData.length ) );
+		assertTrue( ok, "Download failed" );
+		assertArrayEquals( sparseData, received );
+		assertEquals( 3, zeroRanges.size() );
+		assertEquals( new FileRange( 0, RANGE_SIZE ), zeroRanges.get( 0 ) );
+		assertEquals( new FileRange( 2 * RANGE_SIZE, 3 * RANGE_SIZE ), zeroRanges.get( 1 ) );
+		assertEquals( new FileRange( 3 * RANGE_SIZE, sparseData.length ), zeroRanges.get( 2 ) );
+	}
+
+	@Test
+	@DisplayName( "Test download to file with trailing zero range" )
+	public void testSparseDownloadToFile() throws IOException
+	{
+		File dest = File.createTempFile( "bftp-download-sparse", ".bin" );
+		dest.deleteOnExit();
+		Downloader downloader = new Downloader( "127.0.0.1", listenPort, 10000, null, "sparse" );
+		assertTrue( downloader.download( dest.getAbsolutePath(), new RangeList( sparseData.length ) ) );
+		assertArrayEquals( sparseData, Files.readAllBytes( dest.toPath() ) );
+	}
+
+	@Test
+	@DisplayName( "Test download with bandwidth limit" )
+	public void testThrottledDownload() throws IOException
+	{
+		BandwidthLimiter limiter = new BandwidthLimiter( 20 * 1024 * 1024 );
+		final byte[] received = new byte[ sourceData.length ];
+		Downloader downloader = new Downloader( "127.0.0.1", listenPort, 10000, null, "token" );
+		downloader.setCompressionEnabled( false );
+		downloader.addBandwidthLimiter( limiter );
+		long start = System.nanoTime();
+		boolean ok = downloader.download( new DataReceivedCallback() {
+			@Override
+			public boolean dataReceived( long fileOffset, int dataLength, byte[] data )
+			{
+				System.arraycopy( data, 0, received, (int)fileOffset, dataLength );
+				return true;
+			}
+		}, new RangeList( sourceData.length ) );
+		long ms = ( System.nanoTime() - start ) / 1000000;
+		assertTrue( ok, "Download failed" );
+		assertArrayEquals( sourceData, received );
+		// ~6MiB at 20MiB/s
+		assertTrue( ms >= 200, "Download took only " + ms + "ms" );
+		assertTrue( limiter.getBytesTotal() >= sourceData.length );
+	}
+
+	/**
+	 * Request given file length in ranges of {@link #RANGE_SIZE} bytes.
+	 */
+	private static class RangeList implements WantRangeCallback
+	{
+		private final long length;
+
+		private long next = 0;
+
+		public RangeList( long length )
+		{
+			this.length = length;
+		}
+
+		@Override
+		public FileRange get()
+		{
+			if ( next >= length )
+				return null;
+			FileRange range = new FileRange( next, Math.min( next + RANGE_SIZE, length ) );
+			next = range.endOffset;
+			return range;
+		}
+	}
+
+	private byte[] download( boolean compressed, int bufferSize ) throws IOException
+	{
+		final byte[] received = new byte[ sourceData.length ];
+		Downloader downloader = new Downloader( "127.0.0.1", listenPort, 10000, null, "token" );
+		downloader.setCompressionEnabled( compressed );
+		if ( bufferSize > 0 ) {
+			downloader.setReceiveBufferSize( bufferSize );
+		}
+		boolean ok = downloader.download( new DataReceivedCallback() {
+			@Override
+			public boolean dataReceived( long fileOffset, int dataLength, byte[] data )
+			{
+				if ( bufferSize > 0 ) {
+					assertTrue( dataLength <= bufferSize, "Got more data than buffer size" );
+				}
+				System.arraycopy( data, 0, received, (int)fileOffset, dataLength );
+				return true;
+			}
+		}, new WantRangeCallback() {
+			private long next = 0;
+
+			@Override
+			public FileRange get()
+			{
+				if ( next >= sourceData.length )
+					return null;
+				FileRange range = new FileRange( next, Math.min( next + RANGE_SIZE, sourceData.length ) );
+				next = range.endOffset;
+				return range;
+			}
+		} );
+		assertTrue( ok, "Download failed" );
+		return received;
+	}
+
+	private byte[] downloadStaged( boolean compressed ) throws IOException
+	{
+		final byte[] received = new byte[ sourceData.length ];
+		// Reused for every range, so all data must be there once rangeDataReceived is called
+		final byte[] buffer = new byte[ RANGE_SIZE ];
+		Downloader downloader = new Downloader( "127.0.0.1", listenPort, 10000, null, "token" );
+		downloader.setCompressionEnabled( compressed );
+		downloader.setStagedReceive( true );
+		boolean ok = downloader.download( new DirectDataCallback() {
+			@Override
+			public boolean dataReceived( long fileOffset, int dataLength, byte[] data )
+			{
+				return false;
+			}
+
+			@Override
+			public byte[] getReceiveBuffer( FileRange range )
+			{
+				return buffer;
+			}
+
+			@Override
+			public boolean rangeDataReceived( FileRange range )
+			{
+				System.arraycopy( buffer, 0, received, (int)range.startOffset, range.getLength() );
+				Arrays.fill( buffer, (byte)0 );
+				return true;
+			}
+		}, new RangeList( sourceData.length ) );
+		assertTrue( ok, "Download failed" );
+		return received;
+	}
+
+}
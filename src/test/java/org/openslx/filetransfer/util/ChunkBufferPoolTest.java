@@ -0,0 +1,84 @@
+package org.openslx.filetransfer.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+public class ChunkBufferPoolTest
+{
+
+	@Test
+	@DisplayName( "Test released buffers are reused" )
+	public void testReuse() throws InterruptedException
+	{
+		ChunkBufferPool pool = new ChunkBufferPool( 1024, 2, 2 );
+		byte[] a = pool.acquire( 0 );
+		assertNotNull( a );
+		assertEquals( 1024, a.length );
+		pool.release( a );
+		assertSame( a, pool.acquire( 0 ) );
+		assertEquals( 1, pool.getHits() );
+		assertEquals( 1, pool.getMisses() );
+	}
+
+	@Test
+	@DisplayName( "Test pool is bounded and ignores foreign or double releases" )
+	public void testBounded() throws InterruptedException
+	{
+		ChunkBufferPool pool = new ChunkBufferPool( 1024, 2, 2 );
+		byte[] a = pool.acquire( 0 );
+		byte[] b = pool.acquire( 0 );
+		assertNull( pool.acquire( 0 ) );
+		assertNull( pool.acquire( 20 ) );
+		assertEquals( 2, pool.getTimeouts() );
+		pool.release( new byte[ 1024 ] );
+		assertNull( pool.tryAcquire() );
+		pool.release( a );
+		pool.release( a );
+		assertEquals( 1, pool.getInUseCount() );
+		assertSame( a, pool.tryAcquire() );
+		assertNull( pool.tryAcquire() );
+		// Detached buffer is no longer accounted for
+		pool.detach( b );
+		assertEquals( 1, pool.getInUseCount() );
+		byte[] c = pool.tryAcquire();
+		assertNotNull( c );
+		pool.release( b );
+		assertEquals( 2, pool.getInUseCount() );
+		assertTrue( pool.isInUse( c ) );
+	}
+
+	@Test
+	@DisplayName( "Test acquire blocks until buffer is released" )
+	public void testBackpressure() throws InterruptedException
+	{
+		final ChunkBufferPool pool = new ChunkBufferPool( 1024, 1, 1 );
+		final byte[] a = pool.acquire( 0 );
+		final AtomicReference<byte[]> result = new AtomicReference<>();
+		Thread t = new Thread() {
+			@Override
+			public void run()
+			{
+				try {
+					result.set( pool.acquire( 10000 ) );
+				} catch ( InterruptedException e ) {
+				}
+			}
+		};
+		t.start();
+		Thread.sleep( 100 );
+		assertNull( result.get() );
+		pool.release( a );
+		t.join( 5000 );
+		assertSame( a, result.get() );
+		assertEquals( 1, pool.getWaits() );
+	}
+
+}
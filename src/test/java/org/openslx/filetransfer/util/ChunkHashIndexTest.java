@@ -0,0 +1,155 @@
+package org.openslx.filetransfer.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openslx.filetransfer.LocalChunkSource.ChunkSource;
+import org.openslx.filetransfer.LocalChunkSource.SourceFile;
+
+public class ChunkHashIndexTest
+{
+
+	private final Random random = new Random( 1337 );
+
+	private List<byte[]> randomHashes( int count )
+	{
+		List<byte[]> list = new ArrayList<>( count );
+		for ( int i = 0; i < count; ++i ) {
+			byte[] sha1 = new byte[ FileChunk.SHA1_LENGTH ];
+			random.nextBytes( sha1 );
+			list.add( sha1 );
+		}
+		return list;
+	}
+
+	private static List<FileChunk> chunksOf( List<byte[]> hashes, long fileSize )
+	{
+		List<FileChunk> list = new ArrayList<>();
+		FileChunk.createChunkList( list, fileSize, hashes );
+		return list;
+	}
+
+	@TempDir
+	File tempDir;
+
+	@Test
+	@DisplayName( "Test lookup of added chunks, including persistence" )
+	public void testAddAndLookup() throws IOException
+	{
+		File dir = tempDir;
+		List<byte[]> hashes = randomHashes( 10 );
+		long fileSize = 9l * FileChunk.CHUNK_SIZE + 1000;
+		try ( ChunkHashIndex index = new ChunkHashIndex( dir ) ) {
+			index.addFile( "/images/one", chunksOf( hashes, fileSize ) );
+			// Same file again replaces the old entries
+			index.addFile( "/images/one", chunksOf( hashes, fileSize ) );
+			index.addFile( "/images/two", chunksOf( hashes.subList( 5, 6 ), 1000 ) );
+			assertEquals( 2, index.getFileCount() );
+			checkLookup( index, hashes, fileSize );
+		}
+		try ( ChunkHashIndex index = new ChunkHashIndex( dir ) ) {
+			checkLookup( index, hashes, fileSize );
+			assertTrue( index.getCloneSources( randomHashes( 100 ) ).isEmpty() );
+		}
+	}
+
+	private void checkLookup( ChunkHashIndex index, List<byte[]> hashes, long fileSize )
+	{
+		List<ChunkSource> sources = index.getCloneSources( hashes );
+		assertEquals( 10, sources.size() );
+		for ( int i = 0; i < 10; ++i ) {
+			ChunkSource src = sources.get( i );
+			boolean found = false;
+			for ( SourceFile file : src.sourceCandidates ) {
+				if ( file.fileName.equals( "/images/one" ) ) {
+					assertEquals( (long)i * FileChunk.CHUNK_SIZE, file.offset );
+					assertEquals( i == 9 ? 1000 : FileChunk.CHUNK_SIZE, file.chunkSize );
+					found = true;
+				}
+			}
+			assertTrue( found );
+			assertEquals( i == 5 ? 2 : 1, src.sourceCandidates.size() );
+		}
+	}
+
+	@Test
+	@DisplayName( "Test removed files are ignored and dropped on compaction" )
+	public void testRemoveAndCompact() throws IOException
+	{
+		File dir = tempDir;
+		List<byte[]> one = randomHashes( 100 ), two = randomHashes( 100 );
+		try ( ChunkHashIndex index = new ChunkHashIndex( dir, 64 ) ) {
+			index.addFile( "/one", chunksOf( one, 100l * FileChunk.CHUNK_SIZE ) );
+			index.addFile( "/two", chunksOf( two, 100l * FileChunk.CHUNK_SIZE ) );
+			assertEquals( 200, index.getEntryCount() );
+			assertTrue( index.removeFile( "/one" ) );
+			assertFalse( index.removeFile( "/one" ) );
+			assertTrue( index.getCloneSources( one ).isEmpty() );
+			assertEquals( 100, index.getCloneSources( two ).size() );
+			index.compact();
+			assertEquals( 100, index.getEntryCount() );
+			assertEquals( 100, index.getCloneSources( two ).size() );
+		}
+		try ( ChunkHashIndex index = new ChunkHashIndex( dir, 64 ) ) {
+			assertEquals( 1, index.getFileCount() );
+			assertEquals( 100, index.getEntryCount() );
+			assertTrue( index.getCloneSources( one ).isEmpty() );
+			assertEquals( 100, index.getCloneSources( two ).size() );
+		}
+	}
+
+	@Test
+	@DisplayName( "Test table grows and limits number of sources per chunk" )
+	public void testGrowAndLimit() throws IOException
+	{
+		List<byte[]> hashes = randomHashes( 5000 );
+		try ( ChunkHashIndex index = new ChunkHashIndex( tempDir, 16 ) ) {
+			index.addFile( "/big", chunksOf( hashes, 5000l * FileChunk.CHUNK_SIZE ) );
+			for ( int i = 0; i < 10; ++i ) {
+				index.addFile( "/copy" + i, chunksOf( hashes.subList( 0, 1 ), 1 ) );
+			}
+			assertEquals( 5000, index.getCloneSources( hashes ).size() );
+			List<ChunkSource> first = index.getCloneSources( Collections.singletonList( hashes.get( 0 ) ) );
+			assertEquals( 4, first.get( 0 ).sourceCandidates.size() );
+			// Lots of lookups should be quick
+			List<byte[]> unknown = randomHashes( 10000 );
+			long start = System.nanoTime();
+			for ( int i = 0; i < 10; ++i ) {
+				index.getCloneSources( unknown );
+				index.getCloneSources( hashes );
+			}
+			long perLookup = ( System.nanoTime() - start ) / ( 10 * ( 10000 + 5000 ) );
+			assertTrue( perLookup < 20000, "Lookup took " + perLookup + "ns" );
+		}
+	}
+
+	@Test
+	@DisplayName( "Replacing a file more often than MAX_SOURCES_PER_SUM still indexes its chunks" )
+	public void testReplaceOften() throws IOException
+	{
+		List<byte[]> hashes = randomHashes( 100 );
+		try ( ChunkHashIndex index = new ChunkHashIndex( tempDir, 16 ) ) {
+			for ( int i = 0; i < ChunkHashIndex.MAX_SOURCES_PER_SUM + 2; ++i ) {
+				index.addFile( "/img", chunksOf( hashes, 100l * FileChunk.CHUNK_SIZE ) );
+				List<ChunkSource> sources = index.getCloneSources( hashes );
+				assertEquals( 100, sources.size(), "Version " + i );
+				assertEquals( 1, sources.get( 0 ).sourceCandidates.size() );
+				assertEquals( "/img", sources.get( 0 ).sourceCandidates.get( 0 ).fileName );
+			}
+			// Slots of previous versions were reused
+			assertEquals( 100, index.getEntryCount() );
+		}
+	}
+
+}
@@ -0,0 +1,197 @@
+package org.openslx.filetransfer.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.openslx.filetransfer.LocalChunkSource.ChunkSource;
+
+public class ChunkListTest
+{
+
+	private static List<byte[]> createHashes( int count )
+	{
+		List<byte[]> list = new ArrayList<>( count );
+		for ( int i = 0; i < count; ++i ) {
+			byte[] sha1 = new byte[ FileChunk.SHA1_LENGTH ];
+			sha1[0] = (byte)i;
+			sha1[1] = (byte) ( i >> 8 );
+			sha1[2] = (byte) ( i >> 16 );
+			sha1[3] = 1;
+			list.add( sha1 );
+		}
+		return list;
+	}
+
+	@Test
+	@DisplayName( "Test basic transitions between missing, pending and complete" )
+	public void testTransitions() throws InterruptedException
+	{
+		ChunkList list = new ChunkList( 3l * FileChunk.CHUNK_SIZE + 5, null );
+		assertEquals( 4, list.getAll().size() );
+		FileChunk c0 = list.getMissing();
+		FileChunk c1 = list.getMissing();
+		assertEquals( 0, c0.getChunkIndex() );
+		assertEquals( 1, c1.getChunkIndex() );
+		assertEquals( ChunkStatus.UPLOADING, c0.getStatus() );
+		assertEquals( "pending", list.getQueueName( c0 ) );
+		// Failed chunk goes to front
+		assertEquals( 1, list.markFailed( c1 ) );
+		assertEquals( "missing", list.getQueueName( c1 ) );
+		assertSame( c1, list.getMissing() );
+		list.markCompleted( c0, false );
+		list.markCompleted( c1, false );
+		assertEquals( "completed", list.getQueueName( c0 ) );
+		assertEquals( ChunkStatus.COMPLETE, c0.getStatus() );
+		// Not pending anymore
+		assertEquals( -1, list.markFailed( c0 ) );
+		assertFalse( list.isComplete() );
+		FileChunk c2 = list.getMissing();
+		FileChunk c3 = list.getMissing();
+		assertNull( list.getMissing( false ) );
+		list.markCompleted( c3, true );
+		assertFalse( list.isComplete() );
+		list.markCompleted( c2, true );
+		assertTrue( list.isComplete() );
+		assertEquals( Arrays.asList( c0, c1, c3, c2 ), list.getCompleted() );
+		assertNull( list.getMissing() );
+	}
+
+	@Test
+	@DisplayName( "Test hash checking of chunks completed before their hash was known" )
+	public void testUnhashed() throws InterruptedException
+	{
+		List<byte[]> hashes = createHashes( 3 );
+		ChunkList list = new ChunkList( 3l * FileChunk.CHUNK_SIZE, Collections.<byte[]>nCopies( 3, null ) );
+		for ( int i = 0; i < 3; ++i ) {
+			list.markCompleted( list.getMissing(), false );
+		}
+		assertTrue( list.isComplete() );
+		assertNull( list.getUnhashedComplete() );
+		// Now we learn the first two hashes
+		assertEquals( 0, list.updateSha1Sums( hashes.subList( 0, 2 ) ) );
+		assertFalse( list.isComplete() );
+		FileChunk c0 = list.getUnhashedComplete();
+		FileChunk c1 = list.getUnhashedComplete();
+		assertNull( list.getUnhashedComplete() );
+		assertEquals( 0, c0.getChunkIndex() );
+		assertEquals( 1, c1.getChunkIndex() );
+		list.markCompleted( c0, true );
+		// Mismatch, re-download
+		list.markFailed( c1 );
+		assertSame( c1, list.getMissing() );
+		list.markCompleted( c1, true );
+		// Still missing hash of last chunk, mixing is not allowed
+		assertFalse( list.isComplete() );
+		assertEquals( 2, list.updateSha1Sums( hashes ) );
+		assertEquals( -1, list.updateSha1Sums( hashes ) );
+		FileChunk c2 = list.getUnhashedComplete();
+		assertEquals( 2, c2.getChunkIndex() );
+		assertFalse( list.isComplete() );
+		list.markCompleted( c2, true );
+		assertTrue( list.isComplete() );
+	}
+
+	@Test
+	@DisplayName( "Test null blocks are marked complete once their hash is known" )
+	public void testNullBlock() throws InterruptedException
+	{
+		ChunkList list = new ChunkList( 2l * FileChunk.CHUNK_SIZE, null );
+		List<byte[]> hashes = createHashes( 2 );
+		hashes.set( 0, FileChunk.NULL_BLOCK_SHA1 );
+		list.updateSha1Sums( hashes );
+		assertEquals( "completed", list.getQueueName( list.getAll().get( 0 ) ) );
+		FileChunk c = list.getMissing();
+		assertEquals( 1, c.getChunkIndex() );
+		list.markCompleted( c, true );
+		assertTrue( list.isComplete() );
+	}
+
+	@Test
+	@DisplayName( "Test local copy candidates are handed out last" )
+	public void testCopyCandidates() throws InterruptedException
+	{
+		List<byte[]> hashes = createHashes( 4 );
+		// Chunks 1 and 3 have same content
+		hashes.set( 3, hashes.get( 1 ) );
+		ChunkList list = new ChunkList( 4l * FileChunk.CHUNK_SIZE, hashes );
+		assertTrue( list.hasLocallyMissingChunk() );
+		assertNull( list.getCopyCandidate() );
+		ChunkSource src = new ChunkSource( hashes.get( 1 ) );
+		src.addFile( "/dev/null", 0, FileChunk.CHUNK_SIZE );
+		list.markLocalCopyCandidates( Collections.singletonList( src ) );
+		assertEquals( ChunkStatus.QUEUED_FOR_COPY, list.getAll().get( 1 ).getStatus() );
+		assertEquals( ChunkStatus.QUEUED_FOR_COPY, list.getAll().get( 3 ).getStatus() );
+		FileChunk copy = list.getCopyCandidate();
+		assertEquals( 3, copy.getChunkIndex() );
+		assertEquals( ChunkStatus.COPYING, copy.getStatus() );
+		assertSame( src, copy.getSources() );
+		assertEquals( 0, list.getMissing().getChunkIndex() );
+		assertEquals( 2, list.getMissing().getChunkIndex() );
+		assertFalse( list.hasLocallyMissingChunk() );
+		assertEquals( 1, list.getMissing().getChunkIndex() );
+		assertNull( list.getCopyCandidate() );
+	}
+
+	@Test
+	@DisplayName( "Test resuming from status list" )
+	public void testResume() throws InterruptedException
+	{
+		ChunkList list = new ChunkList( 4l * FileChunk.CHUNK_SIZE, createHashes( 4 ) );
+		list.resumeFromStatusList( Arrays.asList( false, true, false, false ), 3l * FileChunk.CHUNK_SIZE );
+		assertEquals( ChunkStatus.COMPLETE, list.getAll().get( 0 ).getStatus() );
+		assertEquals( ChunkStatus.HASHING, list.getAll().get( 1 ).getStatus() );
+		assertEquals( "missing", list.getQueueName( list.getAll().get( 3 ) ) );
+		assertEquals( 1, list.getUnhashedComplete().getChunkIndex() );
+		assertNull( list.getUnhashedComplete() );
+		assertEquals( 3, list.getMissing().getChunkIndex() );
+	}
+
+	@Test
+	@DisplayName( "Test chunk state transitions don't get slower with larger lists" )
+	public void testScaling() throws InterruptedException
+	{
+		final int small = 1024, large = 32 * 1024;
+		// Warm up
+		for ( int i = 0; i < 5; ++i ) {
+			runTransitions( small );
+			runTransitions( large );
+		}
+		double perChunkSmall = Double.MAX_VALUE, perChunkLarge = Double.MAX_VALUE;
+		for ( int i = 0; i < 5; ++i ) {
+			perChunkSmall = Math.min( perChunkSmall, runTransitions( small ) / (double)small );
+			perChunkLarge = Math.min( perChunkLarge, runTransitions( large ) / (double)large );
+		}
+		// List is 32 times larger, a linear scan per transition would make this ~32 times slower
+		assertTrue( perChunkLarge < perChunkSmall * 8, "Per chunk: " + perChunkSmall + "ns vs. " + perChunkLarge + "ns" );
+	}
+
+	private static long runTransitions( int count ) throws InterruptedException
+	{
+		ChunkList list = new ChunkList( (long)count * FileChunk.CHUNK_SIZE, createHashes( count ) );
+		long start = System.nanoTime();
+		FileChunk chunk;
+		while ( ( chunk = list.getMissing( false ) ) != null ) {
+			list.markCompleted( chunk, false );
+			list.isComplete();
+		}
+		while ( ( chunk = list.getUnhashedComplete() ) != null ) {
+			list.markCompleted( chunk, true );
+			list.getQueueName( chunk );
+			list.isComplete();
+		}
+		long duration = System.nanoTime() - start;
+		assertTrue( list.isComplete() );
+		return duration;
+	}
+
+}
@@ -0,0 +1,141 @@
+package org.openslx.filetransfer.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+public class ConnectionScalerTest
+{
+
+	private static final long SAMPLE_NS = ConnectionScaler.MIN_SAMPLE_MS * 1000000;
+
+	/**
+	 * Simulated transfer, where each connection adds the given throughput.
+	 */
+	private static class Simulation
+	{
+		final ConnectionScaler scaler = new ConnectionScaler( "test" );
+		long now = 1;
+		long bytes = 0;
+		int active = 0;
+
+		/**
+		 * Run one sample period, with the peer always using all allowed connections.
+		 */
+		int step( long bytesPerSecondPerConnection, long maxBytesPerSecond, long rttMs, int max )
+		{
+			int limit = scaler.update( now, active, bytes, rttMs, max );
+			active = limit;
+			now += SAMPLE_NS;
+			bytes += Math.min( active * bytesPerSecondPerConnection, maxBytesPerSecond ) * ConnectionScaler.MIN_SAMPLE_MS / 1000;
+			return scaler.update( now, active, bytes, rttMs, max );
+		}
+	}
+
+	@Test
+	@DisplayName( "Test connections are added while throughput grows" )
+	public void testScaleUp()
+	{
+		Simulation sim = new Simulation();
+		// Probe with an additional connection right after the first sample
+		assertEquals( ConnectionScaler.INITIAL_CONNECTIONS + 1, sim.step( 1000000, Long.MAX_VALUE, 10, 6 ) );
+		for ( int i = 0; i < 10; ++i ) {
+			sim.step( 1000000, Long.MAX_VALUE, 10, 6 );
+		}
+		assertEquals( 6, sim.scaler.getLimit() );
+		assertEquals( 0, sim.scaler.getDecreaseCount() );
+	}
+
+	@Test
+	@DisplayName( "Test backing off when throughput doesn't grow" )
+	public void testBackOff()
+	{
+		Simulation sim = new Simulation();
+		// Link saturated with 3 connections
+		for ( int i = 0; i < 30; ++i ) {
+			sim.step( 1000000, 3000000, 10, 8 );
+			assertTrue( sim.scaler.getLimit() <= 4 );
+		}
+		// Probing for 4 every now and then, but always going back to 3
+		assertTrue( sim.scaler.getDecreaseCount() >= 2 );
+		assertTrue( sim.scaler.getLimit() >= 3 );
+	}
+
+	@Test
+	@DisplayName( "Test backing off on rising round trip time" )
+	public void testCongestion()
+	{
+		Simulation sim = new Simulation();
+		for ( int i = 0; i < 4; ++i ) {
+			sim.step( 1000000, Long.MAX_VALUE, 10, 4 );
+		}
+		assertEquals( 4, sim.scaler.getLimit() );
+		sim.step( 1000000, 4000000, 10, 4 );
+		// Throughput stays the same, but latency goes through the roof
+		sim.step( 1000000, 4000000, 100, 4 );
+		assertEquals( 3, sim.scaler.getLimit() );
+	}
+
+	@Test
+	@DisplayName( "Test additional connection not used by peer is given back" )
+	public void testUnusedProbe()
+	{
+		ConnectionScaler scaler = new ConnectionScaler( "test" );
+		long now = 1;
+		scaler.update( now, 2, 0, 10, 8 );
+		now += SAMPLE_NS;
+		assertEquals( 3, scaler.update( now, 2, 3000000, 10, 8 ) );
+		now += SAMPLE_NS;
+		// Peer keeps using only two connections
+		assertEquals( 2, scaler.update( now, 2, 6000000, 10, 8 ) );
+		assertEquals( 1, scaler.getIncreaseCount() );
+		assertEquals( 1, scaler.getDecreaseCount() );
+	}
+
+	@Test
+	@DisplayName( "Test upper bound is respected" )
+	public void testMax()
+	{
+		Simulation sim = new Simulation();
+		assertEquals( 1, sim.step( 1000000, Long.MAX_VALUE, 10, 1 ) );
+		for ( int i = 0; i < 5; ++i ) {
+			assertEquals( 1, sim.step( 1000000, Long.MAX_VALUE, 10, 1 ) );
+		}
+	}
+
+	@Test
+	@DisplayName( "Test global and per peer connection limits" )
+	public void testSlots() throws Exception
+	{
+		InetAddress a = InetAddress.getByName( "192.0.2.1" );
+		InetAddress b = InetAddress.getByName( "192.0.2.2" );
+		// Other tests' connections might still be around
+		int base = ConnectionScaler.getGlobalConnectionCount();
+		ConnectionScaler.setPeerLimit( 2 );
+		ConnectionScaler.setGlobalLimit( base + 3 );
+		try {
+			assertTrue( ConnectionScaler.acquireSlot( a ) );
+			assertTrue( ConnectionScaler.acquireSlot( a ) );
+			assertFalse( ConnectionScaler.acquireSlot( a ) );
+			assertTrue( ConnectionScaler.acquireSlot( b ) );
+			assertFalse( ConnectionScaler.acquireSlot( b ) );
+			assertEquals( base + 3, ConnectionScaler.getGlobalConnectionCount() );
+			ConnectionScaler.releaseSlot( a );
+			assertEquals( 1, ConnectionScaler.getPeerConnectionCount( a ) );
+			assertTrue( ConnectionScaler.acquireSlot( b ) );
+		} finally {
+			ConnectionScaler.releaseSlot( a );
+			ConnectionScaler.releaseSlot( b );
+			ConnectionScaler.releaseSlot( b );
+			ConnectionScaler.setPeerLimit( 16 );
+			ConnectionScaler.setGlobalLimit( 64 );
+		}
+		assertEquals( base, ConnectionScaler.getGlobalConnectionCount() );
+	}
+
+}
@@ -0,0 +1,87 @@
+package org.openslx.filetransfer.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.openslx.filetransfer.util.HashChecker.HashCheckCallback;
+import org.openslx.filetransfer.util.HashChecker.HashResult;
+
+public class HashCheckerTest
+{
+
+	@Test
+	@DisplayName( "Test combined SHA-1 and CRC32 calculation matches separate passes" )
+	public void testSha1AndCrc32() throws Exception
+	{
+		// Not a multiple of the stride, nor of 4k, to test padding
+		final int length = 5 * 1024 * 1024 + 1234;
+		byte[] data = new byte[ FileChunk.CHUNK_SIZE ];
+		new Random( 4711 ).nextBytes( data );
+		byte[] sha1 = MessageDigest.getInstance( "SHA-1" ).digest( Arrays.copyOf( data, length ) );
+		CRC32 crc = new CRC32();
+		crc.update( data, 0, length );
+		crc.update( new byte[ 4096 - ( length % 4096 ) ] );
+		FileChunk expected = new FileChunk( 0, length, sha1 );
+		expected.calculateDnbd3Crc32( data );
+
+		FileChunk chunk = new FileChunk( 0, length, null );
+		final HashResult[] result = new HashResult[ 1 ];
+		final CountDownLatch done = new CountDownLatch( 1 );
+		HashChecker hc = new HashChecker( "SHA-1" );
+		hc.queue( chunk, data, new HashCheckCallback() {
+			@Override
+			public void hashCheckDone( HashResult res, byte[] data, FileChunk chunk )
+			{
+				result[0] = res;
+				done.countDown();
+			}
+		}, HashChecker.BLOCKING | HashChecker.CALC_SHA1 | HashChecker.CALC_CRC32 );
+		assertTrue( done.await( 10, TimeUnit.SECONDS ) );
+		assertEquals( HashResult.NONE, result[0] );
+		assertArrayEquals( sha1, chunk.getSha1Sum() );
+		byte[] a = new byte[ 4 ], b = new byte[ 4 ];
+		chunk.getCrc32Le( a, 0 );
+		expected.getCrc32Le( b, 0 );
+		assertArrayEquals( b, a );
+		assertEquals( (int)crc.getValue(), ( a[0] & 0xff ) | ( a[1] & 0xff ) << 8 | ( a[2] & 0xff ) << 16 | ( a[3] & 0xff ) << 24 );
+	}
+
+	@Test
+	@DisplayName( "Test SHA-1 check of chunk" )
+	public void testCheckSha1() throws Exception
+	{
+		byte[] data = new byte[ 300000 ];
+		new Random( 42 ).nextBytes( data );
+		byte[] sha1 = MessageDigest.getInstance( "SHA-1" ).digest( data );
+		sha1[3]++;
+		FileChunk good = new FileChunk( 0, data.length, MessageDigest.getInstance( "SHA-1" ).digest( data ) );
+		FileChunk bad = new FileChunk( 0, data.length, sha1 );
+		final HashResult[] results = new HashResult[ 2 ];
+		final CountDownLatch done = new CountDownLatch( 2 );
+		HashChecker hc = new HashChecker( "SHA-1" );
+		HashCheckCallback cb = new HashCheckCallback() {
+			@Override
+			public void hashCheckDone( HashResult res, byte[] data, FileChunk chunk )
+			{
+				results[chunk.sha1sum[3] == sha1[3] ? 1 : 0] = res;
+				done.countDown();
+			}
+		};
+		hc.queue( good, data, cb, HashChecker.BLOCKING | HashChecker.CHECK_SHA1 );
+		hc.queue( bad, data, cb, HashChecker.BLOCKING | HashChecker.CHECK_SHA1 );
+		assertTrue( done.await( 10, TimeUnit.SECONDS ) );
+		assertEquals( HashResult.VALID, results[0] );
+		assertEquals( HashResult.INVALID, results[1] );
+	}
+
+}
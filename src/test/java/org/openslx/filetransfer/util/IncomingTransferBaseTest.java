@@ -0,0 +1,290 @@
+package org.openslx.filetransfer.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openslx.bwlp.thrift.iface.TransferInformation;
+import org.openslx.bwlp.thrift.iface.TransferState;
+import org.openslx.filetransfer.Downloader;
+import org.openslx.filetransfer.IncomingEvent;
+import org.openslx.filetransfer.Listener;
+import org.openslx.filetransfer.LocalChunkSource;
+import org.openslx.filetransfer.LocalChunkSource.ChunkSource;
+import org.openslx.filetransfer.Uploader;
+import org.openslx.filetransfer.util.IncomingTransferBase.FsyncPolicy;
+
+public class IncomingTransferBaseTest
+{
+
+	private static File sourceFile;
+
+	private static byte[] sourceData;
+
+	private static List<byte[]> blockHashes;
+
+	private static int listenPort;
+
+	private static volatile IncomingTransferBase currentTransfer;
+
+	private static final ExecutorService pool = Executors.newCachedThreadPool();
+
+	@BeforeAll
+	public static void setUp() throws IOException, NoSuchAlgorithmException
+	{
+		// Two full chunks, one partial one, and one full of zeros in between
+		sourceData = new byte[ 3 * FileChunk.CHUNK_SIZE + 123456 ];
+		new Random( 815 ).nextBytes( sourceData );
+		for ( int i = FileChunk.CHUNK_SIZE; i < 2 * FileChunk.CHUNK_SIZE; i++ ) {
+			sourceData[i] = 0;
+		}
+		sourceFile = File.createTempFile( "bftp-incoming-src", ".bin" );
+		sourceFile.deleteOnExit();
+		Files.write( sourceFile.toPath(), sourceData );
+		blockHashes = new ArrayList<>();
+		MessageDigest md = MessageDigest.getInstance( "SHA-1" );
+		for ( int offset = 0; offset < sourceData.length; offset += FileChunk.CHUNK_SIZE ) {
+			md.update( sourceData, offset, Math.min( FileChunk.CHUNK_SIZE, sourceData.length - offset ) );
+			blockHashes.add( md.digest() );
+		}
+		try ( ServerSocket sock = new ServerSocket( 0 ) ) {
+			listenPort = sock.getLocalPort();
+		}
+		Listener listener = new Listener( new IncomingEvent() {
+			@Override
+			public void incomingDownloadRequest( Uploader uploader ) throws IOException
+			{
+				uploader.cancel();
+			}
+
+			@Override
+			public void incomingUploadRequest( Downloader downloader ) throws IOException
+			{
+				if ( downloader.getToken() == null || !currentTransfer.addConnection( downloader, pool ) ) {
+					downloader.cancel();
+				}
+			}
+		}, null, listenPort, 10000 );
+		assertTrue( listener.start() );
+	}
+
+	@AfterAll
+	public static void tearDown()
+	{
+		pool.shutdownNow();
+	}
+
+	@Test
+	@DisplayName( "Test upload to IncomingTransferBase via network" )
+	public void testUpload() throws Exception
+	{
+		TestTransfer transfer = new TestTransfer( null );
+		currentTransfer = transfer;
+		Uploader uploader = new Uploader( "127.0.0.1", listenPort, 10000, null, "token" );
+		assertTrue( uploader.upload( sourceFile.getAbsolutePath() ) );
+		transfer.check();
+	}
+
+	@Test
+	@DisplayName( "Test upload with write-behind and periodic fsync" )
+	public void testUploadWriteBehind() throws Exception
+	{
+		TestTransfer transfer;
+		IncomingTransferBase.WRITE_BEHIND = true;
+		IncomingTransferBase.FSYNC_POLICY = FsyncPolicy.EVERY_N_MIB;
+		IncomingTransferBase.FSYNC_INTERVAL_MIB = 8;
+		try {
+			transfer = new TestTransfer( null );
+		} finally {
+			IncomingTransferBase.WRITE_BEHIND = false;
+			IncomingTransferBase.FSYNC_POLICY = FsyncPolicy.NONE;
+		}
+		currentTransfer = transfer;
+		Uploader uploader = new Uploader( "127.0.0.1", listenPort, 10000, null, "token" );
+		assertTrue( uploader.upload( sourceFile.getAbsolutePath() ) );
+		transfer.check();
+		// Zero chunk is skipped, everything else goes through the queue
+		assertTrue( transfer.getWriteQueue().getChunkCount() >= 3 );
+		assertTrue( transfer.getWriteQueue().getWriteCount() <= transfer.getWriteQueue().getChunkCount() );
+	}
+
+	@Test
+	@DisplayName( "Test upload with staged receive" )
+	public void testUploadStaged() throws Exception
+	{
+		TestTransfer transfer = new TestTransfer( null );
+		currentTransfer = transfer;
+		IncomingTransferBase.STAGED_RECEIVE = true;
+		try {
+			Uploader uploader = new Uploader( "127.0.0.1", listenPort, 10000, null, "token" );
+			assertTrue( uploader.upload( sourceFile.getAbsolutePath() ) );
+			transfer.check();
+		} finally {
+			IncomingTransferBase.STAGED_RECEIVE = false;
+		}
+	}
+
+	@Test
+	@DisplayName( "Test finished upload is added to chunk index" )
+	public void testUploadAddsToIndex( @TempDir File dir ) throws Exception
+	{
+		try ( ChunkHashIndex index = new ChunkHashIndex( dir ) ) {
+			TestTransfer transfer = new TestTransfer( index );
+			currentTransfer = transfer;
+			Uploader uploader = new Uploader( "127.0.0.1", listenPort, 10000, null, "token" );
+			assertTrue( uploader.upload( sourceFile.getAbsolutePath() ) );
+			transfer.check();
+			// Added right after finishIncomingTransfer() returns
+			for ( int i = 0; i < 50 && index.getFileCount() == 0; ++i ) {
+				Thread.sleep( 100 );
+			}
+			List<ChunkSource> sources = index.getCloneSources( blockHashes );
+			// Null block is not indexed
+			assertEquals( blockHashes.size() - 1, sources.size() );
+			assertEquals( transfer.getTmpFileName().getAbsolutePath(), sources.get( 0 ).sourceCandidates.get( 0 ).fileName );
+		}
+	}
+
+	@Test
+	@DisplayName( "Test transfer completing via local copy" )
+	public void testLocalCopy() throws Exception
+	{
+		TestTransfer transfer = new TestTransfer( new LocalChunkSource() {
+			@Override
+			public List<ChunkSource> getCloneSources( List<byte[]> sums )
+			{
+				List<ChunkSource> list = new ArrayList<>();
+				for ( int i = 0; i < blockHashes.size(); i++ ) {
+					ChunkSource src = new ChunkSource( blockHashes.get( i ) );
+					long offset = (long)i * FileChunk.CHUNK_SIZE;
+					src.addFile( sourceFile.getAbsolutePath(), offset,
+							(int)Math.min( FileChunk.CHUNK_SIZE, sourceData.length - offset ) );
+					list.add( src );
+				}
+				return list;
+			}
+		} );
+		currentTransfer = transfer;
+		transfer.enableServerSideCopying( true );
+		transfer.updateBlockHashList( blockHashes );
+		transfer.check();
+	}
+
+	@Test
+	@DisplayName( "Test local copy skips missing and truncated source files" )
+	public void testLocalCopyBrokenSources() throws Exception
+	{
+		final File truncated = File.createTempFile( "bftp-incoming-short", ".bin" );
+		truncated.deleteOnExit();
+		Files.write( truncated.toPath(), new byte[ 1000 ] );
+		TestTransfer transfer = new TestTransfer( new LocalChunkSource() {
+			@Override
+			public List<ChunkSource> getCloneSources( List<byte[]> sums )
+			{
+				List<ChunkSource> list = new ArrayList<>();
+				for ( int i = 0; i < blockHashes.size(); i++ ) {
+					ChunkSource src = new ChunkSource( blockHashes.get( i ) );
+					long offset = (long)i * FileChunk.CHUNK_SIZE;
+					int size = (int)Math.min( FileChunk.CHUNK_SIZE, sourceData.length - offset );
+					src.addFile( "/nonexistent/bftp-source.bin", offset, size );
+					src.addFile( truncated.getAbsolutePath(), offset, size );
+					src.addFile( sourceFile.getAbsolutePath(), offset, size );
+					list.add( src );
+				}
+				return list;
+			}
+		} );
+		currentTransfer = transfer;
+		transfer.enableServerSideCopying( true );
+		transfer.updateBlockHashList( blockHashes );
+		transfer.check();
+	}
+
+	private static class TestTransfer extends IncomingTransferBase
+	{
+		private final CountDownLatch finished = new CountDownLatch( 1 );
+
+		public TestTransfer( LocalChunkSource source ) throws FileNotFoundException, IOException
+		{
+			super( "test", createTempFile(), sourceData.length, blockHashes, source );
+		}
+
+		private static File createTempFile() throws IOException
+		{
+			File file = File.createTempFile( "bftp-incoming-dst", ".bin" );
+			file.deleteOnExit();
+			return file;
+		}
+
+		public void check() throws Exception
+		{
+			assertTrue( finished.await( 60, TimeUnit.SECONDS ), "Transfer did not finish. " + getChunks().getStats() );
+			assertEquals( TransferState.FINISHED, getState() );
+			assertArrayEquals( sourceData, Files.readAllBytes( getTmpFileName().toPath() ) );
+			// All chunk buffers should be returned to the pool eventually
+			ChunkBufferPool bufferPool = getChunkBufferPool();
+			for ( int i = 0; i < 50 && bufferPool.getInUseCount() != 0; ++i ) {
+				Thread.sleep( 100 );
+			}
+			assertEquals( 0, bufferPool.getInUseCount(), bufferPool.getStats() );
+		}
+
+		@Override
+		protected boolean hasEnoughFreeSpace()
+		{
+			return true;
+		}
+
+		@Override
+		protected File getFinalFile()
+		{
+			// File stays where it is
+			return getTmpFileName();
+		}
+
+		@Override
+		protected boolean finishIncomingTransfer()
+		{
+			finished.countDown();
+			return true;
+		}
+
+		@Override
+		protected void chunkStatusChanged( FileChunk chunk )
+		{
+		}
+
+		@Override
+		public TransferInformation getTransferInfo()
+		{
+			return null;
+		}
+
+		@Override
+		public String getRelativePath()
+		{
+			return "test";
+		}
+	}
+
+}
@@ -0,0 +1,89 @@
+package org.openslx.thrifthelper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.thrift.TServiceClient;
+import org.apache.thrift.transport.TTransportException;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.openslx.bwlp.thrift.iface.MasterServer;
+import org.openslx.thrifthelper.ThriftHandler.WantClientCallback;
+
+public class CircuitBreakerTest
+{
+
+	@Test
+	@DisplayName( "Test circuit opens, lets a single trial through, and closes again" )
+	public void testStates() throws Exception
+	{
+		CircuitBreaker.Config config = new CircuitBreaker.Config();
+		config.failureThreshold = 2;
+		config.openMs = 50;
+		CircuitBreaker breaker = new CircuitBreaker( "test", config );
+		assertTrue( breaker.acquire() );
+		breaker.failure();
+		breaker.done();
+		assertEquals( CircuitBreaker.State.CLOSED, breaker.getState() );
+		assertTrue( breaker.acquire() );
+		breaker.failure();
+		breaker.done();
+		assertEquals( CircuitBreaker.State.OPEN, breaker.getState() );
+		assertFalse( breaker.isAvailable() );
+		assertFalse( breaker.acquire() );
+		Thread.sleep( 60 );
+		assertTrue( breaker.acquire() );
+		assertEquals( CircuitBreaker.State.HALF_OPEN, breaker.getState() );
+		assertFalse( breaker.acquire() );
+		// Trial fails, open for twice as long
+		breaker.failure();
+		breaker.done();
+		assertEquals( CircuitBreaker.State.OPEN, breaker.getState() );
+		Thread.sleep( 60 );
+		assertFalse( breaker.acquire() );
+		// Successful probe lets the next call through right away
+		assertTrue( breaker.startProbe() );
+		assertFalse( breaker.startProbe() );
+		breaker.probeFinished( true );
+		assertTrue( breaker.acquire() );
+		breaker.success();
+		breaker.done();
+		assertEquals( CircuitBreaker.State.CLOSED, breaker.getState() );
+		assertEquals( 0, breaker.getConsecutiveFailures() );
+		assertEquals( 2, breaker.getTimesOpened() );
+		assertEquals( 3, breaker.getRejectedCount() );
+	}
+
+	@Test
+	@DisplayName( "Test pool stops connecting while its circuit is open" )
+	public void testPoolFailsFast() throws Exception
+	{
+		final AtomicInteger connects = new AtomicInteger();
+		ThriftClientPool.Config config = new ThriftClientPool.Config();
+		config.circuitBreaker = new CircuitBreaker.Config();
+		config.circuitBreaker.failureThreshold = 2;
+		config.circuitBreaker.openMs = 60_000;
+		ThriftClientPool<TServiceClient> pool = new ThriftClientPool<TServiceClient>( "test",
+				new WantClientCallback<MasterServer.Client>() {
+					@Override
+					public MasterServer.Client getNewClient()
+					{
+						connects.incrementAndGet();
+						return null;
+					}
+				}, config );
+		assertNull( pool.borrow() );
+		assertNull( pool.borrow() );
+		assertEquals( CircuitBreaker.State.OPEN, pool.getCircuitBreaker().getState() );
+		TTransportException e = assertThrows( TTransportException.class, () -> pool.borrow() );
+		assertEquals( TTransportException.NOT_OPEN, e.getType() );
+		assertEquals( 2, connects.get() );
+		assertEquals( 0, pool.getTotalCount() );
+	}
+
+}
@@ -0,0 +1,99 @@
+package org.openslx.thrifthelper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.apache.thrift.protocol.TProtocolException;
+import org.apache.thrift.transport.TTransportException;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.openslx.bwlp.thrift.iface.TInvalidTokenException;
+
+public class RetryPolicyTest
+{
+
+	private static RetryPolicy.Config noDelay()
+	{
+		RetryPolicy.Config config = new RetryPolicy.Config();
+		config.baseDelayMs = 0;
+		config.maxDelayMs = 0;
+		return config;
+	}
+
+	@Test
+	@DisplayName( "Test only connection errors are retried, up to the limit" )
+	public void testClassification()
+	{
+		RetryPolicy policy = new RetryPolicy( noDelay() );
+		assertTrue( policy.thriftError( 1, "ping", new TTransportException() ) );
+		assertTrue( policy.thriftError( 1, "ping", null ) );
+		assertFalse( policy.thriftError( 1, "ping", new TInvalidTokenException() ) );
+		assertFalse( policy.thriftError( 1, "ping", new TProtocolException() ) );
+		assertTrue( policy.thriftError( 3, "ping", new TTransportException() ) );
+		assertFalse( policy.thriftError( 4, "ping", new TTransportException() ) );
+		assertEquals( 3, policy.getRetryCount() );
+		assertEquals( 2, policy.getNotRetryableCount() );
+		assertEquals( 1, policy.getExhaustedCount() );
+	}
+
+	@Test
+	@DisplayName( "Test per method retry budget is used up and refills" )
+	public void testBudget() throws Exception
+	{
+		RetryPolicy.Config config = noDelay();
+		config.retryBudget = 2;
+		config.budgetRefillMs = 50;
+		RetryPolicy policy = new RetryPolicy( config );
+		assertTrue( policy.thriftError( 1, "ping", null ) );
+		assertTrue( policy.thriftError( 1, "ping", null ) );
+		assertFalse( policy.thriftError( 1, "ping", null ) );
+		// Other methods have their own budget
+		assertTrue( policy.thriftError( 1, "getUser", null ) );
+		assertEquals( 1, policy.getOverBudgetCount() );
+		Thread.sleep( 60 );
+		assertTrue( policy.thriftError( 1, "ping", null ) );
+	}
+
+	@Test
+	@DisplayName( "Test backoff grows exponentially, with jitter, up to the limit" )
+	public void testDelay()
+	{
+		RetryPolicy.Config config = new RetryPolicy.Config();
+		config.baseDelayMs = 100;
+		config.maxDelayMs = 1000;
+		RetryPolicy policy = new RetryPolicy( config );
+		long maxSeen = 0;
+		boolean differs = false;
+		long first = policy.getDelayMs( 3 );
+		for ( int i = 0; i < 200; ++i ) {
+			long d1 = policy.getDelayMs( 1 );
+			assertTrue( d1 >= 0 && d1 <= 100 );
+			long d3 = policy.getDelayMs( 3 );
+			assertTrue( d3 >= 0 && d3 <= 400 );
+			differs |= d3 != first;
+			long d10 = policy.getDelayMs( 10 );
+			assertTrue( d10 >= 0 && d10 <= 1000 );
+			maxSeen = Math.max( maxSeen, d10 );
+		}
+		assertTrue( differs );
+		assertTrue( maxSeen > 400 );
+	}
+
+	@Test
+	@DisplayName( "Test chained callback can veto retries" )
+	public void testChained()
+	{
+		RetryPolicy policy = new RetryPolicy( noDelay(), new ThriftManager.ErrorCallback() {
+			@Override
+			public boolean thriftError( int failCount, String method, Throwable t )
+			{
+				return !method.equals( "nope" );
+			}
+		} );
+		assertTrue( policy.thriftError( 1, "ping", null ) );
+		assertFalse( policy.thriftError( 1, "nope", null ) );
+		assertEquals( 1, policy.getRetryCount() );
+	}
+
+}
@@ -0,0 +1,224 @@
+package org.openslx.thrifthelper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.thrift.TServiceClient;
+import org.apache.thrift.async.TAsyncClientManager;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadPoolServer;
+import org.apache.thrift.transport.TNonblockingTransport;
+import org.apache.thrift.transport.TServerSocket;
+import org.apache.thrift.transport.layered.TFramedTransport;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.openslx.bwlp.thrift.iface.MasterServer;
+import org.openslx.bwlp.thrift.iface.TInvalidTokenException;
+import org.openslx.bwlp.thrift.iface.UserInfo;
+import org.openslx.thrifthelper.ThriftAsyncClient.AsyncClientCreator;
+import org.openslx.thrifthelper.ThriftHandler.WantClientCallback;
+import org.openslx.thrifthelper.ThriftManager.ErrorCallback;
+
+public class ThriftAsyncClientTest
+{
+
+	private static final AsyncClientCreator<MasterServer.AsyncIface> CREATOR = new AsyncClientCreator<MasterServer.AsyncIface>() {
+		@Override
+		public MasterServer.AsyncIface newClient( TAsyncClientManager manager, TNonblockingTransport transport )
+		{
+			return new MasterServer.AsyncClient( new TBinaryProtocol.Factory(), manager, transport );
+		}
+	};
+
+	private TServer server;
+
+	private int port;
+
+	private ThriftAsyncClient<MasterServer.AsyncIface> client;
+
+	@BeforeEach
+	public void setUp() throws Exception
+	{
+		MasterServer.Iface impl = (MasterServer.Iface)Proxy.newProxyInstance( getClass().getClassLoader(),
+				new Class[] { MasterServer.Iface.class }, new InvocationHandler() {
+					@Override
+					public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable
+					{
+						if ( method.getName().equals( "ping" ) ) {
+							Thread.sleep( 20 );
+							return true;
+						}
+						if ( method.getName().equals( "getUserFromToken" ) )
+							throw new TInvalidTokenException();
+						return null;
+					}
+				} );
+		ServerSocket sock = new ServerSocket( 0 );
+		port = sock.getLocalPort();
+		server = new TThreadPoolServer( new TThreadPoolServer.Args( new TServerSocket( sock ) )
+				.processor( new MasterServer.Processor<MasterServer.Iface>( impl ) )
+				.transportFactory( new TFramedTransport.Factory() )
+				.protocolFactory( new TBinaryProtocol.Factory() ) );
+		Thread t = new Thread( "thrift-server" ) {
+			@Override
+			public void run()
+			{
+				server.serve();
+			}
+		};
+		t.setDaemon( true );
+		t.start();
+		for ( int i = 0; i < 50 && !server.isServing(); ++i ) {
+			Thread.sleep( 20 );
+		}
+	}
+
+	@AfterEach
+	public void tearDown()
+	{
+		if ( client != null ) {
+			client.close();
+		}
+		server.stop();
+	}
+
+	private static ErrorCallback noRetry()
+	{
+		return new ErrorCallback() {
+			@Override
+			public boolean thriftError( int failCount, String method, Throwable t )
+			{
+				return false;
+			}
+		};
+	}
+
+	private void checkCalls() throws Exception
+	{
+		List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+		long start = System.nanoTime();
+		for ( int i = 0; i < 40; ++i ) {
+			futures.add( client.call( "ping", ( c, cb ) -> c.ping( cb ) ) );
+		}
+		for ( CompletableFuture<Boolean> f : futures ) {
+			assertTrue( f.get( 10, TimeUnit.SECONDS ) );
+		}
+		// 4 connections, 20ms per call
+		assertTrue( System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos( 40 * 20 / 2 ), "Calls did not run in parallel" );
+		CompletableFuture<UserInfo> user = client.call( "getUserFromToken", ( c, cb ) -> c.getUserFromToken( "x", cb ) );
+		ExecutionException e = assertThrows( ExecutionException.class, () -> user.get( 10, TimeUnit.SECONDS ) );
+		assertTrue( e.getCause() instanceof TInvalidTokenException );
+		assertEquals( 0, client.getActiveCount() );
+		assertEquals( 0, client.getPendingCount() );
+	}
+
+	@Test
+	@DisplayName( "Test concurrent calls over non-blocking transport" )
+	public void testNonBlocking() throws Exception
+	{
+		ThriftClientPool.Config config = new ThriftClientPool.Config();
+		config.maxTotal = 4;
+		client = ThriftAsyncClient.nonBlocking( "test", "127.0.0.1", port, 5000, CREATOR, noRetry(), config );
+		checkCalls();
+		// Thrift's async client closes its connection when a call throws
+		assertEquals( 3, client.getIdleCount() );
+	}
+
+	@Test
+	@DisplayName( "Test calls via blocking client, as used for TLS" )
+	public void testBlockingBridge() throws Exception
+	{
+		ThriftClientPool.Config config = new ThriftClientPool.Config();
+		config.maxTotal = 4;
+		ThriftClientPool<TServiceClient> pool = new ThriftClientPool<TServiceClient>( "test",
+				new WantClientCallback<MasterServer.Client>() {
+					@Override
+					public MasterServer.Client getNewClient()
+					{
+						return ThriftManager.getNewMasterClient( null, "127.0.0.1", port, 5000 );
+					}
+				}, config );
+		Object blocking = Proxy.newProxyInstance( getClass().getClassLoader(), new Class[] { MasterServer.Iface.class },
+				new ThriftHandler<TServiceClient>( MasterServer.Iface.class, MasterServer.Client.class, pool, noRetry() ) );
+		client = ThriftAsyncClient.blocking( "test", MasterServer.AsyncIface.class, blocking, config );
+		checkCalls();
+	}
+
+	@Test
+	@DisplayName( "Test error callback decides about retrying" )
+	public void testRetry() throws Exception
+	{
+		int deadPort;
+		try ( ServerSocket sock = new ServerSocket( 0 ) ) {
+			deadPort = sock.getLocalPort();
+		}
+		final AtomicInteger errors = new AtomicInteger();
+		client = ThriftAsyncClient.nonBlocking( "test", "127.0.0.1", deadPort, 5000, CREATOR, new ErrorCallback() {
+			@Override
+			public boolean thriftError( int failCount, String method, Throwable t )
+			{
+				assertEquals( "ping", method );
+				assertEquals( errors.incrementAndGet(), failCount );
+				return failCount < 3;
+			}
+		}, new ThriftClientPool.Config() );
+		CompletableFuture<Boolean> ping = client.call( "ping", ( c, cb ) -> c.ping( cb ) );
+		assertThrows( ExecutionException.class, () -> ping.get( 10, TimeUnit.SECONDS ) );
+		assertEquals( 3, errors.get() );
+		assertEquals( 0, client.getActiveCount() );
+	}
+
+	@Test
+	@DisplayName( "Test blocking error callback doesn't hold up other calls" )
+	public void testBlockingErrorCallback() throws Exception
+	{
+		int deadPort;
+		try ( ServerSocket sock = new ServerSocket( 0 ) ) {
+			deadPort = sock.getLocalPort();
+		}
+		final CountDownLatch release = new CountDownLatch( 1 );
+		ThriftClientPool.Config config = new ThriftClientPool.Config();
+		config.maxTotal = 1;
+		client = ThriftAsyncClient.nonBlocking( "test", "127.0.0.1", deadPort, 5000, CREATOR, new ErrorCallback() {
+			@Override
+			public boolean thriftError( int failCount, String method, Throwable t )
+			{
+				if ( method.equals( "ping" ) ) {
+					try {
+						release.await( 10, TimeUnit.SECONDS );
+					} catch ( InterruptedException e ) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				return false;
+			}
+		}, config );
+		CompletableFuture<Boolean> ping = client.call( "ping", ( c, cb ) -> c.ping( cb ) );
+		CompletableFuture<UserInfo> user = client.call( "getUserFromToken", ( c, cb ) -> c.getUserFromToken( "x", cb ) );
+		try {
+			assertThrows( ExecutionException.class, () -> user.get( 5, TimeUnit.SECONDS ) );
+			assertFalse( ping.isDone() );
+		} finally {
+			release.countDown();
+		}
+		assertThrows( ExecutionException.class, () -> ping.get( 10, TimeUnit.SECONDS ) );
+	}
+
+}
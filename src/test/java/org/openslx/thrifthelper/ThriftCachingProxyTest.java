@@ -0,0 +1,169 @@
+package org.openslx.thrifthelper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.openslx.bwlp.thrift.iface.MasterServer;
+import org.openslx.bwlp.thrift.iface.OperatingSystem;
+import org.openslx.bwlp.thrift.iface.TInvocationException;
+
+public class ThriftCachingProxyTest
+{
+
+	private final AtomicInteger osCalls = new AtomicInteger();
+
+	private final AtomicInteger orgCalls = new AtomicInteger();
+
+	private volatile int delayMs = 0;
+
+	private volatile boolean fail = false;
+
+	private MasterServer.Iface backend;
+
+	@BeforeEach
+	public void setUp()
+	{
+		backend = (MasterServer.Iface)Proxy.newProxyInstance( getClass().getClassLoader(),
+				new Class[] { MasterServer.Iface.class }, new InvocationHandler() {
+					@Override
+					public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable
+					{
+						if ( method.getName().equals( "getOperatingSystems" ) ) {
+							int n = osCalls.incrementAndGet();
+							Thread.sleep( delayMs );
+							if ( fail )
+								throw new TInvocationException();
+							List<OperatingSystem> list = new ArrayList<>();
+							list.add( new OperatingSystem().setOsName( "os" + n ) );
+							return list;
+						}
+						if ( method.getName().equals( "getOrganizations" ) ) {
+							orgCalls.incrementAndGet();
+							return new ArrayList<>();
+						}
+						if ( method.getName().equals( "ping" ) )
+							return true;
+						return null;
+					}
+				} );
+	}
+
+	@Test
+	@DisplayName( "Test results are cached, copied and invalidated" )
+	public void testCaching() throws Exception
+	{
+		ThriftCachingProxy<MasterServer.Iface> cache = new ThriftCachingProxy<>( MasterServer.Iface.class, backend )
+				.cache( "getOperatingSystems", 60000, 0 )
+				.invalidateOn( "setUsedSatellite", "getOperatingSystems" );
+		MasterServer.Iface client = cache.getClient();
+		List<OperatingSystem> list = client.getOperatingSystems();
+		assertEquals( "os1", list.get( 0 ).getOsName() );
+		// Modifying the result must not affect the cache
+		list.get( 0 ).setOsName( "changed" );
+		list.clear();
+		assertEquals( "os1", client.getOperatingSystems().get( 0 ).getOsName() );
+		assertEquals( 1, osCalls.get() );
+		assertEquals( 1, cache.getHitCount() );
+		// Not cached
+		client.getOrganizations();
+		client.getOrganizations();
+		assertEquals( 2, orgCalls.get() );
+		assertTrue( client.ping() );
+		cache.invalidate( "getOperatingSystems" );
+		assertEquals( "os2", client.getOperatingSystems().get( 0 ).getOsName() );
+		client.setUsedSatellite( "a", "b" );
+		assertEquals( "os3", client.getOperatingSystems().get( 0 ).getOsName() );
+		assertEquals( 3, osCalls.get() );
+		assertThrows( IllegalArgumentException.class, () -> cache.cache( "noSuchMethod", 1, 1 ) );
+	}
+
+	@Test
+	@DisplayName( "Test concurrent identical calls result in one call" )
+	public void testCoalescing() throws Exception
+	{
+		final ThriftCachingProxy<MasterServer.Iface> cache = new ThriftCachingProxy<>( MasterServer.Iface.class, backend )
+				.cacheReferenceData();
+		delayMs = 300;
+		ExecutorService pool = Executors.newFixedThreadPool( 8 );
+		try {
+			List<Future<List<OperatingSystem>>> futures = new ArrayList<>();
+			for ( int i = 0; i < 8; ++i ) {
+				futures.add( pool.submit( new Callable<List<OperatingSystem>>() {
+					@Override
+					public List<OperatingSystem> call() throws Exception
+					{
+						return cache.getClient().getOperatingSystems();
+					}
+				} ) );
+			}
+			for ( Future<List<OperatingSystem>> f : futures ) {
+				assertEquals( "os1", f.get().get( 0 ).getOsName() );
+			}
+		} finally {
+			pool.shutdown();
+		}
+		assertEquals( 1, osCalls.get() );
+		assertEquals( 1, cache.getMissCount() );
+		assertEquals( 7, cache.getCoalescedCount() );
+	}
+
+	@Test
+	@DisplayName( "Test stale results are returned while refreshing, errors are not cached" )
+	public void testStaleWhileRevalidate() throws Exception
+	{
+		ThriftCachingProxy<MasterServer.Iface> cache = new ThriftCachingProxy<>( MasterServer.Iface.class, backend )
+				.cache( "getOperatingSystems", 500, 60000 );
+		MasterServer.Iface client = cache.getClient();
+		assertEquals( "os1", client.getOperatingSystems().get( 0 ).getOsName() );
+		Thread.sleep( 600 );
+		delayMs = 200;
+		long start = System.currentTimeMillis();
+		assertEquals( "os1", client.getOperatingSystems().get( 0 ).getOsName() );
+		assertTrue( System.currentTimeMillis() - start < 150, "Stale result was not returned right away" );
+		String name = null;
+		for ( int i = 0; i < 50 && !"os2".equals( name ); ++i ) {
+			Thread.sleep( 20 );
+			name = client.getOperatingSystems().get( 0 ).getOsName();
+		}
+		assertEquals( "os2", name );
+		// Only one refresh, no matter how many stale hits
+		assertEquals( 2, osCalls.get() );
+		assertTrue( cache.getStaleHitCount() >= 1 );
+		// Failures are passed on and not cached
+		fail = true;
+		delayMs = 0;
+		cache.invalidateAll();
+		assertThrows( TInvocationException.class, () -> client.getOperatingSystems() );
+		fail = false;
+		assertEquals( "os4", client.getOperatingSystems().get( 0 ).getOsName() );
+	}
+
+	@Test
+	@DisplayName( "Test deep copy of results" )
+	public void testCopy()
+	{
+		List<OperatingSystem> list = new ArrayList<>();
+		list.add( new OperatingSystem().setOsName( "x" ) );
+		@SuppressWarnings( "unchecked" )
+		List<OperatingSystem> copy = (List<OperatingSystem>)ThriftCachingProxy.copy( list );
+		assertEquals( list, copy );
+		assertTrue( copy.get( 0 ) != list.get( 0 ) );
+		assertEquals( "s", ThriftCachingProxy.copy( "s" ) );
+	}
+
+}
@@ -0,0 +1,204 @@
+package org.openslx.thrifthelper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.thrift.transport.TTransportException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.openslx.bwlp.thrift.iface.MasterServer;
+import org.openslx.thrifthelper.ThriftClientPool.PooledClient;
+import org.openslx.thrifthelper.ThriftHandler.WantClientCallback;
+import org.openslx.util.QuickTimer;
+import org.openslx.util.QuickTimer.Task;
+import org.openslx.util.Util;
+
+public class ThriftClientPoolTest
+{
+
+	private ServerSocket server;
+
+	private final List<Socket> accepted = new CopyOnWriteArrayList<>();
+
+	private WantClientCallback<MasterServer.Client> factory;
+
+	@BeforeEach
+	public void setUp() throws IOException
+	{
+		server = new ServerSocket( 0 );
+		final int port = server.getLocalPort();
+		Thread acceptor = new Thread( "accept" ) {
+			@Override
+			public void run()
+			{
+				try {
+					while ( !server.isClosed() ) {
+						accepted.add( server.accept() );
+					}
+				} catch ( IOException e ) {
+				}
+			}
+		};
+		acceptor.setDaemon( true );
+		acceptor.start();
+		factory = new WantClientCallback<MasterServer.Client>() {
+			@Override
+			public MasterServer.Client getNewClient()
+			{
+				return ThriftManager.getNewMasterClient( null, "127.0.0.1", port, 5000 );
+			}
+		};
+	}
+
+	@AfterEach
+	public void tearDown()
+	{
+		Util.safeClose( server );
+		for ( Socket s : accepted ) {
+			Util.safeClose( s );
+		}
+	}
+
+	@Test
+	@DisplayName( "Test connections are reused and limited" )
+	public void testBoundedWait() throws Exception
+	{
+		ThriftClientPool.Config config = new ThriftClientPool.Config();
+		config.maxTotal = 2;
+		config.maxWaitMs = 200;
+		final ThriftClientPool<MasterServer.Client> pool = new ThriftClientPool<>( "test", factory, config );
+		PooledClient<MasterServer.Client> a = pool.borrow();
+		final PooledClient<MasterServer.Client> b = pool.borrow();
+		assertNotNull( a );
+		assertNotNull( b );
+		assertEquals( 2, pool.getActiveCount() );
+		assertThrows( TTransportException.class, () -> pool.borrow() );
+		assertEquals( 1, pool.getTimeouts() );
+		// Waiting caller gets connection once it is returned
+		Thread t = new Thread() {
+			@Override
+			public void run()
+			{
+				Util.sleep( 50 );
+				pool.release( b );
+			}
+		};
+		t.start();
+		assertSame( b, pool.borrow() );
+		t.join();
+		pool.release( a );
+		pool.release( b );
+		assertEquals( 0, pool.getActiveCount() );
+		assertEquals( 2, pool.getIdleCount() );
+		assertEquals( 2, pool.getCreatedCount() );
+		assertEquals( 0, pool.getWaitingCount() );
+	}
+
+	@Test
+	@DisplayName( "Test dead idle connection is replaced before reuse" )
+	public void testValidation() throws Exception
+	{
+		ThriftClientPool.Config config = new ThriftClientPool.Config();
+		config.validateAfterMs = 0;
+		ThriftClientPool<MasterServer.Client> pool = new ThriftClientPool<>( "test", factory, config );
+		PooledClient<MasterServer.Client> a = pool.borrow();
+		pool.release( a );
+		Thread.sleep( 10 );
+		// Still alive
+		assertSame( a, pool.borrow() );
+		pool.release( a );
+		// Server closes the connection
+		for ( int i = 0; i < 50 && accepted.isEmpty(); ++i ) {
+			Thread.sleep( 10 );
+		}
+		accepted.get( 0 ).close();
+		Thread.sleep( 50 );
+		PooledClient<MasterServer.Client> b = pool.borrow();
+		assertNotSame( a, b );
+		assertEquals( 1, pool.getValidationFailures() );
+		assertEquals( 1, pool.getTotalCount() );
+		pool.release( b );
+	}
+
+	@Test
+	@DisplayName( "Test pool is pre-warmed with minIdle connections" )
+	public void testPrewarm() throws Exception
+	{
+		ThriftClientPool.Config config = new ThriftClientPool.Config();
+		config.minIdle = 3;
+		ThriftClientPool<MasterServer.Client> pool = new ThriftClientPool<>( "test", factory, config );
+		for ( int i = 0; i < 100 && pool.getIdleCount() < 3; ++i ) {
+			Thread.sleep( 20 );
+		}
+		assertEquals( 3, pool.getIdleCount() );
+		assertTrue( pool.borrow() != null );
+		assertEquals( 3, pool.getCreatedCount() );
+		pool.close();
+	}
+
+	@Test
+	@DisplayName( "Test slow connects while filling up don't block the QuickTimer, closing stops the pool" )
+	public void testFillAndClose() throws Exception
+	{
+		final List<String> threads = new CopyOnWriteArrayList<>();
+		final CountDownLatch release = new CountDownLatch( 1 );
+		ThriftClientPool.Config config = new ThriftClientPool.Config();
+		config.minIdle = 2;
+		ThriftClientPool<MasterServer.Client> pool = new ThriftClientPool<>( "test",
+				new WantClientCallback<MasterServer.Client>() {
+					@Override
+					public MasterServer.Client getNewClient()
+					{
+						threads.add( Thread.currentThread().getName() );
+						try {
+							// Unreachable server
+							release.await( 5, TimeUnit.SECONDS );
+						} catch ( InterruptedException e ) {
+						}
+						return factory.getNewClient();
+					}
+				}, config );
+		final CountDownLatch fired = new CountDownLatch( 1 );
+		QuickTimer.scheduleOnce( new Task() {
+			@Override
+			public void fire()
+			{
+				fired.countDown();
+			}
+		}, 50 );
+		assertTrue( fired.await( 2, TimeUnit.SECONDS ) );
+		release.countDown();
+		for ( int i = 0; i < 100 && pool.getIdleCount() < 2; ++i ) {
+			Thread.sleep( 20 );
+		}
+		assertEquals( 2, pool.getIdleCount() );
+		for ( String name : threads ) {
+			assertTrue( name.startsWith( "ThriftPoolFill" ), name );
+		}
+		PooledClient<MasterServer.Client> client = pool.borrow();
+		assertNotNull( client );
+		pool.close();
+		assertEquals( 0, pool.getIdleCount() );
+		TTransportException e = assertThrows( TTransportException.class, () -> pool.borrow() );
+		assertEquals( TTransportException.NOT_OPEN, e.getType() );
+		// Borrowed connection is closed once returned
+		pool.release( client );
+		assertEquals( 0, pool.getTotalCount() );
+		assertEquals( 2, pool.getDestroyedCount() );
+	}
+
+}
@@ -0,0 +1,193 @@
+package org.openslx.thrifthelper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.thrift.TServiceClient;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadPoolServer;
+import org.apache.thrift.transport.TServerSocket;
+import org.apache.thrift.transport.TTransportException;
+import org.apache.thrift.transport.layered.TFramedTransport;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.openslx.bwlp.thrift.iface.MasterServer;
+import org.openslx.thrifthelper.ThriftManager.ErrorCallback;
+
+public class ThriftEndpointGroupTest
+{
+
+	private final List<TServer> servers = new ArrayList<>();
+
+	private final List<ThriftEndpointGroup<?>> groups = new ArrayList<>();
+
+	@AfterEach
+	public void tearDown()
+	{
+		for ( ThriftEndpointGroup<?> group : groups ) {
+			group.close();
+		}
+		for ( TServer server : servers ) {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Start a master server answering ping after the given delay
+	 *
+	 * @return port of the server
+	 */
+	private int startServer( final int delayMs ) throws Exception
+	{
+		MasterServer.Iface impl = (MasterServer.Iface)Proxy.newProxyInstance( getClass().getClassLoader(),
+				new Class[] { MasterServer.Iface.class }, new InvocationHandler() {
+					@Override
+					public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable
+					{
+						if ( delayMs > 0 ) {
+							Thread.sleep( delayMs );
+						}
+						return method.getName().equals( "ping" ) ? true : null;
+					}
+				} );
+		ServerSocket sock = new ServerSocket( 0 );
+		final TServer server = new TThreadPoolServer( new TThreadPoolServer.Args( new TServerSocket( sock ) )
+				.processor( new MasterServer.Processor<MasterServer.Iface>( impl ) )
+				.transportFactory( new TFramedTransport.Factory() )
+				.protocolFactory( new TBinaryProtocol.Factory() ) );
+		Thread t = new Thread( "thrift-server" ) {
+			@Override
+			public void run()
+			{
+				server.serve();
+			}
+		};
+		t.setDaemon( true );
+		t.start();
+		servers.add( server );
+		for ( int i = 0; i < 50 && !server.isServing(); ++i ) {
+			Thread.sleep( 20 );
+		}
+		return sock.getLocalPort();
+	}
+
+	/**
+	 * @return a port nobody is listening on
+	 */
+	private static int deadPort() throws Exception
+	{
+		try ( ServerSocket sock = new ServerSocket( 0 ) ) {
+			return sock.getLocalPort();
+		}
+	}
+
+	private ThriftEndpointGroup<TServiceClient> createGroup( ThriftEndpointGroup.Config config, int... ports )
+	{
+		List<InetSocketAddress> addresses = new ArrayList<>();
+		for ( int port : ports ) {
+			addresses.add( InetSocketAddress.createUnresolved( "127.0.0.1", port ) );
+		}
+		ThriftEndpointGroup<TServiceClient> group = new ThriftEndpointGroup<TServiceClient>( "test", addresses,
+				new ThriftEndpointGroup.EndpointClientFactory<MasterServer.Client>() {
+					@Override
+					public MasterServer.Client getNewClient( ThriftEndpoint endpoint )
+					{
+						return ThriftManager.getNewMasterClient( null, endpoint.getHost(), endpoint.getPort(), 5000 );
+					}
+				}, new ThriftClientPool.Config(), config );
+		groups.add( group );
+		return group;
+	}
+
+	private MasterServer.Iface createClient( ThriftEndpointGroup<TServiceClient> group )
+	{
+		ThriftHandler<TServiceClient> handler = new ThriftHandler<TServiceClient>( MasterServer.Iface.class,
+				MasterServer.Client.class, group, new ErrorCallback() {
+					@Override
+					public boolean thriftError( int failCount, String method, Throwable t )
+					{
+						return false;
+					}
+				} );
+		return (MasterServer.Iface)Proxy.newProxyInstance( getClass().getClassLoader(),
+				new Class[] { MasterServer.Iface.class }, handler );
+	}
+
+	private static ThriftEndpointGroup.Config testConfig()
+	{
+		ThriftEndpointGroup.Config config = new ThriftEndpointGroup.Config();
+		config.circuitBreaker.failureThreshold = 1;
+		config.circuitBreaker.openMs = 60_000;
+		config.probeIntervalMs = 0;
+		return config;
+	}
+
+	@Test
+	@DisplayName( "Test calls fail over to the endpoint that is up" )
+	public void testFailover() throws Exception
+	{
+		int live = startServer( 0 );
+		ThriftEndpointGroup<TServiceClient> group = createGroup( testConfig(), deadPort(), live );
+		MasterServer.Iface client = createClient( group );
+		for ( int i = 0; i < 10; ++i ) {
+			assertTrue( client.ping() );
+		}
+		ThriftEndpoint dead = group.getEndpoints().get( 0 );
+		ThriftEndpoint up = group.getEndpoints().get( 1 );
+		assertEquals( CircuitBreaker.State.OPEN, dead.getState() );
+		assertTrue( dead.getCallCount() <= 1 );
+		assertEquals( CircuitBreaker.State.CLOSED, up.getState() );
+		assertEquals( 10, up.getCallCount() );
+		assertEquals( 0, up.getInFlight() );
+		assertEquals( 1, group.getPool( up ).getIdleCount() );
+	}
+
+	@Test
+	@DisplayName( "Test calls fail fast if all endpoints are down" )
+	public void testFailFast() throws Exception
+	{
+		ThriftEndpointGroup<TServiceClient> group = createGroup( testConfig(), deadPort(), deadPort() );
+		MasterServer.Iface client = createClient( group );
+		assertThrows( TTransportException.class, () -> client.ping() );
+		for ( ThriftEndpoint endpoint : group.getEndpoints() ) {
+			assertEquals( CircuitBreaker.State.OPEN, endpoint.getState() );
+			assertEquals( 0, endpoint.getInFlight() );
+		}
+		assertEquals( 0, group.getRejectedCount() );
+		long start = System.nanoTime();
+		TTransportException e = assertThrows( TTransportException.class, () -> client.ping() );
+		assertTrue( System.nanoTime() - start < 1_000_000_000l );
+		assertEquals( TTransportException.NOT_OPEN, e.getType() );
+		assertEquals( 1, group.getRejectedCount() );
+	}
+
+	@Test
+	@DisplayName( "Test faster endpoint gets most calls" )
+	public void testPreferFaster() throws Exception
+	{
+		int slow = startServer( 30 );
+		int fast = startServer( 0 );
+		ThriftEndpointGroup<TServiceClient> group = createGroup( testConfig(), slow, fast );
+		MasterServer.Iface client = createClient( group );
+		for ( int i = 0; i < 40; ++i ) {
+			assertTrue( client.ping() );
+		}
+		ThriftEndpoint slowEp = group.getEndpoints().get( 0 );
+		ThriftEndpoint fastEp = group.getEndpoints().get( 1 );
+		assertEquals( 40, slowEp.getCallCount() + fastEp.getCallCount() );
+		assertTrue( slowEp.getCallCount() <= 2, group.getStats() );
+		assertTrue( slowEp.getLatencyMicros() > fastEp.getLatencyMicros() );
+	}
+
+}
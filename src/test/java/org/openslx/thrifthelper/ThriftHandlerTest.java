@@ -0,0 +1,238 @@
+package org.openslx.thrifthelper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.thrift.TServiceClient;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadPoolServer;
+import org.apache.thrift.transport.TServerSocket;
+import org.apache.thrift.transport.layered.TFramedTransport;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.openslx.bwlp.thrift.iface.MasterServer;
+import org.openslx.bwlp.thrift.iface.TInvalidTokenException;
+import org.openslx.thrifthelper.ThriftHandler.WantClientCallback;
+import org.openslx.thrifthelper.ThriftManager.ErrorCallback;
+import org.openslx.util.Util;
+
+public class ThriftHandlerTest
+{
+
+	private TServer server;
+
+	private int port;
+
+	/**
+	 * Accepts connections and closes them right away
+	 */
+	private ServerSocket brokenServer;
+
+	@BeforeEach
+	public void setUp() throws Exception
+	{
+		MasterServer.Iface impl = (MasterServer.Iface)Proxy.newProxyInstance( getClass().getClassLoader(),
+				new Class[] { MasterServer.Iface.class }, new InvocationHandler() {
+					@Override
+					public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable
+					{
+						if ( method.getName().equals( "ping" ) )
+							return true;
+						if ( method.getName().equals( "getUserFromToken" ) )
+							throw new TInvalidTokenException();
+						return null;
+					}
+				} );
+		ServerSocket sock = new ServerSocket( 0 );
+		port = sock.getLocalPort();
+		server = new TThreadPoolServer( new TThreadPoolServer.Args( new TServerSocket( sock ) )
+				.processor( new MasterServer.Processor<MasterServer.Iface>( impl ) )
+				.transportFactory( new TFramedTransport.Factory() )
+				.protocolFactory( new TBinaryProtocol.Factory() ) );
+		Thread t = new Thread( "thrift-server" ) {
+			@Override
+			public void run()
+			{
+				server.serve();
+			}
+		};
+		t.setDaemon( true );
+		t.start();
+		brokenServer = new ServerSocket( 0 );
+		Thread acceptor = new Thread( "accept-close" ) {
+			@Override
+			public void run()
+			{
+				try {
+					while ( !brokenServer.isClosed() ) {
+						Socket s = brokenServer.accept();
+						Util.safeClose( s );
+					}
+				} catch ( IOException e ) {
+				}
+			}
+		};
+		acceptor.setDaemon( true );
+		acceptor.start();
+		for ( int i = 0; i < 50 && !server.isServing(); ++i ) {
+			Thread.sleep( 20 );
+		}
+	}
+
+	@AfterEach
+	public void tearDown()
+	{
+		server.stop();
+		Util.safeClose( brokenServer );
+	}
+
+	private MasterServer.Iface createClient( WantClientCallback<? extends TServiceClient> factory, ErrorCallback errCb,
+			ThriftHandler<TServiceClient> handler[] )
+	{
+		ThriftClientPool<TServiceClient> pool = new ThriftClientPool<TServiceClient>( "test", factory,
+				new ThriftClientPool.Config() );
+		handler[0] = new ThriftHandler<TServiceClient>( MasterServer.Iface.class, MasterServer.Client.class, pool, errCb );
+		return (MasterServer.Iface)Proxy.newProxyInstance( getClass().getClassLoader(),
+				new Class[] { MasterServer.Iface.class }, handler[0] );
+	}
+
+	@Test
+	@DisplayName( "Test calls are dispatched, exceptions passed on and counted" )
+	public void testDispatch() throws Exception
+	{
+		@SuppressWarnings( "unchecked" )
+		ThriftHandler<TServiceClient>[] handler = new ThriftHandler[ 1 ];
+		MasterServer.Iface client = createClient( new WantClientCallback<MasterServer.Client>() {
+			@Override
+			public MasterServer.Client getNewClient()
+			{
+				return ThriftManager.getNewMasterClient( null, "127.0.0.1", port, 5000 );
+			}
+		}, new ErrorCallback() {
+			@Override
+			public boolean thriftError( int failCount, String method, Throwable t )
+			{
+				return false;
+			}
+		}, handler );
+		for ( int i = 0; i < 10; ++i ) {
+			assertTrue( client.ping() );
+		}
+		assertThrows( TInvalidTokenException.class, () -> client.getUserFromToken( "x" ) );
+		UndeclaredThrowableException e = assertThrows( UndeclaredThrowableException.class, () -> client.toString() );
+		assertTrue( e.getCause() instanceof IllegalAccessException );
+		ThriftCallMetrics metrics = handler[0].getMetrics();
+		assertEquals( 10, metrics.get( "ping" ).getCallCount() );
+		assertEquals( 0, metrics.get( "ping" ).getErrorCount() );
+		assertEquals( 0, metrics.get( "ping" ).getInFlight() );
+		assertTrue( metrics.get( "ping" ).getLatencyPercentileMicros( 50 ) > 0 );
+		assertEquals( 1, metrics.get( "getUserFromToken" ).getCallCount() );
+		assertEquals( 1, metrics.get( "getUserFromToken" ).getErrorCount() );
+		assertEquals( 0, metrics.get( "getUserFromToken" ).getRetryCount() );
+		assertEquals( 0, metrics.get( "authenticate" ).getCallCount() );
+		assertTrue( metrics.getStats().contains( "ping: calls: 10" ) );
+	}
+
+	@Test
+	@DisplayName( "Test broken connection is retried and counted" )
+	public void testRetry() throws Exception
+	{
+		final AtomicInteger connects = new AtomicInteger();
+		@SuppressWarnings( "unchecked" )
+		ThriftHandler<TServiceClient>[] handler = new ThriftHandler[ 1 ];
+		MasterServer.Iface client = createClient( new WantClientCallback<MasterServer.Client>() {
+			@Override
+			public MasterServer.Client getNewClient()
+			{
+				// First connection goes to a server that hangs up right away
+				int p = connects.getAndIncrement() == 0 ? brokenServer.getLocalPort() : port;
+				return ThriftManager.getNewMasterClient( null, "127.0.0.1", p, 5000 );
+			}
+		}, new ErrorCallback() {
+			@Override
+			public boolean thriftError( int failCount, String method, Throwable t )
+			{
+				return failCount < 3;
+			}
+		}, handler );
+		assertTrue( client.ping() );
+		ThriftCallMetrics.MethodMetrics ping = handler[0].getMetrics().get( "ping" );
+		assertEquals( 1, ping.getCallCount() );
+		assertEquals( 0, ping.getErrorCount() );
+		assertEquals( 1, ping.getTransportErrorCount() );
+		assertEquals( 1, ping.getRetryCount() );
+	}
+
+	@Test
+	@DisplayName( "Test refused connection is retried with backoff by RetryPolicy" )
+	public void testConnectRetryPolicy() throws Exception
+	{
+		final int deadPort;
+		try ( ServerSocket sock = new ServerSocket( 0 ) ) {
+			deadPort = sock.getLocalPort();
+		}
+		final AtomicInteger connects = new AtomicInteger();
+		final List<Integer> backoffs = new ArrayList<>();
+		final long[] waited = new long[ 1 ];
+		RetryPolicy.Config config = new RetryPolicy.Config();
+		config.baseDelayMs = 50;
+		RetryPolicy policy = new RetryPolicy( config ) {
+			@Override
+			long getDelayMs( int failCount )
+			{
+				backoffs.add( failCount );
+				long delay = super.getDelayMs( failCount );
+				waited[0] += delay;
+				return delay;
+			}
+		};
+		@SuppressWarnings( "unchecked" )
+		ThriftHandler<TServiceClient>[] handler = new ThriftHandler[ 1 ];
+		MasterServer.Iface client = createClient( new WantClientCallback<MasterServer.Client>() {
+			@Override
+			public MasterServer.Client getNewClient()
+			{
+				// Server "restarting": first two connection attempts are refused
+				int p = connects.getAndIncrement() < 2 ? deadPort : port;
+				return ThriftManager.getNewMasterClient( null, "127.0.0.1", p, 5000 );
+			}
+		}, policy, handler );
+		long start = System.nanoTime();
+		assertTrue( client.ping() );
+		long elapsedMs = ( System.nanoTime() - start ) / 1000000;
+		assertEquals( 3, connects.get() );
+		assertEquals( Arrays.asList( 1, 2 ), backoffs );
+		assertTrue( elapsedMs >= waited[0], elapsedMs + " < " + waited[0] );
+		assertEquals( 2, policy.getRetryCount() );
+		assertEquals( 2, handler[0].getMetrics().get( "ping" ).getRetryCount() );
+	}
+
+	@Test
+	@DisplayName( "Test latency histogram buckets" )
+	public void testBuckets()
+	{
+		assertEquals( 0, ThriftCallMetrics.bucketOf( 0 ) );
+		assertEquals( 1, ThriftCallMetrics.bucketOf( 1 ) );
+		assertEquals( 2, ThriftCallMetrics.bucketOf( 3 ) );
+		assertEquals( 11, ThriftCallMetrics.bucketOf( 1500 ) );
+		assertTrue( 1500 < ThriftCallMetrics.bucketUpperBoundMicros( 11 ) );
+		assertEquals( ThriftCallMetrics.BUCKETS - 1, ThriftCallMetrics.bucketOf( Long.MAX_VALUE ) );
+	}
+
+}
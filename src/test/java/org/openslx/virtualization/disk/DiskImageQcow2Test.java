@@ -4,10 +4,15 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNull;
 
 import java.io.IOException;
+import java.util.List;
 
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
 import org.openslx.virtualization.Version;
+import org.openslx.virtualization.disk.DiskImage.AllocationRange;
+import org.openslx.virtualization.disk.DiskImage.AllocationState;
 import org.openslx.virtualization.disk.DiskImage.ImageFormat;
 
 public class DiskImageQcow2Test
@@ -218,4 +223,58 @@ public class DiskImageQcow2Test
 		assertEquals( imageVersion, image.getVersion() );
 		assertNull( image.getDescription() );
 	}
+
+	@Test
+	@DisplayName( "Test allocation map of empty QCOW2 disk image" )
+	public void testQcow2AllocationMapEmpty() throws DiskImageException, IOException
+	{
+		try ( final DiskImageQcow2 image = (DiskImageQcow2)DiskImage
+				.newInstance( DiskImageTestResources.getDiskFile( "image-default.qcow2" ) ) ) {
+			final List<AllocationRange> ranges = image.getAllocationMap();
+
+			assertEquals( 1, ranges.size() );
+			assertEquals( 0, ranges.get( 0 ).offset );
+			assertEquals( 1024L * 1024 * 1024, ranges.get( 0 ).length );
+			assertEquals( AllocationState.UNALLOCATED, ranges.get( 0 ).state );
+		}
+	}
+
+	@ParameterizedTest
+	@DisplayName( "Test allocation map of QCOW2 disk images with data at 1 MiB and 4 MiB" )
+	@CsvSource( {
+			"image_cs-16384_cp-off_l2-off.qcow2, 1048576, 16384, 4177920, 32768",
+			"image_cs-16384_cp-on_l2-off.qcow2, 1048576, 16384, 4177920, 32768",
+			"image_cs-16384_cp-on_l2-on.qcow2, 1048576, 16384, 4177920, 32768",
+			"image_cs-16384_cp-off_l2-on.qcow2, 1048576, 1024, 4193792, 1536",
+			"image_cs-65536_cp-off_l2-off.qcow2, 1048576, 65536, 4128768, 131072",
+			"image_cs-65536_cp-on_l2-off.qcow2, 1048576, 65536, 4128768, 131072",
+			"image_cs-65536_cp-on_l2-on.qcow2, 1048576, 65536, 4128768, 131072",
+			"image_cs-65536_cp-off_l2-on.qcow2, 1048576, 2048, 4192256, 4096" } )
+	public void testQcow2AllocationMap( String fileName, long offset1, long length1, long offset2, long length2 )
+			throws DiskImageException, IOException
+	{
+		try ( final DiskImageQcow2 image = (DiskImageQcow2)DiskImage
+				.newInstance( DiskImageTestResources.getDiskFile( fileName ) ) ) {
+			final List<AllocationRange> ranges = image.getAllocationMap();
+
+			// ranges cover the whole virtual disk without gaps
+			long end = 0;
+			for ( final AllocationRange range : ranges ) {
+				assertEquals( end, range.offset );
+				end = range.getEnd();
+			}
+			assertEquals( 10L * 1024 * 1024, end );
+
+			assertEquals( 5, ranges.size() );
+			assertEquals( AllocationState.UNALLOCATED, ranges.get( 0 ).state );
+			assertEquals( AllocationState.ALLOCATED, ranges.get( 1 ).state );
+			assertEquals( offset1, ranges.get( 1 ).offset );
+			assertEquals( length1, ranges.get( 1 ).length );
+			assertEquals( AllocationState.UNALLOCATED, ranges.get( 2 ).state );
+			assertEquals( AllocationState.ALLOCATED, ranges.get( 3 ).state );
+			assertEquals( offset2, ranges.get( 3 ).offset );
+			assertEquals( length2, ranges.get( 3 ).length );
+			assertEquals( AllocationState.UNALLOCATED, ranges.get( 4 ).state );
+		}
+	}
 }